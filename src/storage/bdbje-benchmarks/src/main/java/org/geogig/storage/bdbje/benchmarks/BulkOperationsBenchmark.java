@@ -0,0 +1,106 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje.benchmarks;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.locationtech.geogig.model.ObjectId;
+import org.locationtech.geogig.model.RevFeature;
+import org.locationtech.geogig.storage.BulkOpListener;
+import org.locationtech.geogig.storage.ObjectDatabase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@code putAll} and {@code deleteAll} of {@code batchSize} features of {@code objectSize} bytes.
+ * <p>
+ * Every iteration runs a single bulk operation on a fresh database, so the figures are the time
+ * it takes for a whole batch, not per object.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class BulkOperationsBenchmark {
+
+    @Param({ "1000", "10000", "100000" })
+    public int batchSize;
+
+    @Param({ "100", "1000", "10000" })
+    public int objectSize;
+
+    private List<RevFeature> features;
+
+    private List<ObjectId> ids;
+
+    private Datasets.Repository repository;
+
+    private ObjectDatabase db;
+
+    @Setup(Level.Trial)
+    public void createDataset() {
+        Random random = new Random(Datasets.SEED);
+        features = Datasets.features(batchSize, objectSize, random);
+        ids = Datasets.shuffled(Datasets.ids(features), random);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        repository = new Datasets.Repository();
+        db = repository.openObjects();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        db.close();
+        repository.close();
+    }
+
+    @Benchmark
+    public void putAll() {
+        db.putAll(features.iterator(), BulkOpListener.NOOP_LISTENER);
+    }
+
+    /**
+     * Deletes the batch of objects inserted by {@link DeleteState}
+     */
+    @Benchmark
+    public void deleteAll(DeleteState state) {
+        db.deleteAll(ids.iterator(), BulkOpListener.NOOP_LISTENER);
+    }
+
+    /**
+     * Inserts the batch before every {@link BulkOperationsBenchmark#deleteAll deleteAll}
+     * iteration, after the database was created
+     */
+    @State(Scope.Benchmark)
+    public static class DeleteState {
+
+        @Setup(Level.Iteration)
+        public void insert(BulkOperationsBenchmark benchmark) {
+            benchmark.db.putAll(benchmark.features.iterator(), BulkOpListener.NOOP_LISTENER);
+        }
+    }
+}
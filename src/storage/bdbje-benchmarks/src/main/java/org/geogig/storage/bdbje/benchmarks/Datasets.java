@@ -0,0 +1,172 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.geogig.storage.bdbje.EnvironmentBuilder;
+import org.geogig.storage.bdbje.JEGraphDatabase_v0_2;
+import org.geogig.storage.bdbje.JEObjectDatabase_v0_2;
+import org.locationtech.geogig.model.DefaultPlatform;
+import org.locationtech.geogig.model.ObjectId;
+import org.locationtech.geogig.model.RevFeature;
+import org.locationtech.geogig.model.RevFeatureBuilder;
+import org.locationtech.geogig.repository.Hints;
+import org.locationtech.geogig.storage.GraphDatabase;
+import org.locationtech.geogig.storage.ObjectDatabase;
+import org.locationtech.geogig.storage.fs.IniFileConfigDatabase;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+/**
+ * Generates the benchmark datasets and the throwaway repositories they're stored in.
+ * <p>
+ * Datasets are generated from a fixed seed, so every run of a benchmark works on the same data
+ * and results are comparable between builds.
+ */
+class Datasets {
+
+    static final long SEED = 1L;
+
+    private Datasets() {
+        //
+    }
+
+    /**
+     * A repository directory with its {@code .geogig} folder, deleted at {@link #close()}
+     */
+    static class Repository {
+
+        final File root;
+
+        final DefaultPlatform platform;
+
+        final EnvironmentBuilder envProvider;
+
+        final IniFileConfigDatabase config;
+
+        Repository() {
+            root = Files.createTempDir();
+            Preconditions.checkState(new File(root, ".geogig").mkdir());
+            platform = new DefaultPlatform();
+            platform.setWorkingDir(root);
+            envProvider = new EnvironmentBuilder(platform, null);
+            config = new IniFileConfigDatabase(platform);
+        }
+
+        ObjectDatabase openObjects() {
+            ObjectDatabase db = new JEObjectDatabase_v0_2(config, envProvider, false,
+                    "objects");
+            db.open();
+            return db;
+        }
+
+        GraphDatabase openGraph() {
+            GraphDatabase db = new JEGraphDatabase_v0_2(config, envProvider, new Hints());
+            db.open();
+            return db;
+        }
+
+        void close() {
+            try {
+                deleteRecursively(root);
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+
+        private static void deleteRecursively(File file) throws IOException {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    deleteRecursively(child);
+                }
+            }
+            if (!file.delete() && file.exists()) {
+                throw new IOException("Unable to delete " + file);
+            }
+        }
+    }
+
+    /**
+     * @return {@code count} distinct features of roughly {@code size} bytes each
+     */
+    static List<RevFeature> features(final int count, final int size, final Random random) {
+        List<RevFeature> features = new ArrayList<RevFeature>(count);
+        final char[] chars = new char[Math.max(1, size - 16)];
+        for (int i = 0; i < count; i++) {
+            for (int c = 0; c < chars.length; c++) {
+                chars[c] = (char) ('a' + random.nextInt(26));
+            }
+            features.add(RevFeatureBuilder.builder().addValue(Long.valueOf(random.nextLong()))
+                    .addValue(new String(chars)).build());
+        }
+        return features;
+    }
+
+    static List<ObjectId> ids(final List<RevFeature> features) {
+        List<ObjectId> ids = new ArrayList<ObjectId>(features.size());
+        for (RevFeature f : features) {
+            ids.add(f.getId());
+        }
+        return ids;
+    }
+
+    static List<ObjectId> sorted(List<ObjectId> ids) {
+        return ObjectId.NATURAL_ORDER.sortedCopy(ids);
+    }
+
+    static List<ObjectId> shuffled(List<ObjectId> ids, Random random) {
+        List<ObjectId> shuffled = Lists.newArrayList(ids);
+        Collections.shuffle(shuffled, random);
+        return shuffled;
+    }
+
+    static ObjectId commitId(int i) {
+        return ObjectId.forString("commit-" + i);
+    }
+
+    /**
+     * Creates a commit graph of {@code size} commits where every {@code mergeEvery}th commit
+     * merges a short lived branch, or a linear history if {@code mergeEvery} is {@code 0}
+     */
+    static void commitGraph(final GraphDatabase graph, final int size, final int mergeEvery) {
+        ObjectId parent = null;
+        ObjectId branch = null;
+        for (int i = 0; i < size; i++) {
+            final ObjectId id = commitId(i);
+            if (parent == null) {
+                graph.put(id, ImmutableList.<ObjectId> of());
+            } else if (mergeEvery == 0) {
+                graph.put(id, ImmutableList.of(parent));
+            } else if (branch != null && i % mergeEvery == 0) {
+                graph.put(id, ImmutableList.of(parent, branch));
+                branch = null;
+            } else if (i % mergeEvery == mergeEvery / 2) {
+                // start a one commit branch off the current tip
+                graph.put(id, ImmutableList.of(parent));
+                branch = id;
+                continue;
+            } else {
+                graph.put(id, ImmutableList.of(parent));
+            }
+            parent = id;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.locationtech.geogig.model.ObjectId;
+import org.locationtech.geogig.storage.GraphDatabase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Graph database reads from several threads, alone ({@code reads}) and alongside a thread
+ * continuously adding commits ({@code mixed}), to measure how much readers and the writer get in
+ * each other's way. Run with {@code -t} and {@code -tg} to change the thread counts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GraphContentionBenchmark {
+
+    @Param({ "10000" })
+    public int graphSize;
+
+    private Datasets.Repository repository;
+
+    private GraphDatabase graph;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        repository = new Datasets.Repository();
+        graph = repository.openGraph();
+        Datasets.commitGraph(graph, graphSize, 0);
+        next.set(graphSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        graph.close();
+        repository.close();
+    }
+
+    /**
+     * Per thread random source, so readers don't contend on it
+     */
+    @State(Scope.Thread)
+    public static class Reader {
+
+        Random random;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            random = new Random(Datasets.SEED + Thread.currentThread().getId());
+        }
+    }
+
+    @Benchmark
+    @Threads(8)
+    public ImmutableList<ObjectId> reads(Reader reader) {
+        return graph.getParents(Datasets.commitId(reader.random.nextInt(graphSize)));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(7)
+    public ImmutableList<ObjectId> mixedReads(Reader reader) {
+        return graph.getParents(Datasets.commitId(reader.random.nextInt(graphSize)));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public boolean mixedWrites() {
+        int i = next.getAndIncrement();
+        return graph.put(Datasets.commitId(i), ImmutableList.of(Datasets.commitId(i - 1)));
+    }
+}
@@ -0,0 +1,109 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje.benchmarks;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.locationtech.geogig.model.ObjectId;
+import org.locationtech.geogig.storage.GraphDatabase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Graph database {@code put}, {@code getParents}, and {@code getDepth} on a commit graph of
+ * {@code graphSize} commits, with a merge every {@code mergeEvery} commits or a linear history if
+ * {@code 0}.
+ * <p>
+ * {@code getDepth} follows every path to the root commit, so its cost grows exponentially with the
+ * number of merges in the history; use a small {@code graphSize} when benchmarking it with merges.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GraphDatabaseBenchmark {
+
+    @Param({ "10000", "100000" })
+    public int graphSize;
+
+    @Param({ "0" })
+    public int mergeEvery;
+
+    private Datasets.Repository repository;
+
+    private GraphDatabase graph;
+
+    private Random random;
+
+    private List<Integer> depthSamples;
+
+    private int next;
+
+    private ObjectId tip;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        random = new Random(Datasets.SEED);
+        repository = new Datasets.Repository();
+        graph = repository.openGraph();
+        Datasets.commitGraph(graph, graphSize, mergeEvery);
+        next = graphSize;
+        tip = Datasets.commitId(graphSize - 1);
+        // getDepth walks up to the root, sample commits across the history
+        ImmutableList.Builder<Integer> samples = ImmutableList.builder();
+        for (int i = 0; i < 100; i++) {
+            samples.add(Integer.valueOf(random.nextInt(graphSize)));
+        }
+        depthSamples = samples.build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        graph.close();
+        repository.close();
+    }
+
+    @Benchmark
+    public boolean put() {
+        ObjectId id = Datasets.commitId(next++);
+        boolean updated = graph.put(id, ImmutableList.of(tip));
+        tip = id;
+        return updated;
+    }
+
+    @Benchmark
+    public ImmutableList<ObjectId> getParents() {
+        return graph.getParents(Datasets.commitId(random.nextInt(graphSize)));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int getDepth() {
+        int sample = depthSamples.get(random.nextInt(depthSamples.size())).intValue();
+        return graph.getDepth(Datasets.commitId(sample));
+    }
+}
@@ -0,0 +1,166 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje.benchmarks;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.locationtech.geogig.model.ObjectId;
+import org.locationtech.geogig.model.RevFeature;
+import org.locationtech.geogig.model.RevObject;
+import org.locationtech.geogig.storage.BulkOpListener;
+import org.locationtech.geogig.storage.ObjectDatabase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Single and batched {@code get}, {@code exists}, and {@code put}, and {@code getAll} with sorted
+ * and random ids, against an object database pre-populated with {@code datasetSize} features of
+ * {@code objectSize} bytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ObjectDatabaseBenchmark {
+
+    static final int BATCH = 100;
+
+    @Param({ "100000" })
+    public int datasetSize;
+
+    @Param({ "100", "1000", "10000" })
+    public int objectSize;
+
+    private Datasets.Repository repository;
+
+    private ObjectDatabase db;
+
+    private List<ObjectId> ids;
+
+    private List<ObjectId> randomBatch;
+
+    private List<ObjectId> sortedBatch;
+
+    private Random random;
+
+    /**
+     * Features not yet in the database for the put benchmarks, regenerated every iteration
+     */
+    private Iterator<RevFeature> newFeatures;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        random = new Random(Datasets.SEED);
+        repository = new Datasets.Repository();
+        db = repository.openObjects();
+        List<RevFeature> features = Datasets.features(datasetSize, objectSize, random);
+        db.putAll(features.iterator(), BulkOpListener.NOOP_LISTENER);
+        ids = Datasets.shuffled(Datasets.ids(features), random);
+        randomBatch = ids.subList(0, Math.min(BATCH * 10, ids.size()));
+        sortedBatch = Datasets.sorted(randomBatch);
+    }
+
+    @Setup(Level.Iteration)
+    public void newFeatures() {
+        newFeatures = Datasets.features(datasetSize / 10, objectSize, random).iterator();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        db.close();
+        repository.close();
+    }
+
+    private ObjectId randomId() {
+        return ids.get(random.nextInt(ids.size()));
+    }
+
+    private RevFeature newFeature() {
+        if (!newFeatures.hasNext()) {
+            newFeatures();
+        }
+        return newFeatures.next();
+    }
+
+    @Benchmark
+    public RevObject get() {
+        return db.get(randomId());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void getBatched(Blackhole bh) {
+        for (int i = 0; i < BATCH; i++) {
+            bh.consume(db.get(randomId()));
+        }
+    }
+
+    @Benchmark
+    public boolean exists() {
+        return db.exists(randomId());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void existsBatched(Blackhole bh) {
+        for (int i = 0; i < BATCH; i++) {
+            bh.consume(db.exists(randomId()));
+        }
+    }
+
+    @Benchmark
+    public boolean put() {
+        return db.put(newFeature());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void putBatched(Blackhole bh) {
+        for (int i = 0; i < BATCH; i++) {
+            bh.consume(db.put(newFeature()));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH * 10)
+    public void getAllSortedIds(Blackhole bh) {
+        Iterator<RevObject> it = db.getAll(sortedBatch, BulkOpListener.NOOP_LISTENER);
+        while (it.hasNext()) {
+            bh.consume(it.next());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH * 10)
+    public void getAllRandomIds(Blackhole bh) {
+        Iterator<RevObject> it = db.getAll(randomBatch, BulkOpListener.NOOP_LISTENER);
+        while (it.hasNext()) {
+            bh.consume(it.next());
+        }
+    }
+}
@@ -0,0 +1,848 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import static com.sleepycat.je.OperationStatus.SUCCESS;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jdt.annotation.Nullable;
+import org.locationtech.geogig.model.ObjectId;
+import org.locationtech.geogig.storage.ConfigDatabase;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.sleepycat.bind.tuple.TupleBinding;
+import com.sleepycat.je.Cursor;
+import com.sleepycat.je.CursorConfig;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.LockMode;
+
+/**
+ * An immutable, in memory copy of the commit graph's parent and child relations, for traversals
+ * to run without reading and decoding a {@link NodeData} from JE for every commit they visit.
+ * <p>
+ * Commits are numbered with dense {@code int} ids, and their raw ids, relations and depths are
+ * kept in chunks of {@link #CHUNK_SIZE} commits. The relations of a chunk are in compressed sparse
+ * row form: the parents of its {@code n}th commit are {@code values[offsets[n] ..
+ * offsets[n + 1]]}, and likewise for the children. A million commits with a parent each take
+ * about 40MB.
+ * <p>
+ * The commits loaded or built at once are numbered in key order, and the dense id of a commit is
+ * found by binary search. Commits added later are numbered in the order they're added, and found
+ * by binary search in runs of dense ids sorted by commit id, merged as they grow so there are a
+ * logarithmic number of them.
+ * <p>
+ * Changes to the graph are applied with {@link #put}, which returns a new cache sharing the
+ * chunks of this one but the ones it changes, which are copied, so its cost is proportional to
+ * the chunks the change touches and not to the size of the graph. Readers hence use whichever
+ * cache instance they got, without locking.
+ * <p>
+ * Enabled by the {@code bdbje.graph.adjacency_cache} repository (or global) config option.
+ *
+ * @see JEGraphDatabase
+ */
+class AdjacencyCache {
+
+    static final String CONFIG_KEY = "bdbje.graph.adjacency_cache";
+
+    private static final int CHUNK_SHIFT = 10;
+
+    /**
+     * Number of commits per chunk
+     */
+    static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private static final int ID_SIZE = ObjectId.NUM_BYTES;
+
+    private static final int[] NONE = new int[0];
+
+    /**
+     * Number of commits in the cache
+     */
+    private final int size;
+
+    /**
+     * Number of commits numbered in key order, the rest are in {@link #runs}
+     */
+    private final int sortedSize;
+
+    /**
+     * Raw ids of the commits, {@link #CHUNK_SIZE} per chunk
+     */
+    private final byte[][] ids;
+
+    private final Relations[] parents;
+
+    private final Relations[] children;
+
+    /**
+     * Number of parent links from each commit to its closest root commit, or
+     * {@link NodeData#UNKNOWN} if it can't be computed
+     */
+    private final int[][] depths;
+
+    /**
+     * Dense ids of the commits from {@link #sortedSize} on, in runs sorted by commit id, largest
+     * first
+     */
+    private final int[][] runs;
+
+    private AdjacencyCache(int size, int sortedSize, byte[][] ids, Relations[] parents,
+            Relations[] children, int[][] depths, int[][] runs) {
+        this.size = size;
+        this.sortedSize = sortedSize;
+        this.ids = ids;
+        this.parents = parents;
+        this.children = children;
+        this.depths = depths;
+        this.runs = runs;
+    }
+
+    /**
+     * Creates a cache of {@code size} commits in key order from their relations in compressed
+     * sparse row form, computing their depths
+     */
+    private static AdjacencyCache create(final int size, final byte[][] ids,
+            final int[] parentOffsets, final int[] parents, final int[] childOffsets,
+            final int[] children) {
+        final int[][] depths = new int[chunkCount(size)][CHUNK_SIZE];
+        AdjacencyCache cache = new AdjacencyCache(size, size, ids,
+                Relations.split(size, parentOffsets, parents),
+                Relations.split(size, childOffsets, children), depths, new int[0][]);
+        cache.computeDepths();
+        return cache;
+    }
+
+    private static int chunkCount(final int size) {
+        return (size + CHUNK_MASK) >>> CHUNK_SHIFT;
+    }
+
+    /**
+     * @return whether the adjacency cache is enabled by the repository or global config
+     */
+    static boolean isEnabled(final ConfigDatabase config) {
+        Optional<Boolean> enabled = config.get(CONFIG_KEY, Boolean.class);
+        if (!enabled.isPresent()) {
+            enabled = config.getGlobal(CONFIG_KEY, Boolean.class);
+        }
+        return enabled.or(Boolean.FALSE).booleanValue();
+    }
+
+    /**
+     * Loads the graph stored in {@code db}, which shall not change while loading: once to number
+     * the commits in key order, and once more to decode their relations
+     *
+     * @param edges the graph edges if stored one per key, {@code null} if in the node records
+     */
+    static AdjacencyCache load(final Database db, final TupleBinding<NodeData> binding,
+            @Nullable final GraphEdges edges) {
+        final long count = db.count();
+        Preconditions.checkState(count < Integer.MAX_VALUE / ID_SIZE,
+                "Graph too large to cache: %s commits", count);
+        final int size = (int) count;
+        final byte[][] ids = new byte[chunkCount(size)][CHUNK_SIZE * ID_SIZE];
+        int loaded = 0;
+        DatabaseEntry key = new DatabaseEntry();
+        DatabaseEntry data = new DatabaseEntry();
+        data.setPartial(0, 0, true);
+        Cursor cursor = db.openCursor(null, CursorConfig.READ_UNCOMMITTED);
+        try {
+            while (SUCCESS.equals(cursor.getNext(key, data, LockMode.READ_UNCOMMITTED))) {
+                Preconditions.checkState(loaded < size, "Graph changed while loading");
+                System.arraycopy(key.getData(), key.getOffset(), ids[loaded >>> CHUNK_SHIFT],
+                        (loaded & CHUNK_MASK) * ID_SIZE, ID_SIZE);
+                loaded++;
+            }
+        } finally {
+            cursor.close();
+        }
+        Preconditions.checkState(loaded == size, "Graph changed while loading");
+
+        IntArray parents = new IntArray(size);
+        IntArray children = new IntArray(size);
+        int[] parentOffsets = new int[size + 1];
+        int[] childOffsets = new int[size + 1];
+        int node = 0;
+        data = new DatabaseEntry();
+        cursor = db.openCursor(null, CursorConfig.READ_UNCOMMITTED);
+        try {
+            while (SUCCESS.equals(cursor.getNext(key, data, LockMode.READ_UNCOMMITTED))) {
+                NodeData nodeData = binding.entryToObject(data);
+                if (edges != null) {
+                    ObjectId id = ObjectId.createNoClone(Arrays.copyOfRange(key.getData(),
+                            key.getOffset(), key.getOffset() + ID_SIZE));
+                    nodeData.outgoing = edges.parents(id);
+                    nodeData.incoming = edges.children(id);
+                }
+                parentOffsets[node] = parents.size;
+                for (ObjectId p : nodeData.outgoing) {
+                    parents.addIfPresent(indexOf(ids, size, p));
+                }
+                childOffsets[node] = children.size;
+                for (ObjectId c : nodeData.incoming) {
+                    children.addIfPresent(indexOf(ids, size, c));
+                }
+                node++;
+            }
+        } finally {
+            cursor.close();
+        }
+        parentOffsets[size] = parents.size;
+        childOffsets[size] = children.size;
+        return create(size, ids, parentOffsets, parents.values, childOffsets, children.values);
+    }
+
+    /**
+     * Builds the graph of {@code commits} and their parents, with the children of each commit in
+     * key order
+     *
+     * @see RebuildGraphOp
+     */
+    static AdjacencyCache build(final Map<ObjectId, ? extends List<ObjectId>> commits) {
+        final Set<ObjectId> nodes = new HashSet<ObjectId>(commits.keySet());
+        for (List<ObjectId> parentIds : commits.values()) {
+            nodes.addAll(parentIds);
+        }
+        Preconditions.checkState(nodes.size() < Integer.MAX_VALUE / ID_SIZE,
+                "Graph too large to cache: %s commits", nodes.size());
+        final ObjectId[] sorted = nodes.toArray(new ObjectId[nodes.size()]);
+        Arrays.sort(sorted, ObjectId.NATURAL_ORDER);
+        final int size = sorted.length;
+        final byte[][] ids = new byte[chunkCount(size)][CHUNK_SIZE * ID_SIZE];
+        for (int i = 0; i < size; i++) {
+            System.arraycopy(sorted[i].getRawValue(), 0, ids[i >>> CHUNK_SHIFT],
+                    (i & CHUNK_MASK) * ID_SIZE, ID_SIZE);
+        }
+
+        IntArray parents = new IntArray(size);
+        int[] parentOffsets = new int[size + 1];
+        int[] childOffsets = new int[size + 1];
+        for (int node = 0; node < size; node++) {
+            parentOffsets[node] = parents.size;
+            List<ObjectId> parentIds = commits.get(sorted[node]);
+            if (parentIds != null) {
+                for (ObjectId p : parentIds) {
+                    int parent = indexOf(ids, size, p);
+                    // applied as put does, repeated parents are stored once
+                    if (!contains(parents.values, parentOffsets[node], parents.size, parent)) {
+                        parents.add(parent);
+                        childOffsets[parent + 1]++;
+                    }
+                }
+            }
+        }
+        parentOffsets[size] = parents.size;
+        for (int node = 0; node < size; node++) {
+            childOffsets[node + 1] += childOffsets[node];
+        }
+        final int[] children = new int[parents.size];
+        final int[] filled = Arrays.copyOf(childOffsets, size);
+        for (int node = 0; node < size; node++) {
+            for (int i = parentOffsets[node]; i < parentOffsets[node + 1]; i++) {
+                children[filled[parents.values[i]]++] = node;
+            }
+        }
+        return create(size, ids, parentOffsets, parents.values, childOffsets, children);
+    }
+
+    private static boolean contains(final int[] values, final int from, final int to,
+            final int value) {
+        for (int i = from; i < to; i++) {
+            if (values[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Computes the depth of every commit visiting its ancestors depth first, so that each commit
+     * is computed once after all its parents
+     */
+    private void computeDepths() {
+        final byte[] state = new byte[size];// 0: not visited, 1: visiting, 2: done
+        final int[] next = new int[size];
+        final int[] stack = new int[size];
+        for (int start = 0; start < size; start++) {
+            if (state[start] != 0) {
+                continue;
+            }
+            int top = 0;
+            stack[top] = start;
+            state[start] = 1;
+            while (top >= 0) {
+                final int node = stack[top];
+                final int parentCount = parentCount(node);
+                if (next[node] < parentCount) {
+                    final int parent = parent(node, next[node]++);
+                    if (state[parent] == 0) {
+                        state[parent] = 1;
+                        stack[++top] = parent;
+                    }
+                    continue;
+                }
+                int depth = 0;
+                for (int i = 0; i < parentCount; i++) {
+                    final int parent = parent(node, i);
+                    if (state[parent] != 2 || depth(parent) == NodeData.UNKNOWN) {
+                        // a cycle, can't be computed
+                        depth = NodeData.UNKNOWN;
+                        break;
+                    }
+                    depth = i == 0 ? depth(parent) + 1 : Math.min(depth, depth(parent) + 1);
+                }
+                depths[node >>> CHUNK_SHIFT][node & CHUNK_MASK] = depth;
+                state[node] = 2;
+                top--;
+            }
+        }
+    }
+
+    /**
+     * @return the number of commits in the cache
+     */
+    int nodeCount() {
+        return size;
+    }
+
+    /**
+     * @return the dense id of {@code id}, or {@code -1} if it's not in the graph
+     */
+    int index(final ObjectId id) {
+        int index = indexOf(ids, sortedSize, id);
+        for (int r = 0; index < 0 && r < runs.length; r++) {
+            index = indexOf(ids, runs[r], id);
+        }
+        return index;
+    }
+
+    ObjectId id(final int node) {
+        final int offset = (node & CHUNK_MASK) * ID_SIZE;
+        return ObjectId.createNoClone(
+                Arrays.copyOfRange(ids[node >>> CHUNK_SHIFT], offset, offset + ID_SIZE));
+    }
+
+    int parentCount(final int node) {
+        return parents[node >>> CHUNK_SHIFT].count(node & CHUNK_MASK);
+    }
+
+    /**
+     * @return the dense id of the {@code i}th parent of {@code node}
+     */
+    int parent(final int node, final int i) {
+        return parents[node >>> CHUNK_SHIFT].get(node & CHUNK_MASK, i);
+    }
+
+    int childCount(final int node) {
+        return children[node >>> CHUNK_SHIFT].count(node & CHUNK_MASK);
+    }
+
+    /**
+     * @return the dense id of the {@code i}th child of {@code node}
+     */
+    int child(final int node, final int i) {
+        return children[node >>> CHUNK_SHIFT].get(node & CHUNK_MASK, i);
+    }
+
+    private int depth(final int node) {
+        return depths[node >>> CHUNK_SHIFT][node & CHUNK_MASK];
+    }
+
+    boolean exists(final ObjectId commitId) {
+        return index(commitId) >= 0;
+    }
+
+    /**
+     * @see JEGraphDatabase#getParents
+     */
+    ImmutableList<ObjectId> getParents(final ObjectId commitId) {
+        final int node = index(commitId);
+        if (node < 0) {
+            return ImmutableList.of();
+        }
+        ImmutableList.Builder<ObjectId> builder = ImmutableList.builder();
+        final int count = parentCount(node);
+        for (int i = 0; i < count; i++) {
+            builder.add(id(parent(node, i)));
+        }
+        return builder.build();
+    }
+
+    /**
+     * @see JEGraphDatabase#getChildren
+     */
+    ImmutableList<ObjectId> getChildren(final ObjectId commitId) {
+        final int node = index(commitId);
+        if (node < 0) {
+            return ImmutableList.of();
+        }
+        ImmutableList.Builder<ObjectId> builder = ImmutableList.builder();
+        final int count = childCount(node);
+        for (int i = 0; i < count; i++) {
+            builder.add(id(child(node, i)));
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return the number of parent links from {@code commitId} to its closest root commit, or
+     *         {@link NodeData#UNKNOWN} if its ancestors have a cycle
+     * @throws IllegalArgumentException if {@code commitId} is not in the graph
+     */
+    int getDepth(final ObjectId commitId) {
+        final int node = index(commitId);
+        Preconditions.checkArgument(node >= 0, "Graph Object does not exist: %s", commitId);
+        return depth(node);
+    }
+
+    /**
+     * Copies the chunks the change touches, and sets the depth of the commits it adds parents to,
+     * and of their descendants whose depth changes as a result.
+     *
+     * @param commits commits and their parents, applied as {@link JEGraphDatabase#put} does
+     * @return a cache with {@code commits} added to this one's graph
+     */
+    AdjacencyCache put(final Map<ObjectId, ? extends List<ObjectId>> commits) {
+        return new Update(this).apply(commits);
+    }
+
+    /**
+     * @return the position of {@code id} in the first {@code size} ids of {@code ids}, or
+     *         {@code -1}
+     */
+    private static int indexOf(final byte[][] ids, final int size, final ObjectId id) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int c = compare(ids, mid, id);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the dense id of {@code id} in {@code run}, or {@code -1}
+     */
+    private static int indexOf(final byte[][] ids, final int[] run, final ObjectId id) {
+        int low = 0;
+        int high = run.length - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int c = compare(ids, run[mid], id);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return run[mid];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compares the id of commit {@code node} to {@code id}, as unsigned bytes like JE orders keys
+     */
+    private static int compare(final byte[][] ids, final int node, final ObjectId id) {
+        final byte[] chunk = ids[node >>> CHUNK_SHIFT];
+        final int offset = (node & CHUNK_MASK) * ID_SIZE;
+        for (int i = 0; i < ID_SIZE; i++) {
+            int c = (chunk[offset + i] & 0xFF) - id.byteN(i);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Compares the ids of commits {@code node1} and {@code node2} as unsigned bytes
+     */
+    private static int compare(final byte[][] ids, final int node1, final int node2) {
+        final byte[] chunk1 = ids[node1 >>> CHUNK_SHIFT];
+        final byte[] chunk2 = ids[node2 >>> CHUNK_SHIFT];
+        final int offset1 = (node1 & CHUNK_MASK) * ID_SIZE;
+        final int offset2 = (node2 & CHUNK_MASK) * ID_SIZE;
+        for (int i = 0; i < ID_SIZE; i++) {
+            int c = (chunk1[offset1 + i] & 0xFF) - (chunk2[offset2 + i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * The relations of a chunk of commits in compressed sparse row form
+     */
+    private static class Relations {
+
+        static final Relations EMPTY = new Relations(new int[CHUNK_SIZE + 1], NONE);
+
+        final int[] offsets;
+
+        final int[] values;
+
+        Relations(int[] offsets, int[] values) {
+            this.offsets = offsets;
+            this.values = values;
+        }
+
+        int count(final int i) {
+            return offsets[i + 1] - offsets[i];
+        }
+
+        int get(final int i, final int j) {
+            return values[offsets[i] + j];
+        }
+
+        /**
+         * Splits the relations of {@code size} commits in compressed sparse row form in chunks
+         */
+        static Relations[] split(final int size, final int[] offsets, final int[] values) {
+            final Relations[] chunks = new Relations[chunkCount(size)];
+            for (int c = 0; c < chunks.length; c++) {
+                final int first = c << CHUNK_SHIFT;
+                final int last = Math.min(size, first + CHUNK_SIZE);
+                final int base = offsets[first];
+                int[] chunkOffsets = new int[CHUNK_SIZE + 1];
+                for (int i = first; i <= last; i++) {
+                    chunkOffsets[i - first] = offsets[i] - base;
+                }
+                Arrays.fill(chunkOffsets, last - first + 1, CHUNK_SIZE + 1,
+                        offsets[last] - base);
+                chunks[c] = new Relations(chunkOffsets,
+                        Arrays.copyOfRange(values, base, offsets[last]));
+            }
+            return chunks;
+        }
+
+        int[][] toLists() {
+            int[][] lists = new int[CHUNK_SIZE][];
+            for (int i = 0; i < CHUNK_SIZE; i++) {
+                lists[i] = Arrays.copyOfRange(values, offsets[i], offsets[i + 1]);
+            }
+            return lists;
+        }
+
+        static Relations of(final int[][] lists) {
+            int[] offsets = new int[CHUNK_SIZE + 1];
+            for (int i = 0; i < CHUNK_SIZE; i++) {
+                offsets[i + 1] = offsets[i] + lists[i].length;
+            }
+            int[] values = new int[offsets[CHUNK_SIZE]];
+            for (int i = 0; i < CHUNK_SIZE; i++) {
+                System.arraycopy(lists[i], 0, values, offsets[i], lists[i].length);
+            }
+            return new Relations(offsets, values);
+        }
+    }
+
+    /**
+     * The relations of the chunks a {@link #put} changes, as lists per commit, on top of the
+     * unchanged chunks
+     */
+    private static class RelationsUpdate {
+
+        Relations[] chunks;
+
+        final Map<Integer, int[][]> changed = new HashMap<Integer, int[][]>();
+
+        RelationsUpdate(Relations[] chunks) {
+            this.chunks = chunks;
+        }
+
+        void addChunk() {
+            chunks = Arrays.copyOf(chunks, chunks.length + 1);
+            chunks[chunks.length - 1] = Relations.EMPTY;
+        }
+
+        int count(final int node) {
+            int[][] lists = changed.get(Integer.valueOf(node >>> CHUNK_SHIFT));
+            if (lists != null) {
+                return lists[node & CHUNK_MASK].length;
+            }
+            return chunks[node >>> CHUNK_SHIFT].count(node & CHUNK_MASK);
+        }
+
+        int get(final int node, final int i) {
+            int[][] lists = changed.get(Integer.valueOf(node >>> CHUNK_SHIFT));
+            if (lists != null) {
+                return lists[node & CHUNK_MASK][i];
+            }
+            return chunks[node >>> CHUNK_SHIFT].get(node & CHUNK_MASK, i);
+        }
+
+        /**
+         * Appends {@code value} to the relations of {@code node} unless it's already there
+         *
+         * @return whether it was added
+         */
+        boolean add(final int node, final int value) {
+            final int count = count(node);
+            for (int i = 0; i < count; i++) {
+                if (get(node, i) == value) {
+                    return false;
+                }
+            }
+            final Integer chunk = Integer.valueOf(node >>> CHUNK_SHIFT);
+            int[][] lists = changed.get(chunk);
+            if (lists == null) {
+                lists = chunks[chunk.intValue()].toLists();
+                changed.put(chunk, lists);
+            }
+            final int[] values = lists[node & CHUNK_MASK];
+            final int[] appended = Arrays.copyOf(values, values.length + 1);
+            appended[values.length] = value;
+            lists[node & CHUNK_MASK] = appended;
+            return true;
+        }
+
+        Relations[] build() {
+            for (Map.Entry<Integer, int[][]> e : changed.entrySet()) {
+                chunks[e.getKey().intValue()] = Relations.of(e.getValue());
+            }
+            return chunks;
+        }
+    }
+
+    /**
+     * Applies a {@link #put} to copies of the chunk directories of a cache, copying the chunks it
+     * changes the first time it does
+     */
+    private static class Update {
+
+        private final AdjacencyCache cache;
+
+        private int size;
+
+        private byte[][] ids;
+
+        private int[][] depths;
+
+        /**
+         * Chunks of {@link #ids} and {@link #depths} already copied or created by this update
+         */
+        private final BitSet copied = new BitSet();
+
+        private final RelationsUpdate parents;
+
+        private final RelationsUpdate children;
+
+        private final Map<ObjectId, Integer> added = new HashMap<ObjectId, Integer>();
+
+        Update(AdjacencyCache cache) {
+            this.cache = cache;
+            this.size = cache.size;
+            this.ids = cache.ids.clone();
+            this.depths = cache.depths.clone();
+            this.parents = new RelationsUpdate(cache.parents.clone());
+            this.children = new RelationsUpdate(cache.children.clone());
+        }
+
+        AdjacencyCache apply(final Map<ObjectId, ? extends List<ObjectId>> commits) {
+            final Deque<Integer> changed = new ArrayDeque<Integer>();
+            for (Map.Entry<ObjectId, ? extends List<ObjectId>> e : commits.entrySet()) {
+                final int node = indexOrAdd(e.getKey());
+                for (ObjectId parentId : e.getValue()) {
+                    final int parent = indexOrAdd(parentId);
+                    parents.add(node, parent);
+                    children.add(parent, node);
+                }
+                changed.add(Integer.valueOf(node));
+            }
+            // the depth of a commit depends on its parents', update it and its descendants'
+            while (!changed.isEmpty()) {
+                final int node = changed.poll().intValue();
+                final int depth = computeDepth(node);
+                if (depth != depths[node >>> CHUNK_SHIFT][node & CHUNK_MASK]) {
+                    setDepth(node, depth);
+                    final int count = children.count(node);
+                    for (int i = 0; i < count; i++) {
+                        changed.add(Integer.valueOf(children.get(node, i)));
+                    }
+                }
+            }
+            return new AdjacencyCache(size, cache.sortedSize, ids, parents.build(),
+                    children.build(), depths, runs());
+        }
+
+        private int indexOrAdd(final ObjectId id) {
+            int index = cache.index(id);
+            if (index < 0) {
+                Integer i = added.get(id);
+                if (i == null) {
+                    i = Integer.valueOf(size);
+                    add(id);
+                    added.put(id, i);
+                }
+                index = i.intValue();
+            }
+            return index;
+        }
+
+        /**
+         * Appends {@code id} as a root commit, creating a new chunk if the last one is full
+         */
+        private void add(final ObjectId id) {
+            final int node = size++;
+            final int chunk = node >>> CHUNK_SHIFT;
+            if (chunk == ids.length) {
+                ids = Arrays.copyOf(ids, chunk + 1);
+                ids[chunk] = new byte[CHUNK_SIZE * ID_SIZE];
+                depths = Arrays.copyOf(depths, chunk + 1);
+                depths[chunk] = new int[CHUNK_SIZE];
+                copied.set(chunk);
+                parents.addChunk();
+                children.addChunk();
+            }
+            copy(chunk);
+            System.arraycopy(id.getRawValue(), 0, ids[chunk], (node & CHUNK_MASK) * ID_SIZE,
+                    ID_SIZE);
+            depths[chunk][node & CHUNK_MASK] = 0;
+        }
+
+        private void copy(final int chunk) {
+            if (!copied.get(chunk)) {
+                ids[chunk] = ids[chunk].clone();
+                depths[chunk] = depths[chunk].clone();
+                copied.set(chunk);
+            }
+        }
+
+        private void setDepth(final int node, final int depth) {
+            copy(node >>> CHUNK_SHIFT);
+            depths[node >>> CHUNK_SHIFT][node & CHUNK_MASK] = depth;
+        }
+
+        private int computeDepth(final int node) {
+            final int count = parents.count(node);
+            int depth = 0;
+            for (int i = 0; i < count; i++) {
+                final int parent = parents.get(node, i);
+                final int parentDepth = depths[parent >>> CHUNK_SHIFT][parent & CHUNK_MASK];
+                if (parentDepth == NodeData.UNKNOWN) {
+                    return NodeData.UNKNOWN;
+                }
+                depth = i == 0 ? parentDepth + 1 : Math.min(depth, parentDepth + 1);
+            }
+            // deeper than the number of commits only if they have a cycle
+            return depth < size ? depth : NodeData.UNKNOWN;
+        }
+
+        /**
+         * @return the runs of the cache plus one of the added commits, merging it with the
+         *         smallest runs while they're not larger than it
+         */
+        private int[][] runs() {
+            int[][] runs = cache.runs;
+            if (added.isEmpty()) {
+                return runs;
+            }
+            int[] run = new int[added.size()];
+            int i = 0;
+            for (Integer node : added.values()) {
+                run[i++] = node.intValue();
+            }
+            run = sort(run);
+            int count = runs.length;
+            while (count > 0 && runs[count - 1].length <= run.length) {
+                run = merge(runs[count - 1], run);
+                count--;
+            }
+            runs = Arrays.copyOf(runs, count + 1);
+            runs[count] = run;
+            return runs;
+        }
+
+        private int[] sort(final int[] nodes) {
+            Integer[] sorted = new Integer[nodes.length];
+            for (int i = 0; i < nodes.length; i++) {
+                sorted[i] = Integer.valueOf(nodes[i]);
+            }
+            Arrays.sort(sorted, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer o1, Integer o2) {
+                    return AdjacencyCache.compare(ids, o1.intValue(), o2.intValue());
+                }
+            });
+            int[] run = new int[nodes.length];
+            for (int i = 0; i < run.length; i++) {
+                run[i] = sorted[i].intValue();
+            }
+            return run;
+        }
+
+        private int[] merge(final int[] run1, final int[] run2) {
+            final int[] merged = new int[run1.length + run2.length];
+            int i1 = 0, i2 = 0;
+            for (int i = 0; i < merged.length; i++) {
+                if (i2 == run2.length
+                        || (i1 < run1.length && compare(ids, run1[i1], run2[i2]) < 0)) {
+                    merged[i] = run1[i1++];
+                } else {
+                    merged[i] = run2[i2++];
+                }
+            }
+            return merged;
+        }
+    }
+
+    /**
+     * Growable {@code int} array
+     */
+    private static class IntArray {
+
+        int[] values;
+
+        int size;
+
+        IntArray(int capacity) {
+            values = new int[Math.max(capacity, 16)];
+        }
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size + (size >> 1));
+            }
+            values[size++] = value;
+        }
+
+        /**
+         * Adds {@code value} unless it's {@code -1}, a relation to a commit not in the graph
+         */
+        void addIfPresent(int value) {
+            if (value >= 0) {
+                add(value);
+            }
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+
+/**
+ * Describes a point in time backup of a repository's BDB JE environments taken by
+ * {@link BackupOp}: for each environment, the complete set of log files needed to restore it to
+ * its state at the time of the backup.
+ * <p>
+ * Backups to the same directory share the log files they have in common, a manifest lists all
+ * the files its backup needs, not only the ones it copied, along with the identity of the
+ * environments they were copied from and the length and checksum of each file. A file is stored
+ * under its own name unless an earlier version of it, e.g. the last log file of a restored
+ * environment that got appended to, is listed by another manifest, see {@link LogFile}.
+ */
+public class BackupManifest {
+
+    static final String PREFIX = "backup-";
+
+    static final String SUFFIX = ".manifest";
+
+    private final String name;
+
+    private final long timestamp;
+
+    private final ImmutableMap<String, String> ids;
+
+    private final ImmutableMap<String, ImmutableList<LogFile>> files;
+
+    private final long copiedFiles;
+
+    private final long copiedBytes;
+
+    /**
+     * A log file of a backed up environment
+     */
+    public static class LogFile {
+
+        private final String name;
+
+        private final String storedName;
+
+        private final long length;
+
+        private final long checksum;
+
+        LogFile(String name, String storedName, long length, long checksum) {
+            this.name = name;
+            this.storedName = storedName;
+            this.length = length;
+            this.checksum = checksum;
+        }
+
+        /**
+         * @return the file name, relative to the environment directory
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the name the file is stored under in the backup directory, relative to the
+         *         environment's directory in it
+         */
+        public String getStoredName() {
+            return storedName;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * @return the CRC32 checksum of the file, {@code -1} if unknown
+         */
+        public long getChecksum() {
+            return checksum;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, %,d bytes]", name, storedName, length);
+        }
+    }
+
+    BackupManifest(String name, long timestamp, Map<String, String> ids,
+            Map<String, List<LogFile>> files, long copiedFiles, long copiedBytes) {
+        this.name = name;
+        this.timestamp = timestamp;
+        this.ids = ImmutableMap.copyOf(ids);
+        ImmutableMap.Builder<String, ImmutableList<LogFile>> builder = ImmutableMap.builder();
+        for (Map.Entry<String, List<LogFile>> e : files.entrySet()) {
+            builder.put(e.getKey(), ImmutableList.copyOf(e.getValue()));
+        }
+        this.files = builder.build();
+        this.copiedFiles = copiedFiles;
+        this.copiedBytes = copiedBytes;
+    }
+
+    /**
+     * @return the manifest name, which sorts in backup order
+     */
+    public String getName() {
+        return name;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the names of the environments in the backup, e.g. {@code graph} and
+     *         {@code objects}
+     */
+    public ImmutableList<String> getEnvironments() {
+        return files.keySet().asList();
+    }
+
+    /**
+     * @return the files of {@code environment} in the backup, relative to its directory
+     */
+    public ImmutableList<String> getFiles(String environment) {
+        ImmutableList.Builder<String> names = ImmutableList.builder();
+        for (LogFile file : getLogFiles(environment)) {
+            names.add(file.getName());
+        }
+        return names.build();
+    }
+
+    /**
+     * @return the files of {@code environment} in the backup, in file name order
+     */
+    public ImmutableList<LogFile> getLogFiles(String environment) {
+        ImmutableList<LogFile> envFiles = files.get(environment);
+        Preconditions.checkArgument(envFiles != null, "No environment %s in backup %s",
+                environment, name);
+        return envFiles;
+    }
+
+    /**
+     * @return the identity of the backed up {@code environment}, {@code null} if the manifest
+     *         was written before environments had one
+     */
+    @Nullable
+    public String getEnvironmentId(String environment) {
+        return ids.get(environment);
+    }
+
+    /**
+     * @return the number of files this backup copied, as opposed to the ones it shares with
+     *         previous backups
+     */
+    public long getCopiedFiles() {
+        return copiedFiles;
+    }
+
+    public long getCopiedBytes() {
+        return copiedBytes;
+    }
+
+    void write(final File backupDir) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("timestamp", String.valueOf(timestamp));
+        props.setProperty("environments", Joiner.on(',').join(files.keySet()));
+        for (Map.Entry<String, ImmutableList<LogFile>> e : files.entrySet()) {
+            final String env = e.getKey();
+            if (ids.containsKey(env)) {
+                props.setProperty(env + ".id", ids.get(env));
+            }
+            props.setProperty(env + ".files", Joiner.on(',').join(getFiles(env)));
+            for (LogFile f : e.getValue()) {
+                props.setProperty(env + ".file." + f.getName(), Joiner.on(',')
+                        .join(f.getStoredName(), f.getLength(), f.getChecksum()));
+            }
+        }
+        props.setProperty("copiedFiles", String.valueOf(copiedFiles));
+        props.setProperty("copiedBytes", String.valueOf(copiedBytes));
+
+        final File file = new File(backupDir, name);
+        final File tmp = new File(backupDir, name + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            props.store(out, "BDB JE repository backup");
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        java.nio.file.Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static BackupManifest read(final File file) throws IOException {
+        Properties props = new Properties();
+        Reader reader = Files.newReader(file, Charsets.UTF_8);
+        try {
+            props.load(reader);
+        } finally {
+            reader.close();
+        }
+        Map<String, String> ids = new LinkedHashMap<String, String>();
+        Map<String, List<LogFile>> files = new LinkedHashMap<String, List<LogFile>>();
+        Splitter splitter = Splitter.on(',').omitEmptyStrings();
+        for (String env : splitter.split(props.getProperty("environments", ""))) {
+            if (props.getProperty(env + ".id") != null) {
+                ids.put(env, props.getProperty(env + ".id"));
+            }
+            List<LogFile> envFiles = new ArrayList<LogFile>();
+            for (String f : splitter.split(props.getProperty(env + ".files", ""))) {
+                String entry = props.getProperty(env + ".file." + f);
+                if (entry == null) {
+                    // written before files had a stored name, length and checksum
+                    envFiles.add(new LogFile(f, f, -1L, -1L));
+                } else {
+                    List<String> fields = Splitter.on(',').splitToList(entry);
+                    envFiles.add(new LogFile(f, fields.get(0), Long.parseLong(fields.get(1)),
+                            Long.parseLong(fields.get(2))));
+                }
+            }
+            files.put(env, envFiles);
+        }
+        return new BackupManifest(file.getName(), Long.parseLong(props.getProperty("timestamp")),
+                ids, files, Long.parseLong(props.getProperty("copiedFiles", "0")),
+                Long.parseLong(props.getProperty("copiedBytes", "0")));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%s]", name, files.keySet());
+    }
+}
@@ -0,0 +1,84 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.locationtech.geogig.repository.AbstractGeoGigOp;
+import org.locationtech.geogig.storage.GraphDatabase;
+import org.locationtech.geogig.storage.ObjectDatabase;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.sleepycat.je.Environment;
+
+/**
+ * Takes a hot, incremental backup of the repository's BDB JE object and graph environments to a
+ * backup directory, while the repository keeps being used. Returns the backup's manifest, or
+ * {@code null} if cancelled.
+ *
+ * @see JEBackup
+ */
+public class BackupOp extends AbstractGeoGigOp<BackupManifest> {
+
+    private File target;
+
+    private long bytesPerSecond;
+
+    /**
+     * @param target the backup directory, successive backups to the same directory only copy the
+     *        log files written since the previous one
+     */
+    public BackupOp setTarget(File target) {
+        this.target = target;
+        return this;
+    }
+
+    /**
+     * @param bytesPerSecond the maximum rate log files are copied at, {@code 0} for no limit
+     */
+    public BackupOp setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    @Override
+    protected BackupManifest _call() {
+        Preconditions.checkArgument(target != null, "Backup directory not provided");
+        ObjectDatabase objectDatabase = objectDatabase();
+        GraphDatabase graphDatabase = graphDatabase();
+        Preconditions.checkState(objectDatabase instanceof JEObjectDatabase,
+                "Repository's object database is not a BDB JE database: %s", objectDatabase);
+        Preconditions.checkState(graphDatabase instanceof JEGraphDatabase,
+                "Repository's graph database is not a BDB JE database: %s", graphDatabase);
+
+        final Environment objects = ((JEObjectDatabase) objectDatabase).getEnvironment();
+        final Environment graph = ((JEGraphDatabase) graphDatabase).getEnvironment();
+
+        // graph first, see JEBackup. A graph database sharing the objects environment is backed
+        // up along with it
+        Map<String, Environment> environments = new LinkedHashMap<String, Environment>();
+        if (!graph.getHome().equals(objects.getHome())) {
+            environments.put(graph.getHome().getName(), graph);
+        }
+        environments.put(objects.getHome().getName(), objects);
+
+        final File geogigDir = objects.getHome().getParentFile();
+        try {
+            return new JEBackup(target, bytesPerSecond).backup(geogigDir, environments,
+                    getProgressListener());
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+}
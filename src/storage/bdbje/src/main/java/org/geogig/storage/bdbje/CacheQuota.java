@@ -0,0 +1,329 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.locationtech.geogig.storage.ConfigDatabase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sleepycat.je.CacheMode;
+import com.sleepycat.je.CacheModeStrategy;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentStats;
+import com.sleepycat.je.StatsConfig;
+
+/**
+ * Cache priority and quota of an environment within the JE cache shared by all the environments
+ * open by the process ({@code je.sharedCache = true}), so that a repository under heavy use
+ * doesn't evict everything other repositories have cached.
+ * <p>
+ * JE evicts from the shared cache in LRU order regardless of the environment, so the controls act
+ * on what each environment's operations leave in the cache, through the {@link CacheMode} its
+ * databases run with (they're open with {@link CacheMode#DYNAMIC} and this strategy):
+ * <ul>
+ * <li>{@code bdbje.cache.priority}: {@code high} keeps the environment's records and B-tree nodes
+ * in the cache in LRU order ({@link CacheMode#DEFAULT}), {@code normal} (the default) doesn't
+ * promote them on access ({@link CacheMode#MAKE_COLD}), and {@code low} evicts records right after
+ * each operation ({@link CacheMode#EVICT_LN}).
+ * <li>{@code bdbje.cache.quota}: the share of the cache the environment may hold, in bytes (with
+ * optional {@code k}, {@code m}, or {@code g} suffix) or as a percentage of the cache size (e.g.
+ * {@code 20%}). Above 90% of its quota an environment's records are evicted after each operation,
+ * and above its quota the bottom B-tree nodes it touches are evicted too ({@link CacheMode#EVICT_BIN}),
+ * shrinking it back under quota as it's used.
+ * </ul>
+ * Both options are read from the repository config, then the global config, and can be set for
+ * the object and graph environments separately by appending the environment name (e.g.
+ * {@code bdbje.cache.quota.graph}). A graph database hosted in the objects environment follows
+ * the objects environment settings. Usage is checked every {@link #CHECK_INTERVAL_MILLIS}.
+ *
+ * @see CacheReportOp
+ */
+public class CacheQuota implements CacheModeStrategy {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CacheQuota.class);
+
+    static final String PRIORITY_CONFIG_KEY = "bdbje.cache.priority";
+
+    static final String QUOTA_CONFIG_KEY = "bdbje.cache.quota";
+
+    static final long CHECK_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Fraction of the quota above which records are no longer kept in the cache
+     */
+    private static final double SOFT_LIMIT = 0.9;
+
+    public static enum Priority {
+        HIGH(CacheMode.DEFAULT), NORMAL(CacheMode.MAKE_COLD), LOW(CacheMode.EVICT_LN);
+
+        private final CacheMode cacheMode;
+
+        private Priority(CacheMode cacheMode) {
+            this.cacheMode = cacheMode;
+        }
+    }
+
+    /**
+     * Quotas of the open environments, by environment home, shared by the databases open on the
+     * same environment
+     */
+    private static final Map<File, CacheQuota> OPEN = new HashMap<File, CacheQuota>();
+
+    private static ScheduledExecutorService monitor;
+
+    private final transient Environment env;
+
+    private final String envName;
+
+    private final Priority priority;
+
+    private final long quota;
+
+    private int refCount;
+
+    private volatile CacheMode cacheMode;
+
+    private volatile long usedBytes;
+
+    private volatile long cacheBytes;
+
+    private volatile long maxBytes;
+
+    CacheQuota(final Environment env, final String envName, final Priority priority,
+            final long quota) {
+        this.env = env;
+        this.envName = envName;
+        this.priority = priority;
+        this.quota = quota;
+        this.cacheMode = priority.cacheMode;
+    }
+
+    /**
+     * Returns the quota of {@code env}, creating it from the config the first time a database of
+     * the environment asks for it, and starts monitoring it. Every call shall be matched by a
+     * call to {@link #release()} when the database is closed.
+     */
+    public static CacheQuota acquire(final Environment env, final String envName,
+            final ConfigDatabase config) {
+        synchronized (OPEN) {
+            final File home = env.getHome().getAbsoluteFile();
+            CacheQuota quota = OPEN.get(home);
+            if (quota == null) {
+                quota = new CacheQuota(env, envName, getPriority(config, envName),
+                        getQuota(config, envName, CacheSizing.getCacheMaxBytes(env)));
+                quota.check();
+                OPEN.put(home, quota);
+                if (monitor == null) {
+                    monitor = startMonitor();
+                }
+                LOGGER.debug("Cache priority {} and quota {} bytes for {}", quota.priority,
+                        quota.quota, home);
+            }
+            quota.refCount++;
+            return quota;
+        }
+    }
+
+    public void release() {
+        synchronized (OPEN) {
+            if (--refCount == 0) {
+                OPEN.remove(env.getHome().getAbsoluteFile());
+                if (OPEN.isEmpty() && monitor != null) {
+                    monitor.shutdownNow();
+                    monitor = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the quotas of all the environments open by this process, largest cache users first
+     */
+    public static ImmutableList<CacheQuota> getOpen() {
+        List<CacheQuota> open;
+        synchronized (OPEN) {
+            open = new ArrayList<CacheQuota>(OPEN.values());
+        }
+        Collections.sort(open, new Comparator<CacheQuota>() {
+            @Override
+            public int compare(CacheQuota o1, CacheQuota o2) {
+                return Long.compare(o2.usedBytes, o1.usedBytes);
+            }
+        });
+        return ImmutableList.copyOf(open);
+    }
+
+    private static ScheduledExecutorService startMonitor() {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("BDBJE-CACHE-QUOTA-%d")
+                        .build());
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for (CacheQuota quota : getOpen()) {
+                    try {
+                        quota.check();
+                    } catch (RuntimeException e) {
+                        LOGGER.debug("Error checking cache usage of {}", quota.env.getHome(), e);
+                    }
+                }
+            }
+        }, CHECK_INTERVAL_MILLIS, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        return executor;
+    }
+
+    static Priority getPriority(final ConfigDatabase config, final String envName) {
+        Optional<String> value = get(config, PRIORITY_CONFIG_KEY, envName);
+        if (!value.isPresent()) {
+            return Priority.NORMAL;
+        }
+        try {
+            return Priority.valueOf(value.get().trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn("Ignoring invalid {}={}, expected high, normal, or low",
+                    PRIORITY_CONFIG_KEY, value.get());
+            return Priority.NORMAL;
+        }
+    }
+
+    /**
+     * @return the quota in bytes, or {@code 0} if none
+     */
+    static long getQuota(final ConfigDatabase config, final String envName,
+            final long cacheMaxBytes) {
+        Optional<String> value = get(config, QUOTA_CONFIG_KEY, envName);
+        if (!value.isPresent()) {
+            return 0L;
+        }
+        try {
+            return CacheSizing.parse(value.get(), cacheMaxBytes);
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn("Ignoring invalid {}={}: {}", QUOTA_CONFIG_KEY, value.get(),
+                    e.getMessage());
+            return 0L;
+        }
+    }
+
+    /**
+     * @return the value of {@code key.envName}, or {@code key} if not set, from the repository
+     *         config falling back to the global config
+     */
+    private static Optional<String> get(final ConfigDatabase config, final String key,
+            final String envName) {
+        for (String k : new String[] { key + "." + envName, key }) {
+            Optional<String> value = config.get(k);
+            if (!value.isPresent()) {
+                value = config.getGlobal(k);
+            }
+            if (value.isPresent()) {
+                return value;
+            }
+        }
+        return Optional.absent();
+    }
+
+    /**
+     * Samples the environment's cache usage and picks the cache mode for its next operations
+     */
+    void check() {
+        StatsConfig config = new StatsConfig();
+        config.setFast(true);
+        EnvironmentStats stats = env.getStats(config);
+        update(stats.getDataBytes(), stats.getNSharedCacheEnvironments() > 0
+                ? stats.getSharedCacheTotalBytes() : stats.getCacheTotalBytes(),
+                CacheSizing.getCacheMaxBytes(env));
+    }
+
+    void update(final long usedBytes, final long cacheBytes, final long maxBytes) {
+        this.usedBytes = usedBytes;
+        this.cacheBytes = cacheBytes;
+        this.maxBytes = maxBytes;
+        CacheMode mode = priority.cacheMode;
+        if (quota > 0 && usedBytes > quota) {
+            mode = CacheMode.EVICT_BIN;
+        } else if (quota > 0 && usedBytes > quota * SOFT_LIMIT) {
+            mode = CacheMode.EVICT_LN;
+        }
+        if (mode != cacheMode) {
+            LOGGER.debug("{} uses {} bytes of its {} bytes cache quota, switching to {}",
+                    env.getHome(), usedBytes, quota, mode);
+            cacheMode = mode;
+        }
+    }
+
+    /**
+     * Called by JE on every operation of databases open with {@link CacheMode#DYNAMIC}
+     */
+    @Override
+    public CacheMode getCacheMode() {
+        return cacheMode;
+    }
+
+    public File getEnvironmentHome() {
+        return env.getHome();
+    }
+
+    public String getEnvironmentName() {
+        return envName;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return the quota in bytes, or {@code 0} if none
+     */
+    public long getQuota() {
+        return quota;
+    }
+
+    /**
+     * @return the bytes of the cache taken by the environment's records and B-tree nodes at the
+     *         last check
+     */
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * @return the bytes of the cache in use by all the environments sharing it at the last check
+     */
+    public long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    public long getCacheMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return whether the environment is above its quota and being evicted from the cache
+     */
+    public boolean isOverQuota() {
+        return cacheMode == CacheMode.EVICT_BIN;
+    }
+}
@@ -0,0 +1,44 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import org.locationtech.geogig.repository.AbstractGeoGigOp;
+import org.locationtech.geogig.storage.GraphDatabase;
+import org.locationtech.geogig.storage.ObjectDatabase;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Reports the cache occupancy, priority, and quota of every BDB JE environment open by this
+ * process, not only the repository's, largest cache users first, to find out which repositories
+ * take over a shared JE cache.
+ *
+ * @see CacheQuota
+ */
+public class CacheReportOp extends AbstractGeoGigOp<ImmutableList<CacheQuota>> {
+
+    @Override
+    protected ImmutableList<CacheQuota> _call() {
+        // make sure the repository's own environments finished opening and are in the report
+        ObjectDatabase objectDatabase = objectDatabase();
+        if (objectDatabase instanceof JEObjectDatabase) {
+            ((JEObjectDatabase) objectDatabase).getEnvironment();
+        }
+        GraphDatabase graphDatabase = graphDatabase();
+        if (graphDatabase instanceof JEGraphDatabase) {
+            ((JEGraphDatabase) graphDatabase).getEnvironment();
+        }
+        for (CacheQuota quota : CacheQuota.getOpen()) {
+            quota.check();
+        }
+        // sorted by the up to date figures
+        return CacheQuota.getOpen();
+    }
+}
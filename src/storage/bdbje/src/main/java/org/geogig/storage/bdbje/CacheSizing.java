@@ -0,0 +1,145 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+
+import org.locationtech.geogig.storage.ConfigDatabase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentMutableConfig;
+
+/**
+ * Resolves the size of the JE cache from the {@code bdbje.cache.size} repository (or global)
+ * config option.
+ * <p>
+ * The option takes either an absolute size in bytes, with an optional {@code k}, {@code m}, or
+ * {@code g} suffix (e.g. {@code 2g}), or a percentage of the physical memory of the machine (e.g.
+ * {@code 25%}). If not set, the {@code je.maxMemoryPercent} of the environment's
+ * {@code je.properties} applies, which is a percentage of the Java heap.
+ * <p>
+ * The JE cache lives in the Java heap, so the resolved size is capped at
+ * {@link #MAX_HEAP_PERCENT} of the maximum heap size. Physical memory not given to the JVM acts as
+ * a second cache tier, since reads that miss the JE cache are served from the operating system's
+ * file system cache of the JE log files if they're there. Sizing the JE cache as a percentage of
+ * physical memory makes explicit how memory is split between both tiers; see
+ * {@link ObjectStoreStats#getCacheHitRate()} and {@link ObjectStoreStats#getLogReads()} for the
+ * figures to tune it.
+ */
+class CacheSizing {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CacheSizing.class);
+
+    static final String CACHE_SIZE_CONFIG_KEY = "bdbje.cache.size";
+
+    /**
+     * Maximum percentage of the heap the JE cache can take, same as the maximum accepted by
+     * {@code je.maxMemoryPercent}
+     */
+    static final int MAX_HEAP_PERCENT = 90;
+
+    private CacheSizing() {
+        //
+    }
+
+    /**
+     * @return the JE cache size in bytes as configured by {@code bdbje.cache.size}, or absent if
+     *         not configured
+     */
+    public static Optional<Long> getCacheSize(final ConfigDatabase config) {
+        Optional<String> value = config.get(CACHE_SIZE_CONFIG_KEY);
+        if (!value.isPresent()) {
+            value = config.getGlobal(CACHE_SIZE_CONFIG_KEY);
+        }
+        if (!value.isPresent()) {
+            return Optional.absent();
+        }
+        final long maxHeap = Runtime.getRuntime().maxMemory();
+        final long size = parse(value.get(), getPhysicalMemory());
+        final long maxSize = maxHeap / 100 * MAX_HEAP_PERCENT;
+        if (size > maxSize) {
+            LOGGER.warn(
+                    "{}={} resolves to {} bytes but the JE cache can't take more than {}% of the {} bytes heap. Using {} bytes, increase -Xmx to use more.",
+                    CACHE_SIZE_CONFIG_KEY, value.get(), size, MAX_HEAP_PERCENT, maxHeap, maxSize);
+            return Optional.of(maxSize);
+        }
+        return Optional.of(size);
+    }
+
+    /**
+     * Parses a cache size as an absolute number of bytes, with optional {@code k}, {@code m}, or
+     * {@code g} suffix, or a percentage of {@code physicalMemory}
+     */
+    static long parse(final String value, final long physicalMemory) {
+        String v = value.trim().toLowerCase();
+        Preconditions.checkArgument(!v.isEmpty(), "Empty cache size");
+        try {
+            if (v.endsWith("%")) {
+                double percent = Double.parseDouble(v.substring(0, v.length() - 1).trim());
+                Preconditions.checkArgument(percent > 0 && percent <= 100,
+                        "Cache size percentage out of range: %s", value);
+                Preconditions.checkArgument(physicalMemory > 0,
+                        "Can't determine the physical memory size for cache size %s", value);
+                return (long) (physicalMemory * percent / 100);
+            }
+            long unit = 1;
+            switch (v.charAt(v.length() - 1)) {
+            case 'k':
+                unit = 1024;
+                break;
+            case 'm':
+                unit = 1024 * 1024;
+                break;
+            case 'g':
+                unit = 1024 * 1024 * 1024;
+                break;
+            default:
+                break;
+            }
+            if (unit > 1) {
+                v = v.substring(0, v.length() - 1).trim();
+            }
+            long size = Long.parseLong(v) * unit;
+            Preconditions.checkArgument(size > 0, "Cache size shall be > 0: %s", value);
+            return size;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cache size: " + value, e);
+        }
+    }
+
+    /**
+     * @return the size of the JE cache {@code env} uses, which is shared with other environments
+     *         if {@code je.sharedCache} is set
+     */
+    static long getCacheMaxBytes(final Environment env) {
+        EnvironmentMutableConfig config = env.getMutableConfig();
+        long size = config.getCacheSize();
+        if (size == 0) {
+            size = Runtime.getRuntime().maxMemory() * config.getCachePercent() / 100;
+        }
+        return size;
+    }
+
+    /**
+     * @return the total physical memory of the machine, or {@code -1} if unknown
+     */
+    static long getPhysicalMemory() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getTotalPhysicalMemorySize();
+        }
+        return -1;
+    }
+}
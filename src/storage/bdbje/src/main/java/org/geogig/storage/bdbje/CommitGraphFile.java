@@ -0,0 +1,360 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jdt.annotation.Nullable;
+import org.locationtech.geogig.model.ObjectId;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * An immutable, memory mapped snapshot of the commit graph, written next to the graph
+ * environment by {@link JEGraphDatabase#writeCommitGraph}, for read heavy servers to look up
+ * parents, depths, generations and mappings without going through JE. Commits added after the
+ * snapshot are looked up in JE.
+ * <p>
+ * The file holds, big endian:
+ * <ul>
+ * <li>a header: magic number, format version, number of commits, number of extra parent entries,
+ * number of mappings, and the token that ties it to the graph;
+ * <li>a fanout table: for each possible first byte of a commit id, the number of commits whose
+ * id starts with a byte lower or equal to it;
+ * <li>the commit ids, sorted;
+ * <li>a record per commit: its first two parents as positions in the id table, depth, generation
+ * and flags. If it has more than two parents the second entry points to the extra parents list
+ * instead, whose last entry for the commit is marked;
+ * <li>the extra parents list;
+ * <li>the mappings: position of the mapped commit and the id it's mapped to, sorted by position.
+ * </ul>
+ * <p>
+ * The snapshot must not be used once the commits it holds change, which only happens when parents
+ * are added to one of them, or it's mapped or its properties set. {@link JEGraphDatabase} then
+ * discards it; it's only loaded if its token matches the one recorded in the graph metadata when
+ * it was written, so a file left behind is not loaded either.
+ *
+ * @see JEGraphDatabase
+ */
+class CommitGraphFile {
+
+    static final String FILE_NAME = "commit-graph";
+
+    private static final int MAGIC = 0x47474347;// GGCG
+
+    private static final int VERSION = 1;
+
+    private static final int ID_SIZE = ObjectId.NUM_BYTES;
+
+    private static final int HEADER_SIZE = 5 * 4 + 8;
+
+    private static final int FANOUT_SIZE = 256 * 4;
+
+    private static final int RECORD_SIZE = 5 * 4;
+
+    private static final int MAPPING_SIZE = 4 + ID_SIZE;
+
+    private static final int NO_PARENT = 0x7FFFFFFF;
+
+    /**
+     * Set on the second parent entry to point to the extra parents list, and on the last extra
+     * parent of a commit
+     */
+    private static final int EXTRA_PARENTS = 0x80000000;
+
+    private static final int SPARSE = 1;
+
+    private static final int MAPPED = 2;
+
+    private final ByteBuffer buffer;
+
+    private final long token;
+
+    private final int size;
+
+    private final int idsOffset;
+
+    private final int recordsOffset;
+
+    private final int extraOffset;
+
+    private final int mappingsOffset;
+
+    private final int mappings;
+
+    private CommitGraphFile(final ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.size = buffer.getInt(8);
+        final int extra = buffer.getInt(12);
+        this.mappings = buffer.getInt(16);
+        this.token = buffer.getLong(20);
+        this.idsOffset = HEADER_SIZE + FANOUT_SIZE;
+        this.recordsOffset = idsOffset + size * ID_SIZE;
+        this.extraOffset = recordsOffset + size * RECORD_SIZE;
+        this.mappingsOffset = extraOffset + extra * 4;
+        Preconditions.checkState(mappingsOffset + mappings * MAPPING_SIZE == buffer.capacity(),
+                "Truncated commit graph file");
+    }
+
+    /**
+     * Writes the snapshot of {@code graph} to {@code file}, atomically replacing it
+     *
+     * @param depth the depth of each commit of {@code graph}, by dense id
+     * @param generation the generation of each commit of {@code graph}, by dense id
+     * @param nodes the nodes that are mapped or have properties
+     */
+    static void write(final File file, final AdjacencyCache graph, final int[] depth,
+            final int[] generation, final Map<ObjectId, NodeData> nodes, final long token)
+            throws IOException {
+        final int size = graph.nodeCount();
+        final List<Integer> extra = new ArrayList<Integer>();
+        final int[] fanout = new int[256];
+        for (int i = 0; i < size; i++) {
+            fanout[graph.id(i).byteN(0)]++;
+            final int parentCount = graph.parentCount(i);
+            for (int p = 1; p < parentCount && parentCount > 2; p++) {
+                extra.add(Integer.valueOf(graph.parent(i, p)));
+            }
+        }
+        for (int b = 1; b < 256; b++) {
+            fanout[b] += fanout[b - 1];
+        }
+        int mappings = 0;
+        for (NodeData node : nodes.values()) {
+            if (node.mappedTo != null && !node.mappedTo.isNull()) {
+                mappings++;
+            }
+        }
+        final long length = HEADER_SIZE + FANOUT_SIZE + (long) size * (ID_SIZE + RECORD_SIZE)
+                + extra.size() * 4L + (long) mappings * MAPPING_SIZE;
+        Preconditions.checkState(length <= Integer.MAX_VALUE,
+                "Graph too large for a commit graph file: %s commits", size);
+
+        final File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        final FileOutputStream fileOut = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(size);
+            out.writeInt(extra.size());
+            out.writeInt(mappings);
+            out.writeLong(token);
+            for (int b = 0; b < 256; b++) {
+                out.writeInt(fanout[b]);
+            }
+            for (int i = 0; i < size; i++) {
+                out.write(graph.id(i).getRawValue());
+            }
+            int nextExtra = 0;
+            for (int i = 0; i < size; i++) {
+                final int parentCount = graph.parentCount(i);
+                out.writeInt(parentCount > 0 ? graph.parent(i, 0) : NO_PARENT);
+                if (parentCount > 2) {
+                    out.writeInt(EXTRA_PARENTS | nextExtra);
+                    nextExtra += parentCount - 1;
+                } else {
+                    out.writeInt(parentCount > 1 ? graph.parent(i, 1) : NO_PARENT);
+                }
+                out.writeInt(depth[i]);
+                out.writeInt(generation[i]);
+                NodeData node = nodes.get(graph.id(i));
+                int flags = 0;
+                if (node != null) {
+                    flags |= node.isSparse() ? SPARSE : 0;
+                    flags |= node.mappedTo != null && !node.mappedTo.isNull() ? MAPPED : 0;
+                }
+                out.writeInt(flags);
+            }
+            for (int i = 0; i < size; i++) {
+                final int parentCount = graph.parentCount(i);
+                for (int p = 1; p < parentCount && parentCount > 2; p++) {
+                    final int parent = graph.parent(i, p);
+                    out.writeInt(p == parentCount - 1 ? EXTRA_PARENTS | parent : parent);
+                }
+            }
+            for (int i = 0; i < size; i++) {
+                NodeData node = nodes.get(graph.id(i));
+                if (node != null && node.mappedTo != null && !node.mappedTo.isNull()) {
+                    out.writeInt(i);
+                    out.write(node.mappedTo.getRawValue());
+                }
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+        java.nio.file.Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Maps {@code file} in memory
+     *
+     * @return the snapshot, or {@code null} if the file doesn't exist or wasn't written with
+     *         {@code token}
+     */
+    @Nullable
+    static CommitGraphFile open(final File file, final long token) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        final ByteBuffer buffer;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            // the mapping stays valid once the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+        if (buffer.capacity() < HEADER_SIZE + FANOUT_SIZE || buffer.getInt(0) != MAGIC
+                || buffer.getInt(4) != VERSION || buffer.getLong(20) != token) {
+            return null;
+        }
+        return new CommitGraphFile(buffer);
+    }
+
+    long token() {
+        return token;
+    }
+
+    int nodeCount() {
+        return size;
+    }
+
+    /**
+     * @return the position of {@code id} in the snapshot, or {@code -1} if it's not in it
+     */
+    int index(final ObjectId id) {
+        final int first = id.byteN(0);
+        int low = first == 0 ? 0 : buffer.getInt(HEADER_SIZE + (first - 1) * 4);
+        int high = buffer.getInt(HEADER_SIZE + first * 4) - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int c = compare(mid, id);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compares the {@code index}th id to {@code id}, as unsigned bytes like JE orders keys
+     */
+    private int compare(final int index, final ObjectId id) {
+        final int offset = idsOffset + index * ID_SIZE;
+        for (int i = 0; i < ID_SIZE; i++) {
+            final int c = (buffer.get(offset + i) & 0xFF) - id.byteN(i);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    ObjectId id(final int index) {
+        byte[] raw = new byte[ID_SIZE];
+        final int offset = idsOffset + index * ID_SIZE;
+        for (int i = 0; i < ID_SIZE; i++) {
+            raw[i] = buffer.get(offset + i);
+        }
+        return ObjectId.createNoClone(raw);
+    }
+
+    ImmutableList<ObjectId> parents(final int index) {
+        final int record = recordsOffset + index * RECORD_SIZE;
+        final int first = buffer.getInt(record);
+        if (first == NO_PARENT) {
+            return ImmutableList.of();
+        }
+        final int second = buffer.getInt(record + 4);
+        if (second == NO_PARENT) {
+            return ImmutableList.of(id(first));
+        }
+        if ((second & EXTRA_PARENTS) == 0) {
+            return ImmutableList.of(id(first), id(second));
+        }
+        ImmutableList.Builder<ObjectId> parents = ImmutableList.builder();
+        parents.add(id(first));
+        int offset = extraOffset + (second & ~EXTRA_PARENTS) * 4;
+        int parent;
+        do {
+            parent = buffer.getInt(offset);
+            parents.add(id(parent & ~EXTRA_PARENTS));
+            offset += 4;
+        } while ((parent & EXTRA_PARENTS) == 0);
+        return parents.build();
+    }
+
+    /**
+     * @return the depth of the commit, {@link NodeData#UNKNOWN} if it couldn't be computed
+     */
+    int depth(final int index) {
+        return buffer.getInt(recordsOffset + index * RECORD_SIZE + 8);
+    }
+
+    /**
+     * @return the generation of the commit, {@link NodeData#UNKNOWN} if it couldn't be computed
+     */
+    int generation(final int index) {
+        return buffer.getInt(recordsOffset + index * RECORD_SIZE + 12);
+    }
+
+    boolean isSparse(final int index) {
+        return (buffer.getInt(recordsOffset + index * RECORD_SIZE + 16) & SPARSE) != 0;
+    }
+
+    /**
+     * @return the id the commit is mapped to, {@link ObjectId#NULL} if none
+     */
+    ObjectId mapping(final int index) {
+        if ((buffer.getInt(recordsOffset + index * RECORD_SIZE + 16) & MAPPED) == 0) {
+            return ObjectId.NULL;
+        }
+        int low = 0;
+        int high = mappings - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int offset = mappingsOffset + mid * MAPPING_SIZE;
+            final int node = buffer.getInt(offset);
+            if (node < index) {
+                low = mid + 1;
+            } else if (node > index) {
+                high = mid - 1;
+            } else {
+                byte[] raw = new byte[ID_SIZE];
+                for (int i = 0; i < ID_SIZE; i++) {
+                    raw[i] = buffer.get(offset + 4 + i);
+                }
+                return ObjectId.createNoClone(raw);
+            }
+        }
+        return ObjectId.NULL;
+    }
+}
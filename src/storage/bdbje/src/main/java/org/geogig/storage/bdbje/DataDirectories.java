@@ -0,0 +1,282 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.locationtech.geogig.storage.ConfigDatabase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.hash.Hashing;
+
+/**
+ * Spreads the log files of a JE environment over several directories, typically on different
+ * disks, from the comma separated list of directories of the {@code bdbje.data_directories}
+ * repository (or global) config option.
+ * <p>
+ * JE's {@code je.log.nDataDirectories} makes an environment write its log files round robin to the
+ * {@code data001 ... dataNNN} subdirectories of its home, by log file number, so writes, reads, and
+ * the cleaner's I/O are striped across them. Each subdirectory is created as a symbolic link to a
+ * directory of its own under one of the configured directories, so several repositories and
+ * environments can share the same disks.
+ * <p>
+ * Changing the number of directories, or setting it on an existing environment, moves its log
+ * files to where JE expects them for the new count before the environment is opened. JE requires
+ * the directories to stay once created, so unsetting the option keeps the current layout.
+ */
+class DataDirectories {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DataDirectories.class);
+
+    static final String DATA_DIRECTORIES_CONFIG_KEY = "bdbje.data_directories";
+
+    private static final Pattern DATA_DIR = Pattern.compile("data(\\d{3})");
+
+    private static final Pattern LOG_FILE = Pattern.compile("([0-9a-f]{8})\\.(jdb|del|bad)");
+
+    private DataDirectories() {
+        //
+    }
+
+    /**
+     * @return the directories configured by {@code bdbje.data_directories}, or absent if not
+     *         configured
+     */
+    public static Optional<List<File>> getConfigured(final ConfigDatabase config) {
+        Optional<String> value = config.get(DATA_DIRECTORIES_CONFIG_KEY);
+        if (!value.isPresent()) {
+            value = config.getGlobal(DATA_DIRECTORIES_CONFIG_KEY);
+        }
+        if (!value.isPresent()) {
+            return Optional.absent();
+        }
+        List<File> dirs = new ArrayList<File>();
+        for (String dir : Splitter.on(',').trimResults().omitEmptyStrings().split(value.get())) {
+            dirs.add(new File(dir));
+        }
+        Preconditions.checkArgument(dirs.size() <= 256,
+                "%s can list at most 256 directories, got %s", DATA_DIRECTORIES_CONFIG_KEY,
+                dirs.size());
+        return dirs.isEmpty() ? Optional.<List<File>> absent() : Optional.of(dirs);
+    }
+
+    /**
+     * Lays out the data directories of the environment at {@code envHome} for {@code configured},
+     * moving existing log files as needed, and returns the {@code je.log.nDataDirectories} to open
+     * it with.
+     *
+     * @param configured the configured directories, or absent to keep the current layout
+     * @param readOnly if {@code true} the layout is not changed
+     */
+    public static int prepare(final File envHome, final Optional<List<File>> configured,
+            final boolean readOnly) throws IOException {
+        final int existing = listDataDirs(envHome).size();
+        if (!configured.isPresent() || readOnly) {
+            if (configured.isPresent() && configured.get().size() != existing) {
+                LOGGER.warn("Not moving log files of read only environment {} to {} directories",
+                        envHome, configured.get().size());
+            }
+            return existing;
+        }
+        final List<File> targets = configured.get();
+        final int count = targets.size();
+        if (count == existing && isLaidOut(envHome, count)) {
+            return count;
+        }
+        RandomAccessFile lockFile = new RandomAccessFile(new File(envHome, "je.lck"), "rw");
+        try {
+            FileLock lock;
+            try {
+                lock = lockFile.getChannel().tryLock();
+            } catch (OverlappingFileLockException e) {
+                // open by this process
+                lock = null;
+            }
+            Preconditions.checkState(lock != null,
+                    "Can't move the log files of %s while it's in use", envHome);
+            try {
+                LOGGER.info("Spreading log files of {} over {} data directories", envHome, count);
+                for (int i = existing; i < count; i++) {
+                    createDataDir(envHome, i, targets.get(i));
+                }
+                redistribute(envHome, count);
+                for (int i = count; i < existing; i++) {
+                    removeDataDir(envHome, i);
+                }
+            } finally {
+                lock.release();
+            }
+        } finally {
+            lockFile.close();
+        }
+        return count;
+    }
+
+    /**
+     * @return whether the environment at {@code envHome} has any log file, in its home or its
+     *         data directories
+     */
+    public static boolean hasLogFiles(final File envHome) {
+        return !listLogFiles(envHome).isEmpty();
+    }
+
+    private static List<File> listDataDirs(final File envHome) {
+        File[] dirs = envHome.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.isDirectory() && DATA_DIR.matcher(f.getName()).matches();
+            }
+        });
+        List<File> list = new ArrayList<File>();
+        if (dirs != null) {
+            for (File d : dirs) {
+                list.add(d);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * @return the name of the {@code index}th (zero based) data directory, as JE expects it
+     */
+    static String dataDirName(final int index) {
+        return String.format("data%03d", index + 1);
+    }
+
+    private static boolean isLaidOut(final File envHome, final int count) {
+        for (File f : listLogFiles(envHome)) {
+            if (!f.getParentFile().equals(expectedDir(envHome, f, count))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static File expectedDir(final File envHome, final File logFile, final int count) {
+        if (count == 0) {
+            return envHome;
+        }
+        Matcher m = LOG_FILE.matcher(logFile.getName());
+        Preconditions.checkState(m.matches());
+        long fileNumber = Long.parseLong(m.group(1), 16);
+        return new File(envHome, dataDirName((int) (fileNumber % count)));
+    }
+
+    private static List<File> listLogFiles(final File envHome) {
+        List<File> files = new ArrayList<File>();
+        addLogFiles(envHome, files);
+        for (File dir : listDataDirs(envHome)) {
+            addLogFiles(dir, files);
+        }
+        return files;
+    }
+
+    private static void addLogFiles(final File dir, final List<File> files) {
+        File[] logFiles = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.isFile() && LOG_FILE.matcher(f.getName()).matches();
+            }
+        });
+        if (logFiles != null) {
+            for (File f : logFiles) {
+                files.add(f);
+            }
+        }
+    }
+
+    /**
+     * Creates the {@code index}th data directory as a link to a directory of its own under
+     * {@code target}, named after the environment and a hash of its location
+     */
+    private static void createDataDir(final File envHome, final int index, final File target)
+            throws IOException {
+        final File dataDir = new File(envHome, dataDirName(index));
+        if (dataDir.exists()) {
+            return;
+        }
+        final String home = envHome.getCanonicalPath();
+        final String name = String.format("%s-%s-%s", envHome.getName(),
+                Hashing.murmur3_32().hashString(home, Charsets.UTF_8), dataDirName(index));
+        final File linked = new File(target, name);
+        Preconditions.checkState(linked.isDirectory() || linked.mkdirs(), "Unable to create %s",
+                linked);
+        Files.createSymbolicLink(dataDir.toPath(), linked.getAbsoluteFile().toPath());
+    }
+
+    /**
+     * Moves every log file to the data directory JE looks for it in with {@code count}
+     * directories, see {@link #moveLogFile(File, File)}
+     */
+    private static void redistribute(final File envHome, final int count) throws IOException {
+        for (File f : listLogFiles(envHome)) {
+            File dir = expectedDir(envHome, f, count);
+            if (!f.getParentFile().equals(dir)) {
+                File target = new File(dir, f.getName());
+                LOGGER.debug("Moving {} to {}", f, target);
+                moveLogFile(f, target);
+            }
+        }
+    }
+
+    /**
+     * Moves a log file to a data directory, usually on another disk, by copying it to a temporary
+     * file there that's synced and renamed to {@code target} before deleting the original. An
+     * interrupted move thus leaves either the original alone or a complete copy next to it, and
+     * is redone by the next open.
+     */
+    private static void moveLogFile(final File source, final File target) throws IOException {
+        final Path tmp = new File(target.getParentFile(), target.getName() + ".tmp").toPath();
+        Files.copy(source.toPath(), tmp, StandardCopyOption.REPLACE_EXISTING);
+        FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE);
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+        Files.move(tmp, target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        Files.delete(source.toPath());
+    }
+
+    private static void removeDataDir(final File envHome, final int index) throws IOException {
+        final File dataDir = new File(envHome, dataDirName(index));
+        final Path path = dataDir.toPath();
+        if (Files.isSymbolicLink(path)) {
+            File linked = path.toRealPath().toFile();
+            Files.delete(path);
+            String[] remaining = linked.list();
+            if (remaining != null && remaining.length == 0) {
+                Files.delete(linked.toPath());
+            }
+        } else {
+            Files.delete(path);
+        }
+    }
+}
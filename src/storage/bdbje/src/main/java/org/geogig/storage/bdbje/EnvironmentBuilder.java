@@ -12,12 +12,16 @@ package org.geogig.storage.bdbje;
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import org.eclipse.jdt.annotation.Nullable;
 import org.locationtech.geogig.plumbing.ResolveGeogigURI;
 import org.locationtech.geogig.repository.Hints;
 import org.locationtech.geogig.repository.Platform;
+import org.locationtech.geogig.storage.ConfigDatabase;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
@@ -25,6 +29,7 @@ import com.google.common.base.Throwables;
 import com.google.common.io.ByteSource;
 import com.google.common.io.Files;
 import com.google.common.io.Resources;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.sleepycat.je.CacheMode;
@@ -34,6 +39,13 @@ import com.sleepycat.je.EnvironmentConfig;
 
 public class EnvironmentBuilder implements Provider<Environment> {
 
+    /**
+     * Executor where the object and graph databases open their environments in the background,
+     * so that independent environments open in parallel
+     */
+    static final ExecutorService STARTUP_EXECUTOR = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("BDBJE-STARTUP-%d").build());
+
     private Platform platform;
 
     private String[] path;
@@ -48,6 +60,9 @@ public class EnvironmentBuilder implements Provider<Environment> {
 
     private Hints hints;
 
+    @Nullable
+    private ConfigDatabase configDatabase;
+
     @Inject
     public EnvironmentBuilder(Platform platform, @Nullable Hints hints) {
         this.platform = platform;
@@ -112,14 +127,20 @@ public class EnvironmentBuilder implements Provider<Environment> {
         EnvironmentConfig envCfg;
         if (this.forceConfig == null) {
             File conf = new File(storeDirectory, "je.properties");
-            if (!conf.exists()) {
+            final EnvironmentTuner.Mode autoTune = getAutoTuneMode();
+            if (!conf.exists() || (autoTune == EnvironmentTuner.Mode.FORCE && !readOnly)) {
                 String resource = stagingDatabase ? "je.properties.staging"
                         : "je.properties.objectdb";
                 ByteSource from = Resources.asByteSource((getClass().getResource(resource)));
                 try {
-                    from.copyTo(Files.asByteSink(conf));
+                    if (autoTune == EnvironmentTuner.Mode.OFF) {
+                        from.copyTo(Files.asByteSink(conf));
+                    } else {
+                        EnvironmentTuner.measure(storeDirectory, !readOnly).write(conf, from,
+                                stagingDatabase);
+                    }
                 } catch (IOException e) {
-                    Throwables.propagate(e);
+                    throw Throwables.propagate(e);
                 }
             }
 
@@ -130,6 +151,26 @@ public class EnvironmentBuilder implements Provider<Environment> {
             envCfg.setLockTimeout(5, TimeUnit.SECONDS);
             envCfg.setDurability(Durability.COMMIT_SYNC);
             // envCfg.setReadOnly(readOnly);
+            if (configDatabase != null) {
+                // takes precedence over je.maxMemoryPercent in je.properties
+                Optional<Long> cacheSize = CacheSizing.getCacheSize(configDatabase);
+                if (cacheSize.isPresent()) {
+                    envCfg.setCacheSize(cacheSize.get().longValue());
+                }
+            }
+            final int dataDirectories;
+            try {
+                dataDirectories = DataDirectories.prepare(storeDirectory,
+                        configDatabase == null ? Optional.<List<File>> absent()
+                                : DataDirectories.getConfigured(configDatabase),
+                        readOnly);
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+            if (dataDirectories > 0) {
+                envCfg.setConfigParam(EnvironmentConfig.LOG_N_DATA_DIRECTORIES,
+                        String.valueOf(dataDirectories));
+            }
         } else {
             envCfg = this.forceConfig;
         }
@@ -183,6 +224,26 @@ public class EnvironmentBuilder implements Provider<Environment> {
         this.forceConfig = envCfg;
     }
 
+    private EnvironmentTuner.Mode getAutoTuneMode() {
+        if (configDatabase == null) {
+            return EnvironmentTuner.Mode.OFF;
+        }
+        Optional<String> value = configDatabase.get(EnvironmentTuner.AUTOTUNE_CONFIG_KEY);
+        if (!value.isPresent()) {
+            value = configDatabase.getGlobal(EnvironmentTuner.AUTOTUNE_CONFIG_KEY);
+        }
+        return EnvironmentTuner.Mode.parse(value.orNull());
+    }
+
+    /**
+     * Sets the repository config used to resolve the {@link CacheSizing JE cache size} and
+     * whether to {@link EnvironmentTuner auto-tune} the environment
+     */
+    public EnvironmentBuilder setConfigDatabase(@Nullable ConfigDatabase configDatabase) {
+        this.configDatabase = configDatabase;
+        return this;
+    }
+
     public EnvironmentBuilder setReadOnly(boolean readOnly) {
         this.readOnly = readOnly;
         return this;
@@ -0,0 +1,53 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+/**
+ * JMX view of the last sample taken by an {@link EnvironmentStatsSampler}. Counters are deltas
+ * over the sampling interval, the rest are values at sampling time.
+ */
+public interface EnvironmentStatsMXBean {
+
+    String getEnvironmentHome();
+
+    long getSampleTimestamp();
+
+    long getIntervalMillis();
+
+    long getCacheMisses();
+
+    long getNodeFetchMisses();
+
+    long getCacheTotalBytes();
+
+    long getEvictedNodes();
+
+    long getEvictPasses();
+
+    int getCleanerBacklog();
+
+    long getCleanerRuns();
+
+    long getCheckpoints();
+
+    long getLastCheckpointBytes();
+
+    long getEstimatedCheckpointMillis();
+
+    long getLockRequests();
+
+    long getLockWaits();
+
+    long getLogWriteBytes();
+
+    long getLogWriteBytesPerSecond();
+
+    long getLogFSyncs();
+}
@@ -0,0 +1,371 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.eclipse.jdt.annotation.Nullable;
+import org.locationtech.geogig.storage.ConfigDatabase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentConfig;
+import com.sleepycat.je.EnvironmentStats;
+import com.sleepycat.je.StatsConfig;
+
+/**
+ * Periodically samples the {@link EnvironmentStats} of a JE environment, exposing the last
+ * sample through JMX as an {@link EnvironmentStatsMXBean}, and optionally appending every sample
+ * to a rolling CSV or JSON lines file in the environment directory.
+ * <p>
+ * Configured through the repository (or global) config:
+ * <ul>
+ * <li>{@code bdbje.stats.interval}: sampling interval in seconds, {@code 0} (the default)
+ * disables sampling altogether, with no thread started nor MBean registered
+ * <li>{@code bdbje.stats.file}: {@code csv} or {@code json} to also write samples to
+ * {@code je-stats.csv} or {@code je-stats.json} in the environment directory, rolled over at
+ * {@code 10MB} keeping {@code 3} old files
+ * </ul>
+ * JE doesn't time checkpoints, so the checkpoint figures are the log bytes written by the last
+ * checkpoint and an estimate of its duration at the log write rate of the interval.
+ */
+class EnvironmentStatsSampler implements EnvironmentStatsMXBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EnvironmentStatsSampler.class);
+
+    static final String INTERVAL_CONFIG_KEY = "bdbje.stats.interval";
+
+    static final String FILE_CONFIG_KEY = "bdbje.stats.file";
+
+    private static final long MAX_FILE_BYTES = 10 * 1024 * 1024;
+
+    private static final int MAX_ROLLED_FILES = 3;
+
+    private static final String[] COLUMNS = { "timestamp", "intervalMillis", "cacheMisses",
+            "nodeFetchMisses", "cacheTotalBytes", "evictedNodes", "evictPasses",
+            "cleanerBacklog", "cleanerRuns", "checkpoints", "lastCheckpointBytes",
+            "estimatedCheckpointMillis", "lockRequests", "lockWaits", "logWriteBytes",
+            "logWriteBytesPerSecond", "logFSyncs" };
+
+    private final Environment env;
+
+    private final long intervalMillis;
+
+    @Nullable
+    private final File file;
+
+    private final boolean json;
+
+    private final long logFileMax;
+
+    private ScheduledExecutorService executor;
+
+    private ObjectName mbeanName;
+
+    /**
+     * Cumulative counters of the previous sample, to compute deltas
+     */
+    private long[] previous;
+
+    private long previousTimestamp;
+
+    private volatile long[] last = new long[COLUMNS.length];
+
+    EnvironmentStatsSampler(final Environment env, final long intervalMillis,
+            final @Nullable String fileFormat) {
+        this.env = env;
+        this.intervalMillis = intervalMillis;
+        this.json = "json".equalsIgnoreCase(fileFormat);
+        if (fileFormat == null) {
+            this.file = null;
+        } else {
+            this.file = new File(env.getHome(), "je-stats." + (json ? "json" : "csv"));
+        }
+        this.logFileMax = Long
+                .parseLong(env.getConfig().getConfigParam(EnvironmentConfig.LOG_FILE_MAX));
+    }
+
+    /**
+     * Creates and starts a sampler for {@code env} if {@code bdbje.stats.interval} is set
+     *
+     * @return the started sampler, or {@code null} if sampling is disabled
+     */
+    @Nullable
+    public static EnvironmentStatsSampler start(final Environment env,
+            final ConfigDatabase config) {
+        final long interval = get(config, INTERVAL_CONFIG_KEY, Long.class).or(0L).longValue();
+        if (interval <= 0) {
+            return null;
+        }
+        String format = get(config, FILE_CONFIG_KEY, String.class).orNull();
+        if (format != null && !"csv".equalsIgnoreCase(format)
+                && !"json".equalsIgnoreCase(format)) {
+            LOGGER.warn("Ignoring invalid {}={}, expected csv or json", FILE_CONFIG_KEY, format);
+            format = null;
+        }
+        EnvironmentStatsSampler sampler = new EnvironmentStatsSampler(env, interval * 1000,
+                format);
+        sampler.start();
+        return sampler;
+    }
+
+    private static <T> Optional<T> get(ConfigDatabase config, String key, Class<T> type) {
+        Optional<T> value = config.get(key, type);
+        if (!value.isPresent()) {
+            value = config.getGlobal(key, type);
+        }
+        return value;
+    }
+
+    void start() {
+        sample();
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("org.geogig.storage.bdbje:type=EnvironmentStats,name="
+                    + ObjectName.quote(env.getHome().getAbsolutePath()));
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+                mbeanName = name;
+            }
+        } catch (JMException e) {
+            LOGGER.warn("Unable to register JE statistics MBean for {}", env.getHome(), e);
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true).setNameFormat("BDBJE-" + env.getHome().getName() + "-STATS-%d")
+                .build());
+        executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sample();
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Error sampling JE statistics for {}", env.getHome(), e);
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        LOGGER.debug("Sampling JE statistics of {} every {}ms", env.getHome(), intervalMillis);
+    }
+
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                LOGGER.debug("Interrupted waiting for stats sampler to stop", e);
+            }
+            executor = null;
+        }
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (JMException e) {
+                LOGGER.debug("Error unregistering {}", mbeanName, e);
+            }
+            mbeanName = null;
+        }
+    }
+
+    synchronized void sample() {
+        final long now = System.currentTimeMillis();
+        final EnvironmentStats s = env.getStats(new StatsConfig());
+
+        final long[] counters = { s.getNCacheMiss(),
+                s.getNUpperINsFetchMiss() + s.getNBINsFetchMiss() + s.getNLNsFetchMiss(),
+                s.getNBINsEvictedEvictorThread() + s.getNBINsEvictedManual()
+                        + s.getNBINsEvictedCritical() + s.getNBINsEvictedCacheMode()
+                        + s.getNBINsEvictedDaemon() + s.getNUpperINsEvictedEvictorThread()
+                        + s.getNUpperINsEvictedManual() + s.getNUpperINsEvictedCritical()
+                        + s.getNUpperINsEvictedCacheMode() + s.getNUpperINsEvictedDaemon(),
+                s.getNEvictPasses(), s.getNCleanerRuns(), s.getNCheckpoints(), s.getNRequests(),
+                s.getNWaits(), s.getNRandomWriteBytes() + s.getNSequentialWriteBytes(),
+                s.getNLogFSyncs() };
+        if (previous == null) {
+            previous = counters;
+            previousTimestamp = now;
+            return;
+        }
+        final long[] delta = new long[counters.length];
+        for (int i = 0; i < counters.length; i++) {
+            delta[i] = counters[i] - previous[i];
+        }
+        final long elapsed = Math.max(1, now - previousTimestamp);
+        previous = counters;
+        previousTimestamp = now;
+
+        final long checkpointBytes = logDistance(s.getLastCheckpointStart(),
+                s.getLastCheckpointEnd());
+        final long writeRate = delta[8] * 1000 / elapsed;
+        final long checkpointMillis = writeRate == 0 ? 0 : checkpointBytes * 1000 / writeRate;
+
+        last = new long[] { now, elapsed, delta[0], delta[1], s.getCacheTotalBytes(), delta[2],
+                delta[3], s.getCleanerBacklog(), delta[4], delta[5], checkpointBytes,
+                checkpointMillis, delta[6], delta[7], delta[8], writeRate, delta[9] };
+        if (file != null) {
+            append(last);
+        }
+    }
+
+    /**
+     * @return the number of log bytes between two LSNs, whose upper 32 bits are the log file
+     *         number and lower 32 bits the offset in the file
+     */
+    private long logDistance(long fromLsn, long toLsn) {
+        if (fromLsn < 0 || toLsn < fromLsn) {
+            return 0;
+        }
+        long files = (toLsn >>> 32) - (fromLsn >>> 32);
+        return files * logFileMax + (toLsn & 0xFFFFFFFFL) - (fromLsn & 0xFFFFFFFFL);
+    }
+
+    private void append(long[] values) {
+        try {
+            if (file.length() > MAX_FILE_BYTES) {
+                roll();
+            }
+            StringBuilder line = new StringBuilder();
+            if (json) {
+                JsonWriter writer = new JsonWriter();
+                writer.beginObject().member("environment", env.getHome().getAbsolutePath());
+                for (int i = 0; i < COLUMNS.length; i++) {
+                    writer.member(COLUMNS[i], values[i]);
+                }
+                writer.endObject();
+                line.append(writer.toString());
+            } else {
+                if (!file.exists()) {
+                    line.append(Joiner.on(',').join(COLUMNS)).append('\n');
+                }
+                for (int i = 0; i < values.length; i++) {
+                    line.append(i == 0 ? "" : ",").append(values[i]);
+                }
+            }
+            line.append('\n');
+            Files.append(line, file, Charsets.UTF_8);
+        } catch (IOException e) {
+            LOGGER.warn("Error writing JE statistics to {}", file, e);
+        }
+    }
+
+    private void roll() throws IOException {
+        for (int i = MAX_ROLLED_FILES - 1; i >= 1; i--) {
+            File from = new File(file.getPath() + "." + i);
+            if (from.exists()) {
+                Files.move(from, new File(file.getPath() + "." + (i + 1)));
+            }
+        }
+        Files.move(file, new File(file.getPath() + ".1"));
+    }
+
+    @Override
+    public String getEnvironmentHome() {
+        return env.getHome().getAbsolutePath();
+    }
+
+    @Override
+    public long getSampleTimestamp() {
+        return last[0];
+    }
+
+    @Override
+    public long getIntervalMillis() {
+        return last[1];
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return last[2];
+    }
+
+    @Override
+    public long getNodeFetchMisses() {
+        return last[3];
+    }
+
+    @Override
+    public long getCacheTotalBytes() {
+        return last[4];
+    }
+
+    @Override
+    public long getEvictedNodes() {
+        return last[5];
+    }
+
+    @Override
+    public long getEvictPasses() {
+        return last[6];
+    }
+
+    @Override
+    public int getCleanerBacklog() {
+        return (int) last[7];
+    }
+
+    @Override
+    public long getCleanerRuns() {
+        return last[8];
+    }
+
+    @Override
+    public long getCheckpoints() {
+        return last[9];
+    }
+
+    @Override
+    public long getLastCheckpointBytes() {
+        return last[10];
+    }
+
+    @Override
+    public long getEstimatedCheckpointMillis() {
+        return last[11];
+    }
+
+    @Override
+    public long getLockRequests() {
+        return last[12];
+    }
+
+    @Override
+    public long getLockWaits() {
+        return last[13];
+    }
+
+    @Override
+    public long getLogWriteBytes() {
+        return last[14];
+    }
+
+    @Override
+    public long getLogWriteBytesPerSecond() {
+        return last[15];
+    }
+
+    @Override
+    public long getLogFSyncs() {
+        return last[16];
+    }
+}
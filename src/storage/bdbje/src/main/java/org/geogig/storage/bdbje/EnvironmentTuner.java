@@ -0,0 +1,319 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
+import com.google.common.base.Stopwatch;
+import com.google.common.io.ByteSource;
+import com.google.common.io.Files;
+import com.google.common.primitives.Longs;
+
+/**
+ * Derives JE environment settings from the hardware the repository runs on, and writes them to
+ * the environment's {@code je.properties} in place of the values of the static template.
+ * <p>
+ * Controlled by the {@code bdbje.autotune} repository (or global) config option:
+ * <ul>
+ * <li>{@code false} (default): the {@code je.properties} template is copied as is when the
+ * environment is created
+ * <li>{@code true}: the template is tuned when the environment is created, an existing
+ * {@code je.properties} (possibly edited by hand) is left alone
+ * <li>{@code force}: {@code je.properties} is re-tuned every time the environment is open for
+ * writing, overriding any hand edits of the tuned settings
+ * </ul>
+ * Tuned settings are derived from the number of cores, the maximum heap size, the physical memory
+ * size, and the sequential write throughput of the environment's disk, measured by writing and
+ * syncing a scratch file. The measured throughput is kept in {@code je.autotune.properties} next
+ * to {@code je.properties}, and measured again only if that file is missing or was written for
+ * another directory, as when the environment is copied elsewhere.
+ */
+class EnvironmentTuner {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EnvironmentTuner.class);
+
+    static final String AUTOTUNE_CONFIG_KEY = "bdbje.autotune";
+
+    static enum Mode {
+        OFF, ON, FORCE;
+
+        static Mode parse(String value) {
+            if (value == null || "false".equalsIgnoreCase(value)) {
+                return OFF;
+            }
+            if ("true".equalsIgnoreCase(value)) {
+                return ON;
+            }
+            if ("force".equalsIgnoreCase(value)) {
+                return FORCE;
+            }
+            throw new IllegalArgumentException(
+                    AUTOTUNE_CONFIG_KEY + " shall be one of true, false, or force: " + value);
+        }
+    }
+
+    private static final long MB = 1024 * 1024;
+
+    private static final int DISK_PROBE_MB = 32;
+
+    static final String THROUGHPUT_FILE_NAME = "je.autotune.properties";
+
+    private static final String THROUGHPUT_KEY = "disk.bytesPerSecond";
+
+    private static final String DIRECTORY_KEY = "directory";
+
+    /**
+     * Recovery after a crash replays the log since the last checkpoint, this is the recovery time
+     * in seconds the checkpoint interval aims for at the measured disk throughput
+     */
+    private static final int TARGET_RECOVERY_SECONDS = 5;
+
+    private final int cores;
+
+    private final long maxHeap;
+
+    private final long physicalMemory;
+
+    private final long diskBytesPerSecond;
+
+    EnvironmentTuner(int cores, long maxHeap, long physicalMemory, long diskBytesPerSecond) {
+        this.cores = cores;
+        this.maxHeap = maxHeap;
+        this.physicalMemory = physicalMemory;
+        this.diskBytesPerSecond = diskBytesPerSecond;
+    }
+
+    /**
+     * Creates a tuner for this machine, with the disk throughput at {@code directory} measured
+     * when first tuned
+     *
+     * @param probe whether to measure the disk throughput if it wasn't yet, {@code false} for
+     *        read only environments to tune for an unknown throughput instead
+     */
+    public static EnvironmentTuner measure(final File directory, final boolean probe) {
+        return new EnvironmentTuner(Runtime.getRuntime().availableProcessors(),
+                Runtime.getRuntime().maxMemory(), CacheSizing.getPhysicalMemory(),
+                diskThroughput(directory, probe));
+    }
+
+    /**
+     * @return the disk throughput at {@code directory} measured by a previous call, measuring and
+     *         keeping it if there's none and {@code probe} is {@code true}, or {@code -1} if
+     *         unknown
+     */
+    static long diskThroughput(final File directory, final boolean probe) {
+        final File file = new File(directory, THROUGHPUT_FILE_NAME);
+        Optional<Long> measured = readThroughput(file);
+        if (measured.isPresent()) {
+            return measured.get().longValue();
+        }
+        if (!probe) {
+            return -1;
+        }
+        final long throughput = measureDiskThroughput(directory);
+        if (throughput > 0) {
+            writeThroughput(file, throughput);
+        }
+        return throughput;
+    }
+
+    /**
+     * @return the throughput kept in {@code file}, absent if there's none or it was measured for
+     *         another directory
+     */
+    private static Optional<Long> readThroughput(final File file) {
+        if (!file.exists()) {
+            return Optional.absent();
+        }
+        Properties props = new Properties();
+        try {
+            Reader reader = Files.newReader(file, Charsets.UTF_8);
+            try {
+                props.load(reader);
+            } finally {
+                reader.close();
+            }
+            String directory = props.getProperty(DIRECTORY_KEY);
+            String throughput = props.getProperty(THROUGHPUT_KEY, "");
+            if (!file.getParentFile().getCanonicalPath().equals(directory)) {
+                return Optional.absent();
+            }
+            return Optional.fromNullable(Longs.tryParse(throughput));
+        } catch (IOException e) {
+            LOGGER.warn("Unable to read the disk throughput measured at {}", file, e);
+            return Optional.absent();
+        }
+    }
+
+    private static void writeThroughput(final File file, final long throughput) {
+        final File tmp = new File(file.getParentFile(), THROUGHPUT_FILE_NAME + ".tmp");
+        try {
+            Properties props = new Properties();
+            props.setProperty(DIRECTORY_KEY, file.getParentFile().getCanonicalPath());
+            props.setProperty(THROUGHPUT_KEY, String.valueOf(throughput));
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                props.store(out, "Disk throughput measured by " + AUTOTUNE_CONFIG_KEY);
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            java.nio.file.Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOGGER.warn("Unable to keep the disk throughput measured at {}", file, e);
+        }
+    }
+
+    /**
+     * @return the sequential write throughput of the disk holding {@code directory}, in bytes
+     *         per second, including the cost of syncing
+     */
+    static long measureDiskThroughput(final File directory) {
+        final File probe = new File(directory, "je.autotune.probe");
+        final ByteBuffer chunk = ByteBuffer.allocate((int) MB);
+        try {
+            RandomAccessFile file = new RandomAccessFile(probe, "rw");
+            try {
+                FileChannel channel = file.getChannel();
+                Stopwatch sw = Stopwatch.createStarted();
+                for (int i = 0; i < DISK_PROBE_MB; i++) {
+                    chunk.clear();
+                    while (chunk.hasRemaining()) {
+                        channel.write(chunk);
+                    }
+                }
+                channel.force(false);
+                long micros = Math.max(1, sw.stop().elapsed(TimeUnit.MICROSECONDS));
+                return DISK_PROBE_MB * MB * 1000 * 1000 / micros;
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to measure disk throughput at {}", directory, e);
+            return -1;
+        } finally {
+            probe.delete();
+        }
+    }
+
+    /**
+     * @return the tuned JE settings, keyed by JE property name
+     */
+    public Map<String, String> tune(final boolean staging) {
+        Map<String, String> props = new LinkedHashMap<String, String>();
+
+        // JE cache share of the heap, larger heaps have proportionally less application overhead.
+        // Leave room for the OS file cache if the heap takes most of the physical memory
+        int cachePercent = maxHeap <= 512 * MB ? 50 : (maxHeap <= 2048 * MB ? 60 : 70);
+        if (physicalMemory > 0 && maxHeap > physicalMemory * 3 / 4) {
+            cachePercent = Math.min(cachePercent, 50);
+        }
+        props.put("je.maxMemoryPercent", String.valueOf(cachePercent));
+
+        final int cleanerThreads = clamp(cores / 4, 1, 4);
+        props.put("je.cleaner.threads", String.valueOf(cleanerThreads));
+        props.put("je.evictor.coreThreads", String.valueOf(clamp(cores / 8, 1, 4)));
+        props.put("je.evictor.maxThreads", String.valueOf(clamp(cores / 4, 1, 8)));
+
+        // larger log files mean less file handles and cleaner runs for fast disks, smaller ones
+        // are cleaned at a finer grain. The staging database gets a lot of deletes
+        final long throughput = diskBytesPerSecond > 0 ? diskBytesPerSecond : 100 * MB;
+        long logFileMax;
+        if (staging || throughput < 50 * MB) {
+            logFileMax = 64 * MB;
+        } else if (throughput < 200 * MB) {
+            logFileMax = 128 * MB;
+        } else {
+            logFileMax = 256 * MB;
+        }
+        props.put("je.log.fileMax", String.valueOf(logFileMax));
+
+        long checkpointBytes = clamp(throughput * TARGET_RECOVERY_SECONDS, 32 * MB, 1024 * MB);
+        props.put("je.checkpointer.bytesInterval", String.valueOf(checkpointBytes));
+        return props;
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * Writes {@code conf} as a copy of {@code template} with the {@link #tune(boolean) tuned}
+     * settings replacing the template's values, and appending the ones it doesn't have.
+     */
+    public void write(final File conf, final ByteSource template, final boolean staging)
+            throws IOException {
+        final Map<String, String> tuned = tune(staging);
+        final Map<String, String> pending = new LinkedHashMap<String, String>(tuned);
+        List<String> lines = new ArrayList<String>();
+        lines.add(String.format(
+                "# Auto-tuned for %d cores, %d MB max heap, %d MB physical memory, %d MB/s disk.",
+                cores, maxHeap / MB, physicalMemory / MB, diskBytesPerSecond / MB));
+        lines.add("# Set " + AUTOTUNE_CONFIG_KEY
+                + "=force to re-tune at the next open, or edit by hand with " + AUTOTUNE_CONFIG_KEY
+                + "=true or false to keep your changes.");
+        for (String line : template.asCharSource(Charsets.UTF_8).readLines()) {
+            String key = propertyKey(line);
+            if (key != null && tuned.containsKey(key)) {
+                if (pending.containsKey(key)) {
+                    lines.add(key + " = " + pending.remove(key));
+                }
+                continue;
+            }
+            lines.add(line);
+        }
+        if (!pending.isEmpty()) {
+            lines.add("");
+            lines.add("# auto-tuned");
+            for (Map.Entry<String, String> e : pending.entrySet()) {
+                lines.add(e.getKey() + " = " + e.getValue());
+            }
+        }
+        Files.write(Joiner.on('\n').join(lines) + "\n", conf, Charsets.UTF_8);
+        LOGGER.info("Auto-tuned JE settings at {}: {}", conf, tuned);
+    }
+
+    /**
+     * @return the property key of a {@code key=value} line, or {@code null} if the line is a
+     *         comment or blank
+     */
+    private static String propertyKey(String line) {
+        String l = line.trim();
+        if (l.isEmpty() || l.startsWith("#") || l.startsWith("!")) {
+            return null;
+        }
+        int sep = l.indexOf('=');
+        return (sep == -1 ? l : l.substring(0, sep)).trim();
+    }
+}
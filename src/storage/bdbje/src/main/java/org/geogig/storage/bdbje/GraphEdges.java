@@ -0,0 +1,194 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import static com.sleepycat.je.OperationStatus.SUCCESS;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.eclipse.jdt.annotation.Nullable;
+import org.locationtech.geogig.model.ObjectId;
+import org.locationtech.geogig.storage.ConfigDatabase;
+
+import com.google.common.base.Optional;
+import com.sleepycat.bind.tuple.TupleInput;
+import com.sleepycat.bind.tuple.TupleOutput;
+import com.sleepycat.je.Cursor;
+import com.sleepycat.je.CursorConfig;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+import com.sleepycat.je.Transaction;
+
+/**
+ * The edges of a commit graph stored one per key, instead of as lists in the node records, so
+ * adding a child to a commit doesn't rewrite a record that grows with its number of children.
+ * <p>
+ * Each edge is stored twice, as a {@code 0|child|parent} key whose value is the index of the
+ * parent among the child's parents, and as a {@code 1|parent|child} key with no value. The parents
+ * and children of a commit are read with a prefix scan; parents in their order, children in id
+ * order.
+ */
+class GraphEdges {
+
+    /**
+     * If {@code true}, graphs created empty store their edges one per key
+     */
+    static final String CONFIG_KEY = "bdbje.graph.edge_keys";
+
+    static final String DATABASE_NAME = "GraphEdges";
+
+    private static final byte PARENT = 0;
+
+    private static final byte CHILD = 1;
+
+    private static final int ID_SIZE = ObjectId.NUM_BYTES;
+
+    private static final int PREFIX_SIZE = 1 + ID_SIZE;
+
+    private static final byte[] NO_DATA = new byte[0];
+
+    private final Database db;
+
+    GraphEdges(final Database db) {
+        this.db = db;
+    }
+
+    Database getDatabase() {
+        return db;
+    }
+
+    static boolean isEnabled(final ConfigDatabase config) {
+        Optional<Boolean> enabled = config.get(CONFIG_KEY, Boolean.class);
+        if (!enabled.isPresent()) {
+            enabled = config.getGlobal(CONFIG_KEY, Boolean.class);
+        }
+        return enabled.or(Boolean.FALSE).booleanValue();
+    }
+
+    /**
+     * Stores the edge from {@code child} to its {@code index}th parent in both directions
+     */
+    void put(@Nullable final Transaction transaction, final ObjectId child,
+            final ObjectId parent, final int index) {
+        putParent(transaction, child, parent, index);
+        putChild(transaction, parent, child);
+    }
+
+    /**
+     * Stores the edge from {@code child} to its {@code index}th parent, the {@code 0|child|parent}
+     * key only; written in key order when bulk loading
+     */
+    void putParent(@Nullable final Transaction transaction, final ObjectId child,
+            final ObjectId parent, final int index) {
+        TupleOutput value = new TupleOutput();
+        value.writePackedInt(index);
+        db.put(transaction, key(PARENT, child, parent),
+                new DatabaseEntry(value.getBufferBytes(), 0, value.getBufferLength()));
+    }
+
+    /**
+     * Stores the edge from {@code parent} to {@code child}, the {@code 1|parent|child} key only
+     */
+    void putChild(@Nullable final Transaction transaction, final ObjectId parent,
+            final ObjectId child) {
+        db.put(transaction, key(CHILD, parent, child), new DatabaseEntry(NO_DATA));
+    }
+
+    /**
+     * @return the parents of {@code child} in their order, empty if it has none or doesn't exist
+     */
+    List<ObjectId> parents(final ObjectId child) {
+        final Map<Integer, ObjectId> parents = new TreeMap<Integer, ObjectId>();
+        DatabaseEntry key = new DatabaseEntry(prefix(PARENT, child));
+        DatabaseEntry data = new DatabaseEntry();
+        final Cursor cursor = db.openCursor(null, CursorConfig.READ_UNCOMMITTED);
+        try {
+            OperationStatus status = cursor.getSearchKeyRange(key, data,
+                    LockMode.READ_UNCOMMITTED);
+            while (SUCCESS.equals(status) && hasPrefix(key, PARENT, child)) {
+                int index = new TupleInput(data.getData(), data.getOffset(), data.getSize())
+                        .readPackedInt();
+                parents.put(Integer.valueOf(index), target(key));
+                status = cursor.getNext(key, data, LockMode.READ_UNCOMMITTED);
+            }
+        } finally {
+            cursor.close();
+        }
+        return new ArrayList<ObjectId>(parents.values());
+    }
+
+    /**
+     * @return the children of {@code parent} in id order, empty if it has none or doesn't exist
+     */
+    List<ObjectId> children(final ObjectId parent) {
+        List<ObjectId> children = new ArrayList<ObjectId>(2);
+        DatabaseEntry key = new DatabaseEntry(prefix(CHILD, parent));
+        DatabaseEntry data = new DatabaseEntry();
+        data.setPartial(0, 0, true);
+        final Cursor cursor = db.openCursor(null, CursorConfig.READ_UNCOMMITTED);
+        try {
+            OperationStatus status = cursor.getSearchKeyRange(key, data,
+                    LockMode.READ_UNCOMMITTED);
+            while (SUCCESS.equals(status) && hasPrefix(key, CHILD, parent)) {
+                children.add(target(key));
+                status = cursor.getNext(key, data, LockMode.READ_UNCOMMITTED);
+            }
+        } finally {
+            cursor.close();
+        }
+        return children;
+    }
+
+    private static byte[] prefix(final byte direction, final ObjectId from) {
+        byte[] prefix = new byte[PREFIX_SIZE];
+        prefix[0] = direction;
+        System.arraycopy(from.getRawValue(), 0, prefix, 1, ID_SIZE);
+        return prefix;
+    }
+
+    private static DatabaseEntry key(final byte direction, final ObjectId from,
+            final ObjectId to) {
+        byte[] key = new byte[PREFIX_SIZE + ID_SIZE];
+        key[0] = direction;
+        System.arraycopy(from.getRawValue(), 0, key, 1, ID_SIZE);
+        System.arraycopy(to.getRawValue(), 0, key, PREFIX_SIZE, ID_SIZE);
+        return new DatabaseEntry(key);
+    }
+
+    private static boolean hasPrefix(final DatabaseEntry key, final byte direction,
+            final ObjectId from) {
+        if (key.getSize() != PREFIX_SIZE + ID_SIZE) {
+            return false;
+        }
+        final byte[] bytes = key.getData();
+        final int offset = key.getOffset();
+        if (bytes[offset] != direction) {
+            return false;
+        }
+        for (int i = 0; i < ID_SIZE; i++) {
+            if ((bytes[offset + 1 + i] & 0xFF) != from.byteN(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ObjectId target(final DatabaseEntry key) {
+        final int from = key.getOffset() + PREFIX_SIZE;
+        byte[] raw = new byte[ID_SIZE];
+        System.arraycopy(key.getData(), from, raw, 0, ID_SIZE);
+        return ObjectId.createNoClone(raw);
+    }
+}
@@ -0,0 +1,494 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.UUID;
+
+import org.eclipse.jdt.annotation.Nullable;
+import org.geogig.storage.bdbje.BackupManifest.LogFile;
+import org.locationtech.geogig.repository.ProgressListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.RateLimiter;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.util.DbBackup;
+
+/**
+ * Hot, incremental backups of a repository's BDB JE environments, and their restore.
+ * <p>
+ * JE log files are append only, and {@link DbBackup} guarantees the files of a backup set are
+ * neither modified nor deleted until the backup ends, so writers keep going while the files are
+ * copied. A backup copies only the log files the backup directory doesn't have yet from previous
+ * backups, at most at the given I/O rate, and records the complete set of files for each
+ * environment in a {@link BackupManifest}. Files removed by the JE cleaner after a backup stay in
+ * the backup directory, so every manifest in it can be restored.
+ * <p>
+ * Each environment gets an identity the first time it's backed up, which a restore keeps, and a
+ * backup directory only takes backups of the environments it was first used for. A file listed
+ * by a manifest is never replaced: the last log file of a backup set is the one an environment
+ * restored from it appends to, so it's only shared with a later backup if its length and checksum
+ * didn't change, and is otherwise copied again under a new name.
+ * <p>
+ * Consistency between environments follows the order geogig writes in: objects are stored before
+ * the graph references them, and both before refs point to them. So the repository files (refs,
+ * config) are copied first, then the graph backup set is frozen, then the objects one, and each
+ * environment in the backup has everything the previous ones reference.
+ * <p>
+ * Backup directory layout:
+ *
+ * <pre>
+ * {@code
+ * <backup dir>/<environment>/*.jdb[.<version>]      log files, shared by all the backups
+ * <backup dir>/<environment>/backup.id              identity of the backed up environment
+ * <backup dir>/backup-<timestamp>[_<seq>]/          repository files and environment settings
+ * <backup dir>/backup-<timestamp>[_<seq>].manifest  written last, a backup without it is incomplete
+ * }
+ * </pre>
+ */
+public class JEBackup {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JEBackup.class);
+
+    private static final int COPY_CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * Non log files of an environment directory needed to restore it
+     */
+    private static final Set<String> ENVIRONMENT_FILES = ImmutableSet.of("je.properties",
+            JEGraphDatabase.SHARED_ENVIRONMENT_MARKER, StagingMarker.FILE_NAME,
+            JEBackup.ID_FILE_NAME);
+
+    /**
+     * Name of the file holding the identity of an environment, in the environment directory and
+     * in its directory in the backup directory
+     */
+    static final String ID_FILE_NAME = "backup.id";
+
+    private final File backupDir;
+
+    @Nullable
+    private final RateLimiter rateLimiter;
+
+    /**
+     * @param backupDir the directory to back up to, created if needed
+     * @param bytesPerSecond maximum rate log files are copied at, {@code <= 0} for no limit
+     */
+    public JEBackup(final File backupDir, final long bytesPerSecond) {
+        this.backupDir = backupDir;
+        this.rateLimiter = bytesPerSecond > 0 ? RateLimiter.create(bytesPerSecond) : null;
+    }
+
+    /**
+     * Backs up {@code environments} in iteration order, which shall be the graph environment
+     * before the objects one.
+     *
+     * @param geogigDir the repository's {@code .geogig} directory
+     * @param environments the environments to back up, keyed by name
+     * @return the manifest of the backup, or {@code null} if cancelled
+     */
+    @Nullable
+    BackupManifest backup(final File geogigDir, final Map<String, Environment> environments,
+            final ProgressListener progress) throws IOException {
+
+        Preconditions.checkArgument(backupDir.isDirectory() || backupDir.mkdirs(),
+                "Unable to create backup directory %s", backupDir);
+        final ImmutableList<BackupManifest> previous = list(backupDir);
+        final Map<String, String> ids = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, Environment> e : environments.entrySet()) {
+            ids.put(e.getKey(), claim(e.getKey(), e.getValue().getHome(), previous));
+        }
+        final long timestamp = System.currentTimeMillis();
+        final String name = createFilesDir(timestamp);
+        final File filesDir = new File(backupDir, name);
+
+        progress.started();
+        progress.setDescription("Copying repository files");
+        copyRepositoryFiles(geogigDir, filesDir, environments.keySet());
+
+        List<DbBackup> backups = new ArrayList<DbBackup>();
+        Map<String, List<String>> backupSets = new LinkedHashMap<String, List<String>>();
+        Map<String, List<LogFile>> files = new LinkedHashMap<String, List<LogFile>>();
+        long copiedFiles = 0, copiedBytes = 0;
+        try {
+            for (Map.Entry<String, Environment> e : environments.entrySet()) {
+                DbBackup backup = new DbBackup(e.getValue());
+                backup.startBackup();
+                backups.add(backup);
+                backupSets.put(e.getKey(), sorted(backup.getLogFilesInBackupSet()));
+            }
+            long totalBytes = 0;
+            for (Map.Entry<String, Environment> e : environments.entrySet()) {
+                for (String file : backupSets.get(e.getKey())) {
+                    totalBytes += new File(e.getValue().getHome(), file).length();
+                }
+            }
+            long processedBytes = 0;
+            for (Map.Entry<String, Environment> e : environments.entrySet()) {
+                final String envName = e.getKey();
+                final File source = e.getValue().getHome();
+                final File target = new File(backupDir, envName);
+                final StoredFiles stored = new StoredFiles(envName, previous);
+                final List<LogFile> envFiles = new ArrayList<LogFile>();
+                for (String file : backupSets.get(envName)) {
+                    if (progress.isCanceled()) {
+                        return null;
+                    }
+                    File from = new File(source, file);
+                    long length = from.length();
+                    LogFile logFile = stored.reusable(from, file, target);
+                    if (logFile == null) {
+                        progress.setDescription(
+                                String.format("Copying %s/%s (%,d bytes)", envName, file, length));
+                        logFile = copyLogFile(from, file, target, stored.unusedName(file));
+                        copiedFiles++;
+                        copiedBytes += logFile.getLength();
+                    }
+                    envFiles.add(logFile);
+                    processedBytes += length;
+                    progress.setProgress(totalBytes == 0 ? 100f
+                            : (float) (processedBytes * 100d / totalBytes));
+                }
+                files.put(envName, envFiles);
+            }
+        } finally {
+            for (DbBackup backup : backups) {
+                backup.endBackup();
+            }
+        }
+        BackupManifest manifest = new BackupManifest(name + BackupManifest.SUFFIX, timestamp,
+                ids, files, copiedFiles, copiedBytes);
+        manifest.write(backupDir);
+        progress.complete();
+        LOGGER.info("Backed up {} to {}: {} files, {} bytes copied", environments.keySet(),
+                backupDir, copiedFiles, copiedBytes);
+        return manifest;
+    }
+
+    /**
+     * Makes sure the backup directory belongs to environment {@code envName} at {@code home},
+     * giving the environment an identity if it has none yet and recording it in the backup
+     * directory on its first backup
+     *
+     * @return the environment identity
+     * @throws IllegalStateException if the backup directory has backups of another environment
+     *         of the same name
+     */
+    private String claim(final String envName, final File home,
+            final List<BackupManifest> previous) throws IOException {
+        final String id = readId(new File(home, ID_FILE_NAME), UUID.randomUUID().toString());
+        for (BackupManifest m : previous) {
+            String backedUp = m.getEnvironments().contains(envName)
+                    ? m.getEnvironmentId(envName) : null;
+            Preconditions.checkState(backedUp == null || backedUp.equals(id),
+                    "Backup directory %s has backups of another %s environment than %s",
+                    backupDir, envName, home);
+        }
+        final File target = new File(backupDir, envName);
+        Preconditions.checkState(target.isDirectory() || target.mkdirs(), "Unable to create %s",
+                target);
+        Preconditions.checkState(readId(new File(target, ID_FILE_NAME), id).equals(id),
+                "Backup directory %s has backups of another %s environment than %s", backupDir,
+                envName, home);
+        return id;
+    }
+
+    /**
+     * Reads the identity in {@code file}, writing {@code newId} to it first if it doesn't exist
+     */
+    private static String readId(final File file, final String newId) throws IOException {
+        if (!file.exists()) {
+            final File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(newId.getBytes(Charsets.UTF_8));
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            java.nio.file.Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return Files.toString(file, Charsets.UTF_8).trim();
+    }
+
+    /**
+     * The log files of an environment the manifests in the backup directory list
+     */
+    private static class StoredFiles {
+
+        /**
+         * Latest stored version of each log file, by file name
+         */
+        private final Map<String, LogFile> latest = new HashMap<String, LogFile>();
+
+        /**
+         * Stored names of all the listed files, which are never replaced
+         */
+        private final Set<String> listed = new HashSet<String>();
+
+        /**
+         * Stored names of the last file of each backup set, which may have been appended to by an
+         * environment restored from it
+         */
+        private final Set<String> appendable = new HashSet<String>();
+
+        StoredFiles(final String envName, final List<BackupManifest> manifests) {
+            for (BackupManifest m : manifests) {
+                if (!m.getEnvironments().contains(envName)) {
+                    continue;
+                }
+                List<LogFile> files = m.getLogFiles(envName);
+                for (LogFile f : files) {
+                    latest.put(f.getName(), f);
+                    listed.add(f.getStoredName());
+                }
+                if (!files.isEmpty()) {
+                    appendable.add(files.get(files.size() - 1).getStoredName());
+                }
+            }
+        }
+
+        /**
+         * @return the stored version of {@code file} that's the same as {@code from}, or
+         *         {@code null} if it has to be copied
+         */
+        @Nullable
+        LogFile reusable(final File from, final String file, final File target)
+                throws IOException {
+            final LogFile stored = latest.get(file);
+            if (stored == null || stored.getChecksum() == -1L) {
+                return null;
+            }
+            final long length = from.length();
+            if (stored.getLength() != length
+                    || new File(target, stored.getStoredName()).length() != length) {
+                return null;
+            }
+            if (appendable.contains(stored.getStoredName())
+                    && checksum(from) != stored.getChecksum()) {
+                return null;
+            }
+            return stored;
+        }
+
+        /**
+         * @return {@code file}, or a versioned name for it if it's listed already
+         */
+        String unusedName(final String file) {
+            String name = file;
+            for (int version = 1; listed.contains(name); version++) {
+                name = file + "." + version;
+            }
+            return name;
+        }
+    }
+
+    private static long checksum(final File file) throws IOException {
+        return Files.hash(file, Hashing.crc32()).padToLong();
+    }
+
+    private static List<String> sorted(String[] files) {
+        List<String> list = Arrays.asList(files);
+        Collections.sort(list);
+        return list;
+    }
+
+    /**
+     * Creates the directory of the repository files of a new backup, named after
+     * {@code timestamp} and followed by a sequence number if a backup of the same millisecond
+     * already exists, so that names stay unique and sort in backup order
+     *
+     * @return the backup name
+     */
+    private String createFilesDir(final long timestamp) {
+        final String base = BackupManifest.PREFIX + formatTimestamp(timestamp);
+        String name = base;
+        for (int seq = 1; new File(backupDir, name + BackupManifest.SUFFIX).exists()
+                || !new File(backupDir, name).mkdir(); seq++) {
+            Preconditions.checkState(seq < 1000, "Unable to create backup %s in %s", base,
+                    backupDir);
+            name = String.format("%s_%03d", base, seq);
+        }
+        return name;
+    }
+
+    private static String formatTimestamp(long timestamp) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmssSSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(timestamp));
+    }
+
+    /**
+     * Copies the contents of {@code geogigDir} other than the environment log files, which are
+     * small and not append only, to a directory of their own for each backup
+     */
+    private static void copyRepositoryFiles(final File geogigDir, final File target,
+            final Set<String> environments) throws IOException {
+        File[] children = geogigDir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (environments.contains(child.getName())) {
+                File envTarget = new File(target, child.getName());
+                Preconditions.checkState(envTarget.mkdirs(), "Unable to create %s", envTarget);
+                for (String file : ENVIRONMENT_FILES) {
+                    File f = new File(child, file);
+                    if (f.exists()) {
+                        copy(f, new File(envTarget, file), null);
+                    }
+                }
+            } else {
+                copyRecursively(child, new File(target, child.getName()));
+            }
+        }
+    }
+
+    private static void copyRecursively(final File source, final File target) throws IOException {
+        if (source.isDirectory()) {
+            Preconditions.checkState(target.isDirectory() || target.mkdirs(),
+                    "Unable to create %s", target);
+            File[] children = source.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    copyRecursively(child, new File(target, child.getName()));
+                }
+            }
+        } else if (source.exists()) {
+            copy(source, target, null);
+        }
+    }
+
+    /**
+     * Copies a log file to a temporary file first, so that an interrupted copy is copied again by
+     * the next backup instead of being taken as complete. {@code storedName} is not listed by any
+     * manifest, a file by that name is at most left over by an interrupted backup.
+     *
+     * @return the stored file, with the length and checksum of the copy
+     */
+    private LogFile copyLogFile(final File from, final String name, final File target,
+            final String storedName) throws IOException {
+        final File to = new File(target, storedName);
+        // log files may be in data directories, see DataDirectories
+        Preconditions.checkState(to.getParentFile().isDirectory() || to.getParentFile().mkdirs(),
+                "Unable to create %s", to.getParentFile());
+        final File tmp = new File(to.getParentFile(), to.getName() + ".tmp");
+        copy(from, tmp, rateLimiter);
+        final LogFile stored = new LogFile(name, storedName, tmp.length(), checksum(tmp));
+        java.nio.file.Files.move(tmp.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        return stored;
+    }
+
+    private static void copy(final File from, final File to,
+            @Nullable final RateLimiter rateLimiter) throws IOException {
+        FileInputStream in = new FileInputStream(from);
+        try {
+            FileOutputStream out = new FileOutputStream(to);
+            try {
+                FileChannel source = in.getChannel();
+                FileChannel target = out.getChannel();
+                final long size = source.size();
+                long position = 0;
+                while (position < size) {
+                    long count = Math.min(COPY_CHUNK_SIZE, size - position);
+                    if (rateLimiter != null) {
+                        rateLimiter.acquire((int) count);
+                    }
+                    position += source.transferTo(position, count, target);
+                }
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the complete backups in {@code backupDir}, oldest first
+     */
+    public static ImmutableList<BackupManifest> list(final File backupDir) throws IOException {
+        File[] manifests = backupDir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.isFile() && f.getName().startsWith(BackupManifest.PREFIX)
+                        && f.getName().endsWith(BackupManifest.SUFFIX);
+            }
+        });
+        if (manifests == null) {
+            return ImmutableList.of();
+        }
+        Arrays.sort(manifests);
+        ImmutableList.Builder<BackupManifest> builder = ImmutableList.builder();
+        for (File f : manifests) {
+            builder.add(BackupManifest.read(f));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Restores the backup described by {@code manifest} to {@code geogigDir}, which shall not
+     * have any of the backed up environments. The repository shall not be open while restoring.
+     */
+    public static void restore(final File backupDir, final BackupManifest manifest,
+            final File geogigDir) throws IOException {
+        for (String env : manifest.getEnvironments()) {
+            File[] existing = new File(geogigDir, env).listFiles();
+            Preconditions.checkArgument(existing == null || existing.length == 0,
+                    "Can't restore over existing environment %s", new File(geogigDir, env));
+        }
+        final String name = manifest.getName();
+        final File filesDir = new File(backupDir,
+                name.substring(0, name.length() - BackupManifest.SUFFIX.length()));
+        copyRecursively(filesDir, geogigDir);
+        for (String env : manifest.getEnvironments()) {
+            File source = new File(backupDir, env);
+            File target = new File(geogigDir, env);
+            Preconditions.checkState(target.isDirectory() || target.mkdirs(),
+                    "Unable to create %s", target);
+            for (LogFile file : manifest.getLogFiles(env)) {
+                File from = new File(source, file.getStoredName());
+                Preconditions.checkState(from.exists(), "Backup file %s is missing", from);
+                File to = new File(target, file.getName());
+                to.getParentFile().mkdirs();
+                copy(from, to, null);
+            }
+        }
+        LOGGER.info("Restored backup {} from {} to {}", name, backupDir, geogigDir);
+    }
+}
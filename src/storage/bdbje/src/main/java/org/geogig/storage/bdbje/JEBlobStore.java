@@ -0,0 +1,380 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.sleepycat.je.OperationStatus.SUCCESS;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.eclipse.jdt.annotation.Nullable;
+import org.locationtech.geogig.storage.BlobStore;
+import org.locationtech.geogig.storage.TransactionBlobStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import com.sleepycat.je.CacheMode;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.Durability;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.Transaction;
+import com.sleepycat.je.TransactionConfig;
+
+/**
+ * {@link BlobStore} backed by BDB JE databases living in the same environment as the
+ * {@link JEObjectDatabase objects database}.
+ * <p>
+ * Blobs are meant to be small pieces of metadata (e.g. the OSM plugin's log and mapping entries),
+ * so each one is a single record keyed by its path, one database per namespace. Writes are
+ * committed with the same durability as the object writes, hence they don't incur in a file
+ * system sync per blob, and {@link #putBlobs(String, Map)} allows to update several blobs
+ * atomically.
+ * <p>
+ * Blobs written by a previous {@link BlobStore} (namely the file based one) are looked up in it
+ * when not found in the JE database, and moved over as they're read.
+ * <p>
+ * Every operation holds the read lock of {@link #handles} while using a namespace database
+ * handle, so that {@link #removeBlobs(String)} and {@link #close()} only close them once they're
+ * no longer in use.
+ * <p>
+ * Blob writes are committed in transactions of their own, not in the ones objects are written
+ * in, so a blob written along with some objects may be stored while the objects are not yet, or
+ * the other way around, and the caller shall tolerate either.
+ */
+class JEBlobStore implements TransactionBlobStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JEBlobStore.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final String DATABASE_NAME = "Blobs";
+
+    private final Environment env;
+
+    private final boolean readOnly;
+
+    private final Durability durability;
+
+    @Nullable
+    private final TransactionBlobStore legacy;
+
+    /**
+     * Open database handles by database name, lazily populated by {@link #getDatabase}
+     */
+    private final Map<String, Database> databases = new HashMap<String, Database>();
+
+    /**
+     * Read locked while using the handles in {@link #databases}, write locked to close them
+     */
+    private final ReadWriteLock handles = new ReentrantReadWriteLock();
+
+    /**
+     * @param legacy a blob store to look up blobs not yet stored in JE, or {@code null}
+     */
+    public JEBlobStore(final Environment env, final boolean readOnly, final Durability durability,
+            @Nullable final TransactionBlobStore legacy) {
+        checkNotNull(env);
+        checkNotNull(durability);
+        this.env = env;
+        this.readOnly = readOnly;
+        this.durability = durability;
+        this.legacy = legacy;
+    }
+
+    public synchronized void open() {
+        // databases are opened on demand
+    }
+
+    public void close() {
+        handles.writeLock().lock();
+        try {
+            for (Database db : databases.values()) {
+                try {
+                    db.close();
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Error closing blobs database", e);
+                }
+            }
+            databases.clear();
+        } finally {
+            handles.writeLock().unlock();
+        }
+    }
+
+    private static String databaseName(@Nullable String namespace) {
+        return namespace == null ? DATABASE_NAME : DATABASE_NAME + "/" + namespace;
+    }
+
+    /**
+     * Must be called holding the read lock of {@link #handles}, and the returned handle used only
+     * until it's released.
+     * 
+     * @return the database for the given namespace, or {@code null} if {@code create == false}
+     *         and it does not exist
+     */
+    @Nullable
+    private synchronized Database getDatabase(@Nullable String namespace, boolean create) {
+        final String name = databaseName(namespace);
+        Database db = databases.get(name);
+        if (db == null) {
+            final boolean exists = env.getDatabaseNames().contains(name);
+            if (!exists && (readOnly || !create)) {
+                return null;
+            }
+            final boolean transactional = env.getConfig().getTransactional();
+            DatabaseConfig dbConfig = new DatabaseConfig();
+            dbConfig.setAllowCreate(!readOnly);
+            dbConfig.setReadOnly(readOnly);
+            dbConfig.setCacheMode(CacheMode.DEFAULT);
+            dbConfig.setTransactional(transactional);
+            dbConfig.setDeferredWrite(!transactional);
+            db = env.openDatabase(null, name, dbConfig);
+            databases.put(name, db);
+        }
+        return db;
+    }
+
+    private void checkWritable() {
+        Preconditions.checkState(!readOnly, "blob store is read only");
+    }
+
+    @Nullable
+    private Transaction newTransaction() {
+        if (env.getConfig().getTransactional()) {
+            TransactionConfig txConfig = new TransactionConfig();
+            txConfig.setDurability(durability);
+            return env.beginTransaction(null, txConfig);
+        }
+        return null;
+    }
+
+    private void abort(@Nullable Transaction transaction) {
+        if (transaction != null) {
+            try {
+                transaction.abort();
+            } catch (Exception e) {
+                LOGGER.error("Error aborting transaction", e);
+            }
+        }
+    }
+
+    private static DatabaseEntry key(String path) {
+        checkNotNull(path, "path is null");
+        return new DatabaseEntry(path.getBytes(UTF8));
+    }
+
+    @Override
+    public Optional<byte[]> getBlob(String path) {
+        return getBlob(null, path);
+    }
+
+    @Override
+    public Optional<InputStream> getBlobAsStream(String path) {
+        return getBlobAsStream(null, path);
+    }
+
+    @Override
+    public void putBlob(String path, byte[] blob) {
+        putBlob(null, path, blob);
+    }
+
+    @Override
+    public void putBlob(String path, InputStream blob) {
+        putBlob(null, path, blob);
+    }
+
+    @Override
+    public void removeBlob(String path) {
+        removeBlob(null, path);
+    }
+
+    @Override
+    public Optional<byte[]> getBlob(@Nullable String namespace, String path) {
+        final DatabaseEntry key = key(path);
+        handles.readLock().lock();
+        try {
+            final Database db = getDatabase(namespace, false);
+            if (db != null) {
+                DatabaseEntry data = new DatabaseEntry();
+                if (SUCCESS.equals(db.get(null, key, data, LockMode.READ_COMMITTED))) {
+                    return Optional.of(data.getData());
+                }
+            }
+        } finally {
+            handles.readLock().unlock();
+        }
+        return getLegacyBlob(namespace, path);
+    }
+
+    private Optional<byte[]> getLegacyBlob(@Nullable String namespace, String path) {
+        if (legacy == null) {
+            return Optional.absent();
+        }
+        Optional<byte[]> blob = namespace == null ? legacy.getBlob(path)
+                : legacy.getBlob(namespace, path);
+        if (blob.isPresent() && !readOnly) {
+            putBlobs(namespace, Collections.singletonMap(path, blob.get()));
+            if (namespace == null) {
+                legacy.removeBlob(path);
+            } else {
+                legacy.removeBlob(namespace, path);
+            }
+        }
+        return blob;
+    }
+
+    @Override
+    public Optional<InputStream> getBlobAsStream(@Nullable String namespace, String path) {
+        Optional<byte[]> blob = getBlob(namespace, path);
+        if (blob.isPresent()) {
+            return Optional.<InputStream> of(new ByteArrayInputStream(blob.get()));
+        }
+        return Optional.absent();
+    }
+
+    @Override
+    public void putBlob(@Nullable String namespace, String path, byte[] blob) {
+        checkNotNull(blob, "blob is null");
+        putBlobs(namespace, Collections.singletonMap(path, blob));
+    }
+
+    @Override
+    public void putBlob(@Nullable String namespace, String path, InputStream blob) {
+        checkNotNull(blob, "blob is null");
+        byte[] contents;
+        try {
+            contents = ByteStreams.toByteArray(blob);
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        } finally {
+            Closeables.closeQuietly(blob);
+        }
+        putBlob(namespace, path, contents);
+    }
+
+    /**
+     * Stores all the given blobs in a single transaction, of their own.
+     */
+    public void putBlobs(@Nullable String namespace, Map<String, byte[]> blobs) {
+        checkNotNull(blobs, "blobs is null");
+        checkWritable();
+        if (blobs.isEmpty()) {
+            return;
+        }
+        handles.readLock().lock();
+        try {
+            final Database db = getDatabase(namespace, true);
+            final Transaction transaction = newTransaction();
+            try {
+                for (Map.Entry<String, byte[]> e : new TreeMap<String, byte[]>(blobs)
+                        .entrySet()) {
+                    db.put(transaction, key(e.getKey()), new DatabaseEntry(e.getValue()));
+                }
+                if (transaction != null) {
+                    transaction.commit();
+                }
+            } catch (RuntimeException e) {
+                abort(transaction);
+                throw e;
+            }
+        } finally {
+            handles.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeBlob(@Nullable String namespace, String path) {
+        removeBlobs(namespace, Collections.singleton(path));
+    }
+
+    /**
+     * Removes all the given blobs in a single transaction.
+     */
+    public void removeBlobs(@Nullable String namespace, Iterable<String> paths) {
+        checkNotNull(paths, "paths is null");
+        checkWritable();
+        final TreeSet<String> sorted = new TreeSet<String>();
+        for (String path : paths) {
+            sorted.add(path);
+        }
+        handles.readLock().lock();
+        try {
+            final Database db = getDatabase(namespace, false);
+            if (db != null) {
+                final Transaction transaction = newTransaction();
+                try {
+                    for (String path : sorted) {
+                        db.delete(transaction, key(path));
+                    }
+                    if (transaction != null) {
+                        transaction.commit();
+                    }
+                } catch (RuntimeException e) {
+                    abort(transaction);
+                    throw e;
+                }
+            }
+        } finally {
+            handles.readLock().unlock();
+        }
+        if (legacy != null) {
+            for (String path : sorted) {
+                if (namespace == null) {
+                    legacy.removeBlob(path);
+                } else {
+                    legacy.removeBlob(namespace, path);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all the blobs in the namespace by dropping its database altogether, once no other
+     * operation is using its handle.
+     */
+    @Override
+    public void removeBlobs(String namespace) {
+        checkWritable();
+        final String name = databaseName(namespace);
+        handles.writeLock().lock();
+        try {
+            Database db = databases.remove(name);
+            if (db != null) {
+                db.close();
+            }
+            if (env.getDatabaseNames().contains(name)) {
+                env.removeDatabase(null, name);
+            }
+        } finally {
+            handles.writeLock().unlock();
+        }
+        if (legacy != null) {
+            legacy.removeBlobs(namespace);
+        }
+    }
+}
@@ -0,0 +1,563 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.sleepycat.je.OperationStatus.SUCCESS;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.eclipse.jdt.annotation.Nullable;
+import org.locationtech.geogig.model.ObjectId;
+import org.locationtech.geogig.repository.Conflict;
+import org.locationtech.geogig.storage.ConflictsDatabase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
+import com.sleepycat.je.CacheMode;
+import com.sleepycat.je.Cursor;
+import com.sleepycat.je.CursorConfig;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+import com.sleepycat.je.Transaction;
+import com.sleepycat.je.TransactionConfig;
+
+/**
+ * {@link ConflictsDatabase} backed by BDB JE databases living in the same environment as the
+ * {@link JEObjectDatabase objects database}.
+ * <p>
+ * Each conflicts namespace is stored in its own JE database, keyed by the UTF-8 bytes of the
+ * conflict path, so that prefix queries become a cursor range scan and
+ * {@link #removeConflicts(String) removing all the conflicts} of a namespace is a constant time
+ * database removal instead of a per-record delete. Bulk additions and removals are sorted and
+ * applied in batches of {@link #BATCH_SIZE} records per transaction.
+ * <p>
+ * Every operation holds the read lock of {@link #handles} while using a namespace database
+ * handle, so that {@link #removeConflicts(String)} and {@link #close()} only close them once
+ * they're no longer in use.
+ */
+class JEConflictsDatabase implements ConflictsDatabase {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JEConflictsDatabase.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final String DATABASE_NAME = "Conflicts";
+
+    private static final int BATCH_SIZE = 10 * 1000;
+
+    private static final int RECORD_SIZE = 3 * ObjectId.NUM_BYTES;
+
+    private final Environment env;
+
+    private final boolean readOnly;
+
+    /**
+     * Open database handles by database name, lazily populated by {@link #getDatabase}
+     */
+    private final Map<String, Database> databases = new HashMap<String, Database>();
+
+    /**
+     * Read locked while using the handles in {@link #databases}, write locked to close them
+     */
+    private final ReadWriteLock handles = new ReentrantReadWriteLock();
+
+    public JEConflictsDatabase(final Environment env, final boolean readOnly) {
+        checkNotNull(env);
+        this.env = env;
+        this.readOnly = readOnly;
+    }
+
+    public synchronized void open() {
+        // databases are opened on demand
+    }
+
+    public void close() {
+        handles.writeLock().lock();
+        try {
+            for (Database db : databases.values()) {
+                try {
+                    db.close();
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Error closing conflicts database", e);
+                }
+            }
+            databases.clear();
+        } finally {
+            handles.writeLock().unlock();
+        }
+    }
+
+    private static String databaseName(@Nullable String namespace) {
+        return namespace == null ? DATABASE_NAME : DATABASE_NAME + "/" + namespace;
+    }
+
+    /**
+     * Must be called holding the read lock of {@link #handles}, and the returned handle used only
+     * until it's released.
+     * 
+     * @return the database for the given namespace, or {@code null} if {@code create == false}
+     *         and it does not exist
+     */
+    @Nullable
+    private synchronized Database getDatabase(@Nullable String namespace, boolean create) {
+        final String name = databaseName(namespace);
+        Database db = databases.get(name);
+        if (db == null) {
+            final boolean exists = env.getDatabaseNames().contains(name);
+            if (!exists && (readOnly || !create)) {
+                return null;
+            }
+            final boolean transactional = env.getConfig().getTransactional();
+            DatabaseConfig dbConfig = new DatabaseConfig();
+            dbConfig.setAllowCreate(!readOnly);
+            dbConfig.setReadOnly(readOnly);
+            dbConfig.setCacheMode(CacheMode.MAKE_COLD);
+            dbConfig.setKeyPrefixing(true);// paths share long prefixes
+            dbConfig.setTransactional(transactional);
+            dbConfig.setDeferredWrite(!transactional);
+            db = env.openDatabase(null, name, dbConfig);
+            databases.put(name, db);
+        }
+        return db;
+    }
+
+    private void checkWritable() {
+        Preconditions.checkState(!readOnly, "conflicts database is read only");
+    }
+
+    @Nullable
+    private Transaction newTransaction() {
+        if (env.getConfig().getTransactional()) {
+            TransactionConfig txConfig = new TransactionConfig();
+            txConfig.setReadUncommitted(true);
+            return env.beginTransaction(null, txConfig);
+        }
+        return null;
+    }
+
+    private void commit(@Nullable Transaction transaction) {
+        if (transaction != null) {
+            transaction.commit();
+        }
+    }
+
+    private void abort(@Nullable Transaction transaction) {
+        if (transaction != null) {
+            try {
+                transaction.abort();
+            } catch (Exception e) {
+                LOGGER.error("Error aborting transaction", e);
+            }
+        }
+    }
+
+    private static DatabaseEntry key(String path) {
+        return new DatabaseEntry(path.getBytes(UTF8));
+    }
+
+    private static String path(DatabaseEntry key) {
+        return new String(key.getData(), key.getOffset(), key.getSize(), UTF8);
+    }
+
+    private static DatabaseEntry data(Conflict c) {
+        byte[] raw = new byte[RECORD_SIZE];
+        copy(c.getAncestor(), raw, 0);
+        copy(c.getOurs(), raw, ObjectId.NUM_BYTES);
+        copy(c.getTheirs(), raw, 2 * ObjectId.NUM_BYTES);
+        return new DatabaseEntry(raw);
+    }
+
+    private static void copy(@Nullable ObjectId id, byte[] target, int offset) {
+        if (id != null && !id.isNull()) {
+            System.arraycopy(id.getRawValue(), 0, target, offset, ObjectId.NUM_BYTES);
+        }
+    }
+
+    private static Conflict conflict(String path, DatabaseEntry data) {
+        Preconditions.checkState(RECORD_SIZE == data.getSize(), "Invalid conflict record for %s",
+                path);
+        byte[] raw = data.getData();
+        int off = data.getOffset();
+        ObjectId ancestor = id(raw, off);
+        ObjectId ours = id(raw, off + ObjectId.NUM_BYTES);
+        ObjectId theirs = id(raw, off + 2 * ObjectId.NUM_BYTES);
+        return new Conflict(path, ancestor, ours, theirs);
+    }
+
+    private static ObjectId id(byte[] raw, int offset) {
+        byte[] id = new byte[ObjectId.NUM_BYTES];
+        System.arraycopy(raw, offset, id, 0, ObjectId.NUM_BYTES);
+        return ObjectId.createNoClone(id);
+    }
+
+    @Override
+    public boolean hasConflicts(@Nullable String namespace) {
+        handles.readLock().lock();
+        try {
+            Database db = getDatabase(namespace, false);
+            if (db == null) {
+                return false;
+            }
+            DatabaseEntry key = new DatabaseEntry();
+            DatabaseEntry data = new DatabaseEntry();
+            data.setPartial(0, 0, true);
+            Cursor cursor = db.openCursor(null, CursorConfig.READ_UNCOMMITTED);
+            try {
+                return SUCCESS.equals(cursor.getFirst(key, data, LockMode.READ_UNCOMMITTED));
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            handles.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Optional<Conflict> getConflict(@Nullable String namespace, String path) {
+        checkNotNull(path, "path is null");
+        handles.readLock().lock();
+        try {
+            Database db = getDatabase(namespace, false);
+            if (db == null) {
+                return Optional.absent();
+            }
+            DatabaseEntry data = new DatabaseEntry();
+            OperationStatus status = db.get(null, key(path), data, LockMode.READ_UNCOMMITTED);
+            if (SUCCESS.equals(status)) {
+                return Optional.of(conflict(path, data));
+            }
+            return Optional.absent();
+        } finally {
+            handles.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Conflict> getConflicts(@Nullable String namespace, @Nullable String pathFilter) {
+        return ImmutableList.copyOf(getByPrefix(namespace, pathFilter));
+    }
+
+    @Override
+    public void addConflict(@Nullable String namespace, Conflict conflict) {
+        checkNotNull(conflict, "conflict is null");
+        addConflicts(namespace, Collections.singleton(conflict));
+    }
+
+    /**
+     * Adds all the given conflicts, sorted by path and partitioned in batches of
+     * {@link #BATCH_SIZE} conflicts per transaction.
+     */
+    @Override
+    public void addConflicts(@Nullable String namespace, Iterable<Conflict> conflicts) {
+        checkNotNull(conflicts, "conflicts is null");
+        checkWritable();
+        Iterator<List<Conflict>> batches = Iterators.partition(conflicts.iterator(), BATCH_SIZE);
+        if (!batches.hasNext()) {
+            return;
+        }
+        handles.readLock().lock();
+        try {
+            final Database db = getDatabase(namespace, true);
+            while (batches.hasNext()) {
+                TreeMap<String, Conflict> sorted = new TreeMap<String, Conflict>();
+                for (Conflict c : batches.next()) {
+                    sorted.put(c.getPath(), c);
+                }
+                final Transaction transaction = newTransaction();
+                try {
+                    for (Conflict c : sorted.values()) {
+                        db.put(transaction, key(c.getPath()), data(c));
+                    }
+                    commit(transaction);
+                } catch (RuntimeException e) {
+                    abort(transaction);
+                    throw e;
+                }
+            }
+        } finally {
+            handles.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeConflict(@Nullable String namespace, String path) {
+        checkNotNull(path, "path is null");
+        removeConflicts(namespace, Collections.singleton(path));
+    }
+
+    /**
+     * Removes all the conflicts in the namespace by dropping its database altogether, once no
+     * other operation is using its handle.
+     */
+    @Override
+    public void removeConflicts(@Nullable String namespace) {
+        checkWritable();
+        final String name = databaseName(namespace);
+        handles.writeLock().lock();
+        try {
+            Database db = databases.remove(name);
+            if (db != null) {
+                db.close();
+            }
+            if (env.getDatabaseNames().contains(name)) {
+                env.removeDatabase(null, name);
+            }
+        } finally {
+            handles.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeConflicts(@Nullable String namespace, Iterable<String> paths) {
+        checkNotNull(paths, "paths is null");
+        checkWritable();
+        handles.readLock().lock();
+        try {
+            final Database db = getDatabase(namespace, false);
+            if (db == null) {
+                return;
+            }
+            Iterator<List<String>> batches = Iterators.partition(paths.iterator(), BATCH_SIZE);
+            while (batches.hasNext()) {
+                TreeSet<String> sorted = new TreeSet<String>(batches.next());
+                final Transaction transaction = newTransaction();
+                try {
+                    for (String path : sorted) {
+                        db.delete(transaction, key(path));
+                    }
+                    commit(transaction);
+                } catch (RuntimeException e) {
+                    abort(transaction);
+                    throw e;
+                }
+            }
+        } finally {
+            handles.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Set<String> findConflicts(@Nullable String namespace, Set<String> paths) {
+        checkNotNull(paths, "paths is null");
+        Set<String> found = new TreeSet<String>();
+        handles.readLock().lock();
+        try {
+            final Database db = getDatabase(namespace, false);
+            if (db == null || paths.isEmpty()) {
+                return found;
+            }
+            DatabaseEntry data = new DatabaseEntry();
+            data.setPartial(0, 0, true);
+            Cursor cursor = db.openCursor(null, CursorConfig.READ_UNCOMMITTED);
+            try {
+                for (String path : new TreeSet<String>(paths)) {
+                    if (SUCCESS.equals(cursor.getSearchKey(key(path), data,
+                            LockMode.READ_UNCOMMITTED))) {
+                        found.add(path);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            handles.readLock().unlock();
+        }
+        return found;
+    }
+
+    /**
+     * Returns the conflicts whose path starts with the given prefix (or all of them if
+     * {@code prefixFilter} is {@code null}) in path order.
+     * <p>
+     * The returned iterator does not hold an open cursor nor database handle between calls, it
+     * fetches the matching records in pages, repositioning a short lived cursor after the last
+     * key of the previous page. If the namespace is removed meanwhile the iteration ends.
+     */
+    @Override
+    public Iterator<Conflict> getByPrefix(@Nullable String namespace,
+            @Nullable String prefixFilter) {
+        final String prefix = prefixFilter == null ? "" : prefixFilter;
+        return Iterators.concat(new PrefixPageIterator(namespace, prefix));
+    }
+
+    /**
+     * @return the number of conflicts at {@code treePath} or any of its children, or all the
+     *         conflicts in the namespace if {@code treePath} is {@code null}
+     */
+    @Override
+    public long getCountByPrefix(@Nullable String namespace, @Nullable String treePath) {
+        handles.readLock().lock();
+        try {
+            final Database db = getDatabase(namespace, false);
+            if (db == null) {
+                return 0L;
+            }
+            if (treePath == null || treePath.isEmpty()) {
+                return db.count();
+            }
+            long count = 0;
+            if (getConflict(namespace, treePath).isPresent()) {
+                count++;
+            }
+            final byte[] childPrefix = (treePath + "/").getBytes(UTF8);
+            DatabaseEntry key = new DatabaseEntry(childPrefix);
+            DatabaseEntry data = new DatabaseEntry();
+            data.setPartial(0, 0, true);
+            Cursor cursor = db.openCursor(null, CursorConfig.READ_UNCOMMITTED);
+            try {
+                OperationStatus status = cursor.getSearchKeyRange(key, data,
+                        LockMode.READ_UNCOMMITTED);
+                while (SUCCESS.equals(status) && startsWith(key, childPrefix)) {
+                    count++;
+                    status = cursor.getNext(key, data, LockMode.READ_UNCOMMITTED);
+                }
+            } finally {
+                cursor.close();
+            }
+            return count;
+        } finally {
+            handles.readLock().unlock();
+        }
+    }
+
+    private static boolean startsWith(DatabaseEntry key, byte[] prefix) {
+        if (key.getSize() < prefix.length) {
+            return false;
+        }
+        final byte[] data = key.getData();
+        final int offset = key.getOffset();
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Imports the conflicts of the default namespace and the given ones from a previous conflicts
+     * database (namely, the file based one used before this implementation) and removes them from
+     * it. Conflicts are streamed from the legacy database and added in batches of
+     * {@link #BATCH_SIZE}, so a namespace never needs to fit in memory.
+     */
+    void importFrom(final ConflictsDatabase legacy, final Iterable<String> namespaces) {
+        if (readOnly) {
+            return;
+        }
+        importFrom(legacy, (String) null);
+        for (String namespace : namespaces) {
+            importFrom(legacy, checkNotNull(namespace));
+        }
+    }
+
+    private void importFrom(final ConflictsDatabase legacy, final @Nullable String namespace) {
+        if (!legacy.hasConflicts(namespace)) {
+            return;
+        }
+        addConflicts(namespace, new Iterable<Conflict>() {
+            @Override
+            public Iterator<Conflict> iterator() {
+                return legacy.getByPrefix(namespace, null);
+            }
+        });
+        legacy.removeConflicts(namespace);
+        LOGGER.info("Imported {} conflicts of namespace {} to {}",
+                getCountByPrefix(namespace, null), namespace, env.getHome());
+    }
+
+    private class PrefixPageIterator extends AbstractIterator<Iterator<Conflict>> {
+
+        private static final int PAGE_SIZE = 1000;
+
+        @Nullable
+        private final String namespace;
+
+        private final byte[] prefix;
+
+        @Nullable
+        private byte[] lastKey;
+
+        private boolean done;
+
+        PrefixPageIterator(@Nullable String namespace, String prefix) {
+            this.namespace = namespace;
+            this.prefix = prefix.getBytes(UTF8);
+        }
+
+        @Override
+        protected Iterator<Conflict> computeNext() {
+            if (done) {
+                return endOfData();
+            }
+            List<Conflict> page = new ArrayList<Conflict>(PAGE_SIZE);
+            handles.readLock().lock();
+            try {
+                final Database db = getDatabase(namespace, false);
+                if (db == null) {
+                    return endOfData();
+                }
+                DatabaseEntry key = new DatabaseEntry(lastKey == null ? prefix : lastKey);
+                DatabaseEntry data = new DatabaseEntry();
+                Cursor cursor = db.openCursor(null, CursorConfig.READ_UNCOMMITTED);
+                try {
+                    OperationStatus status = cursor.getSearchKeyRange(key, data,
+                            LockMode.READ_UNCOMMITTED);
+                    if (lastKey != null && SUCCESS.equals(status)
+                            && Arrays.equals(lastKey, key.getData())) {
+                        status = cursor.getNext(key, data, LockMode.READ_UNCOMMITTED);
+                    }
+                    while (SUCCESS.equals(status) && startsWith(key, prefix)) {
+                        page.add(conflict(path(key), data));
+                        if (page.size() == PAGE_SIZE) {
+                            break;
+                        }
+                        status = cursor.getNext(key, data, LockMode.READ_UNCOMMITTED);
+                    }
+                } finally {
+                    cursor.close();
+                }
+            } finally {
+                handles.readLock().unlock();
+            }
+            if (page.size() < PAGE_SIZE) {
+                done = true;
+            } else {
+                lastKey = Iterables.getLast(page).getPath().getBytes(UTF8);
+            }
+            if (page.isEmpty()) {
+                return endOfData();
+            }
+            return page.iterator();
+        }
+    }
+}
@@ -14,33 +14,56 @@ import static com.sleepycat.je.OperationStatus.SUCCESS;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Queue;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.eclipse.jdt.annotation.Nullable;
 import org.locationtech.geogig.model.ObjectId;
 import org.locationtech.geogig.repository.Hints;
+import org.locationtech.geogig.repository.ProgressListener;
 import org.locationtech.geogig.repository.RepositoryConnectionException;
 import org.locationtech.geogig.storage.ConfigDatabase;
 import org.locationtech.geogig.storage.GraphDatabase;
 import org.locationtech.geogig.storage.StorageType;
-import org.locationtech.geogig.storage.SynchronizedGraphDatabase;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
-import com.google.common.base.Predicate;
+import com.google.common.base.Stopwatch;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableList.Builder;
-import com.google.common.collect.Iterables;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterators;
-import com.google.common.collect.Lists;
+import com.sleepycat.bind.tuple.StringBinding;
 import com.sleepycat.bind.tuple.TupleBinding;
 import com.sleepycat.je.CacheMode;
+import com.sleepycat.je.Cursor;
+import com.sleepycat.je.CursorConfig;
 import com.sleepycat.je.Database;
 import com.sleepycat.je.DatabaseConfig;
 import com.sleepycat.je.DatabaseEntry;
@@ -55,21 +78,686 @@ import com.sleepycat.je.TransactionConfig;
 /**
  * Implementation of {@link GraphDatabase} backed by a BerkeleyDB Java Edition database.
  * <p>
- * Implementation note: Since this is the only kind of mutable state we maintain, this
- * implementation extends {@link SynchronizedGraphDatabase} to avoid concurrent threads stepping
- * over each other's feet and overriding graph relations. An alternate solution would be to
- * serialize writes and have free threaded reads.
+ * Implementation note: the graph is the only mutable state kept here, and a write is a read,
+ * modify, and write back of the nodes it touches, so writes (and open, close, and truncate) are
+ * serialized through a single write lock to keep concurrent writers from overriding each other's
+ * graph relations. Reads take no lock: they run concurrently with each other and with the writer,
+ * with {@link LockMode#READ_UNCOMMITTED READ_UNCOMMITTED} isolation.
+ * <p>
+ * A reader may hence see a write in progress. {@link #put} stores the parents of a commit before
+ * the commit itself, so anything reachable through parent links is always there, while a child
+ * link may briefly point to a commit not yet stored; {@link GraphNode#getEdges} skips those.
+ * <p>
+ * Each node stores its depth and generation, computed from its parents' when it's added, so
+ * {@link #getDepth} and {@link #getGeneration} are a single lookup. Graphs written by versions
+ * that didn't store them are backfilled once, in the background, after {@link #open()}.
+ * <p>
+ * With {@code bdbje.graph.adjacency_cache} set, {@link #exists}, {@link #getParents},
+ * {@link #getChildren}, and {@link #getDepth} are answered from an {@link AdjacencyCache} loaded
+ * on first use and updated by writes once they commit, instead of reading the graph from JE.
+ * <p>
+ * With {@code bdbje.graph.edge_keys} set when a graph is created, its edges are stored one per key
+ * by {@link GraphEdges} instead of as lists in the node records, so adding a child to a commit
+ * with many of them, like the root of many branches, writes two small keys instead of rewriting
+ * its whole record.
+ * <p>
+ * {@link #isAncestor} and {@link #findMergeBase} walk the history pruning it by generation, or,
+ * with {@code bdbje.graph.reachability_index} set, answer from a {@link ReachabilityIndex} built in
+ * the background and kept in memory.
+ * <p>
+ * Once {@link #writeCommitGraph()} has written a {@link CommitGraphFile} next to the environment,
+ * {@link #exists}, {@link #getParents}, {@link #getMapping}, {@link #getDepth}, and
+ * {@link #getGeneration} read the commits it holds from it, memory mapped, and only go to JE for
+ * the commits added after it was written. Writes that change the commits it holds discard it.
  * </p>
  */
-abstract class JEGraphDatabase extends SynchronizedGraphDatabase {
+abstract class JEGraphDatabase implements GraphDatabase {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(JEGraphDatabase.class);
 
     static final String ENVIRONMENT_NAME = "graph";
 
+    /**
+     * If {@code true}, the graph database is created in the objects environment instead of its own
+     * one, sharing log files, cache, and background threads with the object database
+     */
+    static final String SHARED_ENVIRONMENT_CONFIG_KEY = "bdbje.shared_environment";
+
+    /**
+     * Marker file in the objects environment directory telling the graph database lives there,
+     * so it's found even if {@link #SHARED_ENVIRONMENT_CONFIG_KEY} is later turned off
+     */
+    static final String SHARED_ENVIRONMENT_MARKER = "graph.shared";
+
+    /**
+     * Number of commits {@link #putAll} writes per transaction
+     */
+    static final int PUTALL_BATCH_SIZE = 1000;
+
+    /**
+     * Number of commits added since the reachability index was built above which it's built
+     * again, for ancestor queries not to walk too many commits outside of it
+     */
+    static final int REINDEX_THRESHOLD = 4096;
+
+    private final OperationStats operationStats = new OperationStats();
+
+    private final OperationStats.Op existsOp = operationStats.op("exists");
+
+    private final OperationStats.Op getParentsOp = operationStats.op("getParents");
+
+    private final OperationStats.Op getChildrenOp = operationStats.op("getChildren");
+
+    private final OperationStats.Op putOp = operationStats.op("put");
+
+    private final OperationStats.Op putAllOp = operationStats.op("putAll");
+
+    private final OperationStats.Op mapOp = operationStats.op("map");
+
+    private final OperationStats.Op getMappingOp = operationStats.op("getMapping");
+
+    private final OperationStats.Op getDepthOp = operationStats.op("getDepth");
+
+    private final OperationStats.Op isAncestorOp = operationStats.op("isAncestor");
+
+    private final OperationStats.Op findMergeBaseOp = operationStats.op("findMergeBase");
+
+    private final OperationStats.Op setPropertyOp = operationStats.op("setProperty");
+
+    private final OperationStats.Op getNodeOp = operationStats.op("getNode");
+
+    private final Impl impl;
+
+    /**
+     * Serializes writes, reads don't take it
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
     public JEGraphDatabase(final ConfigDatabase config, final EnvironmentBuilder envProvider,
             final TupleBinding<NodeData> binding, final String formatVersion, final Hints hints) {
-        super(new Impl(config, envProvider, binding, formatVersion, hints));
+        this.impl = new Impl(config, envProvider, binding, formatVersion, hints);
+    }
+
+    /**
+     * @return the database's environment, which may be the objects one if shared
+     */
+    Environment getEnvironment() {
+        return impl.getEnvironment();
+    }
+
+    /**
+     * @return the latency and throughput figures of this database's operations since it was
+     *         created or the stats reset, including the time writes spend waiting for other
+     *         writes to finish
+     */
+    public OperationStats getOperationStats() {
+        return operationStats;
+    }
+
+    /**
+     * @return the in memory copy of the graph if enabled, loading it the first time; loading
+     *         holds the write lock for the graph not to change meanwhile
+     */
+    @Nullable
+    private AdjacencyCache adjacency() {
+        AdjacencyCache cache = impl.adjacency;
+        if (cache == null && impl.adjacencyCacheEnabled) {
+            writeLock.lock();
+            try {
+                cache = impl.loadAdjacency();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Opens the database in the background, and then computes the depth and generation of the
+     * commits stored by versions that didn't keep them, if any, see {@link #backfillGenerations()}
+     */
+    @Override
+    public void open() {
+        writeLock.lock();
+        try {
+            impl.open();
+        } finally {
+            writeLock.unlock();
+        }
+        if (!impl.readOnly) {
+            EnvironmentBuilder.STARTUP_EXECUTOR.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        backfillGenerations();
+                    } catch (RuntimeException e) {
+                        LOGGER.warn("Error computing commit depths and generations", e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Computes the depth and generation of the commits stored without them, once per graph.
+     * Holds the write lock meanwhile; reads compute them from the graph while missing.
+     *
+     * @return the number of commits updated
+     */
+    int backfillGenerations() {
+        writeLock.lock();
+        try {
+            return impl.isOpen() ? impl.backfillGenerations() : 0;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Re-encodes every node with {@code binding}, in key order and in batches of
+     * {@link #PUTALL_BATCH_SIZE} nodes, each in a transaction of its own and holding the write lock
+     * only while writing it, so the graph can be used meanwhile. Nodes already encoded as
+     * {@code binding} would encode them are not written.
+     * <p>
+     * {@code binding} must be one the graph's own binding reads, see {@link JEGraphDatabase_v0_3}.
+     *
+     * @return the number of nodes rewritten
+     */
+    int rewrite(final TupleBinding<NodeData> binding, final ProgressListener progress) {
+        final long total = impl.count();
+        progress.started();
+        int rewritten = 0;
+        long visited = 0;
+        ObjectId last = null;
+        List<ObjectId> batch;
+        while (!progress.isCanceled()
+                && !(batch = impl.nextKeys(last, PUTALL_BATCH_SIZE)).isEmpty()) {
+            writeLock.lock();
+            try {
+                rewritten += impl.rewrite(batch, binding);
+            } finally {
+                writeLock.unlock();
+            }
+            last = batch.get(batch.size() - 1);
+            visited += batch.size();
+            if (total > 0) {
+                progress.setProgress(Math.min(100f, visited * 100f / total));
+            }
+        }
+        progress.complete();
+        return rewritten;
+    }
+
+    /**
+     * Replaces the graph with the one of {@code commits} and their parents, see
+     * {@link RebuildGraphOp}. Holds the write lock meanwhile.
+     *
+     * @return the number of nodes written
+     */
+    int rebuild(final Map<ObjectId, ? extends List<ObjectId>> commits,
+            final ProgressListener progress) {
+        writeLock.lock();
+        try {
+            return impl.rebuild(commits, progress);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return the commit graph file in use, {@code null} if none
+     */
+    @Nullable
+    CommitGraphFile getCommitGraph() {
+        impl.db();
+        return impl.commitGraph;
+    }
+
+    /**
+     * Writes a {@link CommitGraphFile} snapshot of the graph next to its environment, replacing
+     * the previous one, and starts reading the commits it holds from it. Holds the write lock
+     * meanwhile.
+     *
+     * @return the number of commits in the snapshot
+     */
+    int writeCommitGraph() {
+        writeLock.lock();
+        try {
+            return impl.writeCommitGraph();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return impl.isOpen();
+    }
+
+    @Override
+    public void close() {
+        writeLock.lock();
+        try {
+            impl.close();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void configure() throws RepositoryConnectionException {
+        impl.configure();
+    }
+
+    @Override
+    public void checkConfig() throws RepositoryConnectionException {
+        impl.checkConfig();
+    }
+
+    @Override
+    public boolean exists(ObjectId commitId) {
+        final long start = System.nanoTime();
+        try {
+            AdjacencyCache cache = adjacency();
+            if (cache != null) {
+                return cache.exists(commitId);
+            }
+            CommitGraphFile file = impl.commitGraph;
+            return (file != null && file.index(commitId) >= 0) || impl.exists(commitId);
+        } finally {
+            existsOp.record(start);
+        }
+    }
+
+    @Override
+    public ImmutableList<ObjectId> getParents(ObjectId commitId) {
+        final long start = System.nanoTime();
+        try {
+            AdjacencyCache cache = adjacency();
+            if (cache != null) {
+                return cache.getParents(commitId);
+            }
+            CommitGraphFile file = impl.commitGraph;
+            final int index = file == null ? -1 : file.index(commitId);
+            return index < 0 ? impl.getParents(commitId) : file.parents(index);
+        } finally {
+            getParentsOp.record(start);
+        }
+    }
+
+    @Override
+    public ImmutableList<ObjectId> getChildren(ObjectId commitId) {
+        final long start = System.nanoTime();
+        try {
+            AdjacencyCache cache = adjacency();
+            return cache == null ? impl.getChildren(commitId) : cache.getChildren(commitId);
+        } finally {
+            getChildrenOp.record(start);
+        }
+    }
+
+    @Override
+    public boolean put(ObjectId commitId, ImmutableList<ObjectId> parentIds) {
+        final long start = System.nanoTime();
+        writeLock.lock();
+        try {
+            return impl.put(commitId, parentIds);
+        } finally {
+            writeLock.unlock();
+            putOp.record(start);
+        }
+    }
+
+    /**
+     * Adds many commits to the graph, as if calling {@link #put} for each one but in batches of
+     * {@link #PUTALL_BATCH_SIZE} commits: the nodes a batch touches are read in key order, updated
+     * in memory, and written back in a single transaction, so each node is read and written once
+     * per batch instead of once per commit that touches it.
+     *
+     * @param commits commit ids and their parents, in any order
+     * @return the number of commits that changed the graph, as {@link #put} would report them
+     */
+    public int putAll(Iterator<Map.Entry<ObjectId, ImmutableList<ObjectId>>> commits) {
+        final long start = System.nanoTime();
+        int updated = 0;
+        writeLock.lock();
+        try {
+            updated = impl.putAll(commits);
+            return updated;
+        } finally {
+            writeLock.unlock();
+            putAllOp.record(start, updated);
+        }
+    }
+
+    @Override
+    public void map(ObjectId mapped, ObjectId original) {
+        final long start = System.nanoTime();
+        writeLock.lock();
+        try {
+            impl.map(mapped, original);
+        } finally {
+            writeLock.unlock();
+            mapOp.record(start);
+        }
+    }
+
+    @Override
+    public ObjectId getMapping(ObjectId commitId) {
+        final long start = System.nanoTime();
+        try {
+            CommitGraphFile file = impl.commitGraph;
+            final int index = file == null ? -1 : file.index(commitId);
+            return index < 0 ? impl.getMapping(commitId) : file.mapping(index);
+        } finally {
+            getMappingOp.record(start);
+        }
+    }
+
+    @Override
+    public int getDepth(ObjectId commitId) {
+        final long start = System.nanoTime();
+        try {
+            AdjacencyCache cache = adjacency();
+            final int cached = cache == null ? NodeData.UNKNOWN : cache.getDepth(commitId);
+            if (cached != NodeData.UNKNOWN) {
+                return cached;
+            }
+            CommitGraphFile file = impl.commitGraph;
+            final int index = file == null ? -1 : file.index(commitId);
+            final int depth = index < 0 ? NodeData.UNKNOWN : file.depth(index);
+            return depth == NodeData.UNKNOWN ? impl.getDepth(commitId) : depth;
+        } finally {
+            getDepthOp.record(start);
+        }
+    }
+
+    /**
+     * @return the generation of {@code commitId}: {@code 0} for a root commit, otherwise one more
+     *         than the largest generation of its parents. A commit can only be an ancestor of
+     *         commits of a higher generation, which lets ancestor searches stop early
+     * @throws IllegalArgumentException if {@code commitId} is not in the graph
+     */
+    public int getGeneration(ObjectId commitId) {
+        CommitGraphFile file = impl.commitGraph;
+        final int index = file == null ? -1 : file.index(commitId);
+        final int generation = index < 0 ? NodeData.UNKNOWN : file.generation(index);
+        return generation == NodeData.UNKNOWN ? impl.getGeneration(commitId) : generation;
+    }
+
+    /**
+     * @return the reachability index if enabled and up to date enough, {@code null} otherwise;
+     *         (re)building it is started in the background if needed, meanwhile queries walk the
+     *         graph
+     */
+    @Nullable
+    private ReachabilityIndex reachability() {
+        if (!impl.reachabilityEnabled) {
+            return null;
+        }
+        ReachabilityIndex index = impl.reachability;
+        if (index == null || impl.addedCommits - impl.indexedCommits > REINDEX_THRESHOLD) {
+            if (impl.reindexing.compareAndSet(false, true)) {
+                EnvironmentBuilder.STARTUP_EXECUTOR.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            reindex();
+                        } catch (RuntimeException e) {
+                            LOGGER.warn("Error building the commit graph reachability index", e);
+                        } finally {
+                            impl.reindexing.set(false);
+                        }
+                    }
+                });
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Builds the reachability index over a snapshot of the graph, taken holding the write lock.
+     * Labelling the snapshot doesn't hold it; the index is discarded if parents were added to
+     * existing commits meanwhile.
+     */
+    void reindex() {
+        final AdjacencyCache snapshot;
+        final long addedCommits;
+        final long parentChanges;
+        writeLock.lock();
+        try {
+            if (!impl.isOpen()) {
+                return;
+            }
+            snapshot = impl.adjacencyCacheEnabled ? impl.loadAdjacency()
+                    : AdjacencyCache.load(impl.db(), impl.BINDING, impl.edges());
+            addedCommits = impl.addedCommits;
+            parentChanges = impl.parentChanges;
+        } finally {
+            writeLock.unlock();
+        }
+        final Stopwatch sw = Stopwatch.createStarted();
+        final ReachabilityIndex index = ReachabilityIndex.build(snapshot);
+        writeLock.lock();
+        try {
+            if (impl.isOpen() && impl.parentChanges == parentChanges) {
+                impl.reachability = index;
+                impl.indexedCommits = addedCommits;
+                LOGGER.debug("Built reachability index of {} commits in {}", index.nodeCount(),
+                        sw.stop());
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Tells whether a commit is an ancestor of another one, or the same commit, using the
+     * reachability index if enabled through the {@code bdbje.graph.reachability_index} config
+     * option, or walking the history of {@code descendant} otherwise, visiting only commits of a
+     * higher generation than {@code ancestor}.
+     *
+     * @return {@code true} if {@code ancestor} can be reached from {@code descendant} following
+     *         parent links, {@code false} otherwise or if either commit is not in the graph
+     */
+    public boolean isAncestor(ObjectId ancestor, ObjectId descendant) {
+        final long start = System.nanoTime();
+        try {
+            ReachabilityIndex index = reachability();
+            return index == null ? walkAncestors(ancestor, descendant)
+                    : isAncestor(index, ancestor, descendant);
+        } finally {
+            isAncestorOp.record(start);
+        }
+    }
+
+    private boolean isAncestor(final ReachabilityIndex index, final ObjectId ancestor,
+            final ObjectId descendant) {
+        if (ancestor.equals(descendant)) {
+            return true;
+        }
+        final int ancestorIndex = index.index(ancestor);
+        if (ancestorIndex < 0) {
+            // added after the index was built, only an ancestor of other new commits
+            return walkAncestors(ancestor, descendant);
+        }
+        // walk the commits added after the index was built down to the indexed ones, whose
+        // ancestors are all indexed
+        final Set<ObjectId> visited = new HashSet<ObjectId>();
+        final Deque<ObjectId> pending = new ArrayDeque<ObjectId>();
+        pending.push(descendant);
+        while (!pending.isEmpty()) {
+            final ObjectId id = pending.pop();
+            final int node = index.index(id);
+            if (node >= 0) {
+                if (index.isAncestor(ancestorIndex, node)) {
+                    return true;
+                }
+                continue;
+            }
+            for (ObjectId parent : getParents(id)) {
+                if (visited.add(parent)) {
+                    pending.push(parent);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Depth first search of {@code ancestor} from {@code descendant}, pruned by generation
+     */
+    private boolean walkAncestors(final ObjectId ancestor, final ObjectId descendant) {
+        if (ancestor.equals(descendant)) {
+            return true;
+        }
+        if (!exists(ancestor) || !exists(descendant)) {
+            return false;
+        }
+        final int generation = getGeneration(ancestor);
+        final Set<ObjectId> visited = new HashSet<ObjectId>();
+        final Deque<ObjectId> pending = new ArrayDeque<ObjectId>();
+        pending.push(descendant);
+        while (!pending.isEmpty()) {
+            for (ObjectId parent : getParents(pending.pop())) {
+                if (parent.equals(ancestor)) {
+                    return true;
+                }
+                if (visited.add(parent) && getGeneration(parent) > generation) {
+                    pending.push(parent);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the best common ancestor of two commits: one that is not an ancestor of any other of
+     * their common ancestors, the one of highest generation if there are several.
+     * <p>
+     * With the reachability index, the ancestors of {@code left} are visited by decreasing
+     * generation until one is an ancestor of {@code right}. Without it, the ancestors of both
+     * commits are visited by decreasing generation, marking which of them each one descends
+     * from, until one descends from both.
+     *
+     * @return the merge base, or absent if the commits have no common ancestor or any of them is
+     *         not in the graph
+     */
+    public Optional<ObjectId> findMergeBase(ObjectId left, ObjectId right) {
+        final long start = System.nanoTime();
+        try {
+            if (!exists(left) || !exists(right)) {
+                return Optional.absent();
+            }
+            if (left.equals(right)) {
+                return Optional.of(left);
+            }
+            ReachabilityIndex index = reachability();
+            return index == null ? paintMergeBase(left, right) : searchMergeBase(index, left, right);
+        } finally {
+            findMergeBaseOp.record(start);
+        }
+    }
+
+    private Optional<ObjectId> searchMergeBase(final ReachabilityIndex index,
+            final ObjectId left, final ObjectId right) {
+        final Map<ObjectId, Integer> generations = new HashMap<ObjectId, Integer>();
+        final PriorityQueue<ObjectId> queue = byGeneration(generations);
+        generations.put(left, Integer.valueOf(getGeneration(left)));
+        queue.add(left);
+        while (!queue.isEmpty()) {
+            final ObjectId commit = queue.poll();
+            if (isAncestor(index, commit, right)) {
+                return Optional.of(commit);
+            }
+            for (ObjectId parent : getParents(commit)) {
+                if (!generations.containsKey(parent)) {
+                    generations.put(parent, Integer.valueOf(getGeneration(parent)));
+                    queue.add(parent);
+                }
+            }
+        }
+        return Optional.absent();
+    }
+
+    private Optional<ObjectId> paintMergeBase(final ObjectId left, final ObjectId right) {
+        final int LEFT = 1;
+        final int RIGHT = 2;
+        final Map<ObjectId, Integer> generations = new HashMap<ObjectId, Integer>();
+        final Map<ObjectId, Integer> paint = new HashMap<ObjectId, Integer>();
+        final PriorityQueue<ObjectId> queue = byGeneration(generations);
+        generations.put(left, Integer.valueOf(getGeneration(left)));
+        generations.put(right, Integer.valueOf(getGeneration(right)));
+        paint.put(left, Integer.valueOf(LEFT));
+        paint.put(right, Integer.valueOf(RIGHT));
+        queue.add(left);
+        queue.add(right);
+        while (!queue.isEmpty()) {
+            // every descendant of the commit among the visited ones has a higher generation and
+            // has already passed on its paint
+            final ObjectId commit = queue.poll();
+            final int colors = paint.get(commit).intValue();
+            if (colors == (LEFT | RIGHT)) {
+                return Optional.of(commit);
+            }
+            for (ObjectId parent : getParents(commit)) {
+                Integer parentColors = paint.get(parent);
+                if (parentColors == null) {
+                    paint.put(parent, Integer.valueOf(colors));
+                    generations.put(parent, Integer.valueOf(getGeneration(parent)));
+                    queue.add(parent);
+                } else {
+                    paint.put(parent, Integer.valueOf(parentColors.intValue() | colors));
+                }
+            }
+        }
+        return Optional.absent();
+    }
+
+    /**
+     * @return a queue polling the commits of highest generation first, in id order for the same
+     *         generation
+     */
+    private static PriorityQueue<ObjectId> byGeneration(final Map<ObjectId, Integer> generations) {
+        return new PriorityQueue<ObjectId>(16, new Comparator<ObjectId>() {
+            @Override
+            public int compare(ObjectId o1, ObjectId o2) {
+                int c = generations.get(o2).compareTo(generations.get(o1));
+                return c != 0 ? c : o1.compareTo(o2);
+            }
+        });
+    }
+
+    @Override
+    public void setProperty(ObjectId commitId, String propertyName, String propertyValue) {
+        final long start = System.nanoTime();
+        writeLock.lock();
+        try {
+            impl.setProperty(commitId, propertyName, propertyValue);
+        } finally {
+            writeLock.unlock();
+            setPropertyOp.record(start);
+        }
+    }
+
+    @Override
+    public GraphNode getNode(ObjectId id) {
+        final long start = System.nanoTime();
+        try {
+            return impl.getNode(id);
+        } finally {
+            getNodeOp.record(start);
+        }
+    }
+
+    @Override
+    public void truncate() {
+        writeLock.lock();
+        try {
+            impl.truncate();
+        } finally {
+            writeLock.unlock();
+        }
     }
 
     private static class Impl implements GraphDatabase {
@@ -83,14 +771,121 @@ abstract class JEGraphDatabase extends SynchronizedGraphDatabase {
          */
         protected Environment env;
 
-        protected Database graphDb;
+        /**
+         * Volatile for readers to get it without locking, see {@link #db()}
+         */
+        protected volatile Database graphDb;
+
+        /**
+         * Background open started by {@link #open()}, awaited by {@link #db()}
+         */
+        @Nullable
+        private volatile Future<Database> openTask;
+
+        private String envName;
+
+        /**
+         * Only set for a graph environment of its own, the objects database samples a shared one
+         */
+        @Nullable
+        private EnvironmentStatsSampler statsSampler;
+
+        @Nullable
+        private CacheQuota cacheQuota;
+
+        private volatile boolean adjacencyCacheEnabled;
+
+        /**
+         * In memory copy of the graph, replaced by writes under the write lock after they commit
+         */
+        @Nullable
+        private volatile AdjacencyCache adjacency;
+
+        private volatile boolean reachabilityEnabled;
+
+        /**
+         * Built in the background by {@link JEGraphDatabase#reindex()}, discarded by writes that
+         * add parents to existing commits
+         */
+        @Nullable
+        private volatile ReachabilityIndex reachability;
+
+        /**
+         * Commits added since open, and times parents were added to existing commits, updated
+         * under the write lock
+         */
+        private volatile long addedCommits;
+
+        private volatile long parentChanges;
+
+        /**
+         * {@link #addedCommits} when {@link #reachability} was built
+         */
+        private volatile long indexedCommits;
 
-        private final String envName;
+        private final AtomicBoolean reindexing = new AtomicBoolean();
 
         private final ConfigDatabase configDb;
 
         private final String databaseName = "GraphDatabase";
 
+        /**
+         * Database of graph wide settings, keyed by name
+         */
+        private final String metadataDatabaseName = "GraphMetadata";
+
+        /**
+         * Metadata key telling whether the depth and generation of all the nodes have been
+         * computed, see {@link #backfillGenerations()}
+         */
+        private static final String GENERATIONS_KEY = "generations";
+
+        private static final String GENERATIONS_VERSION = "1";
+
+        @Nullable
+        private Database metadataDb;
+
+        /**
+         * Metadata key set to {@link #EDGES_LAYOUT} if the graph edges are stored one per key by
+         * {@link GraphEdges} instead of in the node records
+         */
+        private static final String LAYOUT_KEY = "layout";
+
+        private static final String EDGES_LAYOUT = "edges";
+
+        /**
+         * Metadata key holding the token of the {@link CommitGraphFile} written for the graph,
+         * removed when it's discarded
+         */
+        private static final String COMMIT_GRAPH_KEY = "commit_graph";
+
+        /**
+         * Appended to the name of the databases {@link #rebuild} loads before they replace the
+         * graph ones
+         */
+        private static final String REBUILD_SUFFIX = ".rebuild";
+
+        /**
+         * Loaded on open if written for this graph, discarded by the writes that change the
+         * commits it holds
+         */
+        @Nullable
+        private volatile CommitGraphFile commitGraph;
+
+        /**
+         * Set by {@link #createDatabase()} for the edge per key layout, {@code null} otherwise;
+         * access it after {@link #db()}
+         */
+        @Nullable
+        private GraphEdges edges;
+
+        /**
+         * Read locked while using the database handles, which writes do under the write lock of
+         * the enclosing class, write locked to close or replace them, see {@link #reset} and
+         * {@link #close()}
+         */
+        private final ReadWriteLock handles = new ReentrantReadWriteLock();
+
         private final boolean readOnly;
 
         private final String formatVersion;
@@ -99,279 +894,1369 @@ abstract class JEGraphDatabase extends SynchronizedGraphDatabase {
                 final TupleBinding<NodeData> binding, final String formatVersion,
                 final Hints hints) {
             this.configDb = config;
-            this.envProvider = envProvider;
+            this.envProvider = envProvider.setConfigDatabase(config);
             this.BINDING = binding;
             this.formatVersion = formatVersion;
-            this.envName = JEGraphDatabase.ENVIRONMENT_NAME;
             this.readOnly = hints.getBoolean(Hints.OBJECTS_READ_ONLY);
         }
 
+        /**
+         * Starts opening the database in the background, for it to open in parallel with the
+         * repository's other environments; operations wait for it in {@link #db()}
+         */
         @Override
         public void open() {
             if (isOpen()) {
-                LOGGER.trace("Environment {} already open", env.getHome());
+                LOGGER.trace("Environment {} already open", envName);
                 return;
             }
-            this.graphDb = createDatabase();
-            LOGGER.debug("Graph database opened at {}. Transactional: {}", env.getHome(),
-                    graphDb.getConfig().getTransactional());
+            envName = resolveEnvironmentName();
+            adjacencyCacheEnabled = AdjacencyCache.isEnabled(configDb);
+            reachabilityEnabled = ReachabilityIndex.isEnabled(configDb);
+            openTask = EnvironmentBuilder.STARTUP_EXECUTOR.submit(new Callable<Database>() {
+                @Override
+                public Database call() {
+                    Stopwatch sw = Stopwatch.createStarted();
+                    Database db = createDatabase();
+                    commitGraph = openCommitGraph();
+                    if (ENVIRONMENT_NAME.equals(envName)) {
+                        statsSampler = EnvironmentStatsSampler.start(env, configDb);
+                    }
+                    LOGGER.debug("Graph database opened at {} in {}. Transactional: {}",
+                            env.getHome(), sw.stop(), db.getConfig().getTransactional());
+                    return db;
+                }
+            });
         }
 
-        protected Database createDatabase() {
-
-            Environment environment;
-            try {
-                environment = createEnvironment(readOnly);
-            } catch (EnvironmentLockedException e) {
-                throw new IllegalStateException(
-                        "The repository is already open by another process for writing", e);
+        /**
+         * Decides whether the graph database lives in its own environment or in the objects
+         * environment.
+         * <p>
+         * JE shares a single underlying environment (log, cache, lock table, and background
+         * threads) among all the {@link Environment} handles open on the same directory in a
+         * process, reference counting them, so the graph database just opens its own handle on the
+         * objects environment directory. Its transactions commit to the same log as the object
+         * database's ones, letting JE group their log syncs.
+         * <p>
+         * An existing graph environment with data is kept even if sharing is requested, since its
+         * contents would otherwise be lost.
+         */
+        private String resolveEnvironmentName() {
+            final File geogigDir = envProvider.getGeoGigDirectory();
+            final File objectsDir = new File(geogigDir, JEObjectDatabase.ENVIRONMENT_NAME);
+            if (new File(objectsDir, SHARED_ENVIRONMENT_MARKER).exists()) {
+                return JEObjectDatabase.ENVIRONMENT_NAME;
             }
-
-            if (!environment.getDatabaseNames().contains(databaseName)) {
-                if (readOnly) {
-                    environment.close();
-                    try {
-                        environment = createEnvironment(false);
-                    } catch (EnvironmentLockedException e) {
-                        throw new IllegalStateException(String.format(
-                                "Environment open readonly but database %s does not exist.",
-                                databaseName));
-                    }
+            Optional<Boolean> shared = configDb.get(SHARED_ENVIRONMENT_CONFIG_KEY, Boolean.class);
+            if (!shared.isPresent()) {
+                shared = configDb.getGlobal(SHARED_ENVIRONMENT_CONFIG_KEY, Boolean.class);
+            }
+            if (!shared.or(Boolean.FALSE).booleanValue()) {
+                return ENVIRONMENT_NAME;
+            }
+            if (DataDirectories.hasLogFiles(new File(geogigDir, ENVIRONMENT_NAME))) {
+                LOGGER.warn("{} is set but the repository already has a graph environment, "
+                        + "keeping it separate from the objects environment",
+                        SHARED_ENVIRONMENT_CONFIG_KEY);
+                return ENVIRONMENT_NAME;
+            }
+            if (!readOnly) {
+                try {
+                    objectsDir.mkdirs();
+                    new File(objectsDir, SHARED_ENVIRONMENT_MARKER).createNewFile();
+                } catch (IOException e) {
+                    throw Throwables.propagate(e);
                 }
-                DatabaseConfig dbConfig = new DatabaseConfig();
-                dbConfig.setAllowCreate(true);
-                Database openDatabase = environment.openDatabase(null, databaseName, dbConfig);
-                openDatabase.close();
-                environment.flushLog(true);
-                environment.close();
-                environment = createEnvironment(readOnly);
+            }
+            return JEObjectDatabase.ENVIRONMENT_NAME;
+        }
+
+        Environment getEnvironment() {
+            db();
+            return env;
+        }
+
+        /**
+         * Loads the adjacency cache if not loaded yet, shall be called with the write lock held
+         */
+        AdjacencyCache loadAdjacency() {
+            AdjacencyCache cache = adjacency;
+            if (cache == null) {
+                Stopwatch sw = Stopwatch.createStarted();
+                cache = AdjacencyCache.load(db(), BINDING, edges);
+                adjacency = cache;
+                LOGGER.debug("Loaded adjacency cache of {} commits from {} in {}",
+                        cache.nodeCount(), env.getHome(), sw.stop());
+            }
+            return cache;
+        }
+
+        /**
+         * @return the graph database, waiting for the background open to finish if needed. Only
+         *         the first calls, while the database is opening, synchronize
+         */
+        private Database db() {
+            Database db = graphDb;
+            if (db == null) {
+                db = awaitOpen();
+            }
+            return db;
+        }
+
+        private synchronized Database awaitOpen() {
+            if (graphDb == null) {
+                Preconditions.checkState(openTask != null, "Database is closed");
+                try {
+                    graphDb = openTask.get();
+                } catch (InterruptedException e) {
+                    throw Throwables.propagate(e);
+                } catch (ExecutionException e) {
+                    openTask = null;
+                    throw Throwables.propagate(e.getCause());
+                }
+                openTask = null;
+            }
+            return graphDb;
+        }
+
+        protected Database createDatabase() {
+
+            Environment environment;
+            try {
+                environment = createEnvironment(readOnly);
+            } catch (EnvironmentLockedException e) {
+                throw new IllegalStateException(
+                        "The repository is already open by another process for writing", e);
+            }
+
+            // a read-write environment creates the database when opening it below, only a read
+            // only one needs to be reopen read-write to create it first
+            if (readOnly && !environment.getDatabaseNames().contains(databaseName)) {
+                environment.close();
+                try {
+                    environment = createEnvironment(false);
+                } catch (EnvironmentLockedException e) {
+                    throw new IllegalStateException(String.format(
+                            "Environment open readonly but database %s does not exist.",
+                            databaseName));
+                }
+                DatabaseConfig dbConfig = new DatabaseConfig();
+                dbConfig.setAllowCreate(true);
+                Database openDatabase = environment.openDatabase(null, databaseName, dbConfig);
+                openDatabase.close();
+                environment.flushLog(true);
+                environment.close();
+                environment = createEnvironment(readOnly);
             }
 
             Database database;
             try {
                 LOGGER.debug("Opening GraphDatabase at {}", environment.getHome());
 
+                cacheQuota = CacheQuota.acquire(environment, envName, configDb);
                 DatabaseConfig dbConfig = new DatabaseConfig();
-                dbConfig.setCacheMode(CacheMode.MAKE_COLD);
+                dbConfig.setCacheMode(CacheMode.DYNAMIC);
+                dbConfig.setCacheModeStrategy(cacheQuota);
                 dbConfig.setKeyPrefixing(false);// can result in a slightly smaller db size
 
+                dbConfig.setAllowCreate(!readOnly);
                 dbConfig.setReadOnly(readOnly);
                 boolean transactional = environment.getConfig().getTransactional();
                 dbConfig.setTransactional(transactional);
                 dbConfig.setDeferredWrite(!transactional);
 
                 database = environment.openDatabase(null, databaseName, dbConfig);
+                if (!readOnly
+                        || environment.getDatabaseNames().contains(metadataDatabaseName)) {
+                    DatabaseConfig metadataConfig = new DatabaseConfig();
+                    metadataConfig.setAllowCreate(!readOnly);
+                    metadataConfig.setReadOnly(readOnly);
+                    metadataConfig.setTransactional(transactional);
+                    metadataConfig.setDeferredWrite(!transactional);
+                    metadataDb = environment.openDatabase(null, metadataDatabaseName,
+                            metadataConfig);
+                }
+                edges = openEdges(environment, database, transactional);
             } catch (RuntimeException e) {
+                if (edges != null) {
+                    edges.getDatabase().close();
+                    edges = null;
+                }
+                if (metadataDb != null) {
+                    metadataDb.close();
+                    metadataDb = null;
+                }
+                if (cacheQuota != null) {
+                    cacheQuota.release();
+                    cacheQuota = null;
+                }
                 if (environment != null) {
                     environment.close();
                 }
                 throw e;
             }
-            this.env = environment;
-            return database;
-
+            this.env = environment;
+            return database;
+
+        }
+
+        /**
+         * Opens the edges database if the graph stores its edges one per key, which a graph
+         * created empty does if {@link GraphEdges#CONFIG_KEY} is set. The layout of a graph with
+         * commits doesn't change.
+         */
+        @Nullable
+        private GraphEdges openEdges(final Environment environment, final Database graph,
+                final boolean transactional) {
+            if (metadataDb == null) {
+                return null;
+            }
+            boolean edgeKeys = EDGES_LAYOUT.equals(getMetadata(LAYOUT_KEY));
+            if (!edgeKeys && !readOnly && GraphEdges.isEnabled(configDb) && isEmpty(graph)) {
+                putMetadata(null, LAYOUT_KEY, EDGES_LAYOUT);
+                edgeKeys = true;
+            }
+            if (!edgeKeys) {
+                return null;
+            }
+            DatabaseConfig edgesConfig = new DatabaseConfig();
+            edgesConfig.setCacheMode(CacheMode.DYNAMIC);
+            edgesConfig.setCacheModeStrategy(cacheQuota);
+            // keys of the same commit share their first 21 bytes
+            edgesConfig.setKeyPrefixing(true);
+            edgesConfig.setAllowCreate(!readOnly);
+            edgesConfig.setReadOnly(readOnly);
+            edgesConfig.setTransactional(transactional);
+            edgesConfig.setDeferredWrite(!transactional);
+            return new GraphEdges(
+                    environment.openDatabase(null, GraphEdges.DATABASE_NAME, edgesConfig));
+        }
+
+        @Nullable
+        GraphEdges edges() {
+            db();
+            return edges;
+        }
+
+        private static boolean isEmpty(final Database db) {
+            DatabaseEntry key = new DatabaseEntry();
+            DatabaseEntry data = new DatabaseEntry();
+            data.setPartial(0, 0, true);
+            final Cursor cursor = db.openCursor(null, CursorConfig.READ_UNCOMMITTED);
+            try {
+                return !SUCCESS.equals(cursor.getFirst(key, data, LockMode.READ_UNCOMMITTED));
+            } finally {
+                cursor.close();
+            }
+        }
+
+        /**
+         * @return creates and returns the environment
+         */
+        private Environment createEnvironment(boolean readOnly)
+                throws com.sleepycat.je.EnvironmentLockedException {
+            Environment env = envProvider.setRelativePath(this.envName).setReadOnly(readOnly).get();
+
+            return env;
+        }
+
+        @Override
+        public void configure() throws RepositoryConnectionException {
+            StorageType.GRAPH.configure(configDb, "bdbje",
+                    formatVersion);
+        }
+
+        @Override
+        public void checkConfig() throws RepositoryConnectionException {
+            StorageType.GRAPH.verify(configDb, "bdbje",
+                    formatVersion);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return graphDb != null || openTask != null;
+        }
+
+        @Override
+        public void close() {
+            handles.writeLock().lock();
+            try {
+                if (openTask != null) {
+                    try {
+                        db();
+                    } catch (RuntimeException e) {
+                        LOGGER.debug("Closing graph database that failed to open", e);
+                    }
+                    openTask = null;
+                }
+                if (env == null) {
+                    LOGGER.trace("Database already closed.");
+                    return;
+                }
+                final File envHome = env.getHome();
+                try {
+                    LOGGER.debug("Closing graph database at {}", envHome);
+                    if (statsSampler != null) {
+                        statsSampler.stop();
+                        statsSampler = null;
+                    }
+                    adjacency = null;
+                    reachability = null;
+                    parentChanges++;
+                    commitGraph = null;
+                    if (edges != null) {
+                        edges.getDatabase().close();
+                        edges = null;
+                    }
+                    if (metadataDb != null) {
+                        metadataDb.close();
+                        metadataDb = null;
+                    }
+                    if (graphDb != null) {
+                        graphDb.close();
+                        graphDb = null;
+                    }
+                    if (cacheQuota != null) {
+                        cacheQuota.release();
+                        cacheQuota = null;
+                    }
+                    LOGGER.trace("GraphDatabase closed. Closing environment...");
+                    if (!readOnly) {
+                        env.sync();
+                        env.cleanLog();
+                    }
+                } finally {
+                    env.close();
+                    env = null;
+                }
+                LOGGER.debug("Database {} closed.", envHome);
+            } finally {
+                handles.writeLock().unlock();
+            }
+        }
+
+        @Override
+        protected void finalize() {
+            if (isOpen()) {
+                LOGGER.warn("JEGraphDatabase {} was not closed. Forcing close at finalize()",
+                        envName);
+                close();
+            }
+        }
+
+        protected NodeData getNodeInternal(final ObjectId id, final boolean failIfNotFound) {
+            Preconditions.checkNotNull(id, "id");
+            DatabaseEntry key = new DatabaseEntry(id.getRawValue());
+            DatabaseEntry data = new DatabaseEntry();
+
+            final LockMode lockMode = LockMode.READ_UNCOMMITTED;
+            Transaction transaction = null;
+            OperationStatus operationStatus = db().get(transaction, key, data, lockMode);
+            if (NOTFOUND.equals(operationStatus)) {
+                if (failIfNotFound) {
+                    throw new IllegalArgumentException("Graph Object does not exist: "
+                            + id.toString() + " at " + env.getHome().getAbsolutePath());
+                }
+                return null;
+            }
+            return decode(id, data);
+        }
+
+        /**
+         * Reads the nodes of {@code ids} in key order, through a single cursor, for the lookups
+         * to hit the same and neighbouring btree nodes instead of searching the tree from the top
+         * in random order
+         *
+         * @return the nodes found, keyed by id
+         */
+        private Map<ObjectId, NodeData> getNodesInternal(final Collection<ObjectId> ids) {
+            if (ids.isEmpty()) {
+                return ImmutableMap.of();
+            }
+            if (ids.size() == 1) {
+                ObjectId id = ids.iterator().next();
+                NodeData node = getNodeInternal(id, false);
+                return node == null ? ImmutableMap.<ObjectId, NodeData> of()
+                        : ImmutableMap.of(id, node);
+            }
+            final List<ObjectId> sorted = ObjectId.NATURAL_ORDER.sortedCopy(ids);
+            final Map<ObjectId, NodeData> nodes = new HashMap<ObjectId, NodeData>();
+            final Cursor cursor = db().openCursor(null, CursorConfig.READ_UNCOMMITTED);
+            try {
+                for (ObjectId id : sorted) {
+                    DatabaseEntry key = new DatabaseEntry(id.getRawValue());
+                    DatabaseEntry data = new DatabaseEntry();
+                    if (SUCCESS.equals(cursor.getSearchKey(key, data, LockMode.READ_UNCOMMITTED))) {
+                        nodes.put(id, decode(id, data));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            return nodes;
+        }
+
+        private NodeData decode(final ObjectId id, final DatabaseEntry data) {
+            NodeData node = BINDING.entryToObject(data);
+            // not stored by the v0.3 format
+            node.id = id;
+            final GraphEdges edges = this.edges;
+            if (edges != null) {
+                // children are read when needed, see children()
+                node.outgoing = edges.parents(id);
+            }
+            return node;
+        }
+
+        private boolean putNodeInternal(final Transaction transaction, final ObjectId id,
+                final NodeData node) throws IOException {
+
+            NodeData record = node;
+            if (edges != null && !(node.outgoing.isEmpty() && node.incoming.isEmpty())) {
+                // edges are stored by GraphEdges
+                record = new NodeData(id, node.mappedTo, ImmutableList.<ObjectId> of(),
+                        ImmutableList.<ObjectId> of(), node.properties);
+                record.depth = node.depth;
+                record.generation = node.generation;
+            }
+            DatabaseEntry key = new DatabaseEntry(id.getRawValue());
+            DatabaseEntry data = new DatabaseEntry();
+            BINDING.objectToEntry(record, data);
+
+            final OperationStatus status = db().put(transaction, key, data);
+
+            return SUCCESS.equals(status);
+        }
+
+        private void abort(@Nullable Transaction transaction) {
+            if (transaction != null) {
+                try {
+                    transaction.abort();
+                } catch (Exception e) {
+                    LOGGER.error("Error aborting transaction", e);
+                }
+            }
+        }
+
+        private void commit(@Nullable Transaction transaction) {
+            if (transaction != null) {
+                try {
+                    transaction.commit();
+                } catch (Exception e) {
+                    LOGGER.error("Error committing transaction", e);
+                }
+            }
+        }
+
+        @Nullable
+        private Transaction newTransaction() {
+            final boolean transactional = db().getConfig().getTransactional();
+            if (transactional) {
+                TransactionConfig txConfig = new TransactionConfig();
+                txConfig.setReadUncommitted(true);
+                Optional<String> durability = configDb.get("bdbje.object_durability");
+                if ("safe".equals(durability.orNull())) {
+                    txConfig.setDurability(Durability.COMMIT_SYNC);
+                } else {
+                    txConfig.setDurability(Durability.COMMIT_WRITE_NO_SYNC);
+                }
+                Transaction transaction = env.beginTransaction(null, txConfig);
+                return transaction;
+            }
+            return null;
+        }
+
+        @Override
+        public boolean exists(ObjectId commitId) {
+            handles.readLock().lock();
+            try {
+                Preconditions.checkNotNull(commitId, "id");
+
+                DatabaseEntry key = new DatabaseEntry(commitId.getRawValue());
+                DatabaseEntry data = new DatabaseEntry();
+                // tell db not to retrieve data
+                data.setPartial(0, 0, true);
+
+                final LockMode lockMode = LockMode.READ_UNCOMMITTED;
+                Transaction transaction = null;
+                OperationStatus status = db().get(transaction, key, data, lockMode);
+                return SUCCESS == status;
+            } finally {
+                handles.readLock().unlock();
+            }
+        }
+
+        @Override
+        public ImmutableList<ObjectId> getParents(ObjectId commitId)
+                throws IllegalArgumentException {
+            handles.readLock().lock();
+            try {
+                Builder<ObjectId> listBuilder = new ImmutableList.Builder<ObjectId>();
+                NodeData node = getNodeInternal(commitId, false);
+                if (node != null) {
+                    return listBuilder.addAll(node.outgoing).build();
+                }
+                return listBuilder.build();
+            } finally {
+                handles.readLock().unlock();
+            }
+        }
+
+        @Override
+        public ImmutableList<ObjectId> getChildren(ObjectId commitId)
+                throws IllegalArgumentException {
+            handles.readLock().lock();
+            try {
+                Builder<ObjectId> listBuilder = new ImmutableList.Builder<ObjectId>();
+                NodeData node = getNodeInternal(commitId, false);
+                if (node != null) {
+                    return listBuilder.addAll(children(node)).build();
+                }
+                return listBuilder.build();
+            } finally {
+                handles.readLock().unlock();
+            }
+        }
+
+        @Override
+        public boolean put(ObjectId commitId, ImmutableList<ObjectId> parentIds) {
+            Map<ObjectId, List<ObjectId>> batch = new LinkedHashMap<ObjectId, List<ObjectId>>();
+            batch.put(commitId, new ArrayList<ObjectId>(parentIds));
+            return putBatch(batch) > 0;
+        }
+
+        /**
+         * @see JEGraphDatabase#putAll
+         */
+        public int putAll(final Iterator<Map.Entry<ObjectId, ImmutableList<ObjectId>>> commits) {
+            int updated = 0;
+            while (commits.hasNext()) {
+                Map<ObjectId, List<ObjectId>> batch = new LinkedHashMap<ObjectId, List<ObjectId>>();
+                while (commits.hasNext() && batch.size() < PUTALL_BATCH_SIZE) {
+                    Map.Entry<ObjectId, ImmutableList<ObjectId>> e = commits.next();
+                    List<ObjectId> parents = batch.get(e.getKey());
+                    if (parents == null) {
+                        batch.put(e.getKey(), new ArrayList<ObjectId>(e.getValue()));
+                    } else {
+                        for (ObjectId p : e.getValue()) {
+                            if (!parents.contains(p)) {
+                                parents.add(p);
+                            }
+                        }
+                    }
+                }
+                updated += putBatch(batch);
+            }
+            return updated;
+        }
+
+        /**
+         * Reads all the nodes the batch touches in key order, applies the batch to them in memory
+         * one commit at a time, computes the depth and generation of the batch commits, and writes
+         * back the changed nodes in a single transaction
+         */
+        private int putBatch(final Map<ObjectId, List<ObjectId>> batch) {
+            final SortedMap<ObjectId, NodeData> nodes = new TreeMap<ObjectId, NodeData>(
+                    ObjectId.NATURAL_ORDER);
+            for (Map.Entry<ObjectId, List<ObjectId>> e : batch.entrySet()) {
+                nodes.put(e.getKey(), null);
+                for (ObjectId parent : e.getValue()) {
+                    nodes.put(parent, null);
+                }
+            }
+            for (Map.Entry<ObjectId, NodeData> e : nodes.entrySet()) {
+                e.setValue(getNodeInternal(e.getKey(), false));
+            }
+
+            int updatedCommits = 0;
+            boolean parentsChanged = false;
+            boolean staleCommitGraph = false;
+            final Set<ObjectId> dirty = new HashSet<ObjectId>();
+            // nodes not stored before this batch
+            final Set<ObjectId> created = new HashSet<ObjectId>();
+            // parents added to each commit, for the edge per key layout
+            final Map<ObjectId, List<ObjectId>> addedEdges = new HashMap<ObjectId, List<ObjectId>>();
+            for (Map.Entry<ObjectId, List<ObjectId>> e : batch.entrySet()) {
+                final ObjectId commitId = e.getKey();
+                final List<ObjectId> parentIds = e.getValue();
+                boolean updated = false;
+                NodeData node = nodes.get(commitId);
+                if (node == null) {
+                    node = new NodeData(commitId, ImmutableList.<ObjectId> of());
+                    nodes.put(commitId, node);
+                    created.add(commitId);
+                    dirty.add(commitId);
+                    updated = true;
+                }
+                for (ObjectId parent : parentIds) {
+                    boolean addedEdge = false;
+                    if (!node.outgoing.contains(parent)) {
+                        node.outgoing.add(parent);
+                        dirty.add(commitId);
+                        updated = true;
+                        addedEdge = true;
+                        parentsChanged |= !created.contains(commitId);
+                        staleCommitGraph |= !created.contains(commitId)
+                                && inCommitGraph(commitId);
+                        if (edges != null) {
+                            List<ObjectId> added = addedEdges.get(commitId);
+                            if (added == null) {
+                                added = new ArrayList<ObjectId>(2);
+                                addedEdges.put(commitId, added);
+                            }
+                            added.add(parent);
+                        }
+                    }
+                    NodeData parentNode = nodes.get(parent);
+                    if (parentNode == null) {
+                        parentNode = new NodeData(parent);
+                        nodes.put(parent, parentNode);
+                        created.add(parent);
+                        dirty.add(parent);
+                        updated = true;
+                    }
+                    if (edges == null) {
+                        if (!parentNode.incoming.contains(commitId)) {
+                            parentNode.incoming.add(commitId);
+                            dirty.add(parent);
+                            updated = true;
+                        }
+                    } else if (addedEdge) {
+                        // only kept in memory, for updateGenerations to reach the batch children
+                        parentNode.incoming.add(commitId);
+                    }
+                }
+                if (updated) {
+                    updatedCommits++;
+                }
+            }
+
+            final List<ObjectId> order = writeOrder(batch, nodes.keySet());
+            order.addAll(updateGenerations(batch, order, nodes, dirty, created));
+
+            final Transaction transaction = newTransaction();
+            try {
+                if (staleCommitGraph) {
+                    discardCommitGraph(transaction);
+                }
+                for (ObjectId id : order) {
+                    List<ObjectId> added = addedEdges.get(id);
+                    if (added != null) {
+                        // before the node, for its parents to be there once it is
+                        NodeData node = nodes.get(id);
+                        for (ObjectId parent : added) {
+                            edges.put(transaction, id, parent, node.outgoing.indexOf(parent));
+                        }
+                    }
+                    if (dirty.contains(id)) {
+                        putNodeInternal(transaction, id, nodes.get(id));
+                    }
+                }
+                commit(transaction);
+            } catch (Exception e) {
+                abort(transaction);
+                throw Throwables.propagate(e);
+            }
+            if (staleCommitGraph) {
+                deleteCommitGraph();
+            }
+            if (updatedCommits > 0 && adjacency != null) {
+                adjacency = adjacency.put(batch);
+            }
+            addedCommits += created.size();
+            if (parentsChanged) {
+                // changes the ancestors of the commit's descendants
+                reachability = null;
+                parentChanges++;
+            }
+            return updatedCommits;
+        }
+
+        /**
+         * @return the nodes in an order where the parents of each commit in the batch come
+         *         before it, for concurrent readers to never reach a node through a parent link
+         *         before it's stored: the nodes that are not commits of the batch first, in key
+         *         order, then the batch commits in topological order
+         */
+        private List<ObjectId> writeOrder(final Map<ObjectId, List<ObjectId>> batch,
+                final Set<ObjectId> nodes) {
+            List<ObjectId> order = new ArrayList<ObjectId>(nodes.size());
+            for (ObjectId id : nodes) {
+                if (!batch.containsKey(id)) {
+                    order.add(id);
+                }
+            }
+            final Set<ObjectId> visited = new HashSet<ObjectId>();
+            final Deque<ObjectId> stack = new ArrayDeque<ObjectId>();
+            for (ObjectId commit : batch.keySet()) {
+                if (!visited.add(commit)) {
+                    continue;
+                }
+                stack.push(commit);
+                while (!stack.isEmpty()) {
+                    final ObjectId top = stack.peek();
+                    ObjectId pending = null;
+                    for (ObjectId parent : batch.get(top)) {
+                        if (batch.containsKey(parent) && visited.add(parent)) {
+                            pending = parent;
+                            break;
+                        }
+                    }
+                    if (pending == null) {
+                        order.add(stack.pop());
+                    } else {
+                        stack.push(pending);
+                    }
+                }
+            }
+            return order;
+        }
+
+        /**
+         * Sets the depth and generation of the batch commits from their parents', following
+         * {@code order} for parents to come first, and updates the descendants of the commits
+         * whose values changed, which only happens when parents are added to a commit that
+         * already has children
+         *
+         * @return the descendants updated that are not in {@code order}
+         */
+        private Set<ObjectId> updateGenerations(final Map<ObjectId, List<ObjectId>> batch,
+                final List<ObjectId> order, final Map<ObjectId, NodeData> nodes,
+                final Set<ObjectId> dirty, final Set<ObjectId> created) {
+            final Deque<ObjectId> changed = new ArrayDeque<ObjectId>();
+            for (ObjectId id : order) {
+                if (batch.containsKey(id)) {
+                    NodeData node = nodes.get(id);
+                    if (computeGeneration(node, nodes)) {
+                        dirty.add(id);
+                        changed.addAll(created.contains(id) ? node.incoming : children(node));
+                    }
+                }
+            }
+            final Set<ObjectId> ordered = new HashSet<ObjectId>(order);
+            final Set<ObjectId> descendants = new LinkedHashSet<ObjectId>();
+            while (!changed.isEmpty()) {
+                final ObjectId id = changed.poll();
+                NodeData node = nodes.get(id);
+                if (node == null) {
+                    node = getNodeInternal(id, false);
+                    if (node == null) {
+                        continue;
+                    }
+                    nodes.put(id, node);
+                }
+                if (computeGeneration(node, nodes)) {
+                    dirty.add(id);
+                    changed.addAll(children(node));
+                    if (!ordered.contains(id)) {
+                        descendants.add(id);
+                    }
+                }
+            }
+            return descendants;
+        }
+
+        /**
+         * @return the children of {@code node}; in the edge per key layout, the stored ones plus
+         *         the ones added in memory by {@link #putBatch}
+         */
+        private Collection<ObjectId> children(final NodeData node) {
+            final GraphEdges edges = this.edges;
+            if (edges == null) {
+                return node.incoming;
+            }
+            if (node.incoming.isEmpty()) {
+                return edges.children(node.id);
+            }
+            Set<ObjectId> children = new LinkedHashSet<ObjectId>(node.incoming);
+            children.addAll(edges.children(node.id));
+            return children;
+        }
+
+        /**
+         * Sets the depth and generation of {@code node} from its parents', taken from
+         * {@code nodes} or read from the database, {@link NodeData#UNKNOWN} if any of them is
+         * unknown
+         *
+         * @return whether they changed
+         */
+        private boolean computeGeneration(final NodeData node, final Map<ObjectId, NodeData> nodes) {
+            int depth = 0;
+            int generation = 0;
+            if (!node.outgoing.isEmpty()) {
+                depth = Integer.MAX_VALUE;
+                for (ObjectId parentId : node.outgoing) {
+                    NodeData parent = nodes.get(parentId);
+                    if (parent == null) {
+                        parent = getNodeInternal(parentId, false);
+                        if (parent != null) {
+                            nodes.put(parentId, parent);
+                        }
+                    }
+                    if (parent == null || parent.depth == NodeData.UNKNOWN
+                            || parent.generation == NodeData.UNKNOWN) {
+                        depth = NodeData.UNKNOWN;
+                        generation = NodeData.UNKNOWN;
+                        break;
+                    }
+                    depth = Math.min(depth, parent.depth + 1);
+                    generation = Math.max(generation, parent.generation + 1);
+                }
+            }
+            final boolean changed = depth != node.depth || generation != node.generation;
+            node.depth = depth;
+            node.generation = generation;
+            return changed;
+        }
+
+        /**
+         * @see JEGraphDatabase#backfillGenerations()
+         */
+        int backfillGenerations() {
+            final Database db = db();
+            if (metadataDb == null || GENERATIONS_VERSION.equals(getMetadata(GENERATIONS_KEY))) {
+                return 0;
+            }
+            final Stopwatch sw = Stopwatch.createStarted();
+            final AdjacencyCache graph = AdjacencyCache.load(db, BINDING, edges);
+            final int size = graph.nodeCount();
+            final int[] depth = new int[size];
+            final int[] generation = new int[size];
+            computeGenerations(graph, depth, generation);
+
+            int updated = 0;
+            Transaction transaction = newTransaction();
+            try {
+                for (int i = 0; i < size; i++) {
+                    final ObjectId id = graph.id(i);
+                    NodeData node = getNodeInternal(id, false);
+                    if (node != null
+                            && (node.depth != depth[i] || node.generation != generation[i])) {
+                        node.depth = depth[i];
+                        node.generation = generation[i];
+                        putNodeInternal(transaction, id, node);
+                        updated++;
+                    }
+                    if ((i + 1) % PUTALL_BATCH_SIZE == 0) {
+                        commit(transaction);
+                        transaction = newTransaction();
+                    }
+                }
+                putMetadata(transaction, GENERATIONS_KEY, GENERATIONS_VERSION);
+                commit(transaction);
+            } catch (Exception e) {
+                abort(transaction);
+                throw Throwables.propagate(e);
+            }
+            if (updated > 0) {
+                LOGGER.info("Computed depth and generation of {} commits of {} in {}", updated,
+                        env.getHome(), sw.stop());
+            }
+            return updated;
+        }
+
+        long count() {
+            handles.readLock().lock();
+            try {
+                return db().count();
+            } finally {
+                handles.readLock().unlock();
+            }
+        }
+
+        /**
+         * @return up to {@code limit} node ids in key order, starting after {@code after} or at
+         *         the first one if {@code null}
+         */
+        List<ObjectId> nextKeys(@Nullable final ObjectId after, final int limit) {
+            handles.readLock().lock();
+            try {
+                List<ObjectId> keys = new ArrayList<ObjectId>(limit);
+                DatabaseEntry key = new DatabaseEntry();
+                DatabaseEntry data = new DatabaseEntry();
+                data.setPartial(0, 0, true);
+                final Cursor cursor = db().openCursor(null, CursorConfig.READ_UNCOMMITTED);
+                try {
+                    OperationStatus status;
+                    if (after == null) {
+                        status = cursor.getFirst(key, data, LockMode.READ_UNCOMMITTED);
+                    } else {
+                        key.setData(after.getRawValue());
+                        status = cursor.getSearchKeyRange(key, data, LockMode.READ_UNCOMMITTED);
+                        if (SUCCESS.equals(status)
+                                && after.equals(ObjectId.createNoClone(key.getData()))) {
+                            status = cursor.getNext(key, data, LockMode.READ_UNCOMMITTED);
+                        }
+                    }
+                    while (SUCCESS.equals(status) && keys.size() < limit) {
+                        keys.add(ObjectId.createNoClone(key.getData()));
+                        status = cursor.getNext(key, data, LockMode.READ_UNCOMMITTED);
+                    }
+                } finally {
+                    cursor.close();
+                }
+                return keys;
+            } finally {
+                handles.readLock().unlock();
+            }
+        }
+
+        /**
+         * Re-encodes the {@code ids} nodes with {@code binding} in a single transaction, skipping
+         * the ones it encodes the same
+         *
+         * @return the number of nodes rewritten
+         */
+        int rewrite(final List<ObjectId> ids, final TupleBinding<NodeData> binding) {
+            int rewritten = 0;
+            final Transaction transaction = newTransaction();
+            try {
+                for (ObjectId id : ids) {
+                    DatabaseEntry key = new DatabaseEntry(id.getRawValue());
+                    DatabaseEntry data = new DatabaseEntry();
+                    if (!SUCCESS.equals(db().get(transaction, key, data, LockMode.DEFAULT))) {
+                        continue;
+                    }
+                    NodeData node = BINDING.entryToObject(data);
+                    node.id = id;
+                    DatabaseEntry converted = new DatabaseEntry();
+                    binding.objectToEntry(node, converted);
+                    if (!sameBytes(data, converted)) {
+                        db().put(transaction, key, converted);
+                        rewritten++;
+                    }
+                }
+                commit(transaction);
+            } catch (Exception e) {
+                abort(transaction);
+                throw Throwables.propagate(e);
+            }
+            return rewritten;
         }
 
         /**
-         * @return creates and returns the environment
+         * Bulk loads {@code commits} into a fresh graph database, keeping the mappings and
+         * properties of the current nodes, in key order: the nodes, then in the edge per key
+         * layout the parent edges and the child edges, each in key order too. The layout is chosen
+         * again as for a new graph. The loaded databases replace the current ones once complete,
+         * in a single transaction, so a failed or interrupted rebuild leaves the graph as it was.
+         *
+         * @see JEGraphDatabase#rebuild
          */
-        private synchronized Environment createEnvironment(boolean readOnly)
-                throws com.sleepycat.je.EnvironmentLockedException {
-            Environment env = envProvider.setRelativePath(this.envName).setReadOnly(readOnly).get();
-
-            return env;
+        int rebuild(final Map<ObjectId, ? extends List<ObjectId>> commits,
+                final ProgressListener progress) {
+            Preconditions.checkState(!readOnly, "Graph database is read only");
+            final Stopwatch sw = Stopwatch.createStarted();
+            final Map<ObjectId, NodeData> kept = readMappingsAndProperties();
+            Map<ObjectId, ? extends List<ObjectId>> nodes = commits;
+            if (!commits.keySet().containsAll(kept.keySet())) {
+                // mapped commits of a sparse clone aren't in the objects database
+                Map<ObjectId, List<ObjectId>> all = new HashMap<ObjectId, List<ObjectId>>(commits);
+                for (ObjectId id : kept.keySet()) {
+                    if (!all.containsKey(id)) {
+                        all.put(id, ImmutableList.<ObjectId> of());
+                    }
+                }
+                nodes = all;
+            }
+            final AdjacencyCache graph = AdjacencyCache.build(nodes);
+            final int size = graph.nodeCount();
+            final int[] depth = new int[size];
+            final int[] generation = new int[size];
+            computeGenerations(graph, depth, generation);
+
+            final boolean edgeKeys = GraphEdges.isEnabled(configDb);
+            final Database db = openRebuildDatabase(databaseName, false);
+            final GraphEdges edges = edgeKeys
+                    ? new GraphEdges(openRebuildDatabase(GraphEdges.DATABASE_NAME, true)) : null;
+            progress.started();
+            Transaction transaction = newTransaction();
+            try {
+                for (int i = 0; i < size; i++) {
+                    final ObjectId id = graph.id(i);
+                    final List<ObjectId> parents = new ArrayList<ObjectId>(graph.parentCount(i));
+                    for (int p = 0; p < graph.parentCount(i); p++) {
+                        parents.add(graph.id(graph.parent(i, p)));
+                    }
+                    final List<ObjectId> children = new ArrayList<ObjectId>(2);
+                    if (edges == null) {
+                        for (int c = 0; c < graph.childCount(i); c++) {
+                            children.add(graph.id(graph.child(i, c)));
+                        }
+                    } else {
+                        for (int p = 0; p < parents.size(); p++) {
+                            edges.putParent(transaction, id, parents.get(p), p);
+                        }
+                        // edges are stored by GraphEdges
+                        parents.clear();
+                    }
+                    final NodeData previous = kept.get(id);
+                    NodeData node = new NodeData(id,
+                            previous == null ? ObjectId.NULL : previous.mappedTo, parents,
+                            children, previous == null ? new HashMap<String, String>()
+                                    : previous.properties);
+                    node.depth = depth[i];
+                    node.generation = generation[i];
+                    DatabaseEntry data = new DatabaseEntry();
+                    BINDING.objectToEntry(node, data);
+                    db.put(transaction, new DatabaseEntry(id.getRawValue()), data);
+                    if ((i + 1) % PUTALL_BATCH_SIZE == 0) {
+                        commit(transaction);
+                        transaction = newTransaction();
+                        reportRebuild(progress, "Wrote %,d of %,d graph nodes (%,.0f nodes/s)",
+                                i + 1, size, sw);
+                    }
+                }
+                if (edges != null) {
+                    for (int i = 0; i < size; i++) {
+                        final ObjectId id = graph.id(i);
+                        for (int c = 0; c < graph.childCount(i); c++) {
+                            edges.putChild(transaction, id, graph.id(graph.child(i, c)));
+                        }
+                        if ((i + 1) % PUTALL_BATCH_SIZE == 0) {
+                            commit(transaction);
+                            transaction = newTransaction();
+                            reportRebuild(progress,
+                                    "Wrote child edges of %,d of %,d graph nodes (%,.0f nodes/s)",
+                                    i + 1, size, sw);
+                        }
+                    }
+                }
+                commit(transaction);
+                if (!db.getConfig().getTransactional()) {
+                    db.sync();
+                    if (edges != null) {
+                        edges.getDatabase().sync();
+                    }
+                }
+            } catch (Exception e) {
+                abort(transaction);
+                db.close();
+                if (edges != null) {
+                    edges.getDatabase().close();
+                }
+                removeRebuildDatabases();
+                throw Throwables.propagate(e);
+            }
+            db.close();
+            if (edges != null) {
+                edges.getDatabase().close();
+            }
+            final File home = env.getHome();
+            replaceWithRebuilt(edgeKeys);
+            progress.complete();
+            LOGGER.info("Rebuilt graph of {} commits at {} in {}", size, home, sw.stop());
+            return size;
         }
 
-        @Override
-        public void configure() throws RepositoryConnectionException {
-            StorageType.GRAPH.configure(configDb, "bdbje",
-                    formatVersion);
+        private static String rebuildName(final String databaseName) {
+            return databaseName + REBUILD_SUFFIX;
         }
 
-        @Override
-        public void checkConfig() throws RepositoryConnectionException {
-            StorageType.GRAPH.verify(configDb, "bdbje",
-                    formatVersion);
+        /**
+         * Opens a new database for {@link #rebuild} to load the {@code databaseName} one into,
+         * replacing any left by a rebuild that didn't complete
+         */
+        private Database openRebuildDatabase(final String databaseName,
+                final boolean keyPrefixing) {
+            final Environment env = getEnvironment();
+            final String name = rebuildName(databaseName);
+            if (env.getDatabaseNames().contains(name)) {
+                env.removeDatabase(null, name);
+            }
+            DatabaseConfig config = new DatabaseConfig();
+            config.setCacheMode(CacheMode.DYNAMIC);
+            config.setCacheModeStrategy(cacheQuota);
+            config.setKeyPrefixing(keyPrefixing);
+            config.setAllowCreate(true);
+            final boolean transactional = env.getConfig().getTransactional();
+            config.setTransactional(transactional);
+            config.setDeferredWrite(!transactional);
+            return env.openDatabase(null, name, config);
         }
 
-        @Override
-        public boolean isOpen() {
-            return graphDb != null;
+        private void removeRebuildDatabases() {
+            for (String databaseName : ImmutableList.of(this.databaseName,
+                    GraphEdges.DATABASE_NAME)) {
+                final String name = rebuildName(databaseName);
+                try {
+                    if (env.getDatabaseNames().contains(name)) {
+                        env.removeDatabase(null, name);
+                    }
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Unable to remove {}", name, e);
+                }
+            }
         }
 
-        @Override
-        public void close() {
-            if (env == null) {
-                LOGGER.trace("Database already closed.");
-                return;
-            }
-            final File envHome = env.getHome();
+        /**
+         * Replaces the graph and edges databases with the ones loaded by {@link #rebuild}, and the
+         * layout and generations metadata, in a single synced transaction, and reopens the graph.
+         * Holds the write lock of {@link #handles} meanwhile.
+         */
+        private void replaceWithRebuilt(final boolean edgeKeys) {
+            handles.writeLock().lock();
             try {
-                LOGGER.debug("Closing graph database at {}", envHome);
-                if (graphDb != null) {
-                    graphDb.close();
-                    graphDb = null;
+                final Environment env = this.env;
+                db().close();
+                if (this.edges != null) {
+                    this.edges.getDatabase().close();
+                }
+                final boolean transactional = env.getConfig().getTransactional();
+                Transaction transaction = null;
+                if (transactional) {
+                    TransactionConfig txConfig = new TransactionConfig();
+                    txConfig.setDurability(Durability.COMMIT_SYNC);
+                    transaction = env.beginTransaction(null, txConfig);
                 }
-                LOGGER.trace("GraphDatabase closed. Closing environment...");
-                if (!readOnly) {
-                    env.sync();
-                    env.cleanLog();
+                try {
+                    final List<String> names = env.getDatabaseNames();
+                    env.removeDatabase(transaction, databaseName);
+                    env.renameDatabase(transaction, rebuildName(databaseName), databaseName);
+                    if (names.contains(GraphEdges.DATABASE_NAME)) {
+                        env.removeDatabase(transaction, GraphEdges.DATABASE_NAME);
+                    }
+                    if (edgeKeys) {
+                        env.renameDatabase(transaction, rebuildName(GraphEdges.DATABASE_NAME),
+                                GraphEdges.DATABASE_NAME);
+                        putMetadata(transaction, LAYOUT_KEY, EDGES_LAYOUT);
+                    } else {
+                        DatabaseEntry layout = new DatabaseEntry();
+                        StringBinding.stringToEntry(LAYOUT_KEY, layout);
+                        metadataDb.delete(transaction, layout);
+                    }
+                    putMetadata(transaction, GENERATIONS_KEY, GENERATIONS_VERSION);
+                    discardCommitGraph(transaction);
+                    if (transaction == null) {
+                        metadataDb.sync();
+                    } else {
+                        transaction.commit();
+                    }
+                } catch (RuntimeException e) {
+                    abort(transaction);
+                    throw e;
+                } finally {
+                    deleteCommitGraph();
+                    reopen(env);
                 }
             } finally {
-                env.close();
-                env = null;
+                handles.writeLock().unlock();
             }
-            LOGGER.debug("Database {} closed.", envHome);
         }
 
-        @Override
-        protected void finalize() {
-            if (isOpen()) {
-                LOGGER.warn("JEGraphDatabase {} was not closed. Forcing close at finalize()",
-                        env.getHome());
-                close();
-            }
+        private static void reportRebuild(final ProgressListener progress, final String format,
+                final int written, final int size, final Stopwatch sw) {
+            double seconds = Math.max(1, sw.elapsed(TimeUnit.MILLISECONDS)) / 1000d;
+            progress.setDescription(String.format(format, written, size, written / seconds));
+            progress.setProgress(written * 100f / size);
         }
 
-        protected NodeData getNodeInternal(final ObjectId id, final boolean failIfNotFound) {
-            Preconditions.checkNotNull(id, "id");
-            DatabaseEntry key = new DatabaseEntry(id.getRawValue());
+        /**
+         * @return the nodes that are mapped or have properties, which the commit objects don't
+         *         record; the ones that can't be decoded are skipped
+         */
+        private Map<ObjectId, NodeData> readMappingsAndProperties() {
+            final Map<ObjectId, NodeData> kept = new HashMap<ObjectId, NodeData>();
+            DatabaseEntry key = new DatabaseEntry();
             DatabaseEntry data = new DatabaseEntry();
-
-            final LockMode lockMode = LockMode.READ_UNCOMMITTED;
-            Transaction transaction = null;
-            OperationStatus operationStatus = graphDb.get(transaction, key, data, lockMode);
-            if (NOTFOUND.equals(operationStatus)) {
-                if (failIfNotFound) {
-                    throw new IllegalArgumentException("Graph Object does not exist: "
-                            + id.toString() + " at " + env.getHome().getAbsolutePath());
+            final Cursor cursor = db().openCursor(null, CursorConfig.READ_UNCOMMITTED);
+            try {
+                while (SUCCESS.equals(cursor.getNext(key, data, LockMode.READ_UNCOMMITTED))) {
+                    final ObjectId id = ObjectId.createNoClone(Arrays.copyOfRange(key.getData(),
+                            key.getOffset(), key.getOffset() + key.getSize()));
+                    NodeData node;
+                    try {
+                        node = BINDING.entryToObject(data);
+                    } catch (RuntimeException e) {
+                        LOGGER.warn("Skipping unreadable graph node {}", id, e);
+                        continue;
+                    }
+                    final boolean mapped = node.mappedTo != null && !node.mappedTo.isNull();
+                    if (mapped || !node.properties.isEmpty()) {
+                        node.id = id;
+                        kept.put(id, node);
+                    }
                 }
-                return null;
+            } finally {
+                cursor.close();
             }
-            NodeData node = BINDING.entryToObject(data);
-            return node;
+            return kept;
         }
 
-        private boolean putNodeInternal(final Transaction transaction, final ObjectId id,
-                final NodeData node) throws IOException {
-
-            DatabaseEntry key = new DatabaseEntry(id.getRawValue());
-            DatabaseEntry data = new DatabaseEntry();
-            BINDING.objectToEntry(node, data);
-
-            final OperationStatus status = graphDb.put(transaction, key, data);
-
-            return SUCCESS.equals(status);
+        private static boolean sameBytes(DatabaseEntry a, DatabaseEntry b) {
+            if (a.getSize() != b.getSize()) {
+                return false;
+            }
+            final byte[] ab = a.getData();
+            final byte[] bb = b.getData();
+            for (int i = 0; i < a.getSize(); i++) {
+                if (ab[a.getOffset() + i] != bb[b.getOffset() + i]) {
+                    return false;
+                }
+            }
+            return true;
         }
 
-        private void abort(@Nullable Transaction transaction) {
-            if (transaction != null) {
-                try {
-                    transaction.abort();
-                } catch (Exception e) {
-                    LOGGER.error("Error aborting transaction", e);
+        /**
+         * Computes the depth and generation of every node of {@code graph} visiting its ancestors
+         * depth first, so that each node is computed once after all its parents
+         */
+        private static void computeGenerations(final AdjacencyCache graph, final int[] depth,
+                final int[] generation) {
+            final int size = graph.nodeCount();
+            final byte[] state = new byte[size];// 0: not visited, 1: visiting, 2: done
+            final int[] next = new int[size];
+            final int[] stack = new int[size];
+            for (int start = 0; start < size; start++) {
+                if (state[start] != 0) {
+                    continue;
+                }
+                int top = 0;
+                stack[top] = start;
+                state[start] = 1;
+                while (top >= 0) {
+                    final int node = stack[top];
+                    final int parentCount = graph.parentCount(node);
+                    if (next[node] < parentCount) {
+                        final int parent = graph.parent(node, next[node]++);
+                        if (state[parent] == 0) {
+                            state[parent] = 1;
+                            stack[++top] = parent;
+                        }
+                        continue;
+                    }
+                    int d = 0;
+                    int g = 0;
+                    if (parentCount > 0) {
+                        d = Integer.MAX_VALUE;
+                        for (int i = 0; i < parentCount; i++) {
+                            final int parent = graph.parent(node, i);
+                            if (state[parent] != 2 || depth[parent] == NodeData.UNKNOWN) {
+                                // a cycle, can't be computed
+                                d = NodeData.UNKNOWN;
+                                g = NodeData.UNKNOWN;
+                                break;
+                            }
+                            d = Math.min(d, depth[parent] + 1);
+                            g = Math.max(g, generation[parent] + 1);
+                        }
+                    }
+                    depth[node] = d;
+                    generation[node] = g;
+                    state[node] = 2;
+                    top--;
                 }
             }
         }
 
-        private void commit(@Nullable Transaction transaction) {
-            if (transaction != null) {
-                try {
-                    transaction.commit();
-                } catch (Exception e) {
-                    LOGGER.error("Error committing transaction", e);
-                }
+        /**
+         * @see JEGraphDatabase#writeCommitGraph()
+         */
+        int writeCommitGraph() {
+            final Database db = db();
+            Preconditions.checkState(!readOnly && metadataDb != null,
+                    "Graph database is read only");
+            final Stopwatch sw = Stopwatch.createStarted();
+            final AdjacencyCache graph = AdjacencyCache.load(db, BINDING, edges);
+            final int size = graph.nodeCount();
+            final int[] depth = new int[size];
+            final int[] generation = new int[size];
+            computeGenerations(graph, depth, generation);
+            final Map<ObjectId, NodeData> nodes = readMappingsAndProperties();
+
+            long token = System.currentTimeMillis();
+            final CommitGraphFile current = commitGraph;
+            if (current != null && current.token() >= token) {
+                token = current.token() + 1;
+            }
+            final File file = commitGraphFile();
+            try {
+                CommitGraphFile.write(file, graph, depth, generation, nodes, token);
+                putMetadata(null, COMMIT_GRAPH_KEY, String.valueOf(token));
+                commitGraph = CommitGraphFile.open(file, token);
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
             }
+            LOGGER.info("Wrote commit graph file of {} commits to {} in {}", size, file,
+                    sw.stop());
+            return size;
+        }
+
+        private File commitGraphFile() {
+            return new File(env.getHome(), CommitGraphFile.FILE_NAME);
         }
 
+        /**
+         * @return the commit graph file if there's one written for this graph
+         */
         @Nullable
-        private Transaction newTransaction() {
-            final boolean transactional = graphDb.getConfig().getTransactional();
-            if (transactional) {
-                TransactionConfig txConfig = new TransactionConfig();
-                txConfig.setReadUncommitted(true);
-                Optional<String> durability = configDb.get("bdbje.object_durability");
-                if ("safe".equals(durability.orNull())) {
-                    txConfig.setDurability(Durability.COMMIT_SYNC);
-                } else {
-                    txConfig.setDurability(Durability.COMMIT_WRITE_NO_SYNC);
+        private CommitGraphFile openCommitGraph() {
+            final String token = metadataDb == null ? null : getMetadata(COMMIT_GRAPH_KEY);
+            if (token == null) {
+                return null;
+            }
+            final File file = commitGraphFile();
+            try {
+                CommitGraphFile commitGraph = CommitGraphFile.open(file, Long.parseLong(token));
+                if (commitGraph == null) {
+                    LOGGER.warn("Commit graph file {} is missing or outdated, not using it", file);
                 }
-                Transaction transaction = env.beginTransaction(null, txConfig);
-                return transaction;
+                return commitGraph;
+            } catch (Exception e) {
+                LOGGER.warn("Error opening commit graph file {}, not using it", file, e);
+                return null;
             }
-            return null;
         }
 
-        @Override
-        public boolean exists(ObjectId commitId) {
-            Preconditions.checkNotNull(commitId, "id");
-
-            DatabaseEntry key = new DatabaseEntry(commitId.getRawValue());
-            DatabaseEntry data = new DatabaseEntry();
-            // tell db not to retrieve data
-            data.setPartial(0, 0, true);
-
-            final LockMode lockMode = LockMode.READ_UNCOMMITTED;
-            Transaction transaction = null;
-            OperationStatus status = graphDb.get(transaction, key, data, lockMode);
-            return SUCCESS == status;
+        /**
+         * @return whether {@code commitId} is in the commit graph file, which must then be
+         *         discarded if it changes
+         */
+        private boolean inCommitGraph(final ObjectId commitId) {
+            final CommitGraphFile file = commitGraph;
+            return file != null && file.index(commitId) >= 0;
         }
 
-        @Override
-        public ImmutableList<ObjectId> getParents(ObjectId commitId)
-                throws IllegalArgumentException {
-            Builder<ObjectId> listBuilder = new ImmutableList.Builder<ObjectId>();
-            NodeData node = getNodeInternal(commitId, false);
-            if (node != null) {
-                return listBuilder.addAll(node.outgoing).build();
+        /**
+         * Stops using the commit graph file, removing its token from the metadata in
+         * {@code transaction} so it's not loaded again once committed; the file itself is deleted
+         * by {@link #deleteCommitGraph()} after committing
+         */
+        private void discardCommitGraph(@Nullable final Transaction transaction) {
+            commitGraph = null;
+            if (metadataDb != null) {
+                DatabaseEntry keyEntry = new DatabaseEntry();
+                StringBinding.stringToEntry(COMMIT_GRAPH_KEY, keyEntry);
+                metadataDb.delete(transaction, keyEntry);
             }
-            return listBuilder.build();
         }
 
-        @Override
-        public ImmutableList<ObjectId> getChildren(ObjectId commitId)
-                throws IllegalArgumentException {
-            Builder<ObjectId> listBuilder = new ImmutableList.Builder<ObjectId>();
-            NodeData node = getNodeInternal(commitId, false);
-            if (node != null) {
-                return listBuilder.addAll(node.incoming).build();
+        private void deleteCommitGraph() {
+            final File file = commitGraphFile();
+            if (file.exists() && !file.delete()) {
+                LOGGER.debug("Couldn't delete outdated commit graph file {}", file);
             }
-            return listBuilder.build();
         }
 
-        @Override
-        public boolean put(ObjectId commitId, ImmutableList<ObjectId> parentIds) {
-            NodeData node = getNodeInternal(commitId, false);
-            boolean updated = false;
-            final Transaction transaction = newTransaction();
-            try {
-                if (node == null) {
-                    node = new NodeData(commitId, parentIds);
-                    updated = true;
-                }
-                for (ObjectId parent : parentIds) {
-                    if (!node.outgoing.contains(parent)) {
-                        node.outgoing.add(parent);
-                        updated = true;
-                    }
-                    NodeData parentNode = getNodeInternal(parent, false);
-                    if (parentNode == null) {
-                        parentNode = new NodeData(parent);
-                        updated = true;
-                    }
-                    if (!parentNode.incoming.contains(commitId)) {
-                        parentNode.incoming.add(commitId);
-                        updated = true;
-                    }
-                    putNodeInternal(transaction, parent, parentNode);
-                }
-                putNodeInternal(transaction, commitId, node);
-                commit(transaction);
-            } catch (Exception e) {
-                abort(transaction);
-                throw Throwables.propagate(e);
+        @Nullable
+        private String getMetadata(final String key) {
+            DatabaseEntry keyEntry = new DatabaseEntry();
+            StringBinding.stringToEntry(key, keyEntry);
+            DatabaseEntry data = new DatabaseEntry();
+            if (SUCCESS.equals(metadataDb.get(null, keyEntry, data, LockMode.READ_UNCOMMITTED))) {
+                return StringBinding.entryToString(data);
             }
-            return updated;
+            return null;
+        }
+
+        private void putMetadata(@Nullable final Transaction transaction, final String key,
+                final String value) {
+            DatabaseEntry keyEntry = new DatabaseEntry();
+            StringBinding.stringToEntry(key, keyEntry);
+            DatabaseEntry data = new DatabaseEntry();
+            StringBinding.stringToEntry(value, data);
+            metadataDb.put(transaction, keyEntry, data);
         }
 
         @Override
@@ -382,73 +2267,157 @@ abstract class JEGraphDatabase extends SynchronizedGraphDatabase {
                 node = new NodeData(mapped);
             }
             node.mappedTo = original;
+            final boolean staleCommitGraph = inCommitGraph(mapped);
             final Transaction transaction = newTransaction();
             try {
+                if (staleCommitGraph) {
+                    discardCommitGraph(transaction);
+                }
                 putNodeInternal(transaction, mapped, node);
                 commit(transaction);
             } catch (Exception e) {
                 abort(transaction);
                 throw Throwables.propagate(e);
             }
+            if (staleCommitGraph) {
+                deleteCommitGraph();
+            }
+            if (adjacency != null) {
+                adjacency = adjacency.put(ImmutableMap.of(mapped, ImmutableList.<ObjectId> of()));
+            }
         }
 
         @Override
         public ObjectId getMapping(ObjectId commitId) {
-            NodeData node = getNodeInternal(commitId, true);
-            return node.mappedTo;
+            handles.readLock().lock();
+            try {
+                NodeData node = getNodeInternal(commitId, true);
+                return node.mappedTo;
+            } finally {
+                handles.readLock().unlock();
+            }
         }
 
         @Override
         public int getDepth(ObjectId commitId) {
-            int depth = 0;
-
-            Queue<ObjectId> q = Lists.newLinkedList();
-            NodeData node = getNodeInternal(commitId, true);
-            Iterables.addAll(q, node.outgoing);
-
-            List<ObjectId> next = Lists.newArrayList();
-            while (!q.isEmpty()) {
-                depth++;
-                while (!q.isEmpty()) {
-                    ObjectId n = q.poll();
-                    NodeData parentNode = getNodeInternal(n, true);
-                    List<ObjectId> parents = Lists.newArrayList(parentNode.outgoing);
-                    if (parents.size() == 0) {
-                        return depth;
+            handles.readLock().lock();
+            try {
+                final NodeData node = getNodeInternal(commitId, true);
+                if (node.depth != NodeData.UNKNOWN) {
+                    return node.depth;
+                }
+                // not computed yet, search the closest root breadth first, visiting each commit
+                // once and stopping at the ancestors whose depth is known
+                final Set<ObjectId> visited = new HashSet<ObjectId>();
+                List<ObjectId> level = new ArrayList<ObjectId>();
+                for (ObjectId parent : node.outgoing) {
+                    if (visited.add(parent)) {
+                        level.add(parent);
                     }
-
-                    Iterables.addAll(next, parents);
                 }
-
-                q.addAll(next);
-                next.clear();
+                int depth = 0;
+                int closest = Integer.MAX_VALUE;
+                while (!level.isEmpty() && depth < closest) {
+                    depth++;
+                    List<ObjectId> next = new ArrayList<ObjectId>();
+                    for (ObjectId id : level) {
+                        NodeData ancestor = getNodeInternal(id, true);
+                        if (ancestor.depth != NodeData.UNKNOWN) {
+                            closest = Math.min(closest, depth + ancestor.depth);
+                        } else if (ancestor.outgoing.isEmpty()) {
+                            return depth;
+                        } else {
+                            for (ObjectId parent : ancestor.outgoing) {
+                                if (visited.add(parent)) {
+                                    next.add(parent);
+                                }
+                            }
+                        }
+                    }
+                    level = next;
+                }
+                return closest == Integer.MAX_VALUE ? depth : closest;
+            } finally {
+                handles.readLock().unlock();
             }
+        }
 
-            return depth;
+        /**
+         * @see JEGraphDatabase#getGeneration
+         */
+        public int getGeneration(ObjectId commitId) {
+            handles.readLock().lock();
+            try {
+                final NodeData node = getNodeInternal(commitId, true);
+                if (node.generation != NodeData.UNKNOWN) {
+                    return node.generation;
+                }
+                // not computed yet, compute it from the ancestors depth first
+                final Map<ObjectId, Integer> known = new HashMap<ObjectId, Integer>();
+                final Deque<NodeData> stack = new ArrayDeque<NodeData>();
+                stack.push(node);
+                while (!stack.isEmpty()) {
+                    final NodeData top = stack.peek();
+                    NodeData pending = null;
+                    int generation = 0;
+                    for (ObjectId parentId : top.outgoing) {
+                        Integer parentGeneration = known.get(parentId);
+                        if (parentGeneration == null) {
+                            NodeData parent = getNodeInternal(parentId, true);
+                            if (parent.generation == NodeData.UNKNOWN) {
+                                pending = parent;
+                                break;
+                            }
+                            parentGeneration = Integer.valueOf(parent.generation);
+                            known.put(parentId, parentGeneration);
+                        }
+                        generation = Math.max(generation, parentGeneration.intValue() + 1);
+                    }
+                    if (pending == null) {
+                        stack.pop();
+                        known.put(top.id, Integer.valueOf(generation));
+                    } else {
+                        stack.push(pending);
+                    }
+                }
+                return known.get(commitId).intValue();
+            } finally {
+                handles.readLock().unlock();
+            }
         }
 
         @Override
         public void setProperty(ObjectId commitId, String propertyName, String propertyValue) {
             NodeData node = getNodeInternal(commitId, true);
             node.properties.put(propertyName, propertyValue);
+            final boolean staleCommitGraph = inCommitGraph(commitId);
             final Transaction transaction = newTransaction();
             try {
+                if (staleCommitGraph) {
+                    discardCommitGraph(transaction);
+                }
                 putNodeInternal(transaction, commitId, node);
                 commit(transaction);
             } catch (Exception e) {
                 abort(transaction);
                 throw Throwables.propagate(e);
             }
+            if (staleCommitGraph) {
+                deleteCommitGraph();
+            }
         }
 
         private class JEGraphNode extends GraphNode {
-            NodeData node;
+            final NodeData node;
 
-            List<GraphEdge> edges;
+            /**
+             * Loaded on demand, each direction separately
+             */
+            @Nullable
+            private List<GraphEdge> in, out;
 
             public JEGraphNode(NodeData node) {
                 this.node = node;
-                this.edges = null;
             }
 
             @Override
@@ -458,39 +2427,58 @@ abstract class JEGraphDatabase extends SynchronizedGraphDatabase {
 
             @Override
             public Iterator<GraphEdge> getEdges(final Direction direction) {
-                if (edges == null) {
-                    edges = new LinkedList<GraphEdge>();
-                    Iterator<ObjectId> nodeEdges = node.incoming.iterator();
-                    while (nodeEdges.hasNext()) {
-                        ObjectId otherNode = nodeEdges.next();
-                        edges.add(new GraphEdge(new JEGraphNode(getNodeInternal(otherNode, true)),
-                                this));
-                    }
+                switch (direction) {
+                case IN:
+                    return in().iterator();
+                case OUT:
+                    return out().iterator();
+                default:
+                    return Iterators.concat(in().iterator(), out().iterator());
+                }
+            }
 
-                    nodeEdges = node.outgoing.iterator();
-                    while (nodeEdges.hasNext()) {
-                        ObjectId otherNode = nodeEdges.next();
-                        edges.add(new GraphEdge(this,
-                                new JEGraphNode(getNodeInternal(otherNode, true))));
+            private List<GraphEdge> in() {
+                handles.readLock().lock();
+                try {
+                    if (in == null) {
+                        final List<ObjectId> children = ImmutableList.copyOf(children(node));
+                        final Map<ObjectId, NodeData> nodes = getNodesInternal(children);
+                        List<GraphEdge> edges = new ArrayList<GraphEdge>(children.size());
+                        for (ObjectId id : children) {
+                            // missing if a concurrent put stored this node but not yet its child
+                            NodeData child = nodes.get(id);
+                            if (child != null) {
+                                edges.add(new GraphEdge(new JEGraphNode(child), this));
+                            }
+                        }
+                        in = edges;
                     }
+                    return in;
+                } finally {
+                    handles.readLock().unlock();
                 }
+            }
 
-                final GraphNode myNode = this;
-
-                return Iterators.filter(edges.iterator(), new Predicate<GraphEdge>() {
-                    @Override
-                    public boolean apply(GraphEdge input) {
-                        switch (direction) {
-                        case OUT:
-                            return input.getFromNode() == myNode;
-                        case IN:
-                            return input.getToNode() == myNode;
-                        default:
-                            break;
+            private List<GraphEdge> out() {
+                handles.readLock().lock();
+                try {
+                    if (out == null) {
+                        final Map<ObjectId, NodeData> nodes = getNodesInternal(node.outgoing);
+                        List<GraphEdge> edges = new ArrayList<GraphEdge>(node.outgoing.size());
+                        for (ObjectId id : node.outgoing) {
+                            NodeData parent = nodes.get(id);
+                            if (parent == null) {
+                                throw new IllegalArgumentException("Graph Object does not exist: "
+                                        + id + " at " + env.getHome().getAbsolutePath());
+                            }
+                            edges.add(new GraphEdge(this, new JEGraphNode(parent)));
                         }
-                        return true;
+                        out = edges;
                     }
-                });
+                    return out;
+                } finally {
+                    handles.readLock().unlock();
+                }
             }
 
             @Override
@@ -502,21 +2490,70 @@ abstract class JEGraphDatabase extends SynchronizedGraphDatabase {
 
         @Override
         public GraphNode getNode(ObjectId id) {
-            return new JEGraphNode(getNodeInternal(id, true));
+            handles.readLock().lock();
+            try {
+                return new JEGraphNode(getNodeInternal(id, true));
+            } finally {
+                handles.readLock().unlock();
+            }
         }
 
         @Override
         public void truncate() {
+            reset();
+        }
+
+        /**
+         * Empties the graph and reopens it
+         */
+        private void reset() {
+            handles.writeLock().lock();
             try {
+                final Database graphDb = db();
                 final Environment env = this.env;
+                discardCommitGraph(null);
+                deleteCommitGraph();
                 graphDb.close();
                 env.truncateDatabase(null, databaseName, false);
-                this.env = null;
-                this.graphDb = null;
-                open();
+                if (edges != null) {
+                    edges.getDatabase().close();
+                    env.truncateDatabase(null, GraphEdges.DATABASE_NAME, false);
+                }
+                reopen(env);
             } catch (Exception e) {
                 throw Throwables.propagate(e);
+            } finally {
+                handles.writeLock().unlock();
+            }
+        }
+
+        /**
+         * Closes the metadata database and {@code env}, the graph and edges databases being closed
+         * already, and opens the graph again; open() acquires a quota, stats sampler and
+         * environment handle of its own. Shall be called holding the write lock of
+         * {@link #handles}.
+         */
+        private void reopen(final Environment env) {
+            if (metadataDb != null) {
+                metadataDb.close();
+                metadataDb = null;
+            }
+            this.edges = null;
+            this.adjacency = null;
+            this.reachability = null;
+            this.parentChanges++;
+            if (statsSampler != null) {
+                statsSampler.stop();
+                statsSampler = null;
+            }
+            if (cacheQuota != null) {
+                cacheQuota.release();
+                cacheQuota = null;
             }
+            this.graphDb = null;
+            this.env = null;
+            env.close();
+            open();
         }
     }
 }
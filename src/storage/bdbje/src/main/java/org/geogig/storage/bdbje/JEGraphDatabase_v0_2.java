@@ -19,7 +19,6 @@ import org.locationtech.geogig.model.ObjectId;
 import org.locationtech.geogig.repository.Hints;
 import org.locationtech.geogig.storage.ConfigDatabase;
 import org.locationtech.geogig.storage.GraphDatabase;
-import org.locationtech.geogig.storage.SynchronizedGraphDatabase;
 
 import com.google.common.base.Preconditions;
 import com.google.inject.Inject;
@@ -30,10 +29,7 @@ import com.sleepycat.bind.tuple.TupleOutput;
 /**
  * Implementation of {@link GraphDatabase} backed by a BerkeleyDB Java Edition database.
  * <p>
- * Implementation note: Since this is the only kind of mutable state we maintain, this
- * implementation extends {@link SynchronizedGraphDatabase} to avoid concurrent threads stepping
- * over each other's feet and overriding graph relations. An alternate solution would be to
- * serialize writes and have free threaded reads.
+ * Writes are serialized and reads are free threaded, see {@link JEGraphDatabase}.
  * </p>
  */
 public class JEGraphDatabase_v0_2 extends JEGraphDatabase {
@@ -45,7 +41,7 @@ public class JEGraphDatabase_v0_2 extends JEGraphDatabase {
         super(config, envProvider, BINDING_V2, "0.2", hints);
     }
 
-    private static class GraphNodeBinding extends TupleBinding<NodeData> {
+    static class GraphNodeBinding extends TupleBinding<NodeData> {
 
         private static final ObjectIdBinding OID = new ObjectIdBinding();
 
@@ -55,6 +51,10 @@ public class JEGraphDatabase_v0_2 extends JEGraphDatabase {
 
         @Override
         public NodeData entryToObject(TupleInput input) {
+            if (JEGraphDatabase_v0_3.isV3(input)) {
+                // converted by UpgradeGraphOp
+                return JEGraphDatabase_v0_3.BINDING_V3.entryToObject(input);
+            }
             ObjectId id = OID.entryToObject(input);
             ObjectId mappedTo = OID.entryToObject(input);
             List<ObjectId> outgoing = OIDLIST.entryToObject(input);
@@ -62,6 +62,11 @@ public class JEGraphDatabase_v0_2 extends JEGraphDatabase {
             Map<String, String> properties = PROPS.entryToObject(input);
 
             NodeData nodeData = new NodeData(id, mappedTo, outgoing, incoming, properties);
+            // optional trailing fields, ignored by versions that don't know them
+            if (input.available() > 0) {
+                nodeData.depth = input.readPackedInt();
+                nodeData.generation = input.readPackedInt();
+            }
             return nodeData;
         }
 
@@ -72,6 +77,10 @@ public class JEGraphDatabase_v0_2 extends JEGraphDatabase {
             OIDLIST.objectToEntry(node.outgoing, output);
             OIDLIST.objectToEntry(node.incoming, output);
             PROPS.objectToEntry(node.properties, output);
+            if (node.depth != NodeData.UNKNOWN && node.generation != NodeData.UNKNOWN) {
+                output.writePackedInt(node.depth);
+                output.writePackedInt(node.generation);
+            }
         }
 
         private static class ObjectIdBinding extends TupleBinding<ObjectId> {
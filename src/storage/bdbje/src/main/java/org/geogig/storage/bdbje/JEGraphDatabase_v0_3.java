@@ -0,0 +1,174 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.locationtech.geogig.model.ObjectId;
+import org.locationtech.geogig.repository.Hints;
+import org.locationtech.geogig.storage.ConfigDatabase;
+import org.locationtech.geogig.storage.GraphDatabase;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Inject;
+import com.sleepycat.bind.tuple.TupleBinding;
+import com.sleepycat.bind.tuple.TupleInput;
+import com.sleepycat.bind.tuple.TupleOutput;
+
+/**
+ * Implementation of {@link GraphDatabase} backed by a BerkeleyDB Java Edition database, storing
+ * nodes in the compact v0.3 format.
+ * <p>
+ * Writes are serialized and reads are free threaded, see {@link JEGraphDatabase}.
+ * <p>
+ * Node records are:
+ *
+ * <pre>
+ * {@code
+ * byte          format version, 3
+ * byte          flags: 1 if mapped, 2 if depth and generation follow the properties
+ * byte[20]      the id the node is mapped to, if mapped
+ * packed int    number of parents, followed by their 20 byte ids
+ * packed int    number of children, followed by their 20 byte ids
+ * packed int    number of properties, followed by each key and value. Keys are a packed int,
+ *               the index of the key in the dictionary plus one, or 0 followed by the key string
+ * packed int    depth and generation, if flagged
+ * }
+ * </pre>
+ *
+ * The node id is the record key and not repeated. Ids are decoded lazily by
+ * {@link RawObjectIdList}.
+ * <p>
+ * v0.1 and v0.2 records start with the length of the node id, 20, so all the bindings tell the
+ * formats apart by the first byte and read both, letting {@link UpgradeGraphOp} convert the
+ * records of a repository in use.
+ * </p>
+ */
+public class JEGraphDatabase_v0_3 extends JEGraphDatabase {
+
+    static final TupleBinding<NodeData> BINDING_V3 = new GraphNodeBinding();
+
+    @Inject
+    public JEGraphDatabase_v0_3(final ConfigDatabase config, final EnvironmentBuilder envProvider,
+            final Hints hints) {
+        super(config, envProvider, BINDING_V3, "0.3", hints);
+    }
+
+    /**
+     * @return whether the record in {@code input} is in the v0.3 format, without consuming it
+     */
+    static boolean isV3(final TupleInput input) {
+        return input.available() > 0
+                && input.getBufferBytes()[input.getBufferOffset()] == GraphNodeBinding.VERSION;
+    }
+
+    static class GraphNodeBinding extends TupleBinding<NodeData> {
+
+        static final byte VERSION = 3;
+
+        private static final int MAPPED = 1;
+
+        private static final int GENERATIONS = 2;
+
+        /**
+         * Property keys coded by their index, only to be appended to
+         */
+        private static final ImmutableList<String> KEYS = ImmutableList
+                .of(GraphDatabase.SPARSE_FLAG);
+
+        /**
+         * Reads v0.1 and v0.2 records, which share their format
+         */
+        private final TupleBinding<NodeData> legacy = new JEGraphDatabase_v0_2.GraphNodeBinding();
+
+        @Override
+        public NodeData entryToObject(TupleInput input) {
+            if (!isV3(input)) {
+                return legacy.entryToObject(input);
+            }
+            Preconditions.checkState(VERSION == input.readUnsignedByte());
+            final int flags = input.readUnsignedByte();
+            ObjectId mappedTo = ObjectId.NULL;
+            if ((flags & MAPPED) != 0) {
+                mappedTo = ObjectId.createNoClone(readBytes(input, ObjectId.NUM_BYTES));
+            }
+            final byte[] buffer = input.getBufferBytes();
+            List<ObjectId> outgoing = readIds(input, buffer);
+            List<ObjectId> incoming = readIds(input, buffer);
+
+            final int propertyCount = input.readPackedInt();
+            Map<String, String> properties = new HashMap<String, String>(
+                    Math.max(2, propertyCount * 2));
+            for (int i = 0; i < propertyCount; i++) {
+                final int code = input.readPackedInt();
+                final String key = code == 0 ? input.readString() : KEYS.get(code - 1);
+                properties.put(key, input.readString());
+            }
+
+            // the node id is the record key, set by JEGraphDatabase
+            NodeData node = new NodeData(null, mappedTo, outgoing, incoming, properties);
+            if ((flags & GENERATIONS) != 0) {
+                node.depth = input.readPackedInt();
+                node.generation = input.readPackedInt();
+            }
+            return node;
+        }
+
+        private static byte[] readBytes(TupleInput input, int length) {
+            byte[] bytes = new byte[length];
+            Preconditions.checkState(length == input.read(bytes));
+            return bytes;
+        }
+
+        /**
+         * @return the ids backed by {@code buffer}, which is not reused since every read gets a
+         *         new {@link com.sleepycat.je.DatabaseEntry}
+         */
+        private static List<ObjectId> readIds(TupleInput input, byte[] buffer) {
+            final int count = input.readPackedInt();
+            final int offset = input.getBufferOffset();
+            input.skipFast(count * ObjectId.NUM_BYTES);
+            return new RawObjectIdList(buffer, offset, count);
+        }
+
+        @Override
+        public void objectToEntry(NodeData node, TupleOutput output) {
+            final boolean mapped = node.mappedTo != null && !node.mappedTo.isNull();
+            final boolean generations = node.depth != NodeData.UNKNOWN
+                    && node.generation != NodeData.UNKNOWN;
+            output.writeUnsignedByte(VERSION);
+            output.writeUnsignedByte((mapped ? MAPPED : 0) | (generations ? GENERATIONS : 0));
+            if (mapped) {
+                output.write(node.mappedTo.getRawValue());
+            }
+            output.writePackedInt(node.outgoing.size());
+            RawObjectIdList.write(node.outgoing, output);
+            output.writePackedInt(node.incoming.size());
+            RawObjectIdList.write(node.incoming, output);
+
+            output.writePackedInt(node.properties.size());
+            for (Map.Entry<String, String> e : node.properties.entrySet()) {
+                final int index = KEYS.indexOf(e.getKey());
+                output.writePackedInt(index + 1);
+                if (index == -1) {
+                    output.writeString(e.getKey());
+                }
+                output.writeString(e.getValue());
+            }
+            if (generations) {
+                output.writePackedInt(node.depth);
+                output.writePackedInt(node.generation);
+            }
+        }
+    }
+}
@@ -25,22 +25,32 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.eclipse.jdt.annotation.Nullable;
 import org.locationtech.geogig.model.ObjectId;
+import org.locationtech.geogig.model.RevCommit;
 import org.locationtech.geogig.model.RevObject;
+import org.locationtech.geogig.model.RevObject.TYPE;
+import org.locationtech.geogig.repository.ProgressListener;
 import org.locationtech.geogig.storage.AbstractObjectDatabase;
 import org.locationtech.geogig.storage.BlobStore;
 import org.locationtech.geogig.storage.BulkOpListener;
 import org.locationtech.geogig.storage.ConfigDatabase;
+import org.locationtech.geogig.storage.ConflictsDatabase;
 import org.locationtech.geogig.storage.ObjectDatabase;
 import org.locationtech.geogig.storage.ObjectSerializingFactory;
 import org.locationtech.geogig.storage.fs.FileBlobStore;
@@ -48,27 +58,35 @@ import org.locationtech.geogig.storage.fs.FileConflictsDatabase;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
 import com.google.common.base.Throwables;
 import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.UnmodifiableIterator;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sleepycat.je.BtreeStats;
 import com.sleepycat.je.CacheMode;
 import com.sleepycat.je.Cursor;
 import com.sleepycat.je.CursorConfig;
 import com.sleepycat.je.Database;
 import com.sleepycat.je.DatabaseConfig;
 import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.DiskOrderedCursor;
+import com.sleepycat.je.DiskOrderedCursorConfig;
 import com.sleepycat.je.Durability;
 import com.sleepycat.je.Environment;
 import com.sleepycat.je.EnvironmentLockedException;
+import com.sleepycat.je.EnvironmentStats;
 import com.sleepycat.je.LockMode;
 import com.sleepycat.je.OperationStatus;
+import com.sleepycat.je.StatsConfig;
 import com.sleepycat.je.Transaction;
 import com.sleepycat.je.TransactionConfig;
 
@@ -84,11 +102,57 @@ abstract class JEObjectDatabase extends AbstractObjectDatabase implements Object
 
     private static final int SYNC_BYTES_LIMIT = 512 * 1024 * 1024;
 
+    /**
+     * Number of objects per task handed to the decoders by {@link #readCommitParents}
+     */
+    private static final int SCAN_BATCH_SIZE = 1000;
+
+    /**
+     * Number of objects between progress updates of the full database scans
+     */
+    static final int SCAN_PROGRESS_STEP = 100 * 1000;
+
+    /**
+     * Longest object header, the {@code featuretype} name and its terminator
+     */
+    private static final int MAX_HEADER_SIZE = 12;
+
+    /**
+     * Object types by header name, for {@link JEObjectDatabase_v0_1 0.1} databases
+     */
+    private static final Map<String, TYPE> V1_HEADERS = ImmutableMap.of("commit", TYPE.COMMIT,
+            "tree", TYPE.TREE, "feature", TYPE.FEATURE, "featuretype", TYPE.FEATURETYPE, "tag",
+            TYPE.TAG);
+
     @Nullable
     private ExecutorService dbSyncService;
 
     private ExecutorService writerService;
 
+    @Nullable
+    private EnvironmentStatsSampler statsSampler;
+
+    @Nullable
+    private CacheQuota cacheQuota;
+
+    private final OperationStats operationStats = new OperationStats();
+
+    private final OperationStats.Op existsOp = operationStats.op("exists");
+
+    private final OperationStats.Op getRawOp = operationStats.op("getRaw");
+
+    private final OperationStats.Op getAllOp = operationStats.op("getAll");
+
+    private final OperationStats.Op lookUpOp = operationStats.op("lookUp");
+
+    private final OperationStats.Op putOp = operationStats.op("put");
+
+    private final OperationStats.Op putAllOp = operationStats.op("putAll");
+
+    private final OperationStats.Op deleteOp = operationStats.op("delete");
+
+    private final OperationStats.Op deleteAllOp = operationStats.op("deleteAll");
+
     /**
      * The default number of objects bulk operations are partitioned into
      * 
@@ -102,6 +166,34 @@ abstract class JEObjectDatabase extends AbstractObjectDatabase implements Object
 
     private static final String OBJECT_DURABILITY_CONFIG_KEY = "bdbje.object_durability";
 
+    /**
+     * Size in bytes of the {@link WriteBuffer write buffer}, absent or {@code 0} meaning single
+     * object inserts go straight to JE
+     */
+    private static final String WRITEBUFFER_SIZE_CONFIG_KEY = "bdbje.writebuffer.size";
+
+    /**
+     * Milliseconds after which a non empty write buffer is flushed regardless of its size
+     */
+    private static final String WRITEBUFFER_FLUSH_INTERVAL_CONFIG_KEY = "bdbje.writebuffer.flush_interval";
+
+    /**
+     * Durability of the buffered objects, one of {@code none}, {@code async}, or {@code sync}
+     * 
+     * @see WriteBuffer.WalMode
+     */
+    private static final String WRITEBUFFER_WAL_CONFIG_KEY = "bdbje.writebuffer.wal";
+
+    private static final long DEFAULT_WRITEBUFFER_FLUSH_INTERVAL = 1000;
+
+    /**
+     * If {@code true}, the object database is open non transactional and with deferred writes
+     * for maximum import throughput, recording the last durable batch in a {@link StagingMarker}
+     * 
+     * @see #commitBatch(long)
+     */
+    private static final String BULK_STAGING_CONFIG_KEY = "bdbje.bulk_staging";
+
     private EnvironmentBuilder envProvider;
 
     /**
@@ -111,33 +203,65 @@ abstract class JEObjectDatabase extends AbstractObjectDatabase implements Object
 
     protected Database objectDb;
 
+    /**
+     * Background open started by {@link #open()}, {@code null} if closed
+     */
+    @Nullable
+    private volatile Future<Void> openTask;
+
+    /**
+     * Whether {@link #openTask} finished successfully, once set all fields it initializes are
+     * visible to any thread
+     */
+    private volatile boolean opened;
+
     protected final ConfigDatabase configDB;
 
     private final boolean readOnly;
 
     private final String envName;
 
-    private final FileConflictsDatabase conflicts;
+    private final File geoGigDirectory;
+
+    private JEConflictsDatabase conflicts;
+
+    private JEBlobStore blobStore;
+
+    /**
+     * Blob store used before blobs were kept in the JE environment, {@link JEBlobStore} falls
+     * back to it for blobs it doesn't have
+     */
+    private FileBlobStore legacyBlobStore;
+
+    @Nullable
+    private WriteBuffer writeBuffer;
+
+    /**
+     * Non null only in bulk staging mode
+     */
+    @Nullable
+    private StagingMarker stagingMarker;
 
-    private final FileBlobStore blobStore;
+    /**
+     * Last batch reported through {@link #commitBatch(long)}, {@code -1} if none
+     */
+    private final AtomicLong lastCommittedBatch = new AtomicLong(-1);
 
     public JEObjectDatabase(final ObjectSerializingFactory serialization,
             final ConfigDatabase configDB, final EnvironmentBuilder envProvider,
             final boolean readOnly, final String envName) {
         super(serialization);
         this.configDB = configDB;
-        this.envProvider = envProvider;
+        this.envProvider = envProvider.setConfigDatabase(configDB);
         this.readOnly = readOnly;
         this.envName = envName;
-        File geoGigDirectory = envProvider.getGeoGigDirectory();
-        this.conflicts = new FileConflictsDatabase(geoGigDirectory);
-        this.blobStore = new FileBlobStore(geoGigDirectory);
+        this.geoGigDirectory = envProvider.getGeoGigDirectory();
     }
 
     /**
      * @return creates and returns the environment
      */
-    private synchronized Environment createEnvironment(boolean readOnly)
+    private Environment createEnvironment(boolean readOnly)
             throws com.sleepycat.je.EnvironmentLockedException {
 
         Environment env = envProvider.setRelativePath(this.envName).setReadOnly(readOnly).get();
@@ -152,7 +276,16 @@ abstract class JEObjectDatabase extends AbstractObjectDatabase implements Object
 
     @Override
     public synchronized void close() {
+        if (openTask != null && !opened) {
+            try {
+                awaitOpen();
+            } catch (RuntimeException e) {
+                LOGGER.debug("Closing object database that failed to open", e);
+            }
+        }
         if (env == null) {
+            openTask = null;
+            opened = false;
             LOGGER.trace("Database already closed.");
             return;
         }
@@ -160,17 +293,33 @@ abstract class JEObjectDatabase extends AbstractObjectDatabase implements Object
         final File envHome = env.getHome();
         try {
             LOGGER.debug("Closing object database at {}", envHome);
+            if (statsSampler != null) {
+                statsSampler.stop();
+                statsSampler = null;
+            }
+            if (writeBuffer != null) {
+                writeBuffer.close();
+                writeBuffer = null;
+            }
             if (writerService != null) {
                 writerService.shutdown();
                 waitForServiceShutDown(writerService);
             }
+            if (dbSyncService != null) {
+                dbSyncService.shutdown();
+                waitForServiceShutDown(dbSyncService);
+            }
+            if (stagingMarker != null) {
+                syncStaging();
+                stagingMarker = null;
+            }
             if (objectDb != null) {
                 objectDb.close();
                 objectDb = null;
             }
-            if (dbSyncService != null) {
-                dbSyncService.shutdown();
-                waitForServiceShutDown(dbSyncService);
+            if (cacheQuota != null) {
+                cacheQuota.release();
+                cacheQuota = null;
             }
             LOGGER.trace("ObjectDatabase closed. Closing environment...");
             if (!readOnly) {
@@ -178,10 +327,22 @@ abstract class JEObjectDatabase extends AbstractObjectDatabase implements Object
                 env.cleanLog();
             }
         } finally {
-            conflicts.close();
-            blobStore.close();
+            if (conflicts != null) {
+                conflicts.close();
+                conflicts = null;
+            }
+            if (blobStore != null) {
+                blobStore.close();
+                blobStore = null;
+            }
+            if (legacyBlobStore != null) {
+                legacyBlobStore.close();
+                legacyBlobStore = null;
+            }
             env.close();
             env = null;
+            openTask = null;
+            opened = false;
         }
         LOGGER.debug("Database {} closed.", envHome);
     }
@@ -198,16 +359,52 @@ abstract class JEObjectDatabase extends AbstractObjectDatabase implements Object
 
     @Override
     public boolean isOpen() {
-        return objectDb != null;
+        return openTask != null;
     }
 
+    /**
+     * Starts opening the database in the background and returns immediately, so that the
+     * repository's independent environments (e.g. objects and graph) open in parallel. Any
+     * operation waits for the open to finish, and fails if it failed.
+     */
     @Override
     public synchronized void open() {
         if (isOpen()) {
-            LOGGER.trace("Environment {} already open", env.getHome());
+            LOGGER.trace("Environment {} already open", envName);
+            return;
+        }
+        openTask = EnvironmentBuilder.STARTUP_EXECUTOR.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                openInternal();
+                return null;
+            }
+        });
+    }
+
+    private synchronized void awaitOpen() {
+        Preconditions.checkState(openTask != null, "Database is closed");
+        if (opened) {
             return;
         }
+        try {
+            openTask.get();
+        } catch (InterruptedException e) {
+            throw Throwables.propagate(e);
+        } catch (ExecutionException e) {
+            openTask = null;
+            throw Throwables.propagate(e.getCause());
+        }
+        opened = true;
+    }
+
+    private void openInternal() {
+        final Stopwatch sw = Stopwatch.createStarted();
         this.objectDb = createDatabase();
+        if (isBulkStaging()) {
+            this.stagingMarker = new StagingMarker(env.getHome());
+            this.lastCommittedBatch.set(stagingMarker.getLastSyncedBatch().or(-1L).longValue());
+        }
 
         int nWriterThreads = 1;
         writerService = Executors.newFixedThreadPool(nWriterThreads, new ThreadFactoryBuilder()
@@ -216,20 +413,130 @@ abstract class JEObjectDatabase extends AbstractObjectDatabase implements Object
             dbSyncService = Executors.newFixedThreadPool(nWriterThreads, new ThreadFactoryBuilder()
                     .setNameFormat("BDBJE-" + env.getHome().getName() + "-SYNC-THREAD-%d").build());
         }
-        this.conflicts.open();
-        this.blobStore.open();
-        LOGGER.debug("Object database opened at {}. Transactional: {}", env.getHome(),
-                objectDb.getConfig().getTransactional());
+        this.writeBuffer = createWriteBuffer();
+        this.statsSampler = EnvironmentStatsSampler.start(env, configDB);
+        LOGGER.debug("Object database opened at {} in {}. Transactional: {}", env.getHome(),
+                sw.stop(), objectDb.getConfig().getTransactional());
+    }
+
+    /**
+     * Moves the conflicts of a repository created before conflicts were stored in the JE
+     * environment from the {@link FileConflictsDatabase} to the {@link JEConflictsDatabase}, for
+     * the default namespace and the one of each transaction in progress.
+     */
+    private void importLegacyConflicts() {
+        if (readOnly) {
+            return;
+        }
+        FileConflictsDatabase legacy = new FileConflictsDatabase(geoGigDirectory);
+        legacy.open();
+        try {
+            conflicts.importFrom(legacy, legacyTransactionIds());
+        } finally {
+            legacy.close();
+        }
+    }
+
+    /**
+     * @return the ids of the transactions in progress, which name their conflicts namespace, as
+     *         found in the {@code transactions/<id>} ref namespaces of the repository directory
+     */
+    private List<String> legacyTransactionIds() {
+        List<String> ids = new ArrayList<String>();
+        File[] transactions = new File(geoGigDirectory, "transactions").listFiles();
+        if (transactions != null) {
+            for (File transaction : transactions) {
+                if (transaction.isDirectory()) {
+                    ids.add(transaction.getName());
+                }
+            }
+        }
+        return ids;
+    }
+
+    @Nullable
+    private WriteBuffer createWriteBuffer() {
+        final long size = getConfig(WRITEBUFFER_SIZE_CONFIG_KEY, Long.class).or(0L).longValue();
+        if (readOnly || size <= 0) {
+            return null;
+        }
+        final long flushInterval = getConfig(WRITEBUFFER_FLUSH_INTERVAL_CONFIG_KEY, Long.class)
+                .or(DEFAULT_WRITEBUFFER_FLUSH_INTERVAL).longValue();
+        final WriteBuffer.WalMode walMode = WriteBuffer.WalMode.valueOf(
+                getConfig(WRITEBUFFER_WAL_CONFIG_KEY, String.class).or("none").toUpperCase());
 
+        WriteBuffer buffer = new WriteBuffer(env.getHome(), walMode, size, flushInterval,
+                new WriteBuffer.Flusher() {
+                    @Override
+                    public void write(SortedMap<ObjectId, byte[]> sorted, boolean durable) {
+                        writeBuffered(sorted, durable);
+                    }
+
+                    @Override
+                    public boolean exists(ObjectId id) {
+                        return existsJE(id);
+                    }
+                });
+        buffer.open();
+        LOGGER.debug("Write buffer enabled for {}: {} bytes, flush interval {}ms, wal {}",
+                env.getHome(), size, flushInterval, walMode);
+        return buffer;
     }
 
+    /**
+     * Writes a batch of objects flushed from the {@link WriteBuffer} in a single transaction
+     */
+    private void writeBuffered(final SortedMap<ObjectId, byte[]> sorted, final boolean durable) {
+        final Transaction transaction = newTransaction();
+        try {
+            DatabaseEntry key = new DatabaseEntry(new byte[ObjectId.NUM_BYTES]);
+            for (Map.Entry<ObjectId, byte[]> e : sorted.entrySet()) {
+                e.getKey().getRawValue(key.getData());
+                objectDb.putNoOverwrite(transaction, key, new DatabaseEntry(e.getValue()));
+            }
+            if (transaction != null) {
+                // don't use commit(), a failure here must not let the write-ahead log be discarded
+                transaction.commit();
+            }
+        } catch (RuntimeException e) {
+            abort(transaction);
+            throw e;
+        }
+        if (durable) {
+            if (transaction == null) {
+                objectDb.sync();
+            } else {
+                env.flushLog(true);
+            }
+        }
+    }
+
+    /**
+     * The conflicts database is open on first use, since most commands don't need it
+     */
     @Override
-    public FileConflictsDatabase getConflictsDatabase() {
+    public synchronized ConflictsDatabase getConflictsDatabase() {
+        checkOpen();
+        if (conflicts == null) {
+            conflicts = new JEConflictsDatabase(env, readOnly);
+            conflicts.open();
+            importLegacyConflicts();
+        }
         return conflicts;
     }
 
+    /**
+     * The blob store is open on first use, since most commands don't need it
+     */
     @Override
-    public BlobStore getBlobStore() {
+    public synchronized BlobStore getBlobStore() {
+        checkOpen();
+        if (blobStore == null) {
+            legacyBlobStore = new FileBlobStore(geoGigDirectory);
+            legacyBlobStore.open();
+            blobStore = new JEBlobStore(env, readOnly, getDurability(), legacyBlobStore);
+            blobStore.open();
+        }
         return blobStore;
     }
 
@@ -244,16 +551,16 @@ abstract class JEObjectDatabase extends AbstractObjectDatabase implements Object
                     "The repository is already open by another process for writing", e);
         }
 
-        if (!environment.getDatabaseNames().contains(databaseName)) {
-            if (readOnly) {
-                environment.close();
-                try {
-                    environment = createEnvironment(false);
-                } catch (EnvironmentLockedException e) {
-                    throw new IllegalStateException(String.format(
-                            "Environment open readonly but database %s does not exist.",
-                            databaseName));
-                }
+        // a read-write environment creates the database when opening it below, only a read only
+        // one needs to be reopen read-write to create it first
+        if (readOnly && !environment.getDatabaseNames().contains(databaseName)) {
+            environment.close();
+            try {
+                environment = createEnvironment(false);
+            } catch (EnvironmentLockedException e) {
+                throw new IllegalStateException(String.format(
+                        "Environment open readonly but database %s does not exist.",
+                        databaseName));
             }
             DatabaseConfig dbConfig = new DatabaseConfig();
             dbConfig.setAllowCreate(true);
@@ -268,17 +575,28 @@ abstract class JEObjectDatabase extends AbstractObjectDatabase implements Object
         try {
             LOGGER.debug("Opening ObjectDatabase at {}", environment.getHome());
 
+            cacheQuota = CacheQuota.acquire(environment, envName, configDB);
             DatabaseConfig dbConfig = new DatabaseConfig();
-            dbConfig.setCacheMode(CacheMode.MAKE_COLD);
+            dbConfig.setCacheMode(CacheMode.DYNAMIC);
+            dbConfig.setCacheModeStrategy(cacheQuota);
             dbConfig.setKeyPrefixing(false);// can result in a slightly smaller db size
 
+            dbConfig.setAllowCreate(!readOnly);
             dbConfig.setReadOnly(readOnly);
-            boolean transactional = environment.getConfig().getTransactional();
+            // the environment config can't be overridden if its je.properties says otherwise,
+            // but the database handle can be open non transactional in a transactional
+            // environment
+            boolean transactional = environment.getConfig().getTransactional()
+                    && !isBulkStaging();
             dbConfig.setTransactional(transactional);
             dbConfig.setDeferredWrite(!transactional);
 
             database = environment.openDatabase(null, databaseName, dbConfig);
         } catch (RuntimeException e) {
+            if (cacheQuota != null) {
+                cacheQuota.release();
+                cacheQuota = null;
+            }
             if (environment != null) {
                 environment.close();
             }
@@ -291,6 +609,15 @@ abstract class JEObjectDatabase extends AbstractObjectDatabase implements Object
 
     @Override
     protected List<ObjectId> lookUpInternal(final byte[] partialId) {
+        final long start = System.nanoTime();
+        try {
+            return lookUpJE(partialId);
+        } finally {
+            lookUpOp.record(start);
+        }
+    }
+
+    private List<ObjectId> lookUpJE(final byte[] partialId) {
         checkOpen();
 
         DatabaseEntry key;
@@ -328,10 +655,21 @@ abstract class JEObjectDatabase extends AbstractObjectDatabase implements Object
             } else {
                 matches = Collections.emptyList();
             }
-            return matches;
         } finally {
             cursor.close();
         }
+        if (writeBuffer != null) {
+            List<ObjectId> buffered = writeBuffer.lookUp(partialId);
+            if (!buffered.isEmpty()) {
+                matches = new ArrayList<ObjectId>(matches);
+                for (ObjectId id : buffered) {
+                    if (!matches.contains(id)) {
+                        matches.add(id);
+                    }
+                }
+            }
+        }
+        return matches;
     }
 
     /**
@@ -339,10 +677,22 @@ abstract class JEObjectDatabase extends AbstractObjectDatabase implements Object
      */
     @Override
     public boolean exists(final ObjectId id) {
+        final long start = System.nanoTime();
+        try {
+            return existsJE(id);
+        } finally {
+            existsOp.record(start);
+        }
+    }
+
+    private boolean existsJE(final ObjectId id) {
         checkOpen();
 
         Preconditions.checkNotNull(id, "argument id is null");
 
+        if (writeBuffer != null && writeBuffer.contains(id)) {
+            return true;
+        }
         DatabaseEntry key = new DatabaseEntry(id.getRawValue());
         DatabaseEntry data = new DatabaseEntry();
         // tell db not to retrieve data
@@ -356,9 +706,24 @@ abstract class JEObjectDatabase extends AbstractObjectDatabase implements Object
 
     @Override
     protected InputStream getRawInternal(final ObjectId id, final boolean failIfNotFound) {
+        final long start = System.nanoTime();
+        try {
+            return getRawJE(id, failIfNotFound);
+        } finally {
+            getRawOp.record(start);
+        }
+    }
+
+    private InputStream getRawJE(final ObjectId id, final boolean failIfNotFound) {
         checkOpen();
 
         Preconditions.checkNotNull(id, "id is null");
+        if (writeBuffer != null) {
+            byte[] buffered = writeBuffer.get(id);
+            if (buffered != null) {
+                return new ByteArrayInputStream(buffered);
+            }
+        }
         DatabaseEntry key = new DatabaseEntry(id.getRawValue());
         DatabaseEntry data = new DatabaseEntry();
 
@@ -387,13 +752,17 @@ abstract class JEObjectDatabase extends AbstractObjectDatabase implements Object
             return;
         }
 
+        final long start = System.nanoTime();
         final int buffSize = 256 * 1024;
         BulkInsert task = new BulkInsert(objects, listener, buffSize);
 
+        int count = 0;
         try {
-            task.run();
+            count = task.run().intValue();
         } catch (Exception e) {
             throw Throwables.propagate(e);
+        } finally {
+            putAllOp.record(start, count);
         }
     }
 
@@ -605,8 +974,12 @@ abstract class JEObjectDatabase extends AbstractObjectDatabase implements Object
                     @Override
                     public void run() {
                         Stopwatch sw = Stopwatch.createStarted();
+                        final long batch = lastCommittedBatch.get();
                         if (objectDb.getConfig().getDeferredWrite()) {
                             objectDb.sync();
+                            if (stagingMarker != null && batch > -1) {
+                                stagingMarker.write(batch);
+                            }
                             env.evictMemory();
                             env.cleanLog();
                             // env.sync();
@@ -623,8 +996,21 @@ abstract class JEObjectDatabase extends AbstractObjectDatabase implements Object
 
     @Override
     protected boolean putInternal(final ObjectId id, final byte[] rawData) {
+        final long start = System.nanoTime();
+        try {
+            return putJE(id, rawData);
+        } finally {
+            putOp.record(start);
+        }
+    }
+
+    private boolean putJE(final ObjectId id, final byte[] rawData) {
         checkWritable();
 
+        if (writeBuffer != null) {
+            return writeBuffer.put(id, rawData);
+        }
+
         final Transaction transaction = newTransaction();
 
         final OperationStatus status;
@@ -653,8 +1039,20 @@ abstract class JEObjectDatabase extends AbstractObjectDatabase implements Object
 
     @Override
     public void delete(final ObjectId id) {
+        final long start = System.nanoTime();
+        try {
+            deleteJE(id);
+        } finally {
+            deleteOp.record(start);
+        }
+    }
+
+    private void deleteJE(final ObjectId id) {
         Preconditions.checkNotNull(id, "argument id is null");
         checkWritable();
+        if (writeBuffer != null && writeBuffer.contains(id)) {
+            writeBuffer.flush();
+        }
         final byte[] rawKey = id.getRawValue();
         final DatabaseEntry key = new DatabaseEntry(rawKey);
 
@@ -694,46 +1092,56 @@ abstract class JEObjectDatabase extends AbstractObjectDatabase implements Object
         Preconditions.checkNotNull(ids, "argument ids is null");
         Preconditions.checkNotNull(listener, "argument listener is null");
         checkWritable();
+        if (writeBuffer != null) {
+            writeBuffer.flush();
+        }
 
+        final long start = System.nanoTime();
+        long count = 0;
         UnmodifiableIterator<List<ObjectId>> partition = partition(ids, getBulkPartitionSize());
 
         final DatabaseEntry data = new DatabaseEntry();
         data.setPartial(0, 0, true);// do not retrieve data
 
-        while (partition.hasNext()) {
-            List<ObjectId> nextIds = Lists.newArrayList(partition.next());
-            Collections.sort(nextIds);
+        try {
+            while (partition.hasNext()) {
+                List<ObjectId> nextIds = Lists.newArrayList(partition.next());
+                Collections.sort(nextIds);
+                count += nextIds.size();
 
-            final Transaction transaction = newTransaction();
+                final Transaction transaction = newTransaction();
 
-            CursorConfig cconfig = new CursorConfig();
-            final Cursor cursor = objectDb.openCursor(transaction, cconfig);
+                CursorConfig cconfig = new CursorConfig();
+                final Cursor cursor = objectDb.openCursor(transaction, cconfig);
 
-            try {
-                DatabaseEntry key = new DatabaseEntry(new byte[ObjectId.NUM_BYTES]);
-                for (ObjectId id : nextIds) {
-                    // copy id to key object without allocating new byte[]
-                    id.getRawValue(key.getData());
-
-                    OperationStatus status = cursor.getSearchKey(key, data, LockMode.DEFAULT);
-                    if (OperationStatus.SUCCESS.equals(status)) {
-                        OperationStatus delete = cursor.delete();
-                        if (OperationStatus.SUCCESS.equals(delete)) {
-                            listener.deleted(id);
+                try {
+                    DatabaseEntry key = new DatabaseEntry(new byte[ObjectId.NUM_BYTES]);
+                    for (ObjectId id : nextIds) {
+                        // copy id to key object without allocating new byte[]
+                        id.getRawValue(key.getData());
+
+                        OperationStatus status = cursor.getSearchKey(key, data, LockMode.DEFAULT);
+                        if (OperationStatus.SUCCESS.equals(status)) {
+                            OperationStatus delete = cursor.delete();
+                            if (OperationStatus.SUCCESS.equals(delete)) {
+                                listener.deleted(id);
+                            } else {
+                                listener.notFound(id);
+                            }
                         } else {
                             listener.notFound(id);
                         }
-                    } else {
-                        listener.notFound(id);
                     }
+                    cursor.close();
+                } catch (Exception e) {
+                    cursor.close();
+                    abort(transaction);
+                    Throwables.propagate(e);
                 }
-                cursor.close();
-            } catch (Exception e) {
-                cursor.close();
-                abort(transaction);
-                Throwables.propagate(e);
+                commit(transaction);
             }
-            commit(transaction);
+        } finally {
+            deleteAllOp.record(start, count);
         }
     }
 
@@ -804,6 +1212,15 @@ abstract class JEObjectDatabase extends AbstractObjectDatabase implements Object
 
         @Override
         protected RevObject computeNext() {
+            final long start = System.nanoTime();
+            RevObject next = nextObject();
+            if (next != null) {
+                getAllOp.record(start);
+            }
+            return next;
+        }
+
+        private RevObject nextObject() {
             if (!sortedIds.hasNext()) {
                 if (unsortedIds.hasNext()) {
                     List<ObjectId> unsorted = unsortedIds.next();
@@ -826,9 +1243,15 @@ abstract class JEObjectDatabase extends AbstractObjectDatabase implements Object
                     key.setData(keyBuff);
 
                     DatabaseEntry data = new DatabaseEntry();
+                    byte[] buffered = writeBuffer == null ? null : writeBuffer.get(id);
                     // lookup data for the next key
                     OperationStatus status;
-                    status = cursor.getSearchKey(key, data, LockMode.READ_UNCOMMITTED);
+                    if (buffered != null) {
+                        data.setData(buffered);
+                        status = SUCCESS;
+                    } else {
+                        status = cursor.getSearchKey(key, data, LockMode.READ_UNCOMMITTED);
+                    }
                     if (SUCCESS.equals(status)) {
                         InputStream rawData = new ByteArrayInputStream(data.getData());
                         found = reader.read(id, rawData);
@@ -843,7 +1266,7 @@ abstract class JEObjectDatabase extends AbstractObjectDatabase implements Object
                     }
                 }
                 if (found == null) {
-                    return computeNext();
+                    return nextObject();
                 }
                 return found;
             } catch (Exception e) {
@@ -870,6 +1293,94 @@ abstract class JEObjectDatabase extends AbstractObjectDatabase implements Object
         }
     }
 
+    private boolean isBulkStaging() {
+        return !readOnly && getConfig(BULK_STAGING_CONFIG_KEY, Boolean.class).or(Boolean.FALSE)
+                .booleanValue();
+    }
+
+    /**
+     * Records that all the objects of the given import batch have been inserted. In bulk staging
+     * mode ({@code bdbje.bulk_staging=true}) the batch id is written to the staging marker the
+     * next time the database is synced to disk, either periodically as the import progresses,
+     * through {@link #syncBatches()}, or at {@link #close()}.
+     * 
+     * @param batchId the caller assigned, increasing, id of the batch just inserted
+     */
+    public void commitBatch(final long batchId) {
+        checkWritable();
+        Preconditions.checkState(stagingMarker != null, "Database is not in bulk staging mode");
+        Preconditions.checkArgument(batchId > lastCommittedBatch.get(),
+                "Batch ids shall increase, got %s after %s", batchId, lastCommittedBatch.get());
+        lastCommittedBatch.set(batchId);
+    }
+
+    /**
+     * Syncs the deferred writes of a bulk staging import to disk and records the last
+     * {@link #commitBatch(long) committed batch} as durable.
+     */
+    public void syncBatches() {
+        checkOpen();
+        Preconditions.checkState(stagingMarker != null, "Database is not in bulk staging mode");
+        if (writeBuffer != null) {
+            writeBuffer.flush();
+        }
+        syncStaging();
+    }
+
+    private void syncStaging() {
+        final long batch = lastCommittedBatch.get();
+        synchronized (bytesWritten) {
+            objectDb.sync();
+            bytesWritten.set(0);
+        }
+        if (batch > -1) {
+            stagingMarker.write(batch);
+        }
+    }
+
+    /**
+     * @return the last batch of a bulk staging import known to be durable, from which an
+     *         interrupted import can resume, or absent if none or not in bulk staging mode
+     */
+    public Optional<Long> getLastSyncedBatch() {
+        checkOpen();
+        if (stagingMarker == null) {
+            return Optional.absent();
+        }
+        return stagingMarker.getLastSyncedBatch();
+    }
+
+    /**
+     * Discards the staging marker once a bulk staging import is complete
+     */
+    public void clearSyncedBatches() {
+        checkWritable();
+        if (stagingMarker != null) {
+            stagingMarker.clear();
+            lastCommittedBatch.set(-1);
+        }
+    }
+
+    /**
+     * @return the latency and throughput figures of this database's operations since it was
+     *         created or the stats reset
+     */
+    public OperationStats getOperationStats() {
+        return operationStats;
+    }
+
+    /**
+     * @return the database's environment, once buffered writes are flushed to it, for
+     *         {@link JEBackup} to copy its log files
+     */
+    Environment getEnvironment() {
+        checkOpen();
+        if (writeBuffer != null) {
+            writeBuffer.flush();
+        }
+        return env;
+    }
+
     private int getBulkPartitionSize() {
         Optional<Integer> configuredSize = configDB.get(BULK_PARTITIONING_CONFIG_KEY,
                 Integer.class);
@@ -882,26 +1393,37 @@ abstract class JEObjectDatabase extends AbstractObjectDatabase implements Object
         if (transactional) {
             TransactionConfig txConfig = new TransactionConfig();
             txConfig.setReadUncommitted(true);
-            Optional<String> durability = configDB.get(OBJECT_DURABILITY_CONFIG_KEY);
-            if (!durability.isPresent()) {
-                durability = configDB.getGlobal(OBJECT_DURABILITY_CONFIG_KEY);
-            }
-            if ("safe".equals(durability.orNull())) {
-                txConfig.setDurability(Durability.COMMIT_SYNC);
-            } else {
-                txConfig.setDurability(Durability.COMMIT_WRITE_NO_SYNC);
-            }
+            txConfig.setDurability(getDurability());
             Transaction transaction = env.beginTransaction(null, txConfig);
             return transaction;
         }
         return null;
     }
 
+    private Durability getDurability() {
+        Optional<String> durability = getConfig(OBJECT_DURABILITY_CONFIG_KEY, String.class);
+        if ("safe".equals(durability.orNull())) {
+            return Durability.COMMIT_SYNC;
+        }
+        return Durability.COMMIT_WRITE_NO_SYNC;
+    }
+
+    /**
+     * @return the repository config value for {@code key}, falling back to the global config
+     */
+    private <T> Optional<T> getConfig(final String key, final Class<T> type) {
+        Optional<T> value = configDB.get(key, type);
+        if (!value.isPresent()) {
+            value = configDB.getGlobal(key, type);
+        }
+        return value;
+    }
+
     @Override
     protected void finalize() {
         if (isOpen()) {
             LOGGER.warn("JEObjectDatabase {} was not closed. Forcing close at finalize()",
-                    env.getHome());
+                    envName);
             close();
         }
     }
@@ -914,7 +1436,277 @@ abstract class JEObjectDatabase extends AbstractObjectDatabase implements Object
     }
 
     private void checkOpen() {
-        Preconditions.checkState(isOpen(), "Database is closed");
+        if (!opened) {
+            awaitOpen();
+        }
+    }
+
+    /**
+     * Scans the whole database in disk order (which is cheaper than key order for a full scan as
+     * it does not require reading the B-tree nodes in random order) gathering per object type
+     * statistics, and collects the size of the JE log files, cache fill and B-tree node counts.
+     * <p>
+     * Objects are not deserialized, their type is {@link #decodeType decoded} from the header of
+     * the stored record, and records whose type can't be decoded are counted as unreadable.
+     */
+    ObjectStoreStats computeStats(final ProgressListener progress) {
+        checkOpen();
+        if (writeBuffer != null) {
+            writeBuffer.flush();
+        }
+        final Stopwatch sw = Stopwatch.createStarted();
+        final ObjectStoreStats stats = new ObjectStoreStats();
+        progress.started();
+        DiskOrderedCursorConfig cursorConfig = new DiskOrderedCursorConfig();
+        DiskOrderedCursor cursor = objectDb.openCursor(cursorConfig);
+        try {
+            DatabaseEntry key = new DatabaseEntry();
+            DatabaseEntry data = new DatabaseEntry();
+            long count = 0;
+            while (SUCCESS.equals(cursor.getNext(key, data, LockMode.READ_UNCOMMITTED))) {
+                final byte[] raw = data.getData();
+                final int storedSize = data.getSize();
+                final TYPE type = decodeType(raw, data.getOffset(), storedSize);
+                if (type == null) {
+                    stats.addUnreadable(key.getSize(), storedSize);
+                } else {
+                    stats.add(type, key.getSize(), storedSize,
+                            uncompressedSize(raw, data.getOffset(), storedSize));
+                }
+                if (isProgressStep(++count)) {
+                    if (progress.isCanceled()) {
+                        return stats;
+                    }
+                    progress.setDescription(String.format("Scanned %,d objects", count));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        EnvironmentStats envStats = env.getStats(new StatsConfig());
+        stats.totalLogSize = envStats.getTotalLogSize();
+        stats.cacheTotalBytes = envStats.getCacheTotalBytes();
+        stats.cacheMaxBytes = CacheSizing.getCacheMaxBytes(env);
+        stats.physicalMemory = CacheSizing.getPhysicalMemory();
+        stats.nodeFetches = envStats.getNUpperINsFetch() + envStats.getNBINsFetch()
+                + envStats.getNLNsFetch();
+        stats.nodeFetchMisses = envStats.getNUpperINsFetchMiss() + envStats.getNBINsFetchMiss()
+                + envStats.getNLNsFetchMiss();
+        stats.logReads = envStats.getNRandomReads() + envStats.getNSequentialReads();
+        stats.logReadBytes = envStats.getNRandomReadBytes() + envStats.getNSequentialReadBytes();
+
+        BtreeStats treeStats = (BtreeStats) objectDb.getStats(new StatsConfig());
+        stats.internalNodes = treeStats.getInternalNodeCount();
+        stats.bottomInternalNodes = treeStats.getBottomInternalNodeCount();
+        stats.leafNodes = treeStats.getLeafNodeCount();
+        stats.deletedLeafNodes = treeStats.getDeletedLeafNodeCount();
+        stats.treeDepth = treeStats.getMainTreeMaxDepth();
+        stats.scanMillis = sw.elapsed(TimeUnit.MILLISECONDS);
+        progress.complete();
+        return stats;
+    }
+
+    /**
+     * Reads the parents of every commit in the database, scanning it in disk order and decoding
+     * the objects in parallel: the scan hands batches of raw objects to a pool of
+     * {@code threads} decoders, running a batch itself when they're all busy so that at most a
+     * few batches are held in memory.
+     *
+     * @return the commits and their parents, or the ones read so far if cancelled
+     * @see RebuildGraphOp
+     */
+    Map<ObjectId, ImmutableList<ObjectId>> readCommitParents(final int threads,
+            final ProgressListener progress) {
+        checkOpen();
+        Preconditions.checkArgument(threads > 0, "threads must be positive: %s", threads);
+        if (writeBuffer != null) {
+            writeBuffer.flush();
+        }
+        final Map<ObjectId, ImmutableList<ObjectId>> commits = new ConcurrentHashMap<ObjectId, ImmutableList<ObjectId>>();
+        final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+        final ThreadPoolExecutor decoders = new ThreadPoolExecutor(threads, threads, 0L,
+                TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(threads),
+                new ThreadFactoryBuilder().setDaemon(true)
+                        .setNameFormat("BDBJE-" + env.getHome().getName() + "-SCAN-THREAD-%d")
+                        .build(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        final Stopwatch sw = Stopwatch.createStarted();
+        progress.started();
+        DiskOrderedCursor cursor = objectDb.openCursor(new DiskOrderedCursorConfig());
+        long count = 0;
+        try {
+            DatabaseEntry key = new DatabaseEntry();
+            DatabaseEntry data = new DatabaseEntry();
+            List<byte[][]> batch = new ArrayList<byte[][]>(SCAN_BATCH_SIZE);
+            while (failure.get() == null
+                    && SUCCESS.equals(cursor.getNext(key, data, LockMode.READ_UNCOMMITTED))) {
+                batch.add(new byte[][] {
+                        Arrays.copyOfRange(key.getData(), key.getOffset(),
+                                key.getOffset() + key.getSize()),
+                        Arrays.copyOfRange(data.getData(), data.getOffset(),
+                                data.getOffset() + data.getSize()) });
+                if (batch.size() == SCAN_BATCH_SIZE) {
+                    decoders.execute(new DecodeCommitsTask(batch, commits, failure));
+                    batch = new ArrayList<byte[][]>(SCAN_BATCH_SIZE);
+                }
+                if (isProgressStep(++count)) {
+                    if (progress.isCanceled()) {
+                        break;
+                    }
+                    double seconds = Math.max(1, sw.elapsed(TimeUnit.MILLISECONDS)) / 1000d;
+                    progress.setDescription(String.format(
+                            "Scanned %,d objects, %,d commits (%,.0f objects/s)", count,
+                            commits.size(), count / seconds));
+                }
+            }
+            if (!batch.isEmpty() && !progress.isCanceled()) {
+                decoders.execute(new DecodeCommitsTask(batch, commits, failure));
+            }
+        } finally {
+            cursor.close();
+            decoders.shutdown();
+        }
+        try {
+            while (!decoders.awaitTermination(1, TimeUnit.SECONDS)) {
+                LOGGER.debug("Waiting for commit decoders to finish");
+            }
+        } catch (InterruptedException e) {
+            decoders.shutdownNow();
+            throw Throwables.propagate(e);
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        LOGGER.info("Read {} commits out of {} objects from {} in {}", commits.size(), count,
+                env.getHome(), sw.stop());
+        progress.complete();
+        return commits;
+    }
+
+    private class DecodeCommitsTask implements Runnable {
+
+        private final List<byte[][]> objects;
+
+        private final Map<ObjectId, ImmutableList<ObjectId>> commits;
+
+        private final AtomicReference<RuntimeException> failure;
+
+        DecodeCommitsTask(List<byte[][]> objects, Map<ObjectId, ImmutableList<ObjectId>> commits,
+                AtomicReference<RuntimeException> failure) {
+            this.objects = objects;
+            this.commits = commits;
+            this.failure = failure;
+        }
+
+        @Override
+        public void run() {
+            if (failure.get() != null) {
+                return;
+            }
+            try {
+                for (byte[][] object : objects) {
+                    final ObjectId id = ObjectId.createNoClone(object[0]);
+                    RevObject revObject = serializer.read(id,
+                            new ByteArrayInputStream(object[1]));
+                    if (revObject instanceof RevCommit) {
+                        commits.put(id, ((RevCommit) revObject).getParentIds());
+                    }
+                }
+            } catch (RuntimeException e) {
+                failure.compareAndSet(null, e);
+            }
+        }
+    }
+
+    /**
+     * @return whether the progress of a scan shall be reported after {@code count} objects
+     */
+    static boolean isProgressStep(final long count) {
+        return count % SCAN_PROGRESS_STEP == 0;
+    }
+
+    /**
+     * Computes the uncompressed size of an LZF encoded object by adding up the uncompressed
+     * length of its chunks, without actually decompressing it.
+     * 
+     * @return the uncompressed size, or {@code size} if the data is not LZF encoded
+     */
+    static int uncompressedSize(final byte[] raw, final int offset, final int size) {
+        final int end = offset + size;
+        int uncompressed = 0;
+        int pos = offset;
+        while (pos + 5 <= end && raw[pos] == 'Z' && raw[pos + 1] == 'V') {
+            final int type = raw[pos + 2];
+            final int len = ((raw[pos + 3] & 0xFF) << 8) | (raw[pos + 4] & 0xFF);
+            if (type == 0) {// non compressed chunk
+                uncompressed += len;
+                pos += 5 + len;
+            } else if (type == 1 && pos + 7 <= end) {// compressed chunk
+                uncompressed += ((raw[pos + 5] & 0xFF) << 8) | (raw[pos + 6] & 0xFF);
+                pos += 7 + len;
+            } else {
+                return size;
+            }
+        }
+        return pos == end ? uncompressed : size;
+    }
+
+    /**
+     * Decodes the type of a stored object from the header at the start of its serialized form,
+     * without decompressing nor deserializing it. The header is within the first literal run of
+     * the first LZF chunk, since the start of the data can't refer back to anything. It's a
+     * single byte with the type value, or for {@link JEObjectDatabase_v0_1 0.1} databases the
+     * type name (e.g. {@code commit}) followed by a {@code NUL} byte.
+     * 
+     * @return the object type, or {@code null} if the header can't be decoded
+     */
+    @Nullable
+    static TYPE decodeType(final byte[] raw, final int offset, final int size) {
+        final byte[] header = new byte[MAX_HEADER_SIZE];
+        final int end = offset + size;
+        int pos = offset;
+        int length = 0;
+        if (pos + 5 <= end && raw[pos] == 'Z' && raw[pos + 1] == 'V') {
+            final int type = raw[pos + 2];
+            final int len = ((raw[pos + 3] & 0xFF) << 8) | (raw[pos + 4] & 0xFF);
+            if (type == 0) {// non compressed chunk
+                final int chunkEnd = Math.min(end, pos + 5 + len);
+                pos += 5;
+                while (length < header.length && pos < chunkEnd) {
+                    header[length++] = raw[pos++];
+                }
+            } else if (type == 1) {// compressed chunk, literal runs up to a back reference
+                final int chunkEnd = Math.min(end, pos + 7 + len);
+                pos += 7;
+                while (length < header.length && pos < chunkEnd) {
+                    final int ctrl = raw[pos++] & 0xFF;
+                    if (ctrl >= 32) {
+                        break;
+                    }
+                    final int runEnd = Math.min(chunkEnd, pos + ctrl + 1);
+                    while (length < header.length && pos < runEnd) {
+                        header[length++] = raw[pos++];
+                    }
+                }
+            }
+        } else {
+            while (length < header.length && pos < end) {
+                header[length++] = raw[pos++];
+            }
+        }
+        if (length == 0) {
+            return null;
+        }
+        if ((header[0] & 0xFF) < TYPE.values().length) {
+            return TYPE.valueOf(header[0] & 0xFF);
+        }
+        for (int nul = 0; nul < length; nul++) {
+            if (header[nul] == 0) {
+                return V1_HEADERS.get(new String(header, 0, nul, Charsets.US_ASCII));
+            }
+        }
+        return null;
     }
 
     @Override
@@ -0,0 +1,48 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import org.locationtech.geogig.repository.Hints;
+import org.locationtech.geogig.repository.RepositoryConnectionException;
+import org.locationtech.geogig.storage.ConfigDatabase;
+import org.locationtech.geogig.storage.StorageType;
+import org.locationtech.geogig.storage.datastream.DataStreamSerializationFactoryV2;
+import org.locationtech.geogig.storage.datastream.LZFSerializationFactory;
+
+import com.google.inject.Inject;
+
+/**
+ * The v0.2 object database, same storage format, paired with the v0.3 graph database by
+ * {@link JEStorageProviderV03} since both share the {@code bdbje.version} config setting.
+ */
+public final class JEObjectDatabase_v0_3 extends JEObjectDatabase {
+    @Inject
+    public JEObjectDatabase_v0_3(final ConfigDatabase configDB,
+            final EnvironmentBuilder envProvider, final Hints hints) {
+        this(configDB, envProvider, hints.getBoolean(Hints.OBJECTS_READ_ONLY),
+                JEObjectDatabase.ENVIRONMENT_NAME);
+    }
+
+    public JEObjectDatabase_v0_3(final ConfigDatabase configDB,
+            final EnvironmentBuilder envProvider, final boolean readOnly, final String envName) {
+        super(new LZFSerializationFactory(DataStreamSerializationFactoryV2.INSTANCE), configDB,
+                envProvider, readOnly, envName);
+    }
+
+    @Override
+    public void configure() throws RepositoryConnectionException {
+        StorageType.OBJECT.configure(configDB, "bdbje", "0.3");
+    }
+
+    @Override
+    public void checkConfig() throws RepositoryConnectionException {
+        StorageType.OBJECT.verify(configDB, "bdbje", "0.3");
+    }
+}
@@ -0,0 +1,163 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Minimal streaming JSON encoder used to export the storage reports of this module, which are
+ * meant to be collected by external tools to track trends over time.
+ */
+class JsonWriter {
+
+    private final StringBuilder sb = new StringBuilder();
+
+    /**
+     * Whether the current object or array has already got a member, to know when to add a comma
+     */
+    private final Deque<Boolean> hasMembers = new ArrayDeque<Boolean>();
+
+    private boolean pendingValue;
+
+    public JsonWriter beginObject() {
+        separator();
+        sb.append('{');
+        hasMembers.push(Boolean.FALSE);
+        return this;
+    }
+
+    public JsonWriter endObject() {
+        hasMembers.pop();
+        sb.append('}');
+        return this;
+    }
+
+    public JsonWriter beginArray() {
+        separator();
+        sb.append('[');
+        hasMembers.push(Boolean.FALSE);
+        return this;
+    }
+
+    public JsonWriter endArray() {
+        hasMembers.pop();
+        sb.append(']');
+        return this;
+    }
+
+    public JsonWriter name(String name) {
+        separator();
+        string(name);
+        sb.append(':');
+        // the value that follows is not a new member
+        pendingValue = true;
+        return this;
+    }
+
+    public JsonWriter value(String value) {
+        separator();
+        if (value == null) {
+            sb.append("null");
+        } else {
+            string(value);
+        }
+        return this;
+    }
+
+    public JsonWriter value(long value) {
+        separator();
+        sb.append(value);
+        return this;
+    }
+
+    public JsonWriter value(double value) {
+        separator();
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            sb.append("null");
+        } else {
+            sb.append(value);
+        }
+        return this;
+    }
+
+    public JsonWriter value(boolean value) {
+        separator();
+        sb.append(value);
+        return this;
+    }
+
+    public JsonWriter member(String name, String value) {
+        return name(name).value(value);
+    }
+
+    public JsonWriter member(String name, long value) {
+        return name(name).value(value);
+    }
+
+    public JsonWriter member(String name, double value) {
+        return name(name).value(value);
+    }
+
+    public JsonWriter member(String name, boolean value) {
+        return name(name).value(value);
+    }
+
+    private void separator() {
+        if (pendingValue) {
+            pendingValue = false;
+            return;
+        }
+        if (!hasMembers.isEmpty()) {
+            if (hasMembers.peek().booleanValue()) {
+                sb.append(',');
+            } else {
+                hasMembers.pop();
+                hasMembers.push(Boolean.TRUE);
+            }
+        }
+    }
+
+    private void string(String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '"':
+                sb.append("\\\"");
+                break;
+            case '\\':
+                sb.append("\\\\");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            case '\r':
+                sb.append("\\r");
+                break;
+            case '\t':
+                sb.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    sb.append(String.format("\\u%04x", (int) c));
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+        sb.append('"');
+    }
+
+    @Override
+    public String toString() {
+        return sb.toString();
+    }
+}
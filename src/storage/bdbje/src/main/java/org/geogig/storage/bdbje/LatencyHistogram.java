@@ -0,0 +1,129 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of latencies in nanoseconds, with log-linear buckets: every power of two
+ * range is split in {@code 16} equal width buckets, so recorded values are kept with a relative
+ * error below {@code 6.25%} from one nanosecond to several hours, in a fixed amount of memory.
+ * <p>
+ * Recording is a few atomic increments and is safe to call concurrently. Reads are not atomic
+ * with respect to concurrent recording, percentiles may not account for the very last values
+ * recorded.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int NUM_BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(final long nanos) {
+        final long value = Math.max(0, nanos);
+        buckets.incrementAndGet(bucket(value));
+        count.incrementAndGet();
+        totalNanos.addAndGet(value);
+        long currMax;
+        while (value > (currMax = max.get()) && !max.compareAndSet(currMax, value)) {
+            // retry
+        }
+    }
+
+    static int bucket(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exp = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        final int shift = exp - SUB_BUCKET_BITS;
+        final int sub = (int) (value >>> shift) - SUB_BUCKETS;
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the highest value that falls in {@code bucket}
+     */
+    static long upperBound(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int shift = bucket / SUB_BUCKETS - 1;
+        final long sub = bucket % SUB_BUCKETS;
+        final long lower = (SUB_BUCKETS + sub) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getMean() {
+        final long c = count.get();
+        return c == 0 ? 0 : totalNanos.get() / c;
+    }
+
+    /**
+     * @return an upper bound of the latency below which {@code percentile} percent of the
+     *         recorded values fall, with the precision of the bucket width
+     */
+    public long getPercentile(final double percentile) {
+        final long c = count.get();
+        if (c == 0) {
+            return 0;
+        }
+        final long threshold = Math.max(1, (long) Math.ceil(c * percentile / 100d));
+        final long maxValue = max.get();
+        long accum = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            accum += buckets.get(i);
+            if (accum >= threshold) {
+                return Math.min(maxValue, upperBound(i));
+            }
+        }
+        return maxValue;
+    }
+
+    public void reset() {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        totalNanos.set(0);
+        max.set(0);
+    }
+
+    void toJSON(JsonWriter json) {
+        json.beginObject();
+        json.member("count", getCount()).member("meanNanos", getMean())
+                .member("maxNanos", getMax());
+        json.member("p50Nanos", getPercentile(50)).member("p99Nanos", getPercentile(99))
+                .member("p999Nanos", getPercentile(99.9));
+        json.endObject();
+    }
+}
@@ -22,6 +22,13 @@ import org.locationtech.geogig.model.ObjectId;
 import com.google.common.collect.ImmutableList;
 
 class NodeData {
+
+    /**
+     * Value of {@link #depth} and {@link #generation} when not known, e.g. nodes written by a
+     * version that didn't store them and not yet backfilled
+     */
+    static final int UNKNOWN = -1;
+
     public ObjectId id;
 
     public List<ObjectId> outgoing;
@@ -33,9 +40,25 @@ class NodeData {
     @Nullable
     public ObjectId mappedTo;
 
+    /**
+     * Number of parent links from this commit to its closest root commit, as returned by
+     * {@link org.locationtech.geogig.storage.GraphDatabase#getDepth}
+     */
+    public int depth = UNKNOWN;
+
+    /**
+     * One more than the largest generation of the parents, {@code 0} for a root commit, so a
+     * commit can't be an ancestor of another one of lower or equal generation
+     */
+    public int generation = UNKNOWN;
+
     public NodeData(ObjectId id, List<ObjectId> parents) {
         this(id, ObjectId.NULL, new ArrayList<ObjectId>(parents), new ArrayList<ObjectId>(2),
                 new HashMap<String, String>());
+        if (parents.isEmpty()) {
+            this.depth = 0;
+            this.generation = 0;
+        }
     }
 
     NodeData(ObjectId id, ObjectId mappedTo, List<ObjectId> parents, List<ObjectId> children,
@@ -0,0 +1,305 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.locationtech.geogig.model.RevObject.TYPE;
+
+/**
+ * Statistics about the contents of a {@link JEObjectDatabase}, as computed by
+ * {@link ObjectStoreStatsOp}.
+ * <p>
+ * Holds per object type counts, stored (compressed) and uncompressed byte totals and size
+ * histograms, plus figures of the underlying JE environment and database B-tree.
+ */
+public class ObjectStoreStats {
+
+    public static class TypeStats {
+
+        private long count;
+
+        private long storedBytes;
+
+        private long uncompressedBytes;
+
+        private final SizeHistogram storedSizes = new SizeHistogram();
+
+        private final SizeHistogram uncompressedSizes = new SizeHistogram();
+
+        void add(int storedSize, int uncompressedSize) {
+            count++;
+            storedBytes += storedSize;
+            uncompressedBytes += uncompressedSize;
+            storedSizes.add(storedSize);
+            uncompressedSizes.add(uncompressedSize);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getStoredBytes() {
+            return storedBytes;
+        }
+
+        public long getUncompressedBytes() {
+            return uncompressedBytes;
+        }
+
+        public SizeHistogram getStoredSizes() {
+            return storedSizes;
+        }
+
+        public SizeHistogram getUncompressedSizes() {
+            return uncompressedSizes;
+        }
+
+        /**
+         * @return uncompressed over stored size, {@code 1} meaning no compression at all
+         */
+        public double getCompressionRatio() {
+            return storedBytes == 0 ? 1d : (double) uncompressedBytes / storedBytes;
+        }
+    }
+
+    private final Map<TYPE, TypeStats> types = new EnumMap<TYPE, TypeStats>(TYPE.class);
+
+    private long keyBytes;
+
+    private long unreadable;
+
+    private long unreadableBytes;
+
+    long totalLogSize;
+
+    long cacheTotalBytes;
+
+    long cacheMaxBytes;
+
+    long physicalMemory;
+
+    long nodeFetches;
+
+    long nodeFetchMisses;
+
+    long logReads;
+
+    long logReadBytes;
+
+    long internalNodes;
+
+    long bottomInternalNodes;
+
+    long leafNodes;
+
+    long deletedLeafNodes;
+
+    int treeDepth;
+
+    long scanMillis;
+
+    void add(TYPE type, int keySize, int storedSize, int uncompressedSize) {
+        TypeStats stats = types.get(type);
+        if (stats == null) {
+            stats = new TypeStats();
+            types.put(type, stats);
+        }
+        stats.add(storedSize, uncompressedSize);
+        keyBytes += keySize;
+    }
+
+    /**
+     * Counts a record whose object type couldn't be decoded
+     */
+    void addUnreadable(int keySize, int storedSize) {
+        unreadable++;
+        unreadableBytes += storedSize;
+        keyBytes += keySize;
+    }
+
+    public Map<TYPE, TypeStats> getTypeStats() {
+        return Collections.unmodifiableMap(types);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (TypeStats s : types.values()) {
+            count += s.count;
+        }
+        return count;
+    }
+
+    public long getStoredBytes() {
+        long bytes = 0;
+        for (TypeStats s : types.values()) {
+            bytes += s.storedBytes;
+        }
+        return bytes;
+    }
+
+    public long getUncompressedBytes() {
+        long bytes = 0;
+        for (TypeStats s : types.values()) {
+            bytes += s.uncompressedBytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the number of records whose object type couldn't be decoded, which are not counted
+     *         in the per type statistics
+     */
+    public long getUnreadable() {
+        return unreadable;
+    }
+
+    public long getUnreadableBytes() {
+        return unreadableBytes;
+    }
+
+    /**
+     * @return the size of all the JE log files of the environment
+     */
+    public long getTotalLogSize() {
+        return totalLogSize;
+    }
+
+    /**
+     * @return an estimate of the percentage of the log files occupied by live records (object
+     *         keys and data), the rest being obsolete records the cleaner has yet to reclaim, or
+     *         other databases in the same environment
+     */
+    public double getLogUtilization() {
+        return totalLogSize == 0 ? 0d
+                : 100d * (keyBytes + getStoredBytes() + unreadableBytes) / totalLogSize;
+    }
+
+    public long getCacheTotalBytes() {
+        return cacheTotalBytes;
+    }
+
+    public long getCacheMaxBytes() {
+        return cacheMaxBytes;
+    }
+
+    public double getCacheFill() {
+        return cacheMaxBytes == 0 ? 0d : 100d * cacheTotalBytes / cacheMaxBytes;
+    }
+
+    /**
+     * @return the physical memory of the machine, or {@code -1} if unknown
+     */
+    public long getPhysicalMemory() {
+        return physicalMemory;
+    }
+
+    /**
+     * @return the number of B-tree nodes and records requested from the JE cache since the
+     *         environment was open
+     */
+    public long getNodeFetches() {
+        return nodeFetches;
+    }
+
+    /**
+     * @return the number of {@link #getNodeFetches() fetches} not found in the JE cache, and hence
+     *         read from the log files
+     */
+    public long getNodeFetchMisses() {
+        return nodeFetchMisses;
+    }
+
+    /**
+     * @return percentage of node fetches served by the JE cache (the first cache tier)
+     */
+    public double getCacheHitRate() {
+        return nodeFetches == 0 ? 100d : 100d * (nodeFetches - nodeFetchMisses) / nodeFetches;
+    }
+
+    /**
+     * @return the number of reads of the JE log files, served either by the operating system's
+     *         file cache (the second cache tier) or the disk
+     */
+    public long getLogReads() {
+        return logReads;
+    }
+
+    public long getLogReadBytes() {
+        return logReadBytes;
+    }
+
+    public long getInternalNodes() {
+        return internalNodes;
+    }
+
+    public long getBottomInternalNodes() {
+        return bottomInternalNodes;
+    }
+
+    public long getLeafNodes() {
+        return leafNodes;
+    }
+
+    public long getDeletedLeafNodes() {
+        return deletedLeafNodes;
+    }
+
+    public int getTreeDepth() {
+        return treeDepth;
+    }
+
+    public long getScanMillis() {
+        return scanMillis;
+    }
+
+    public String toJSON() {
+        JsonWriter json = new JsonWriter();
+        json.beginObject();
+        json.member("timestamp", System.currentTimeMillis());
+        json.member("count", getCount()).member("storedBytes", getStoredBytes())
+                .member("uncompressedBytes", getUncompressedBytes());
+        json.name("types").beginObject();
+        for (Map.Entry<TYPE, TypeStats> e : types.entrySet()) {
+            TypeStats s = e.getValue();
+            json.name(e.getKey().toString()).beginObject();
+            json.member("count", s.count).member("storedBytes", s.storedBytes)
+                    .member("uncompressedBytes", s.uncompressedBytes)
+                    .member("compressionRatio", s.getCompressionRatio());
+            json.name("storedSizes");
+            s.storedSizes.toJSON(json);
+            json.name("uncompressedSizes");
+            s.uncompressedSizes.toJSON(json);
+            json.endObject();
+        }
+        json.endObject();
+        json.member("unreadable", unreadable).member("unreadableBytes", unreadableBytes);
+        json.name("environment").beginObject();
+        json.member("totalLogSize", totalLogSize).member("logUtilization", getLogUtilization())
+                .member("cacheTotalBytes", cacheTotalBytes)
+                .member("cacheMaxBytes", cacheMaxBytes).member("cacheFill", getCacheFill())
+                .member("physicalMemory", physicalMemory).member("nodeFetches", nodeFetches)
+                .member("nodeFetchMisses", nodeFetchMisses)
+                .member("cacheHitRate", getCacheHitRate()).member("logReads", logReads)
+                .member("logReadBytes", logReadBytes);
+        json.endObject();
+        json.name("btree").beginObject();
+        json.member("internalNodes", internalNodes)
+                .member("bottomInternalNodes", bottomInternalNodes)
+                .member("leafNodes", leafNodes).member("deletedLeafNodes", deletedLeafNodes)
+                .member("depth", treeDepth);
+        json.endObject();
+        json.member("scanMillis", scanMillis);
+        json.endObject();
+        return json.toString();
+    }
+}
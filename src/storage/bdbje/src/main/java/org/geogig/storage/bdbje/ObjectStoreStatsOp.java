@@ -0,0 +1,32 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import org.locationtech.geogig.repository.AbstractGeoGigOp;
+import org.locationtech.geogig.storage.ObjectDatabase;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Scans the repository's BDB JE object database and reports per object type counts, sizes and
+ * compression ratios, as well as JE log, cache and B-tree figures.
+ *
+ * @see ObjectStoreStats
+ */
+public class ObjectStoreStatsOp extends AbstractGeoGigOp<ObjectStoreStats> {
+
+    @Override
+    protected ObjectStoreStats _call() {
+        ObjectDatabase objectDatabase = objectDatabase();
+        Preconditions.checkState(objectDatabase instanceof JEObjectDatabase,
+                "Repository's object database is not a BDB JE database: %s", objectDatabase);
+        return ((JEObjectDatabase) objectDatabase).computeStats(getProgressListener());
+    }
+}
@@ -0,0 +1,143 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.ImmutableSortedMap;
+
+/**
+ * Latency histograms and throughput counters of the operations of a BDB JE database, keyed by
+ * operation name.
+ * <p>
+ * Databases get an {@link Op} per operation up front and time every call with
+ * {@link Op#record(long)}, for the figures to be attributed to the storage layer rather than to
+ * the commands calling it.
+ */
+public class OperationStats {
+
+    private final ConcurrentMap<String, Op> ops = new ConcurrentSkipListMap<String, Op>();
+
+    private volatile long startNanos = System.nanoTime();
+
+    /**
+     * Timing of a single operation: a latency histogram of the calls, and the number of items
+     * (e.g. objects) processed by them, which differs from the number of calls for bulk
+     * operations
+     */
+    public static class Op {
+
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        private final AtomicLong items = new AtomicLong();
+
+        /**
+         * Records a call started at {@code startNanos}, as returned by {@link System#nanoTime()},
+         * that processed a single item
+         */
+        public void record(final long startNanos) {
+            record(startNanos, 1);
+        }
+
+        public void record(final long startNanos, final long itemCount) {
+            latency.record(System.nanoTime() - startNanos);
+            items.addAndGet(itemCount);
+        }
+
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        public long getCalls() {
+            return latency.getCount();
+        }
+
+        public long getItems() {
+            return items.get();
+        }
+
+        void reset() {
+            latency.reset();
+            items.set(0);
+        }
+    }
+
+    /**
+     * @return the stats of operation {@code name}, created on first use
+     */
+    public Op op(final String name) {
+        Op op = ops.get(name);
+        if (op == null) {
+            Op created = new Op();
+            op = ops.putIfAbsent(name, created);
+            if (op == null) {
+                op = created;
+            }
+        }
+        return op;
+    }
+
+    /**
+     * @return the stats of every operation, sorted by name
+     */
+    public ImmutableSortedMap<String, Op> getOperations() {
+        return ImmutableSortedMap.copyOf(ops);
+    }
+
+    /**
+     * @return the number of seconds over which throughput is computed, since the stats were
+     *         created or last {@link #reset()}
+     */
+    public double getElapsedSeconds() {
+        return (System.nanoTime() - startNanos) / 1e9;
+    }
+
+    /**
+     * @return the items per second processed by {@code op} since the stats were created or last
+     *         {@link #reset()}
+     */
+    public double getThroughput(final Op op) {
+        double seconds = getElapsedSeconds();
+        return seconds <= 0 ? 0 : op.getItems() / seconds;
+    }
+
+    public void reset() {
+        for (Op op : ops.values()) {
+            op.reset();
+        }
+        startNanos = System.nanoTime();
+    }
+
+    public String toJSON() {
+        JsonWriter json = new JsonWriter();
+        toJSON(json);
+        return json.toString();
+    }
+
+    void toJSON(JsonWriter json) {
+        json.beginObject();
+        json.member("elapsedSeconds", getElapsedSeconds());
+        json.name("operations").beginObject();
+        for (Map.Entry<String, Op> e : getOperations().entrySet()) {
+            Op op = e.getValue();
+            json.name(e.getKey()).beginObject();
+            json.member("calls", op.getCalls()).member("items", op.getItems())
+                    .member("itemsPerSecond", getThroughput(op));
+            json.name("latency");
+            op.getLatency().toJSON(json);
+            json.endObject();
+        }
+        json.endObject();
+        json.endObject();
+    }
+}
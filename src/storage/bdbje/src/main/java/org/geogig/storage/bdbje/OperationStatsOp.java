@@ -0,0 +1,45 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import org.locationtech.geogig.repository.AbstractGeoGigOp;
+import org.locationtech.geogig.storage.GraphDatabase;
+import org.locationtech.geogig.storage.ObjectDatabase;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Returns the per operation latency and throughput figures of the repository's BDB JE object and
+ * graph databases, keyed by {@code objects} and {@code graph}. Databases that are not BDB JE ones
+ * are left out.
+ * <p>
+ * The figures are live, they keep being updated as operations run, and cover the operations run
+ * by this process only.
+ *
+ * @see OperationStats
+ */
+public class OperationStatsOp extends AbstractGeoGigOp<ImmutableMap<String, OperationStats>> {
+
+    @Override
+    protected ImmutableMap<String, OperationStats> _call() {
+        ImmutableMap.Builder<String, OperationStats> builder = ImmutableMap.builder();
+        ObjectDatabase objectDatabase = objectDatabase();
+        if (objectDatabase instanceof JEObjectDatabase) {
+            builder.put(JEObjectDatabase.ENVIRONMENT_NAME,
+                    ((JEObjectDatabase) objectDatabase).getOperationStats());
+        }
+        GraphDatabase graphDatabase = graphDatabase();
+        if (graphDatabase instanceof JEGraphDatabase) {
+            builder.put(JEGraphDatabase.ENVIRONMENT_NAME,
+                    ((JEGraphDatabase) graphDatabase).getOperationStats());
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,143 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+import org.eclipse.jdt.annotation.Nullable;
+import org.locationtech.geogig.model.ObjectId;
+
+import com.google.common.base.Preconditions;
+import com.sleepycat.bind.tuple.TupleOutput;
+
+/**
+ * A list of {@link ObjectId}s backed by their raw bytes, as the v0.3 graph node format stores
+ * them, that only creates the {@code ObjectId} instances asked for. {@link #contains} and
+ * {@link #indexOf} compare the raw bytes. The list is copied to a regular one on the first change.
+ */
+class RawObjectIdList extends AbstractList<ObjectId> implements RandomAccess {
+
+    private static final int ID_SIZE = ObjectId.NUM_BYTES;
+
+    private final byte[] raw;
+
+    private final int offset;
+
+    private final int size;
+
+    /**
+     * The list once changed, {@code null} before
+     */
+    @Nullable
+    private List<ObjectId> copy;
+
+    /**
+     * @param raw {@code size} ids of {@link ObjectId#NUM_BYTES} each, starting at {@code offset}
+     */
+    RawObjectIdList(byte[] raw, int offset, int size) {
+        Preconditions.checkArgument(offset + size * ID_SIZE <= raw.length);
+        this.raw = raw;
+        this.offset = offset;
+        this.size = size;
+    }
+
+    @Override
+    public ObjectId get(int index) {
+        if (copy != null) {
+            return copy.get(index);
+        }
+        Preconditions.checkElementIndex(index, size);
+        final int from = offset + index * ID_SIZE;
+        return ObjectId.createNoClone(Arrays.copyOfRange(raw, from, from + ID_SIZE));
+    }
+
+    @Override
+    public int size() {
+        return copy == null ? size : copy.size();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return indexOf(o) >= 0;
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        if (copy != null) {
+            return copy.indexOf(o);
+        }
+        if (!(o instanceof ObjectId)) {
+            return -1;
+        }
+        final ObjectId id = (ObjectId) o;
+        for (int i = 0; i < size; i++) {
+            if (equals(i, id)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean equals(final int index, final ObjectId id) {
+        final int from = offset + index * ID_SIZE;
+        for (int b = 0; b < ID_SIZE; b++) {
+            if ((raw[from + b] & 0xFF) != id.byteN(b)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public ObjectId set(int index, ObjectId element) {
+        return modified().set(index, element);
+    }
+
+    @Override
+    public void add(int index, ObjectId element) {
+        modified().add(index, element);
+    }
+
+    @Override
+    public ObjectId remove(int index) {
+        return modified().remove(index);
+    }
+
+    private List<ObjectId> modified() {
+        if (copy == null) {
+            List<ObjectId> list = new ArrayList<ObjectId>(size + 2);
+            for (int i = 0; i < size; i++) {
+                list.add(get(i));
+            }
+            copy = list;
+        }
+        modCount++;
+        return copy;
+    }
+
+    /**
+     * Writes the raw bytes of {@code ids}, without creating them if they're an unchanged
+     * {@code RawObjectIdList}
+     */
+    static void write(final List<ObjectId> ids, final TupleOutput output) {
+        if (ids instanceof RawObjectIdList && ((RawObjectIdList) ids).copy == null) {
+            RawObjectIdList list = (RawObjectIdList) ids;
+            output.write(list.raw, list.offset, list.size * ID_SIZE);
+        } else {
+            for (ObjectId id : ids) {
+                output.write(id.getRawValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.locationtech.geogig.model.ObjectId;
+import org.locationtech.geogig.storage.ConfigDatabase;
+
+import com.google.common.base.Optional;
+
+/**
+ * An immutable, in memory index of which commits are ancestors of which, built over an
+ * {@link AdjacencyCache} snapshot of the graph, to answer ancestor queries without walking the
+ * history.
+ * <p>
+ * Each commit gets interval labels from {@link #TRAVERSALS} depth first traversals of the graph
+ * following parent links, each visiting parents in a different order: its post order rank in the
+ * traversal, and the lowest rank among its ancestors. An ancestor's labels are contained in its
+ * descendants', so a commit whose labels aren't contained in another's is not its ancestor, which
+ * rules out most queries at once. A commit in the first traversal's subtree of another, which is
+ * a contiguous range of ranks, is its ancestor. The few queries neither rule decides are answered
+ * by a depth first search pruned by both rules and by the commits' generations.
+ * <p>
+ * Commits added after the index was built aren't in it, but don't change the ancestry of the ones
+ * in it, so {@link JEGraphDatabase} keeps using it for them, walking the new commits until it
+ * reaches indexed ones. Adding parents to an existing commit does change it, and discards the
+ * index.
+ * <p>
+ * Enabled by the {@code bdbje.graph.reachability_index} repository (or global) config option.
+ * Takes about 24 bytes per commit, plus the {@link AdjacencyCache} it's built on.
+ *
+ * @see JEGraphDatabase#isAncestor
+ */
+class ReachabilityIndex {
+
+    static final String CONFIG_KEY = "bdbje.graph.reachability_index";
+
+    /**
+     * Number of labelling traversals, each one rules out more non ancestors
+     */
+    private static final int TRAVERSALS = 2;
+
+    private final AdjacencyCache graph;
+
+    private final int size;
+
+    /**
+     * Length of the longest path to a root commit
+     */
+    private final int[] generation;
+
+    /**
+     * Post order rank of each commit per traversal
+     */
+    private final int[][] rank;
+
+    /**
+     * Lowest rank among each commit and its ancestors, per traversal
+     */
+    private final int[][] low;
+
+    /**
+     * Lowest rank of each commit's subtree in the first traversal
+     */
+    private final int[] treeLow;
+
+    private ReachabilityIndex(AdjacencyCache graph, int[] generation, int[][] rank, int[][] low,
+            int[] treeLow) {
+        this.graph = graph;
+        this.size = generation.length;
+        this.generation = generation;
+        this.rank = rank;
+        this.low = low;
+        this.treeLow = treeLow;
+    }
+
+    /**
+     * @return whether the reachability index is enabled by the repository or global config
+     */
+    static boolean isEnabled(final ConfigDatabase config) {
+        Optional<Boolean> enabled = config.get(CONFIG_KEY, Boolean.class);
+        if (!enabled.isPresent()) {
+            enabled = config.getGlobal(CONFIG_KEY, Boolean.class);
+        }
+        return enabled.or(Boolean.FALSE).booleanValue();
+    }
+
+    /**
+     * Labels the commits of {@code graph}
+     */
+    static ReachabilityIndex build(final AdjacencyCache graph) {
+        final int size = graph.nodeCount();
+        final int[] generation = new int[size];
+        final int[][] rank = new int[TRAVERSALS][];
+        final int[][] low = new int[TRAVERSALS][];
+        final int[] treeLow = new int[size];
+        for (int t = 0; t < TRAVERSALS; t++) {
+            rank[t] = new int[size];
+            low[t] = new int[size];
+            label(graph, t % 2 == 1, rank[t], low[t], t == 0 ? treeLow : null,
+                    t == 0 ? generation : null);
+        }
+        return new ReachabilityIndex(graph, generation, rank, low, treeLow);
+    }
+
+    /**
+     * Ranks the commits in post order of an iterative depth first traversal following parent
+     * links, starting from every commit in dense id order, or reverse order and visiting parents
+     * in reverse order if {@code reverse}
+     */
+    private static void label(final AdjacencyCache graph, final boolean reverse,
+            final int[] rank, final int[] low, final int[] treeLow, final int[] generation) {
+        final int size = graph.nodeCount();
+        final byte[] state = new byte[size];// 0: not visited, 1: visiting, 2: done
+        final int[] next = new int[size];
+        final int[] stack = new int[size];
+        int nextRank = 0;
+        for (int s = 0; s < size; s++) {
+            final int start = reverse ? size - 1 - s : s;
+            if (state[start] != 0) {
+                continue;
+            }
+            int top = 0;
+            stack[top] = start;
+            state[start] = 1;
+            if (treeLow != null) {
+                treeLow[start] = nextRank;
+            }
+            while (top >= 0) {
+                final int node = stack[top];
+                final int parentCount = graph.parentCount(node);
+                if (next[node] < parentCount) {
+                    final int i = next[node]++;
+                    final int parent = graph.parent(node, reverse ? parentCount - 1 - i : i);
+                    if (state[parent] == 0) {
+                        state[parent] = 1;
+                        stack[++top] = parent;
+                        if (treeLow != null) {
+                            treeLow[parent] = nextRank;
+                        }
+                    }
+                    continue;
+                }
+                final int r = nextRank++;
+                int l = r;
+                int g = 0;
+                for (int i = 0; i < parentCount; i++) {
+                    final int parent = graph.parent(node, i);
+                    if (state[parent] == 2) {// a parent still visiting means a cycle, ignore it
+                        l = Math.min(l, low[parent]);
+                        if (generation != null) {
+                            g = Math.max(g, generation[parent] + 1);
+                        }
+                    }
+                }
+                rank[node] = r;
+                low[node] = l;
+                if (generation != null) {
+                    generation[node] = g;
+                }
+                state[node] = 2;
+                top--;
+            }
+        }
+    }
+
+    /**
+     * @return the dense id of {@code commit} in the index, or {@code -1} if it's not in it
+     */
+    int index(final ObjectId commit) {
+        return graph.index(commit);
+    }
+
+    int nodeCount() {
+        return size;
+    }
+
+    /**
+     * @return whether {@code ancestor} is {@code descendant} or one of its ancestors, both dense
+     *         ids of this index
+     */
+    boolean isAncestor(final int ancestor, final int descendant) {
+        if (ancestor == descendant) {
+            return true;
+        }
+        if (!mayReach(descendant, ancestor)) {
+            return false;
+        }
+        if (inSubtree(ancestor, descendant)) {
+            return true;
+        }
+        // the labels prune most of the graph, keep the search state small
+        final Set<Integer> visited = new HashSet<Integer>();
+        int[] stack = new int[16];
+        int top = 0;
+        stack[top] = descendant;
+        while (top >= 0) {
+            final int node = stack[top--];
+            final int parentCount = graph.parentCount(node);
+            for (int i = 0; i < parentCount; i++) {
+                final int parent = graph.parent(node, i);
+                if (parent == ancestor || inSubtree(ancestor, parent)) {
+                    return true;
+                }
+                if (mayReach(parent, ancestor) && visited.add(Integer.valueOf(parent))) {
+                    if (++top == stack.length) {
+                        stack = Arrays.copyOf(stack, stack.length * 2);
+                    }
+                    stack[top] = parent;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return {@code false} if {@code ancestor} is certainly not an ancestor of {@code node}
+     */
+    private boolean mayReach(final int node, final int ancestor) {
+        if (generation[ancestor] >= generation[node]) {
+            return false;
+        }
+        for (int t = 0; t < TRAVERSALS; t++) {
+            if (low[t][ancestor] < low[t][node] || rank[t][ancestor] > rank[t][node]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return whether {@code ancestor} was reached through {@code node} by the first traversal
+     */
+    private boolean inSubtree(final int ancestor, final int node) {
+        final int r = rank[0][ancestor];
+        return r >= treeLow[node] && r <= rank[0][node];
+    }
+
+    /**
+     * @return the generation of a dense id of this index
+     */
+    int generation(final int node) {
+        return generation[node];
+    }
+}
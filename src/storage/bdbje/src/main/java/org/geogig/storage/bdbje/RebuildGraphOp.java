@@ -0,0 +1,72 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import java.util.List;
+import java.util.Map;
+
+import org.locationtech.geogig.model.ObjectId;
+import org.locationtech.geogig.repository.AbstractGeoGigOp;
+import org.locationtech.geogig.repository.ProgressListener;
+import org.locationtech.geogig.storage.GraphDatabase;
+import org.locationtech.geogig.storage.ObjectDatabase;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Rebuilds the repository's commit graph from its commit objects, e.g. after the graph got
+ * corrupted, much faster than replaying every commit through {@link GraphDatabase#put}.
+ * <p>
+ * The object database is scanned in disk order, decoding the objects and collecting the commits'
+ * parents with a pool of threads, and the graph is then bulk loaded in key order into fresh
+ * databases that replace the current ones once loaded, so a failed rebuild leaves the graph as it
+ * was. The mappings and properties of the graph nodes, which the commit objects don't record, are
+ * kept. The graph is rebuilt in the layout a new graph would get, so setting
+ * {@code bdbje.graph.edge_keys} beforehand converts it to the edge per key layout.
+ * <p>
+ * The graph is locked for writing while it's loaded, reads meanwhile see the current graph until
+ * it's replaced, so it's best run while the repository is not in use. Returns the number of graph
+ * nodes written, {@code 0} if cancelled while scanning, before the graph is changed.
+ *
+ * @see GraphEdges
+ */
+public class RebuildGraphOp extends AbstractGeoGigOp<Integer> {
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * @param threads the number of threads decoding objects, defaults to the number of
+     *        processors
+     */
+    public RebuildGraphOp setThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    @Override
+    protected Integer _call() {
+        Preconditions.checkArgument(threads > 0, "threads must be positive: %s", threads);
+        ObjectDatabase objectDatabase = objectDatabase();
+        GraphDatabase graphDatabase = graphDatabase();
+        Preconditions.checkState(objectDatabase instanceof JEObjectDatabase,
+                "Repository's object database is not a BDB JE database: %s", objectDatabase);
+        Preconditions.checkState(graphDatabase instanceof JEGraphDatabase,
+                "Repository's graph database is not a BDB JE database: %s", graphDatabase);
+
+        final ProgressListener progress = getProgressListener();
+        progress.setDescription("Scanning commits...");
+        Map<ObjectId, ? extends List<ObjectId>> commits = ((JEObjectDatabase) objectDatabase)
+                .readCommitParents(threads, progress);
+        if (progress.isCanceled()) {
+            return 0;
+        }
+        return ((JEGraphDatabase) graphDatabase).rebuild(commits, progress);
+    }
+}
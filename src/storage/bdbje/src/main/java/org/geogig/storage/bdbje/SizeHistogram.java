@@ -0,0 +1,92 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+/**
+ * Histogram of byte sizes in power of two buckets, where bucket {@code i} counts the sizes in the
+ * {@code [2^i, 2^(i+1))} range (bucket zero also counts empty values).
+ */
+public class SizeHistogram {
+
+    private final long[] buckets = new long[Integer.SIZE];
+
+    private long count;
+
+    private long min = Long.MAX_VALUE;
+
+    private long max;
+
+    public void add(final int size) {
+        buckets[bucket(size)]++;
+        count++;
+        min = Math.min(min, size);
+        max = Math.max(max, size);
+    }
+
+    static int bucket(final int size) {
+        return size <= 1 ? 0 : Integer.SIZE - 1 - Integer.numberOfLeadingZeros(size);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * @return the number of sizes in the {@code [2^bucket, 2^(bucket+1))} range
+     */
+    public long getBucket(int bucket) {
+        return buckets[bucket];
+    }
+
+    public int getNumBuckets() {
+        return buckets.length;
+    }
+
+    /**
+     * @return an upper bound of the size below which {@code percentile} percent of the values
+     *         fall, with the precision of the bucket width
+     */
+    public long getPercentile(double percentile) {
+        final long threshold = (long) Math.ceil(count * percentile / 100d);
+        long accum = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            accum += buckets[i];
+            if (accum >= threshold && accum > 0) {
+                return Math.min(max, (1L << (i + 1)) - 1);
+            }
+        }
+        return max;
+    }
+
+    void toJSON(JsonWriter json) {
+        json.beginObject();
+        json.member("count", count).member("min", getMin()).member("max", max);
+        json.member("p50", getPercentile(50)).member("p90", getPercentile(90))
+                .member("p99", getPercentile(99));
+        json.name("buckets").beginArray();
+        for (int i = 0; i < buckets.length; i++) {
+            if (buckets[i] > 0) {
+                json.beginObject().member("from", i == 0 ? 0L : 1L << i)
+                        .member("to", (1L << (i + 1)) - 1).member("count", buckets[i])
+                        .endObject();
+            }
+        }
+        json.endArray();
+        json.endObject();
+    }
+}
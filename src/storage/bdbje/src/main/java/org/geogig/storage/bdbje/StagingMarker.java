@@ -0,0 +1,89 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.io.Files;
+
+/**
+ * Durable record of the last batch of a {@link JEObjectDatabase bulk staging} import known to be
+ * synced to disk.
+ * <p>
+ * In bulk staging mode the object database is written with deferred writes, so after a crash it
+ * reverts to its state at the last sync. The marker is written right after each sync, atomically
+ * (to a temporary file that's synced and renamed over the previous marker), so an interrupted
+ * import can resume from the batch following {@link #getLastSyncedBatch()}.
+ */
+class StagingMarker {
+
+    static final String FILE_NAME = "staging.marker";
+
+    private static final String BATCH_KEY = "lastSyncedBatch";
+
+    private static final String TIMESTAMP_KEY = "timestamp";
+
+    private final File file;
+
+    StagingMarker(final File envHome) {
+        this.file = new File(envHome, FILE_NAME);
+    }
+
+    public Optional<Long> getLastSyncedBatch() {
+        if (!file.exists()) {
+            return Optional.absent();
+        }
+        Properties props = new Properties();
+        try {
+            Reader reader = Files.newReader(file, Charsets.UTF_8);
+            try {
+                props.load(reader);
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+        String batch = props.getProperty(BATCH_KEY);
+        return batch == null ? Optional.<Long> absent() : Optional.of(Long.valueOf(batch));
+    }
+
+    public void write(final long lastSyncedBatch) {
+        final File tmp = new File(file.getParentFile(), FILE_NAME + ".tmp");
+        Properties props = new Properties();
+        props.setProperty(BATCH_KEY, String.valueOf(lastSyncedBatch));
+        props.setProperty(TIMESTAMP_KEY, String.valueOf(System.currentTimeMillis()));
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                props.store(out, "Last bulk staging batch synced to disk");
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            java.nio.file.Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    public void clear() {
+        file.delete();
+    }
+}
@@ -0,0 +1,67 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import org.locationtech.geogig.repository.AbstractGeoGigOp;
+import org.locationtech.geogig.repository.ProgressListener;
+import org.locationtech.geogig.storage.ConfigDatabase;
+import org.locationtech.geogig.storage.GraphDatabase;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+
+/**
+ * Converts the repository's graph nodes to the compact v0.3 format, in batches and while the
+ * repository is in use, since all the graph databases read both formats.
+ * <p>
+ * Once all nodes are converted a v0.2 repository is switched to {@code bdbje.version} 0.3, whose
+ * objects are stored the same way, so new nodes are written in the v0.3 format too after it's
+ * reopened. v0.1 repositories are refused: their objects are serialized differently, so the
+ * version can't be switched along with the graph and the nodes would be left in a format the
+ * version doesn't declare.
+ *
+ * @see JEGraphDatabase_v0_3
+ */
+public class UpgradeGraphOp extends AbstractGeoGigOp<Integer> {
+
+    static final String VERSION_CONFIG_KEY = "bdbje.version";
+
+    /**
+     * @return the number of graph nodes converted
+     */
+    @Override
+    protected Integer _call() {
+        final GraphDatabase graphDatabase = graphDatabase();
+        checkUpgradable(graphDatabase);
+
+        final ProgressListener progress = getProgressListener();
+        progress.setDescription("Converting graph nodes to the v0.3 format...");
+        final int converted = ((JEGraphDatabase) graphDatabase)
+                .rewrite(JEGraphDatabase_v0_3.BINDING_V3, progress);
+        if (progress.isCanceled()) {
+            return converted;
+        }
+        final ConfigDatabase config = configDatabase();
+        Optional<String> version = config.get(VERSION_CONFIG_KEY);
+        if (version.isPresent() && "0.2".equals(version.get())) {
+            config.put(VERSION_CONFIG_KEY, "0.3");
+        }
+        return converted;
+    }
+
+    static void checkUpgradable(GraphDatabase graphDatabase) {
+        Preconditions.checkState(graphDatabase instanceof JEGraphDatabase,
+                "Graph database is not a BDB JE one: %s", graphDatabase);
+        Preconditions.checkState(!(graphDatabase instanceof JEGraphDatabase_v0_1),
+                "The graph of a bdbje 0.1 repository can't be converted to the v0.3 format, "
+                        + "as its objects are stored in a different format than bdbje 0.3 ones. "
+                        + "Clone it into a bdbje 0.3 repository instead");
+    }
+}
@@ -0,0 +1,422 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.eclipse.jdt.annotation.Nullable;
+import org.locationtech.geogig.model.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * In memory write buffer (a.k.a. memtable) in front of {@link JEObjectDatabase} for small,
+ * single object inserts.
+ * <p>
+ * Each {@link JEObjectDatabase#put single object insert} would otherwise be its own JE transaction
+ * and log write. Instead, objects are kept in a sorted in-memory table that serves reads of just
+ * written objects, and is flushed to JE as a single sorted batch when it reaches
+ * {@code maxBytes}, or every {@code flushIntervalMillis} if not empty.
+ * <p>
+ * Buffered objects are lost on a crash unless a {@link WalMode write-ahead log} is enabled, in
+ * which case each buffered object is appended to a log file (and optionally synced) before the
+ * insert returns. The log is discarded once its contents have been flushed to JE, and replayed
+ * at {@link #open()} if the process died before that.
+ */
+class WriteBuffer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WriteBuffer.class);
+
+    /**
+     * Durability of the buffered objects
+     */
+    static enum WalMode {
+        /**
+         * No write-ahead log, buffered objects are lost on a crash
+         */
+        NONE,
+        /**
+         * Buffered objects are appended to the write-ahead log, without syncing it to disk, so
+         * they survive a process crash but not a system crash
+         */
+        ASYNC,
+        /**
+         * Buffered objects are appended to the write-ahead log and synced to disk before each
+         * insert returns
+         */
+        SYNC
+    }
+
+    /**
+     * Writes a flushed batch of objects to the backing database
+     */
+    static interface Flusher {
+        /**
+         * @param sorted the objects to write, in key order
+         * @param durable whether the batch shall be durable when this method returns
+         */
+        void write(SortedMap<ObjectId, byte[]> sorted, boolean durable);
+
+        /**
+         * @return whether the backing database has the object already
+         */
+        boolean exists(ObjectId id);
+    }
+
+    private static final String WAL_FILE = "writebuffer.wal";
+
+    private static final String FLUSHING_WAL_FILE = "writebuffer.wal.flushing";
+
+    private final File walDirectory;
+
+    private final WalMode walMode;
+
+    private final long maxBytes;
+
+    private final long flushIntervalMillis;
+
+    private final Flusher flusher;
+
+    /**
+     * Guards the swap of {@link #active} (and its WAL) at flush time and {@link #closed}. Inserts
+     * hold the read lock so they can run concurrently.
+     */
+    private final ReadWriteLock swapLock = new ReentrantReadWriteLock();
+
+    /**
+     * Serializes flushes
+     */
+    private final Object flushLock = new Object();
+
+    private volatile ConcurrentNavigableMap<ObjectId, byte[]> active = newTable();
+
+    /**
+     * The table being flushed, still visible to readers until written to JE
+     */
+    private volatile ConcurrentNavigableMap<ObjectId, byte[]> flushing = newTable();
+
+    private final AtomicLong activeBytes = new AtomicLong();
+
+    @Nullable
+    private FileChannel wal;
+
+    private final AtomicBoolean flushPending = new AtomicBoolean();
+
+    private ScheduledExecutorService flushService;
+
+    private boolean closed;
+
+    WriteBuffer(final File walDirectory, final WalMode walMode, final long maxBytes,
+            final long flushIntervalMillis, final Flusher flusher) {
+        Preconditions.checkArgument(maxBytes > 0, "maxBytes shall be > 0");
+        Preconditions.checkArgument(flushIntervalMillis > 0, "flushIntervalMillis shall be > 0");
+        this.walDirectory = walDirectory;
+        this.walMode = walMode;
+        this.maxBytes = maxBytes;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.flusher = flusher;
+    }
+
+    private static ConcurrentNavigableMap<ObjectId, byte[]> newTable() {
+        return new ConcurrentSkipListMap<ObjectId, byte[]>(ObjectId.NATURAL_ORDER);
+    }
+
+    /**
+     * Replays any write-ahead log left over by a previous crash and starts the periodic flush
+     */
+    public void open() {
+        replay(new File(walDirectory, FLUSHING_WAL_FILE));
+        replay(new File(walDirectory, WAL_FILE));
+        if (walMode != WalMode.NONE) {
+            wal = openWal();
+        }
+        flushService = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("BDBJE-" + walDirectory.getName() + "-WRITEBUFFER-%d").build());
+        flushService.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (RuntimeException e) {
+                    LOGGER.error("Error flushing write buffer", e);
+                }
+            }
+        }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Flushes all the buffered objects and stops the periodic flush
+     */
+    public void close() {
+        swapLock.writeLock().lock();
+        try {
+            closed = true;
+        } finally {
+            swapLock.writeLock().unlock();
+        }
+        if (flushService != null) {
+            flushService.shutdown();
+            try {
+                flushService.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                LOGGER.warn("Interrupted waiting for write buffer flush", e);
+            }
+            flushService = null;
+        }
+        flush();
+        if (wal != null) {
+            closeWal(wal);
+            wal = null;
+            new File(walDirectory, WAL_FILE).delete();
+        }
+    }
+
+    /**
+     * Checks the object is neither buffered nor in the backing database before adding it, while
+     * the tables can't be swapped, so that a concurrent flush can't make it look missing in
+     * between.
+     * 
+     * @return {@code true} if the object was added, {@code false} if it was already buffered or
+     *         stored
+     * @throws IllegalStateException if the buffer is closed
+     */
+    public boolean put(final ObjectId id, final byte[] rawData) {
+        final boolean added;
+        final ScheduledExecutorService service;
+        swapLock.readLock().lock();
+        try {
+            Preconditions.checkState(!closed, "write buffer is closed");
+            service = flushService;
+            // flushing is only emptied once written, so check it before the database
+            if (active.containsKey(id) || flushing.containsKey(id) || flusher.exists(id)) {
+                return false;
+            }
+            added = active.putIfAbsent(id, rawData) == null;
+            if (added) {
+                if (wal != null) {
+                    appendToWal(id, rawData);
+                }
+                activeBytes.addAndGet(ObjectId.NUM_BYTES + rawData.length);
+            }
+        } finally {
+            swapLock.readLock().unlock();
+        }
+        if (added && activeBytes.get() >= maxBytes) {
+            if (activeBytes.get() >= 2 * maxBytes) {
+                // the asynchronous flush can't keep up, apply back pressure
+                flush();
+            } else if (flushPending.compareAndSet(false, true)) {
+                try {
+                    service.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            flushPending.set(false);
+                            flush();
+                        }
+                    });
+                } catch (RejectedExecutionException closing) {
+                    // close() flushes the buffer
+                    flushPending.set(false);
+                }
+            }
+        }
+        return added;
+    }
+
+    @Nullable
+    public byte[] get(final ObjectId id) {
+        byte[] raw = active.get(id);
+        if (raw == null) {
+            raw = flushing.get(id);
+        }
+        return raw;
+    }
+
+    public boolean contains(final ObjectId id) {
+        return active.containsKey(id) || flushing.containsKey(id);
+    }
+
+    public boolean isEmpty() {
+        return active.isEmpty() && flushing.isEmpty();
+    }
+
+    /**
+     * @return the buffered ids starting with the given partial id
+     */
+    public List<ObjectId> lookUp(final byte[] partialId) {
+        List<ObjectId> matches = new ArrayList<ObjectId>(2);
+        lookUp(active, partialId, matches);
+        lookUp(flushing, partialId, matches);
+        return matches;
+    }
+
+    private void lookUp(ConcurrentNavigableMap<ObjectId, byte[]> table, byte[] partialId,
+            List<ObjectId> matches) {
+        byte[] from = new byte[ObjectId.NUM_BYTES];
+        System.arraycopy(partialId, 0, from, 0, partialId.length);
+        for (ObjectId id : table.tailMap(ObjectId.createNoClone(from), true).keySet()) {
+            for (int i = 0; i < partialId.length; i++) {
+                if ((byte) id.byteN(i) != partialId[i]) {
+                    return;
+                }
+            }
+            if (!matches.contains(id)) {
+                matches.add(id);
+            }
+        }
+    }
+
+    /**
+     * Writes all the currently buffered objects to the backing database as a single sorted batch
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            if (!flushing.isEmpty()) {
+                // a previous flush failed, retry it before swapping tables
+                writeFlushing();
+            }
+            swapLock.writeLock().lock();
+            try {
+                if (active.isEmpty()) {
+                    return;
+                }
+                flushing = active;
+                active = newTable();
+                activeBytes.set(0);
+                if (wal != null) {
+                    closeWal(wal);
+                    File walFile = new File(walDirectory, WAL_FILE);
+                    Preconditions.checkState(
+                            walFile.renameTo(new File(walDirectory, FLUSHING_WAL_FILE)),
+                            "Unable to rename write buffer log %s", walFile);
+                    wal = openWal();
+                }
+            } finally {
+                swapLock.writeLock().unlock();
+            }
+            writeFlushing();
+        }
+    }
+
+    private void writeFlushing() {
+        final ConcurrentNavigableMap<ObjectId, byte[]> toFlush = flushing;
+        flusher.write(toFlush, walMode != WalMode.NONE);
+        LOGGER.debug("Flushed {} buffered objects", toFlush.size());
+        flushing = newTable();
+        new File(walDirectory, FLUSHING_WAL_FILE).delete();
+    }
+
+    private FileChannel openWal() {
+        try {
+            RandomAccessFile file = new RandomAccessFile(new File(walDirectory, WAL_FILE), "rw");
+            FileChannel channel = file.getChannel();
+            channel.position(channel.size());
+            return channel;
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private void closeWal(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.warn("Error closing write buffer log", e);
+        }
+    }
+
+    private void appendToWal(final ObjectId id, final byte[] rawData) {
+        ByteBuffer record = ByteBuffer.allocate(ObjectId.NUM_BYTES + 4 + rawData.length);
+        record.put(id.getRawValue()).putInt(rawData.length).put(rawData);
+        record.flip();
+        try {
+            synchronized (wal) {
+                while (record.hasRemaining()) {
+                    wal.write(record);
+                }
+                if (walMode == WalMode.SYNC) {
+                    wal.force(false);
+                }
+            }
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private void replay(final File walFile) {
+        if (!walFile.exists()) {
+            return;
+        }
+        SortedMap<ObjectId, byte[]> objects = new TreeMap<ObjectId, byte[]>(
+                ObjectId.NATURAL_ORDER);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(walFile)));
+            while (true) {
+                byte[] id = new byte[ObjectId.NUM_BYTES];
+                try {
+                    in.readFully(id);
+                } catch (EOFException eof) {
+                    break;
+                }
+                byte[] raw;
+                try {
+                    raw = new byte[in.readInt()];
+                    in.readFully(raw);
+                } catch (EOFException eof) {
+                    LOGGER.warn("Ignoring truncated record at the end of {}", walFile);
+                    break;
+                }
+                objects.put(ObjectId.createNoClone(id), raw);
+            }
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+        LOGGER.info("Recovering {} objects from write buffer log {}", objects.size(), walFile);
+        flusher.write(objects, true);
+        walFile.delete();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("WriteBuffer[objects=%d, wal=%s]", active.size() + flushing.size(),
+                walMode);
+    }
+}
@@ -0,0 +1,34 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import org.locationtech.geogig.repository.AbstractGeoGigOp;
+import org.locationtech.geogig.storage.GraphDatabase;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Writes a memory mapped, read only snapshot of the repository's commit graph next to the graph
+ * environment, which the graph database then reads the commits it holds from instead of JE.
+ * Running it again replaces the snapshot with an up to date one. Returns the number of commits in
+ * the snapshot.
+ *
+ * @see CommitGraphFile
+ */
+public class WriteCommitGraphOp extends AbstractGeoGigOp<Integer> {
+
+    @Override
+    protected Integer _call() {
+        GraphDatabase graphDatabase = graphDatabase();
+        Preconditions.checkState(graphDatabase instanceof JEGraphDatabase,
+                "Repository's graph database is not a BDB JE database: %s", graphDatabase);
+        return ((JEGraphDatabase) graphDatabase).writeCommitGraph();
+    }
+}
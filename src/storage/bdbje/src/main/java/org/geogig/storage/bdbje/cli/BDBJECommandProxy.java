@@ -0,0 +1,55 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje.cli;
+
+import org.geogig.storage.bdbje.cli.commands.Backup;
+import org.geogig.storage.bdbje.cli.commands.CacheReport;
+import org.geogig.storage.bdbje.cli.commands.OpStats;
+import org.geogig.storage.bdbje.cli.commands.RebuildGraph;
+import org.geogig.storage.bdbje.cli.commands.Restore;
+import org.geogig.storage.bdbje.cli.commands.Stats;
+import org.geogig.storage.bdbje.cli.commands.UpgradeGraph;
+import org.geogig.storage.bdbje.cli.commands.WriteCommitGraph;
+import org.locationtech.geogig.cli.CLICommandExtension;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameters;
+
+/**
+ * {@link CLICommandExtension} that provides a {@link JCommander} for BDB JE storage specific
+ * commands.
+ * 
+ * @see Stats
+ * @see OpStats
+ * @see Backup
+ * @see Restore
+ * @see CacheReport
+ * @see UpgradeGraph
+ * @see RebuildGraph
+ * @see WriteCommitGraph
+ */
+@Parameters(commandNames = "bdbje", commandDescription = "BerkeleyDB JE storage backend utilities")
+public class BDBJECommandProxy implements CLICommandExtension {
+
+    @Override
+    public JCommander getCommandParser() {
+        JCommander commander = new JCommander();
+        commander.setProgramName("geogig bdbje");
+        commander.addCommand("stats", new Stats());
+        commander.addCommand("op-stats", new OpStats());
+        commander.addCommand("backup", new Backup());
+        commander.addCommand("restore", new Restore());
+        commander.addCommand("cache-report", new CacheReport());
+        commander.addCommand("upgrade-graph", new UpgradeGraph());
+        commander.addCommand("rebuild-graph", new RebuildGraph());
+        commander.addCommand("write-commit-graph", new WriteCommitGraph());
+        return commander;
+    }
+}
@@ -0,0 +1,65 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje.cli.commands;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.geogig.storage.bdbje.BackupManifest;
+import org.geogig.storage.bdbje.BackupOp;
+import org.locationtech.geogig.cli.AbstractCommand;
+import org.locationtech.geogig.cli.CLICommand;
+import org.locationtech.geogig.cli.Console;
+import org.locationtech.geogig.cli.GeogigCLI;
+import org.locationtech.geogig.cli.annotation.ReadOnly;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import com.google.common.base.Preconditions;
+
+/**
+ * Takes a hot, incremental backup of the repository's BDB JE environments.
+ *
+ * @see BackupOp
+ * @see Restore
+ */
+@ReadOnly
+@Parameters(commandNames = "backup", commandDescription = "Back up the BDB JE environments while the repository is in use, copying only what changed since the last backup to the same directory")
+public class Backup extends AbstractCommand implements CLICommand {
+
+    @Parameter(description = "<backup directory>")
+    public List<String> target;
+
+    @Parameter(names = "--rate", description = "Maximum copy rate in MB/s, 0 for no limit")
+    public long rate = 0;
+
+    @Override
+    protected void runInternal(GeogigCLI cli) throws IOException {
+        Preconditions.checkArgument(target != null && target.size() == 1,
+                "A single backup directory shall be provided");
+        Preconditions.checkArgument(rate >= 0, "--rate can't be negative");
+        final Console console = cli.getConsole();
+
+        BackupManifest manifest = cli.getGeogig().command(BackupOp.class)
+                .setTarget(new File(target.get(0))).setBytesPerSecond(rate * 1024 * 1024)
+                .setProgressListener(cli.getProgressListener()).call();
+        if (manifest == null) {
+            console.println("Backup cancelled");
+            return;
+        }
+        for (String env : manifest.getEnvironments()) {
+            console.println(String.format("%-10s %,6d log files", env,
+                    manifest.getFiles(env).size()));
+        }
+        console.println(String.format("Backup %s complete, copied %,d files (%,d bytes)",
+                manifest.getName(), manifest.getCopiedFiles(), manifest.getCopiedBytes()));
+    }
+}
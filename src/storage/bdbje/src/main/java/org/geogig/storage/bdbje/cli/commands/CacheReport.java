@@ -0,0 +1,66 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje.cli.commands;
+
+import java.io.IOException;
+
+import org.geogig.storage.bdbje.CacheQuota;
+import org.geogig.storage.bdbje.CacheReportOp;
+import org.locationtech.geogig.cli.AbstractCommand;
+import org.locationtech.geogig.cli.CLICommand;
+import org.locationtech.geogig.cli.Console;
+import org.locationtech.geogig.cli.GeogigCLI;
+import org.locationtech.geogig.cli.annotation.ReadOnly;
+
+import com.beust.jcommander.Parameters;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Reports how much of the JE cache each open environment takes, along with its cache priority and
+ * quota.
+ *
+ * @see CacheReportOp
+ */
+@ReadOnly
+@Parameters(commandNames = "cache-report", commandDescription = "Report the JE cache occupancy, priority and quota of the open BDB JE environments")
+public class CacheReport extends AbstractCommand implements CLICommand {
+
+    @Override
+    protected void runInternal(GeogigCLI cli) throws IOException {
+        final Console console = cli.getConsole();
+
+        ImmutableList<CacheQuota> quotas = cli.getGeogig().command(CacheReportOp.class).call();
+        if (quotas.isEmpty()) {
+            console.println("No BDB JE environments open");
+            return;
+        }
+        console.println(String.format("%-10s %-8s %12s %12s %7s  %s", "env", "priority", "used",
+                "quota", "cache%", "home"));
+        for (CacheQuota q : quotas) {
+            console.println(String.format("%-10s %-8s %12s %12s %6.1f%%  %s%s",
+                    q.getEnvironmentName(), q.getPriority().toString().toLowerCase(),
+                    bytes(q.getUsedBytes()), q.getQuota() == 0 ? "-" : bytes(q.getQuota()),
+                    q.getCacheMaxBytes() == 0 ? 0d
+                            : 100d * q.getUsedBytes() / q.getCacheMaxBytes(),
+                    q.getEnvironmentHome(), q.isOverQuota() ? "  (over quota)" : ""));
+        }
+        CacheQuota any = quotas.get(0);
+        console.println(String.format("Cache in use: %s of %s", bytes(any.getCacheBytes()),
+                bytes(any.getCacheMaxBytes())));
+    }
+
+    private static String bytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        int exp = (int) (Math.log(bytes) / Math.log(1024));
+        return String.format("%.1f %sB", bytes / Math.pow(1024, exp), "KMGTPE".charAt(exp - 1));
+    }
+}
@@ -0,0 +1,115 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje.cli.commands;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.geogig.storage.bdbje.LatencyHistogram;
+import org.geogig.storage.bdbje.OperationStats;
+import org.geogig.storage.bdbje.OperationStatsOp;
+import org.locationtech.geogig.cli.AbstractCommand;
+import org.locationtech.geogig.cli.CLICommand;
+import org.locationtech.geogig.cli.Console;
+import org.locationtech.geogig.cli.GeogigCLI;
+
+import com.beust.jcommander.IVariableArity;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+
+/**
+ * Reports latency percentiles and throughput of the BDB JE object and graph database operations.
+ * <p>
+ * Figures are kept in memory by the process running the operations, so the command takes an
+ * optional geogig command to run and reports the storage operations it performed, e.g.
+ * {@code geogig bdbje op-stats --run log --oneline}.
+ *
+ * @see OperationStatsOp
+ */
+@Parameters(commandNames = "op-stats", commandDescription = "Run a command and report the latency of the BDB JE storage operations it performed")
+public class OpStats extends AbstractCommand implements CLICommand, IVariableArity {
+
+    @Parameter(names = "--run", variableArity = true, description = "The geogig command to run and its arguments, last as it takes all the remaining ones, e.g. --run log --oneline")
+    public List<String> run = new ArrayList<String>();
+
+    @Parameter(names = "--json", description = "Also write the statistics as JSON to the given file")
+    public String jsonFile;
+
+    @Override
+    protected void runInternal(GeogigCLI cli) throws IOException {
+        final Console console = cli.getConsole();
+
+        ImmutableMap<String, OperationStats> stats = cli.getGeogig()
+                .command(OperationStatsOp.class).call();
+        for (OperationStats s : stats.values()) {
+            s.reset();
+        }
+        if (!run.isEmpty()) {
+            cli.execute(run.toArray(new String[run.size()]));
+            console.println();
+        }
+
+        console.println(String.format("%-9s %-12s %12s %12s %12s %10s %10s %10s %10s", "database",
+                "operation", "calls", "items", "items/s", "mean", "p50", "p99", "p99.9"));
+        for (Map.Entry<String, OperationStats> db : stats.entrySet()) {
+            OperationStats s = db.getValue();
+            for (Map.Entry<String, OperationStats.Op> e : s.getOperations().entrySet()) {
+                OperationStats.Op op = e.getValue();
+                if (op.getCalls() == 0) {
+                    continue;
+                }
+                LatencyHistogram h = op.getLatency();
+                console.println(String.format("%-9s %-12s %,12d %,12d %,12.0f %10s %10s %10s %10s",
+                        db.getKey(), e.getKey(), op.getCalls(), op.getItems(),
+                        s.getThroughput(op), nanos(h.getMean()), nanos(h.getPercentile(50)),
+                        nanos(h.getPercentile(99)), nanos(h.getPercentile(99.9))));
+            }
+        }
+
+        if (jsonFile != null) {
+            StringBuilder json = new StringBuilder("{");
+            for (Map.Entry<String, OperationStats> db : stats.entrySet()) {
+                json.append(json.length() > 1 ? "," : "").append('"').append(db.getKey())
+                        .append("\":").append(db.getValue().toJSON());
+            }
+            json.append('}');
+            Files.write(json, new File(jsonFile), Charsets.UTF_8);
+            console.println("Statistics written to " + jsonFile);
+        }
+    }
+
+    /**
+     * The command to {@code --run} takes all the remaining arguments, options included, so they
+     * reach it as given instead of being parsed as options of this command
+     */
+    @Override
+    public int processVariableArity(String optionName, String[] options) {
+        return options.length;
+    }
+
+    private static String nanos(long nanos) {
+        if (nanos < 1000) {
+            return nanos + " ns";
+        }
+        if (nanos < 1000 * 1000) {
+            return String.format("%.1f us", nanos / 1e3);
+        }
+        if (nanos < 1000 * 1000 * 1000) {
+            return String.format("%.1f ms", nanos / 1e6);
+        }
+        return String.format("%.2f s", nanos / 1e9);
+    }
+}
@@ -0,0 +1,50 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje.cli.commands;
+
+import java.io.IOException;
+
+import org.geogig.storage.bdbje.RebuildGraphOp;
+import org.locationtech.geogig.cli.AbstractCommand;
+import org.locationtech.geogig.cli.CLICommand;
+import org.locationtech.geogig.cli.Console;
+import org.locationtech.geogig.cli.GeogigCLI;
+import org.locationtech.geogig.repository.ProgressListener;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import com.google.common.base.Preconditions;
+
+/**
+ * Rebuilds the commit graph from the repository's commit objects.
+ *
+ * @see RebuildGraphOp
+ */
+@Parameters(commandNames = "rebuild-graph", commandDescription = "Rebuild the commit graph from the repository's commit objects")
+public class RebuildGraph extends AbstractCommand implements CLICommand {
+
+    @Parameter(names = "--threads", description = "Number of threads decoding objects, defaults to the number of processors")
+    public int threads = Runtime.getRuntime().availableProcessors();
+
+    @Override
+    protected void runInternal(GeogigCLI cli) throws IOException {
+        Preconditions.checkArgument(threads > 0, "--threads shall be positive");
+        final Console console = cli.getConsole();
+        final ProgressListener progress = cli.getProgressListener();
+
+        Integer nodes = cli.getGeogig().command(RebuildGraphOp.class).setThreads(threads)
+                .setProgressListener(progress).call();
+        if (progress.isCanceled()) {
+            console.println("Rebuild cancelled, the graph was not changed");
+            return;
+        }
+        console.println(String.format("Rebuilt the commit graph, %,d nodes", nodes));
+    }
+}
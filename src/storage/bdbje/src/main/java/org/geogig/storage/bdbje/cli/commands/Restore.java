@@ -0,0 +1,83 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje.cli.commands;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.geogig.storage.bdbje.BackupManifest;
+import org.geogig.storage.bdbje.JEBackup;
+import org.locationtech.geogig.cli.AbstractCommand;
+import org.locationtech.geogig.cli.CLICommand;
+import org.locationtech.geogig.cli.Console;
+import org.locationtech.geogig.cli.GeogigCLI;
+import org.locationtech.geogig.cli.annotation.RequiresRepository;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Restores a backup taken with {@link Backup} into a new repository directory, or lists the
+ * backups in a backup directory.
+ *
+ * @see JEBackup
+ */
+@RequiresRepository(false)
+@Parameters(commandNames = "restore", commandDescription = "Restore a BDB JE backup to a new repository directory")
+public class Restore extends AbstractCommand implements CLICommand {
+
+    @Parameter(description = "<backup directory> [<repository directory>]")
+    public List<String> args;
+
+    @Parameter(names = "--backup", description = "Manifest of the backup to restore, defaults to the latest one")
+    public String backup;
+
+    @Parameter(names = "--list", description = "List the backups in the backup directory")
+    public boolean list;
+
+    @Override
+    protected void runInternal(GeogigCLI cli) throws IOException {
+        Preconditions.checkArgument(args != null && !args.isEmpty(),
+                "A backup directory shall be provided");
+        final Console console = cli.getConsole();
+        final File backupDir = new File(args.get(0));
+        final ImmutableList<BackupManifest> backups = JEBackup.list(backupDir);
+
+        if (list) {
+            for (BackupManifest m : backups) {
+                console.println(String.format("%s  %,6d files copied (%,d bytes)", m.getName(),
+                        m.getCopiedFiles(), m.getCopiedBytes()));
+            }
+            return;
+        }
+        Preconditions.checkArgument(args.size() == 2,
+                "The repository directory to restore to shall be provided");
+        Preconditions.checkArgument(!backups.isEmpty(), "No backups found in %s", backupDir);
+
+        BackupManifest manifest = backups.get(backups.size() - 1);
+        if (backup != null) {
+            manifest = null;
+            for (BackupManifest m : backups) {
+                if (m.getName().equals(backup)) {
+                    manifest = m;
+                }
+            }
+            Preconditions.checkArgument(manifest != null, "Backup %s not found in %s", backup,
+                    backupDir);
+        }
+        final File geogigDir = new File(new File(args.get(1)), ".geogig");
+        JEBackup.restore(backupDir, manifest, geogigDir);
+        console.println(String.format("Restored %s to %s", manifest.getName(),
+                geogigDir.getParentFile()));
+    }
+}
@@ -0,0 +1,122 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje.cli.commands;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import org.geogig.storage.bdbje.ObjectStoreStats;
+import org.geogig.storage.bdbje.ObjectStoreStats.TypeStats;
+import org.geogig.storage.bdbje.ObjectStoreStatsOp;
+import org.geogig.storage.bdbje.SizeHistogram;
+import org.locationtech.geogig.cli.AbstractCommand;
+import org.locationtech.geogig.cli.CLICommand;
+import org.locationtech.geogig.cli.Console;
+import org.locationtech.geogig.cli.GeogigCLI;
+import org.locationtech.geogig.cli.annotation.ReadOnly;
+import org.locationtech.geogig.model.RevObject.TYPE;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * Reports statistics about the contents of the repository's BDB JE object database.
+ *
+ * @see ObjectStoreStatsOp
+ */
+@ReadOnly
+@Parameters(commandNames = "stats", commandDescription = "Report object counts, sizes and storage figures of the BDB JE object database")
+public class Stats extends AbstractCommand implements CLICommand {
+
+    @Parameter(names = "--histogram", description = "Print the size histogram of each object type")
+    public boolean histogram;
+
+    @Parameter(names = "--json", description = "Also write the statistics as JSON to the given file")
+    public String jsonFile;
+
+    @Override
+    protected void runInternal(GeogigCLI cli) throws IOException {
+        final Console console = cli.getConsole();
+
+        ObjectStoreStats stats = cli.getGeogig().command(ObjectStoreStatsOp.class)
+                .setProgressListener(cli.getProgressListener()).call();
+
+        console.println(String.format("%-12s %14s %14s %14s %7s %10s %10s", "type", "count",
+                "stored", "uncompressed", "ratio", "p50", "p99"));
+        for (Map.Entry<TYPE, TypeStats> e : stats.getTypeStats().entrySet()) {
+            TypeStats s = e.getValue();
+            console.println(String.format("%-12s %,14d %14s %14s %7.2f %10s %10s", e.getKey(),
+                    s.getCount(), bytes(s.getStoredBytes()), bytes(s.getUncompressedBytes()),
+                    s.getCompressionRatio(), bytes(s.getStoredSizes().getPercentile(50)),
+                    bytes(s.getStoredSizes().getPercentile(99))));
+        }
+        console.println(String.format("%-12s %,14d %14s %14s", "total", stats.getCount(),
+                bytes(stats.getStoredBytes()), bytes(stats.getUncompressedBytes())));
+        if (stats.getUnreadable() > 0) {
+            console.println(String.format("%-12s %,14d %14s", "unreadable", stats.getUnreadable(),
+                    bytes(stats.getUnreadableBytes())));
+        }
+
+        if (histogram) {
+            for (Map.Entry<TYPE, TypeStats> e : stats.getTypeStats().entrySet()) {
+                console.println();
+                console.println(e.getKey() + " stored sizes:");
+                printHistogram(console, e.getValue().getStoredSizes());
+            }
+        }
+
+        console.println();
+        console.println(String.format("Log files size  : %s", bytes(stats.getTotalLogSize())));
+        console.println(String.format("Log utilization : %.1f%%", stats.getLogUtilization()));
+        console.println(String.format("Cache           : %s of %s (%.1f%%)",
+                bytes(stats.getCacheTotalBytes()), bytes(stats.getCacheMaxBytes()),
+                stats.getCacheFill()));
+        console.println(String.format("Cache hit rate  : %.2f%% of %,d node fetches",
+                stats.getCacheHitRate(), stats.getNodeFetches()));
+        console.println(String.format("Log file reads  : %,d (%s), physical memory %s",
+                stats.getLogReads(), bytes(stats.getLogReadBytes()),
+                stats.getPhysicalMemory() < 0 ? "unknown" : bytes(stats.getPhysicalMemory())));
+        if (stats.getNodeFetches() > 0 && stats.getCacheHitRate() < 90d) {
+            console.println("  JE cache misses are served from the OS file cache or disk."
+                    + " Consider a larger 'bdbje.cache.size' (bytes or % of physical memory)"
+                    + " and -Xmx, or leave more physical memory to the OS file cache.");
+        }
+        console.println(String.format("B-tree          : depth %d, %,d INs, %,d BINs, %,d LNs",
+                stats.getTreeDepth(), stats.getInternalNodes(), stats.getBottomInternalNodes(),
+                stats.getLeafNodes()));
+        console.println(String.format("Scanned in %,d ms", stats.getScanMillis()));
+
+        if (jsonFile != null) {
+            Files.write(stats.toJSON(), new File(jsonFile), Charsets.UTF_8);
+            console.println("Statistics written to " + jsonFile);
+        }
+    }
+
+    private void printHistogram(Console console, SizeHistogram h) throws IOException {
+        for (int i = 0; i < h.getNumBuckets(); i++) {
+            long count = h.getBucket(i);
+            if (count > 0) {
+                console.println(String.format("  %10s - %-10s %,14d",
+                        bytes(i == 0 ? 0 : 1L << i), bytes((1L << (i + 1)) - 1), count));
+            }
+        }
+    }
+
+    private static String bytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        int exp = (int) (Math.log(bytes) / Math.log(1024));
+        return String.format("%.1f %sB", bytes / Math.pow(1024, exp), "KMGTPE".charAt(exp - 1));
+    }
+}
@@ -0,0 +1,45 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje.cli.commands;
+
+import java.io.IOException;
+
+import org.geogig.storage.bdbje.UpgradeGraphOp;
+import org.locationtech.geogig.cli.AbstractCommand;
+import org.locationtech.geogig.cli.CLICommand;
+import org.locationtech.geogig.cli.Console;
+import org.locationtech.geogig.cli.GeogigCLI;
+import org.locationtech.geogig.repository.ProgressListener;
+
+import com.beust.jcommander.Parameters;
+
+/**
+ * Converts the repository's graph nodes to the compact v0.3 format while it's in use.
+ *
+ * @see UpgradeGraphOp
+ */
+@Parameters(commandNames = "upgrade-graph", commandDescription = "Convert the commit graph to the compact v0.3 node format while the repository is in use")
+public class UpgradeGraph extends AbstractCommand implements CLICommand {
+
+    @Override
+    protected void runInternal(GeogigCLI cli) throws IOException {
+        final Console console = cli.getConsole();
+        final ProgressListener progress = cli.getProgressListener();
+
+        Integer converted = cli.getGeogig().command(UpgradeGraphOp.class)
+                .setProgressListener(progress).call();
+        if (progress.isCanceled()) {
+            console.println(String.format("Upgrade cancelled after converting %,d nodes",
+                    converted));
+            return;
+        }
+        console.println(String.format("Converted %,d graph nodes to the v0.3 format", converted));
+    }
+}
@@ -0,0 +1,36 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje.cli.commands;
+
+import java.io.IOException;
+
+import org.geogig.storage.bdbje.WriteCommitGraphOp;
+import org.locationtech.geogig.cli.AbstractCommand;
+import org.locationtech.geogig.cli.CLICommand;
+import org.locationtech.geogig.cli.Console;
+import org.locationtech.geogig.cli.GeogigCLI;
+
+import com.beust.jcommander.Parameters;
+
+/**
+ * Writes a memory mapped snapshot of the commit graph for fast history reads.
+ *
+ * @see WriteCommitGraphOp
+ */
+@Parameters(commandNames = "write-commit-graph", commandDescription = "Write a memory mapped, read only snapshot of the commit graph, read instead of the graph database for the commits it holds")
+public class WriteCommitGraph extends AbstractCommand implements CLICommand {
+
+    @Override
+    protected void runInternal(GeogigCLI cli) throws IOException {
+        final Console console = cli.getConsole();
+        Integer commits = cli.getGeogig().command(WriteCommitGraphOp.class).call();
+        console.println(String.format("Wrote commit graph file of %,d commits", commits));
+    }
+}
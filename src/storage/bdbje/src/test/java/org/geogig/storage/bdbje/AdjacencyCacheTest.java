@@ -0,0 +1,187 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import static org.geogig.storage.bdbje.GraphTestSupport.id;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.geogig.storage.bdbje.GraphTestSupport.History;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.geogig.model.ObjectId;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Compares a {@link JEGraphDatabase} with {@link AdjacencyCache#CONFIG_KEY} enabled to one without
+ */
+public class AdjacencyCacheTest {
+
+    private static final History HISTORY = new History(10, 5);
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private JEGraphDatabase cached;
+
+    private JEGraphDatabase uncached;
+
+    private File cachedRoot;
+
+    @Before
+    public void before() throws Exception {
+        cachedRoot = tmp.newFolder("cached");
+        cached = open(cachedRoot, true);
+        uncached = open(tmp.newFolder("uncached"), false);
+    }
+
+    private JEGraphDatabase open(File root, boolean adjacencyCache) {
+        return GraphTestSupport.open(root, "0.2",
+                ImmutableMap.of(AdjacencyCache.CONFIG_KEY, adjacencyCache));
+    }
+
+    @After
+    public void after() {
+        cached.close();
+        uncached.close();
+    }
+
+    private static ImmutableList<ObjectId> parents(int i) {
+        return HISTORY.parents(i);
+    }
+
+    private void put(int from, int to) {
+        for (int i = from; i < to; i++) {
+            assertEquals(uncached.put(id(i), parents(i)), cached.put(id(i), parents(i)));
+        }
+    }
+
+    private void assertSameGraph(int size) {
+        GraphTestSupport.assertSameGraph(uncached, cached, size);
+        // the cache keeps the children in the order they were added
+        for (int i = 0; i < size; i++) {
+            assertEquals(uncached.getChildren(id(i)), cached.getChildren(id(i)));
+        }
+    }
+
+    @Test
+    public void testLoadAndPut() {
+        put(0, 100);
+        // loads the cache
+        assertSameGraph(100);
+        // updates it
+        put(100, 200);
+        assertSameGraph(200);
+    }
+
+    @Test
+    public void testChunks() {
+        put(0, 10);
+        assertSameGraph(10);
+        // fills several chunks one commit at a time
+        put(10, 3 * AdjacencyCache.CHUNK_SIZE + 10);
+        assertSameGraph(3 * AdjacencyCache.CHUNK_SIZE + 10);
+    }
+
+    @Test
+    public void testBuildAndPut() {
+        Map<ObjectId, ImmutableList<ObjectId>> commits = new HashMap<ObjectId, ImmutableList<ObjectId>>();
+        for (int i = 0; i < 1500; i++) {
+            commits.put(id(i), parents(i));
+        }
+        AdjacencyCache cache = AdjacencyCache.build(commits);
+        final AdjacencyCache built = cache;
+        for (int i = 1500; i < 3000; i++) {
+            cache = cache.put(ImmutableMap.of(id(i), parents(i)));
+        }
+        assertEquals(3000, cache.nodeCount());
+        assertEquals(1500, built.nodeCount());
+        assertFalse(built.exists(id(1500)));
+        for (int i = 0; i < 3000; i++) {
+            assertEquals(id(i), cache.id(cache.index(id(i))));
+            assertEquals(parents(i), cache.getParents(id(i)));
+            // one link to the root per commit, each merge from 20 on shortcuts 4 of them
+            assertEquals(i - 4 * Math.max(0, (i - 10) / 10), cache.getDepth(id(i)));
+        }
+        assertEquals(-1, cache.index(id(3000)));
+    }
+
+    @Test
+    public void testDepthAfterParentsAdded() {
+        put(0, 60);
+        assertSameGraph(60);
+        for (JEGraphDatabase graph : ImmutableList.of(cached, uncached)) {
+            graph.put(id(50), ImmutableList.of(id(49), id(1)));
+        }
+        assertSameGraph(60);
+        assertEquals(2, cached.getDepth(id(50)));
+        assertEquals(11, cached.getDepth(id(59)));
+    }
+
+    @Test
+    public void testPutAll() {
+        put(0, 10);
+        assertSameGraph(10);
+        List<Map.Entry<ObjectId, ImmutableList<ObjectId>>> commits = HISTORY.commits(10, 2500);
+        assertEquals(uncached.putAll(commits.iterator()), cached.putAll(commits.iterator()));
+        assertSameGraph(2500);
+    }
+
+    @Test
+    public void testReopen() {
+        put(0, 100);
+        assertSameGraph(100);
+        cached.close();
+        cached = open(cachedRoot, true);
+        assertSameGraph(100);
+    }
+
+    @Test
+    public void testMap() {
+        put(0, 10);
+        assertSameGraph(10);
+        cached.map(id(100), id(5));
+        uncached.map(id(100), id(5));
+        assertEquals(uncached.exists(id(100)), cached.exists(id(100)));
+        assertEquals(id(5), cached.getMapping(id(100)));
+    }
+
+    @Test
+    public void testDepth() {
+        put(0, 60);
+        assertSameGraph(60);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDepthNotFound() {
+        put(0, 10);
+        cached.getDepth(id(10));
+    }
+
+    @Test
+    public void testTruncate() {
+        put(0, 10);
+        assertSameGraph(10);
+        cached.truncate();
+        assertFalse(cached.exists(id(0)));
+        cached.put(id(0), ImmutableList.<ObjectId> of());
+        assertEquals(ImmutableList.of(), cached.getChildren(id(0)));
+    }
+}
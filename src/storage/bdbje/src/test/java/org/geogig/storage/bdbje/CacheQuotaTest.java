@@ -0,0 +1,152 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.geogig.model.ObjectId;
+import org.locationtech.geogig.storage.ConfigDatabase;
+import org.locationtech.geogig.storage.fs.IniFileConfigDatabase;
+import org.locationtech.geogig.test.TestPlatform;
+
+import com.google.common.collect.ImmutableList;
+import com.sleepycat.je.CacheMode;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentConfig;
+
+public class CacheQuotaTest {
+
+    private static final long MB = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private ConfigDatabase config;
+
+    private Environment env;
+
+    @Before
+    public void before() throws Exception {
+        File root = tmp.getRoot();
+        new File(root, ".geogig").mkdir();
+        config = new IniFileConfigDatabase(new TestPlatform(root));
+        EnvironmentConfig envConfig = new EnvironmentConfig();
+        envConfig.setAllowCreate(true);
+        envConfig.setSharedCache(true);
+        env = new Environment(tmp.newFolder("objects"), envConfig);
+    }
+
+    @After
+    public void after() {
+        env.close();
+    }
+
+    @Test
+    public void testDefaults() {
+        assertEquals(CacheQuota.Priority.NORMAL, CacheQuota.getPriority(config, "objects"));
+        assertEquals(0L, CacheQuota.getQuota(config, "objects", 100 * MB));
+    }
+
+    @Test
+    public void testPerEnvironmentSettings() {
+        config.put(CacheQuota.PRIORITY_CONFIG_KEY, "low");
+        config.put(CacheQuota.PRIORITY_CONFIG_KEY + ".graph", "HIGH");
+        config.put(CacheQuota.QUOTA_CONFIG_KEY, "25%");
+        config.put(CacheQuota.QUOTA_CONFIG_KEY + ".graph", "10m");
+
+        assertEquals(CacheQuota.Priority.LOW, CacheQuota.getPriority(config, "objects"));
+        assertEquals(CacheQuota.Priority.HIGH, CacheQuota.getPriority(config, "graph"));
+        assertEquals(25 * MB, CacheQuota.getQuota(config, "objects", 100 * MB));
+        assertEquals(10 * MB, CacheQuota.getQuota(config, "graph", 100 * MB));
+    }
+
+    @Test
+    public void testInvalidSettingsIgnored() {
+        config.put(CacheQuota.PRIORITY_CONFIG_KEY, "urgent");
+        config.put(CacheQuota.QUOTA_CONFIG_KEY, "lots");
+        assertEquals(CacheQuota.Priority.NORMAL, CacheQuota.getPriority(config, "objects"));
+        assertEquals(0L, CacheQuota.getQuota(config, "objects", 100 * MB));
+    }
+
+    @Test
+    public void testCacheModeFollowsUsage() {
+        CacheQuota quota = new CacheQuota(env, "objects", CacheQuota.Priority.HIGH, 10 * MB);
+        assertEquals(CacheMode.DEFAULT, quota.getCacheMode());
+
+        quota.update(9 * MB + MB / 2, 50 * MB, 100 * MB);
+        assertEquals(CacheMode.EVICT_LN, quota.getCacheMode());
+        assertFalse(quota.isOverQuota());
+
+        quota.update(11 * MB, 50 * MB, 100 * MB);
+        assertEquals(CacheMode.EVICT_BIN, quota.getCacheMode());
+        assertTrue(quota.isOverQuota());
+
+        quota.update(5 * MB, 50 * MB, 100 * MB);
+        assertEquals(CacheMode.DEFAULT, quota.getCacheMode());
+        assertEquals(5 * MB, quota.getUsedBytes());
+    }
+
+    @Test
+    public void testNoQuota() {
+        CacheQuota quota = new CacheQuota(env, "graph", CacheQuota.Priority.NORMAL, 0);
+        quota.update(90 * MB, 95 * MB, 100 * MB);
+        assertEquals(CacheMode.MAKE_COLD, quota.getCacheMode());
+    }
+
+    @Test
+    public void testSharedByEnvironment() {
+        CacheQuota objects = CacheQuota.acquire(env, "objects", config);
+        CacheQuota graph = CacheQuota.acquire(env, "objects", config);
+        assertSame(objects, graph);
+        assertTrue(CacheQuota.getOpen().contains(objects));
+        assertTrue(objects.getCacheMaxBytes() > 0);
+        objects.release();
+        assertTrue(CacheQuota.getOpen().contains(objects));
+        graph.release();
+        assertFalse(CacheQuota.getOpen().contains(objects));
+    }
+
+    @Test
+    public void testReleasedOnGraphTruncate() throws Exception {
+        File root = tmp.newFolder("repo");
+        JEGraphDatabase graph = GraphTestSupport.open(root, "0.2");
+        try {
+            graph.put(ObjectId.forString("commit"), ImmutableList.<ObjectId> of());
+            final Environment previous = graph.getEnvironment();
+            graph.truncate();
+            graph.truncate();
+            assertFalse(previous.isValid());
+            assertEquals(1, quotas(graph.getEnvironment().getHome()));
+        } finally {
+            graph.close();
+        }
+        assertEquals(0, quotas(new File(new File(root, ".geogig"), "graph")));
+    }
+
+    private static int quotas(File envHome) {
+        int count = 0;
+        for (CacheQuota quota : CacheQuota.getOpen()) {
+            if (quota.getEnvironmentHome().getAbsoluteFile().equals(envHome.getAbsoluteFile())) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
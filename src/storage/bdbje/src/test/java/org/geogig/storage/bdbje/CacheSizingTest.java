@@ -0,0 +1,43 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class CacheSizingTest {
+
+    private static final long GB = 1024L * 1024 * 1024;
+
+    @Test
+    public void testParseAbsolute() {
+        assertEquals(1000, CacheSizing.parse("1000", 16 * GB));
+        assertEquals(512 * 1024, CacheSizing.parse("512k", 16 * GB));
+        assertEquals(256 * 1024 * 1024, CacheSizing.parse("256M", 16 * GB));
+        assertEquals(2 * GB, CacheSizing.parse(" 2g ", 16 * GB));
+    }
+
+    @Test
+    public void testParsePercentOfPhysicalMemory() {
+        assertEquals(4 * GB, CacheSizing.parse("25%", 16 * GB));
+        assertEquals(GB / 2, CacheSizing.parse("12.5 %", 4 * GB));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseInvalid() {
+        CacheSizing.parse("lots", 16 * GB);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParsePercentOutOfRange() {
+        CacheSizing.parse("150%", 16 * GB);
+    }
+}
@@ -0,0 +1,183 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentConfig;
+
+public class DataDirectoriesTest {
+
+    private static final int COUNT = 20000;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File envHome;
+
+    private List<File> disks;
+
+    @Before
+    public void before() throws Exception {
+        envHome = tmp.newFolder("objects");
+        disks = ImmutableList.of(tmp.newFolder("disk1"), tmp.newFolder("disk2"),
+                tmp.newFolder("disk3"));
+    }
+
+    private Environment open(int dataDirectories) {
+        EnvironmentConfig config = new EnvironmentConfig();
+        config.setAllowCreate(true);
+        config.setTransactional(true);
+        config.setConfigParam(EnvironmentConfig.LOG_FILE_MAX, "1000000");
+        if (dataDirectories > 0) {
+            config.setConfigParam(EnvironmentConfig.LOG_N_DATA_DIRECTORIES,
+                    String.valueOf(dataDirectories));
+        }
+        return new Environment(envHome, config);
+    }
+
+    private Database openDatabase(Environment env) {
+        DatabaseConfig dbConfig = new DatabaseConfig();
+        dbConfig.setAllowCreate(true);
+        dbConfig.setTransactional(true);
+        return env.openDatabase(null, "test", dbConfig);
+    }
+
+    private void write(int dataDirectories) {
+        Environment env = open(dataDirectories);
+        Database db = openDatabase(env);
+        for (int i = 0; i < COUNT; i++) {
+            db.put(null, new DatabaseEntry(String.valueOf(i).getBytes()),
+                    new DatabaseEntry(new byte[100]));
+        }
+        db.close();
+        env.close();
+    }
+
+    private long count(int dataDirectories) {
+        Environment env = open(dataDirectories);
+        Database db = openDatabase(env);
+        try {
+            return db.count();
+        } finally {
+            db.close();
+            env.close();
+        }
+    }
+
+    private int logFiles(File dir) {
+        return dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.getName().endsWith(".jdb");
+            }
+        }).length;
+    }
+
+    @Test
+    public void testNotConfigured() throws Exception {
+        assertEquals(0, DataDirectories.prepare(envHome, Optional.<List<File>> absent(), false));
+        assertFalse(DataDirectories.hasLogFiles(envHome));
+        write(0);
+        assertTrue(DataDirectories.hasLogFiles(envHome));
+        assertEquals(0, DataDirectories.prepare(envHome, Optional.<List<File>> absent(), false));
+    }
+
+    @Test
+    public void testMigrateExistingEnvironment() throws Exception {
+        write(0);
+        final int files = logFiles(envHome);
+        assertTrue(files > 3);
+
+        assertEquals(3, DataDirectories.prepare(envHome, Optional.of(disks), false));
+        assertEquals(0, logFiles(envHome));
+        int moved = 0;
+        for (int i = 0; i < 3; i++) {
+            File dataDir = new File(envHome, DataDirectories.dataDirName(i));
+            assertTrue(Files.isSymbolicLink(dataDir.toPath()));
+            assertEquals(1, disks.get(i).list().length);
+            assertTrue(logFiles(dataDir) > 0);
+            moved += logFiles(dataDir);
+        }
+        assertEquals(files, moved);
+        assertEquals(COUNT, count(3));
+        // already laid out
+        assertEquals(3, DataDirectories.prepare(envHome, Optional.of(disks), false));
+    }
+
+    @Test
+    public void testShrink() throws Exception {
+        DataDirectories.prepare(envHome, Optional.of(disks), false);
+        write(3);
+        assertEquals(2,
+                DataDirectories.prepare(envHome, Optional.of(disks.subList(0, 2)), false));
+        assertFalse(new File(envHome, DataDirectories.dataDirName(2)).exists());
+        assertEquals(0, disks.get(2).list().length);
+        assertEquals(COUNT, count(2));
+    }
+
+    @Test
+    public void testInterruptedMove() throws Exception {
+        DataDirectories.prepare(envHome, Optional.of(disks), false);
+        write(3);
+        // data003 is removed on shrink, a file of it was copied and renamed but not deleted, and
+        // a temporary copy of it left behind
+        File moving = new File(envHome, DataDirectories.dataDirName(2)).listFiles()[0];
+        File target = new File(envHome, DataDirectories.dataDirName(
+                (int) (Long.parseLong(moving.getName().substring(0, 8), 16) % 2)));
+        Files.copy(moving.toPath(), new File(target, moving.getName()).toPath());
+        Files.copy(moving.toPath(), new File(target, moving.getName() + ".tmp").toPath());
+        assertEquals(2,
+                DataDirectories.prepare(envHome, Optional.of(disks.subList(0, 2)), false));
+        for (int i = 0; i < 2; i++) {
+            for (String file : new File(envHome, DataDirectories.dataDirName(i)).list()) {
+                assertFalse(file, file.endsWith(".tmp"));
+            }
+        }
+        assertEquals(COUNT, count(2));
+    }
+
+    @Test
+    public void testUnsetKeepsLayout() throws Exception {
+        DataDirectories.prepare(envHome, Optional.of(disks), false);
+        write(3);
+        assertEquals(3, DataDirectories.prepare(envHome, Optional.<List<File>> absent(), false));
+        assertTrue(DataDirectories.hasLogFiles(envHome));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testEnvironmentInUse() throws Exception {
+        write(0);
+        Environment env = open(0);
+        try {
+            DataDirectories.prepare(envHome, Optional.of(disks), false);
+        } finally {
+            env.close();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.geogig.model.ObjectId;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentConfig;
+
+public class EnvironmentStatsSamplerTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private Environment env;
+
+    @Before
+    public void before() throws Exception {
+        EnvironmentConfig config = new EnvironmentConfig();
+        config.setAllowCreate(true);
+        config.setTransactional(true);
+        env = new Environment(tmp.newFolder(), config);
+    }
+
+    @After
+    public void after() {
+        env.close();
+    }
+
+    private void write(int count) {
+        DatabaseConfig dbConfig = new DatabaseConfig();
+        dbConfig.setAllowCreate(true);
+        dbConfig.setTransactional(true);
+        Database db = env.openDatabase(null, "test", dbConfig);
+        try {
+            for (int i = 0; i < count; i++) {
+                db.put(null, new DatabaseEntry(String.valueOf(i).getBytes()),
+                        new DatabaseEntry(new byte[100]));
+            }
+        } finally {
+            db.close();
+        }
+        env.flushLog(true);
+    }
+
+    @Test
+    public void testSampleDeltas() {
+        EnvironmentStatsSampler sampler = new EnvironmentStatsSampler(env, 1000, null);
+        sampler.sample();
+        assertEquals(0L, sampler.getSampleTimestamp());
+
+        write(1000);
+        sampler.sample();
+        assertTrue(sampler.getSampleTimestamp() > 0);
+        assertTrue(sampler.getLogWriteBytes() > 1000 * 100);
+        assertTrue(sampler.getLockRequests() > 0);
+        assertTrue(sampler.getCacheTotalBytes() > 0);
+        assertTrue(sampler.getLogFSyncs() > 0);
+
+        sampler.sample();
+        assertEquals(0L, sampler.getLogWriteBytes());
+        assertEquals(0L, sampler.getLockRequests());
+    }
+
+    @Test
+    public void testCsvFile() throws Exception {
+        EnvironmentStatsSampler sampler = new EnvironmentStatsSampler(env, 1000, "csv");
+        sampler.sample();
+        write(10);
+        sampler.sample();
+        sampler.sample();
+
+        List<String> lines = Files.readLines(new File(env.getHome(), "je-stats.csv"),
+                Charsets.UTF_8);
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(0).startsWith("timestamp,intervalMillis,cacheMisses"));
+        assertEquals(lines.get(0).split(",").length, lines.get(1).split(",").length);
+    }
+
+    @Test
+    public void testJsonFile() throws Exception {
+        EnvironmentStatsSampler sampler = new EnvironmentStatsSampler(env, 1000, "json");
+        sampler.sample();
+        sampler.sample();
+
+        List<String> lines = Files.readLines(new File(env.getHome(), "je-stats.json"),
+                Charsets.UTF_8);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).startsWith("{"));
+        assertTrue(lines.get(0).contains("\"logWriteBytes\""));
+    }
+
+    @Test
+    public void testMBeanRegistration() throws Exception {
+        EnvironmentStatsSampler sampler = new EnvironmentStatsSampler(env, 60 * 1000, null);
+        sampler.start();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.geogig.storage.bdbje:type=EnvironmentStats,name="
+                + ObjectName.quote(env.getHome().getAbsolutePath()));
+        try {
+            assertTrue(server.isRegistered(name));
+            assertEquals(env.getHome().getAbsolutePath(),
+                    server.getAttribute(name, "EnvironmentHome"));
+        } finally {
+            sampler.stop();
+        }
+        assertFalse(server.isRegistered(name));
+    }
+
+    @Test
+    public void testStoppedOnGraphTruncate() throws Exception {
+        JEGraphDatabase graph = GraphTestSupport.open(tmp.newFolder("repo"), "0.2",
+                ImmutableMap.of(EnvironmentStatsSampler.INTERVAL_CONFIG_KEY, 60));
+        try {
+            graph.put(ObjectId.forString("commit"), ImmutableList.<ObjectId> of());
+            graph.truncate();
+            graph.truncate();
+            graph.getEnvironment();
+            assertEquals(1, samplerThreads("graph"));
+        } finally {
+            graph.close();
+        }
+        assertEquals(0, samplerThreads("graph"));
+    }
+
+    private static int samplerThreads(String envName) {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().startsWith("BDBJE-" + envName + "-STATS-")) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,121 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileReader;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteSource;
+import com.google.common.io.Files;
+
+public class EnvironmentTunerTest {
+
+    private static final long MB = 1024 * 1024;
+
+    private static final long GB = 1024 * MB;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testLaptop() {
+        EnvironmentTuner tuner = new EnvironmentTuner(4, 1 * GB, 8 * GB, 40 * MB);
+        Map<String, String> props = tuner.tune(false);
+        assertEquals("60", props.get("je.maxMemoryPercent"));
+        assertEquals("1", props.get("je.cleaner.threads"));
+        assertEquals("1", props.get("je.evictor.coreThreads"));
+        assertEquals("1", props.get("je.evictor.maxThreads"));
+        assertEquals(String.valueOf(64 * MB), props.get("je.log.fileMax"));
+        assertEquals(String.valueOf(200 * MB), props.get("je.checkpointer.bytesInterval"));
+    }
+
+    @Test
+    public void testServer() {
+        EnvironmentTuner tuner = new EnvironmentTuner(64, 32 * GB, 256 * GB, 1000 * MB);
+        Map<String, String> props = tuner.tune(false);
+        assertEquals("70", props.get("je.maxMemoryPercent"));
+        assertEquals("4", props.get("je.cleaner.threads"));
+        assertEquals("4", props.get("je.evictor.coreThreads"));
+        assertEquals("8", props.get("je.evictor.maxThreads"));
+        assertEquals(String.valueOf(256 * MB), props.get("je.log.fileMax"));
+        assertEquals(String.valueOf(1024 * MB), props.get("je.checkpointer.bytesInterval"));
+
+        assertEquals(String.valueOf(64 * MB), tuner.tune(true).get("je.log.fileMax"));
+    }
+
+    @Test
+    public void testHeapCloseToPhysicalMemory() {
+        EnvironmentTuner tuner = new EnvironmentTuner(8, 14 * GB, 16 * GB, 500 * MB);
+        assertEquals("50", tuner.tune(false).get("je.maxMemoryPercent"));
+    }
+
+    @Test
+    public void testWrite() throws Exception {
+        ByteSource template = ByteSource.wrap(("# comment\n" + "je.log.fileMax=67108864\n"
+                + "#je.checkpointer.bytesInterval=268435456\n" + "je.sharedCache = true\n")
+                .getBytes(Charsets.UTF_8));
+        File conf = new File(tmp.getRoot(), "je.properties");
+        new EnvironmentTuner(16, 4 * GB, 64 * GB, 300 * MB).write(conf, template, false);
+
+        Properties props = new Properties();
+        FileReader reader = new FileReader(conf);
+        try {
+            props.load(reader);
+        } finally {
+            reader.close();
+        }
+        assertEquals(String.valueOf(256 * MB), props.getProperty("je.log.fileMax"));
+        assertEquals(String.valueOf(1024 * MB), props.getProperty("je.checkpointer.bytesInterval"));
+        assertEquals("true", props.getProperty("je.sharedCache"));
+        assertEquals("4", props.getProperty("je.cleaner.threads"));
+        assertEquals(7, props.size());
+    }
+
+    @Test
+    public void testMeasureDiskThroughput() throws Exception {
+        File dir = tmp.newFolder();
+        assertTrue(EnvironmentTuner.measureDiskThroughput(dir) > 0);
+        assertEquals(0, dir.list().length);
+    }
+
+    @Test
+    public void testDiskThroughputMeasuredOnce() throws Exception {
+        File dir = tmp.newFolder();
+        assertEquals(-1, EnvironmentTuner.diskThroughput(dir, false));
+        assertEquals(0, dir.list().length);
+
+        final long throughput = EnvironmentTuner.diskThroughput(dir, true);
+        assertTrue(throughput > 0);
+        File file = new File(dir, EnvironmentTuner.THROUGHPUT_FILE_NAME);
+        assertTrue(file.exists());
+        assertEquals(throughput, EnvironmentTuner.diskThroughput(dir, true));
+        assertEquals(throughput, EnvironmentTuner.diskThroughput(dir, false));
+
+        // measured for another directory
+        File copy = tmp.newFolder();
+        Files.copy(file, new File(copy, file.getName()));
+        assertEquals(-1, EnvironmentTuner.diskThroughput(copy, false));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidMode() {
+        EnvironmentTuner.Mode.parse("always");
+    }
+}
@@ -0,0 +1,148 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.locationtech.geogig.model.ObjectId;
+import org.locationtech.geogig.repository.Hints;
+import org.locationtech.geogig.storage.fs.IniFileConfigDatabase;
+import org.locationtech.geogig.test.TestPlatform;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+/**
+ * Fixtures shared by the {@link JEGraphDatabase} tests: graphs opened in a temporary repository, a
+ * synthetic {@link History}, and comparing two graphs built from it in different ways
+ */
+final class GraphTestSupport {
+
+    private GraphTestSupport() {
+    }
+
+    static JEGraphDatabase open(File root, String version) {
+        return open(root, version, ImmutableMap.<String, Boolean> of());
+    }
+
+    /**
+     * Opens a graph database of the given {@code bdbje.version} in the {@code .geogig} directory of
+     * {@code root}, with the given repository config options set
+     */
+    static JEGraphDatabase open(File root, String version, Map<String, ?> options) {
+        new File(root, ".geogig").mkdir();
+        TestPlatform platform = new TestPlatform(root);
+        IniFileConfigDatabase config = new IniFileConfigDatabase(platform);
+        for (Map.Entry<String, ?> option : options.entrySet()) {
+            config.put(option.getKey(), option.getValue());
+        }
+        EnvironmentBuilder envProvider = new EnvironmentBuilder(platform, null);
+        JEGraphDatabase graph;
+        if ("0.1".equals(version)) {
+            graph = new JEGraphDatabase_v0_1(config, envProvider, new Hints());
+        } else if ("0.2".equals(version)) {
+            graph = new JEGraphDatabase_v0_2(config, envProvider, new Hints());
+        } else if ("0.3".equals(version)) {
+            graph = new JEGraphDatabase_v0_3(config, envProvider, new Hints());
+        } else {
+            throw new IllegalArgumentException("Unknown version: " + version);
+        }
+        graph.open();
+        return graph;
+    }
+
+    static ObjectId id(int i) {
+        return ObjectId.forString("commit-" + i);
+    }
+
+    /**
+     * Asserts {@code actual} has the same commits {@code 0} to {@code size - 1} as
+     * {@code expected}, with the same parents, children in any order, depth, generation and
+     * mapping, and doesn't have commit {@code size}
+     */
+    static void assertSameGraph(JEGraphDatabase expected, JEGraphDatabase actual, int size) {
+        for (int i = 0; i < size; i++) {
+            ObjectId id = id(i);
+            assertTrue(actual.exists(id));
+            assertEquals(expected.getParents(id), actual.getParents(id));
+            assertEquals(new HashSet<ObjectId>(expected.getChildren(id)),
+                    new HashSet<ObjectId>(actual.getChildren(id)));
+            assertEquals(expected.getDepth(id), actual.getDepth(id));
+            assertEquals(expected.getGeneration(id), actual.getGeneration(id));
+            assertEquals(expected.getMapping(id), actual.getMapping(id));
+        }
+        assertFalse(actual.exists(id(size)));
+        assertEquals(ImmutableList.of(), actual.getParents(id(size)));
+        assertEquals(ImmutableList.of(), actual.getChildren(id(size)));
+    }
+
+    /**
+     * A history of {@link GraphTestSupport#id(int) commits} with the previous one as parent, and
+     * merging {@code i - mergeDistance} too every {@code mergeEvery} commits past the first
+     * {@code mergeEvery}. Commit {@code 0}, and every {@code rootEvery}th if given, is a root.
+     */
+    static class History {
+
+        private final int mergeEvery;
+
+        private final int mergeDistance;
+
+        private final int rootEvery;
+
+        History(int mergeEvery, int mergeDistance) {
+            this(mergeEvery, mergeDistance, Integer.MAX_VALUE);
+        }
+
+        History(int mergeEvery, int mergeDistance, int rootEvery) {
+            this.mergeEvery = mergeEvery;
+            this.mergeDistance = mergeDistance;
+            this.rootEvery = rootEvery;
+        }
+
+        ImmutableList<ObjectId> parents(int i) {
+            if (i % rootEvery == 0) {
+                return ImmutableList.of();
+            }
+            if (i % mergeEvery == 0 && i > mergeEvery) {
+                return ImmutableList.of(id(i - 1), id(i - mergeDistance));
+            }
+            return ImmutableList.of(id(i - 1));
+        }
+
+        /**
+         * @return commits {@code from} to {@code to - 1} and their parents, in that order
+         */
+        List<Map.Entry<ObjectId, ImmutableList<ObjectId>>> commits(int from, int to) {
+            List<Map.Entry<ObjectId, ImmutableList<ObjectId>>> commits = new ArrayList<Map.Entry<ObjectId, ImmutableList<ObjectId>>>();
+            for (int i = from; i < to; i++) {
+                commits.add(Maps.immutableEntry(id(i), parents(i)));
+            }
+            return commits;
+        }
+
+        /**
+         * Puts commits {@code from} to {@code to - 1} in {@code graph}, one at a time
+         */
+        void put(JEGraphDatabase graph, int from, int to) {
+            for (int i = from; i < to; i++) {
+                graph.put(id(i), parents(i));
+            }
+        }
+    }
+}
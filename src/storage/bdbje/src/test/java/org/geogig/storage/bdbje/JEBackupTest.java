@@ -0,0 +1,270 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.geogig.repository.DefaultProgressListener;
+import org.locationtech.geogig.repository.ProgressListener;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentConfig;
+import com.sleepycat.je.OperationStatus;
+
+public class JEBackupTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File geogigDir;
+
+    private File backupDir;
+
+    private Map<String, Environment> environments;
+
+    @Before
+    public void before() throws Exception {
+        geogigDir = tmp.newFolder(".geogig");
+        backupDir = tmp.newFolder("backups");
+        Files.write("ref: refs/heads/master", new File(geogigDir, "HEAD"), Charsets.UTF_8);
+        environments = new LinkedHashMap<String, Environment>();
+        environments.put("graph", open(new File(geogigDir, "graph")));
+        environments.put("objects", open(new File(geogigDir, "objects")));
+    }
+
+    @After
+    public void after() {
+        for (Environment env : environments.values()) {
+            env.close();
+        }
+    }
+
+    private Environment open(File home) {
+        home.mkdirs();
+        EnvironmentConfig config = new EnvironmentConfig();
+        config.setAllowCreate(true);
+        config.setTransactional(true);
+        // small log files for the backups to span several of them
+        config.setConfigParam(EnvironmentConfig.LOG_FILE_MAX, "1000000");
+        return new Environment(home, config);
+    }
+
+    private void write(Environment env, int from, int to) {
+        Database db = openDatabase(env);
+        try {
+            for (int i = from; i < to; i++) {
+                db.put(null, key(i), new DatabaseEntry(new byte[100]));
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    private Database openDatabase(Environment env) {
+        DatabaseConfig dbConfig = new DatabaseConfig();
+        dbConfig.setAllowCreate(true);
+        dbConfig.setTransactional(true);
+        return env.openDatabase(null, "test", dbConfig);
+    }
+
+    private DatabaseEntry key(int i) {
+        return new DatabaseEntry(String.valueOf(i).getBytes());
+    }
+
+    private BackupManifest backup() throws Exception {
+        ProgressListener progress = new DefaultProgressListener();
+        return new JEBackup(backupDir, 0).backup(geogigDir, environments, progress);
+    }
+
+    @Test
+    public void testIncrementalBackup() throws Exception {
+        for (Environment env : environments.values()) {
+            write(env, 0, 20000);
+        }
+        BackupManifest first = backup();
+        assertNotNull(first);
+        assertEquals(ImmutableList.of("graph", "objects"), first.getEnvironments());
+        assertTrue(first.getFiles("objects").size() > 1);
+        assertEquals(first.getFiles("graph").size() + first.getFiles("objects").size(),
+                first.getCopiedFiles());
+
+        for (Environment env : environments.values()) {
+            write(env, 20000, 21000);
+        }
+        BackupManifest second = backup();
+        assertTrue(second.getFiles("objects").size() >= first.getFiles("objects").size());
+        assertTrue(second.getCopiedFiles() > 0);
+        assertTrue(second.getCopiedFiles() < first.getCopiedFiles());
+
+        assertEquals(ImmutableList.of(first.getName(), second.getName()),
+                ImmutableList.of(JEBackup.list(backupDir).get(0).getName(),
+                        JEBackup.list(backupDir).get(1).getName()));
+        BackupManifest read = BackupManifest.read(new File(backupDir, second.getName()));
+        assertEquals(second.getFiles("graph"), read.getFiles("graph"));
+        assertEquals(second.getCopiedBytes(), read.getCopiedBytes());
+    }
+
+    @Test
+    public void testUniqueNames() throws Exception {
+        for (Environment env : environments.values()) {
+            write(env, 0, 100);
+        }
+        // several backups may be taken within the same millisecond
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < 5; i++) {
+            names.add(backup().getName());
+        }
+        assertEquals(5, new HashSet<String>(names).size());
+        List<String> listed = new ArrayList<String>();
+        for (BackupManifest manifest : JEBackup.list(backupDir)) {
+            listed.add(manifest.getName());
+        }
+        assertEquals(names, listed);
+    }
+
+    @Test
+    public void testRestore() throws Exception {
+        for (Environment env : environments.values()) {
+            write(env, 0, 2000);
+        }
+        BackupManifest manifest = backup();
+        // written after the backup, shall not be restored
+        write(environments.get("objects"), 2000, 3000);
+
+        File restored = new File(tmp.newFolder("restored"), ".geogig");
+        JEBackup.restore(backupDir, manifest, restored);
+        assertEquals("ref: refs/heads/master",
+                Files.toString(new File(restored, "HEAD"), Charsets.UTF_8));
+
+        Environment env = open(new File(restored, "objects"));
+        try {
+            Database db = openDatabase(env);
+            try {
+                assertEquals(2000L, db.count());
+                assertEquals(OperationStatus.SUCCESS,
+                        db.get(null, key(1999), new DatabaseEntry(), null));
+            } finally {
+                db.close();
+            }
+        } finally {
+            env.close();
+        }
+    }
+
+    @Test
+    public void testBackupOfAnotherRepository() throws Exception {
+        write(environments.get("objects"), 0, 100);
+        backup();
+
+        File otherDir = tmp.newFolder("other", ".geogig");
+        Map<String, Environment> other = new LinkedHashMap<String, Environment>();
+        other.put("graph", open(new File(otherDir, "graph")));
+        other.put("objects", open(new File(otherDir, "objects")));
+        try {
+            write(other.get("objects"), 0, 100);
+            new JEBackup(backupDir, 0).backup(otherDir, other, new DefaultProgressListener());
+            fail("Expected ISE");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("another graph environment"));
+        } finally {
+            for (Environment env : other.values()) {
+                env.close();
+            }
+        }
+        assertEquals(1, JEBackup.list(backupDir).size());
+    }
+
+    @Test
+    public void testBackupAfterRestore() throws Exception {
+        for (Environment env : environments.values()) {
+            write(env, 0, 2000);
+        }
+        final BackupManifest first = backup();
+        for (Environment env : environments.values()) {
+            env.close();
+        }
+        environments.clear();
+
+        // the restored environments append to the last log file of the backup
+        File restored = new File(tmp.newFolder("restored"), ".geogig");
+        JEBackup.restore(backupDir, first, restored);
+        environments.put("graph", open(new File(restored, "graph")));
+        environments.put("objects", open(new File(restored, "objects")));
+        write(environments.get("objects"), 2000, 2100);
+        final BackupManifest second = new JEBackup(backupDir, 0).backup(restored, environments,
+                new DefaultProgressListener());
+
+        List<BackupManifest.LogFile> firstFiles = first.getLogFiles("objects");
+        BackupManifest.LogFile last = firstFiles.get(firstFiles.size() - 1);
+        boolean appended = false;
+        for (BackupManifest.LogFile f : second.getLogFiles("objects")) {
+            if (f.getName().equals(last.getName())) {
+                assertTrue(f.getLength() > last.getLength());
+                assertEquals(last.getName() + ".1", f.getStoredName());
+                appended = true;
+            }
+        }
+        assertTrue(appended);
+        assertEquals(last.getLength(),
+                new File(new File(backupDir, "objects"), last.getStoredName()).length());
+
+        assertEquals(2000L, count(first, "first"));
+        assertEquals(2100L, count(second, "second"));
+    }
+
+    private long count(BackupManifest manifest, String folder) throws Exception {
+        File restored = new File(tmp.newFolder(folder), ".geogig");
+        JEBackup.restore(backupDir, manifest, restored);
+        Environment env = open(new File(restored, "objects"));
+        try {
+            Database db = openDatabase(env);
+            try {
+                return db.count();
+            } finally {
+                db.close();
+            }
+        } finally {
+            env.close();
+        }
+    }
+
+    @Test
+    public void testRestoreOverExistingEnvironment() throws Exception {
+        write(environments.get("objects"), 0, 100);
+        BackupManifest manifest = backup();
+        try {
+            JEBackup.restore(backupDir, manifest, geogigDir);
+            fail("Expected IAE");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("existing environment"));
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.sleepycat.je.Durability;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentConfig;
+
+public class JEBlobStoreTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private Environment env;
+
+    private JEBlobStore blobs;
+
+    @Before
+    public void before() throws Exception {
+        EnvironmentConfig envCfg = new EnvironmentConfig();
+        envCfg.setAllowCreate(true);
+        envCfg.setTransactional(true);
+        env = new Environment(tmp.newFolder("objects"), envCfg);
+        blobs = new JEBlobStore(env, false, Durability.COMMIT_WRITE_NO_SYNC, null);
+        blobs.open();
+    }
+
+    @After
+    public void after() {
+        blobs.close();
+        env.close();
+    }
+
+    @Test
+    public void testPutGetRemove() {
+        assertFalse(blobs.getBlob("osm/log").isPresent());
+        blobs.putBlob("osm/log", "1".getBytes());
+        assertArrayEquals("1".getBytes(), blobs.getBlob("osm/log").get());
+
+        blobs.putBlob("osm/log", new ByteArrayInputStream("2".getBytes()));
+        assertArrayEquals("2".getBytes(), blobs.getBlob("osm/log").get());
+
+        blobs.removeBlob("osm/log");
+        assertFalse(blobs.getBlob("osm/log").isPresent());
+    }
+
+    @Test
+    public void testMultiBlobUpdates() {
+        blobs.putBlobs(null, ImmutableMap.of("osm/log", "1".getBytes(), "osm/map/rule",
+                "2".getBytes(), "osm/master", "3".getBytes()));
+        assertArrayEquals("2".getBytes(), blobs.getBlob("osm/map/rule").get());
+
+        blobs.removeBlobs(null, ImmutableList.of("osm/log", "osm/master"));
+        assertFalse(blobs.getBlob("osm/log").isPresent());
+        assertFalse(blobs.getBlob("osm/master").isPresent());
+        assertTrue(blobs.getBlob("osm/map/rule").isPresent());
+    }
+
+    @Test
+    public void testNamespaces() {
+        blobs.putBlob("tx1", "osm/log", "1".getBytes());
+        assertFalse(blobs.getBlob("osm/log").isPresent());
+        assertTrue(blobs.getBlob("tx1", "osm/log").isPresent());
+
+        blobs.removeBlobs("tx1");
+        assertFalse(blobs.getBlob("tx1", "osm/log").isPresent());
+    }
+
+    @Test
+    public void testRemoveNamespaceWhileInUse() throws Exception {
+        final Map<String, byte[]> added = new HashMap<String, byte[]>();
+        for (int i = 0; i < 1000; i++) {
+            added.put("osm/" + i, String.valueOf(i).getBytes());
+        }
+        final AtomicBoolean done = new AtomicBoolean();
+        ExecutorService readers = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<?>> results = new ArrayList<Future<?>>();
+            results.add(readers.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    while (!done.get()) {
+                        for (int i = 0; i < 1000; i += 100) {
+                            blobs.getBlob("tx1", "osm/" + i);
+                        }
+                    }
+                    return null;
+                }
+            }));
+            results.add(readers.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    while (!done.get()) {
+                        // paths never added, not to contend for record locks with putBlobs
+                        blobs.removeBlobs("tx1", ImmutableList.of("rivers/1", "rivers/2"));
+                    }
+                    return null;
+                }
+            }));
+            for (int i = 0; i < 20; i++) {
+                blobs.putBlobs("tx1", added);
+                blobs.removeBlobs("tx1");
+            }
+            done.set(true);
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            done.set(true);
+            readers.shutdownNow();
+        }
+        assertFalse(blobs.getBlob("tx1", "osm/1").isPresent());
+    }
+}
@@ -0,0 +1,209 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.geogig.model.ObjectId;
+import org.locationtech.geogig.repository.Conflict;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentConfig;
+
+public class JEConflictsDatabaseTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private Environment env;
+
+    private JEConflictsDatabase conflicts;
+
+    @Before
+    public void before() throws Exception {
+        EnvironmentConfig envCfg = new EnvironmentConfig();
+        envCfg.setAllowCreate(true);
+        envCfg.setTransactional(true);
+        env = new Environment(tmp.newFolder("objects"), envCfg);
+        conflicts = new JEConflictsDatabase(env, false);
+        conflicts.open();
+    }
+
+    @After
+    public void after() {
+        conflicts.close();
+        env.close();
+    }
+
+    private Conflict conflict(String path) {
+        return new Conflict(path, ObjectId.forString("ancestor"), ObjectId.forString(path),
+                ObjectId.forString(path + "theirs"));
+    }
+
+    @Test
+    public void testAddGetRemove() {
+        assertFalse(conflicts.hasConflicts(null));
+        Conflict c = conflict("roads/1");
+        conflicts.addConflict(null, c);
+        assertTrue(conflicts.hasConflicts(null));
+        assertFalse(conflicts.hasConflicts("tx1"));
+
+        Conflict found = conflicts.getConflict(null, "roads/1").get();
+        assertEquals(c.getAncestor(), found.getAncestor());
+        assertEquals(c.getOurs(), found.getOurs());
+        assertEquals(c.getTheirs(), found.getTheirs());
+
+        conflicts.removeConflict(null, "roads/1");
+        assertFalse(conflicts.getConflict(null, "roads/1").isPresent());
+    }
+
+    @Test
+    public void testPrefixQueries() {
+        List<Conflict> list = new ArrayList<Conflict>();
+        for (int i = 0; i < 2500; i++) {
+            list.add(conflict("roads/" + i));
+        }
+        list.add(conflict("roads2/1"));
+        list.add(conflict("buildings/1"));
+        conflicts.addConflicts(null, list);
+
+        assertEquals(2502, conflicts.getCountByPrefix(null, null));
+        assertEquals(2500, conflicts.getCountByPrefix(null, "roads"));
+        assertEquals(1, conflicts.getCountByPrefix(null, "roads2"));
+
+        List<Conflict> roads = Lists.newArrayList(conflicts.getByPrefix(null, "roads/"));
+        assertEquals(2500, roads.size());
+        assertEquals(2501, conflicts.getConflicts(null, "roads").size());
+
+        assertEquals(ImmutableSet.of("roads/1", "buildings/1"), conflicts.findConflicts(null,
+                ImmutableSet.of("roads/1", "buildings/1", "buildings/2")));
+
+        conflicts.removeConflicts(null, ImmutableList.of("roads/1", "roads/2"));
+        assertEquals(2498, conflicts.getCountByPrefix(null, "roads"));
+    }
+
+    @Test
+    public void testRemoveNamespace() {
+        conflicts.addConflicts("tx1", ImmutableList.of(conflict("a"), conflict("b")));
+        conflicts.addConflicts(null, ImmutableList.of(conflict("a")));
+        assertTrue(conflicts.hasConflicts("tx1"));
+
+        conflicts.removeConflicts("tx1");
+        assertFalse(conflicts.hasConflicts("tx1"));
+        assertEquals(0, conflicts.getCountByPrefix("tx1", null));
+        assertTrue(conflicts.hasConflicts(null));
+    }
+
+    @Test
+    public void testImportFrom() throws Exception {
+        Environment legacyEnv = new Environment(tmp.newFolder("legacy"), env.getConfig());
+        JEConflictsDatabase legacy = new JEConflictsDatabase(legacyEnv, false);
+        try {
+            List<Conflict> many = new ArrayList<Conflict>();
+            for (int i = 0; i < 25000; i++) {
+                many.add(conflict("roads/" + i));
+            }
+            legacy.addConflicts(null, many);
+            legacy.addConflicts("tx1", ImmutableList.of(conflict("a"), conflict("b")));
+            legacy.addConflicts("tx2", ImmutableList.of(conflict("c")));
+
+            conflicts.importFrom(legacy, ImmutableList.of("tx1", "tx2", "tx3"));
+
+            assertEquals(25000, conflicts.getCountByPrefix(null, null));
+            assertEquals(ImmutableSet.of("a", "b"),
+                    conflicts.findConflicts("tx1", ImmutableSet.of("a", "b", "c")));
+            assertEquals(ImmutableSet.of("c"),
+                    conflicts.findConflicts("tx2", ImmutableSet.of("a", "b", "c")));
+            assertFalse(conflicts.hasConflicts("tx3"));
+            assertFalse(legacy.hasConflicts(null));
+            assertFalse(legacy.hasConflicts("tx1"));
+            assertFalse(legacy.hasConflicts("tx2"));
+        } finally {
+            legacy.close();
+            legacyEnv.close();
+        }
+    }
+
+    @Test
+    public void testRemoveNamespaceWhileInUse() throws Exception {
+        final List<Conflict> added = new ArrayList<Conflict>();
+        final Set<String> paths = new HashSet<String>();
+        for (int i = 0; i < 3000; i++) {
+            added.add(conflict("roads/" + i));
+            paths.add("roads/" + i);
+        }
+        final AtomicBoolean done = new AtomicBoolean();
+        ExecutorService readers = Executors.newFixedThreadPool(3);
+        try {
+            List<Future<?>> results = new ArrayList<Future<?>>();
+            results.add(readers.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    while (!done.get()) {
+                        Iterators.size(conflicts.getByPrefix("tx1", "roads"));
+                    }
+                    return null;
+                }
+            }));
+            results.add(readers.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    while (!done.get()) {
+                        conflicts.findConflicts("tx1", paths);
+                    }
+                    return null;
+                }
+            }));
+            results.add(readers.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    while (!done.get()) {
+                        // paths never added, not to contend for record locks with addConflicts
+                        conflicts.removeConflicts("tx1", ImmutableList.of("rivers/1", "rivers/2"));
+                    }
+                    return null;
+                }
+            }));
+            for (int i = 0; i < 20; i++) {
+                conflicts.addConflicts("tx1", added);
+                conflicts.removeConflicts("tx1");
+            }
+            done.set(true);
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            done.set(true);
+            readers.shutdownNow();
+        }
+        assertFalse(conflicts.hasConflicts("tx1"));
+    }
+}
@@ -0,0 +1,200 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import static org.geogig.storage.bdbje.GraphTestSupport.id;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.StandardCopyOption;
+
+import org.geogig.storage.bdbje.GraphTestSupport.History;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.geogig.model.ObjectId;
+import org.locationtech.geogig.storage.GraphDatabase;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Compares a {@link JEGraphDatabase} reading from a {@link CommitGraphFile} to one without
+ */
+public class JEGraphDatabaseCommitGraphTest {
+
+    private static final int SIZE = 300;
+
+    /**
+     * Commit {@code i}, merging {@code i - 5} every 10 commits and {@code i - 5} and
+     * {@code i - 9} every 50, with a new root every 100
+     */
+    private static final History HISTORY = new History(10, 5, 100) {
+        @Override
+        ImmutableList<ObjectId> parents(int i) {
+            if (i % 50 == 0 && i % 100 != 0) {
+                return ImmutableList.of(id(i - 1), id(i - 5), id(i - 9));
+            }
+            return super.parents(i);
+        }
+    };
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private JEGraphDatabase snapshot;
+
+    private JEGraphDatabase plain;
+
+    private File snapshotRoot;
+
+    private final ObjectId original = ObjectId.forString("original");
+
+    @Before
+    public void before() throws Exception {
+        snapshotRoot = tmp.newFolder("snapshot");
+        snapshot = open(snapshotRoot);
+        plain = open(tmp.newFolder("plain"));
+        put(0, SIZE);
+        for (JEGraphDatabase graph : ImmutableList.of(snapshot, plain)) {
+            graph.map(id(7), original);
+            graph.setProperty(id(8), GraphDatabase.SPARSE_FLAG, "true");
+        }
+    }
+
+    private JEGraphDatabase open(File root) {
+        return GraphTestSupport.open(root, "0.3");
+    }
+
+    @After
+    public void after() {
+        snapshot.close();
+        plain.close();
+    }
+
+    private static ImmutableList<ObjectId> parents(int i) {
+        return HISTORY.parents(i);
+    }
+
+    private void put(int from, int to) {
+        for (int i = from; i < to; i++) {
+            assertEquals(plain.put(id(i), parents(i)), snapshot.put(id(i), parents(i)));
+        }
+    }
+
+    private File file() {
+        return new File(snapshot.getEnvironment().getHome(), CommitGraphFile.FILE_NAME);
+    }
+
+    private void assertSameGraph(int size) {
+        GraphTestSupport.assertSameGraph(plain, snapshot, size);
+        for (int i = 0; i < size; i++) {
+            assertEquals(plain.getChildren(id(i)), snapshot.getChildren(id(i)));
+        }
+    }
+
+    @Test
+    public void testWrite() {
+        assertNull(snapshot.getCommitGraph());
+        assertEquals(SIZE, snapshot.writeCommitGraph());
+        assertTrue(file().exists());
+        CommitGraphFile file = snapshot.getCommitGraph();
+        assertNotNull(file);
+        assertEquals(SIZE, file.nodeCount());
+        for (int i = 0; i < SIZE; i++) {
+            final int index = file.index(id(i));
+            assertEquals(id(i), file.id(index));
+            assertEquals(parents(i), file.parents(index));
+            assertEquals(i == 8, file.isSparse(index));
+            assertEquals(i == 7 ? original : ObjectId.NULL, file.mapping(index));
+        }
+        assertEquals(-1, file.index(id(SIZE)));
+        assertSameGraph(SIZE);
+    }
+
+    @Test
+    public void testReopen() {
+        snapshot.writeCommitGraph();
+        snapshot.close();
+        snapshot = open(snapshotRoot);
+        assertNotNull(snapshot.getCommitGraph());
+        assertSameGraph(SIZE);
+    }
+
+    @Test
+    public void testCommitsAddedAfter() {
+        snapshot.writeCommitGraph();
+        put(SIZE, SIZE + 50);
+        assertNotNull(snapshot.getCommitGraph());
+        assertSameGraph(SIZE + 50);
+        assertEquals(SIZE + 50, snapshot.writeCommitGraph());
+        assertSameGraph(SIZE + 50);
+    }
+
+    @Test
+    public void testDiscardedByParentsAdded() {
+        snapshot.writeCommitGraph();
+        for (JEGraphDatabase graph : ImmutableList.of(snapshot, plain)) {
+            graph.put(id(100), ImmutableList.of(id(99)));
+        }
+        assertNull(snapshot.getCommitGraph());
+        assertFalse(file().exists());
+        assertSameGraph(SIZE);
+    }
+
+    @Test
+    public void testDiscardedByMap() {
+        snapshot.writeCommitGraph();
+        for (JEGraphDatabase graph : ImmutableList.of(snapshot, plain)) {
+            graph.map(id(20), original);
+        }
+        assertNull(snapshot.getCommitGraph());
+        assertSameGraph(SIZE);
+    }
+
+    @Test
+    public void testDiscardedBySetProperty() {
+        snapshot.writeCommitGraph();
+        snapshot.setProperty(id(20), GraphDatabase.SPARSE_FLAG, "true");
+        assertNull(snapshot.getCommitGraph());
+        assertTrue(snapshot.getNode(id(20)).isSparse());
+    }
+
+    @Test
+    public void testOutdatedFileNotLoaded() throws Exception {
+        snapshot.writeCommitGraph();
+        final File copy = new File(tmp.getRoot(), "copy");
+        java.nio.file.Files.copy(file().toPath(), copy.toPath());
+        for (JEGraphDatabase graph : ImmutableList.of(snapshot, plain)) {
+            graph.put(id(100), ImmutableList.of(id(99)));
+        }
+        final File file = file();
+        snapshot.close();
+        java.nio.file.Files.copy(copy.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        snapshot = open(snapshotRoot);
+        assertNull(snapshot.getCommitGraph());
+        assertSameGraph(SIZE);
+    }
+
+    @Test
+    public void testTruncate() {
+        snapshot.writeCommitGraph();
+        snapshot.truncate();
+        assertNull(snapshot.getCommitGraph());
+        assertFalse(file().exists());
+        assertFalse(snapshot.exists(id(0)));
+    }
+}
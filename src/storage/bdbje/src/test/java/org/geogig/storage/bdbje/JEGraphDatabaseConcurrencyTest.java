@@ -0,0 +1,180 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.geogig.model.ObjectId;
+import org.locationtech.geogig.storage.GraphDatabase;
+import org.locationtech.geogig.storage.GraphDatabase.Direction;
+import org.locationtech.geogig.storage.GraphDatabase.GraphEdge;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+
+/**
+ * Concurrent writers and lock free readers on the same {@link JEGraphDatabase}
+ */
+public class JEGraphDatabaseConcurrencyTest {
+
+    private static final int WRITERS = 4;
+
+    private static final int READERS = 4;
+
+    private static final int COMMITS_PER_WRITER = 500;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private GraphDatabase graph;
+
+    private ExecutorService executor;
+
+    @Before
+    public void before() throws Exception {
+        graph = GraphTestSupport.open(tmp.getRoot(), "0.2");
+        executor = Executors.newFixedThreadPool(WRITERS + READERS);
+    }
+
+    @After
+    public void after() {
+        executor.shutdownNow();
+        graph.close();
+    }
+
+    private static ObjectId id(int writer, int i) {
+        return ObjectId.forString(writer + "-" + i);
+    }
+
+    @Test
+    public void testConcurrentWritersAndReaders() throws Exception {
+        final ObjectId root = ObjectId.forString("root");
+        graph.put(root, ImmutableList.<ObjectId> of());
+
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        List<Future<Integer>> readers = new ArrayList<Future<Integer>>();
+        for (int r = 0; r < READERS; r++) {
+            final int reader = r;
+            readers.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    int reads = 0;
+                    while (writing.get()) {
+                        // a commit's parents are always there by the time it's visible
+                        ObjectId tip = null;
+                        for (int i = COMMITS_PER_WRITER - 1; i >= 0 && tip == null; i -= 50) {
+                            if (graph.exists(id(reader % WRITERS, i))) {
+                                tip = id(reader % WRITERS, i);
+                            }
+                        }
+                        if (tip != null) {
+                            assertTrue(graph.getDepth(tip) > 0);
+                        }
+                        // children may be half written, but edges only list stored nodes
+                        Iterators.size(graph.getNode(root).getEdges(Direction.IN));
+                        reads++;
+                    }
+                    return reads;
+                }
+            }));
+        }
+
+        List<Future<?>> writers = new ArrayList<Future<?>>();
+        for (int w = 0; w < WRITERS; w++) {
+            final int writer = w;
+            writers.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    ObjectId parent = root;
+                    for (int i = 0; i < COMMITS_PER_WRITER; i++) {
+                        ObjectId id = id(writer, i);
+                        graph.put(id, ImmutableList.of(parent));
+                        parent = id;
+                    }
+                }
+            }));
+        }
+        for (Future<?> f : writers) {
+            f.get();
+        }
+        writing.set(false);
+        for (Future<Integer> f : readers) {
+            assertTrue(f.get().intValue() > 0);
+        }
+
+        // no relation was lost to concurrent writes
+        assertEquals(WRITERS, graph.getChildren(root).size());
+        assertEquals(WRITERS, Iterators.size(graph.getNode(root).getEdges(Direction.IN)));
+        for (int w = 0; w < WRITERS; w++) {
+            assertEquals(COMMITS_PER_WRITER, graph.getDepth(id(w, COMMITS_PER_WRITER - 1)));
+            for (int i = 1; i < COMMITS_PER_WRITER; i++) {
+                assertEquals(ImmutableList.of(id(w, i - 1)), graph.getParents(id(w, i)));
+                assertEquals(ImmutableList.of(id(w, i)), graph.getChildren(id(w, i - 1)));
+            }
+        }
+        GraphEdge edge = graph.getNode(id(0, 1)).getEdges(Direction.OUT).next();
+        assertEquals(id(0, 0), edge.getToNode().getIdentifier());
+    }
+
+    @Test
+    public void testReadersDuringTruncate() throws Exception {
+        final ObjectId root = ObjectId.forString("root");
+        final AtomicBoolean truncating = new AtomicBoolean(true);
+        List<Future<Integer>> readers = new ArrayList<Future<Integer>>();
+        for (int r = 0; r < READERS; r++) {
+            readers.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    int reads = 0;
+                    while (truncating.get()) {
+                        // the graph may be empty or not, but the database is never seen closed
+                        for (int i = 1; i < 10; i++) {
+                            if (graph.exists(id(0, i))) {
+                                graph.getParents(id(0, i));
+                                graph.getChildren(id(0, i - 1));
+                            }
+                        }
+                        graph.getChildren(root);
+                        reads++;
+                    }
+                    return reads;
+                }
+            }));
+        }
+        for (int t = 0; t < 20; t++) {
+            ObjectId parent = root;
+            graph.put(root, ImmutableList.<ObjectId> of());
+            for (int i = 0; i < 10; i++) {
+                graph.put(id(0, i), ImmutableList.of(parent));
+                parent = id(0, i);
+            }
+            graph.truncate();
+        }
+        truncating.set(false);
+        for (Future<Integer> f : readers) {
+            assertTrue(f.get().intValue() > 0);
+        }
+        assertEquals(ImmutableList.of(), graph.getChildren(root));
+    }
+}
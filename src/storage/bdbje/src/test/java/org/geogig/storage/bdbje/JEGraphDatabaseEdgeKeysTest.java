@@ -0,0 +1,256 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import static org.geogig.storage.bdbje.GraphTestSupport.id;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.geogig.storage.bdbje.GraphTestSupport.History;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.geogig.model.ObjectId;
+import org.locationtech.geogig.storage.GraphDatabase.Direction;
+import org.locationtech.geogig.storage.GraphDatabase.GraphEdge;
+import org.locationtech.geogig.storage.GraphDatabase.GraphNode;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.LockMode;
+
+/**
+ * Compares a {@link JEGraphDatabase} with {@link GraphEdges#CONFIG_KEY} enabled to one without
+ */
+public class JEGraphDatabaseEdgeKeysTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private JEGraphDatabase edgeKeys;
+
+    private JEGraphDatabase nodeLists;
+
+    private File edgeKeysRoot;
+
+    @Before
+    public void before() throws Exception {
+        edgeKeysRoot = tmp.newFolder("edgekeys");
+        edgeKeys = open(edgeKeysRoot, true, false);
+        nodeLists = open(tmp.newFolder("nodelists"), false, false);
+    }
+
+    private JEGraphDatabase open(File root, boolean edgeKeys, boolean adjacencyCache) {
+        return GraphTestSupport.open(root, "0.3", ImmutableMap.of(GraphEdges.CONFIG_KEY, edgeKeys,
+                AdjacencyCache.CONFIG_KEY, adjacencyCache));
+    }
+
+    @After
+    public void after() {
+        edgeKeys.close();
+        nodeLists.close();
+    }
+
+    /**
+     * Commit {@code i}, merging {@code i - 5} every 10 commits, with the merged commit first
+     */
+    private static final History HISTORY = new History(10, 5) {
+        @Override
+        ImmutableList<ObjectId> parents(int i) {
+            return super.parents(i).reverse();
+        }
+    };
+
+    private static ImmutableList<ObjectId> parents(int i) {
+        return HISTORY.parents(i);
+    }
+
+    private void put(int from, int to) {
+        for (int i = from; i < to; i++) {
+            assertEquals(nodeLists.put(id(i), parents(i)), edgeKeys.put(id(i), parents(i)));
+        }
+    }
+
+    private void assertSameGraph(int size) {
+        // children are in id order with edge keys
+        GraphTestSupport.assertSameGraph(nodeLists, edgeKeys, size);
+    }
+
+    @Test
+    public void testPut() {
+        put(0, 100);
+        assertSameGraph(100);
+        // already there
+        put(0, 100);
+    }
+
+    @Test
+    public void testPutAll() {
+        List<Map.Entry<ObjectId, ImmutableList<ObjectId>>> commits = HISTORY.commits(0, 1500);
+        Collections.reverse(commits);
+        assertEquals(nodeLists.putAll(commits.iterator()), edgeKeys.putAll(commits.iterator()));
+        assertSameGraph(1500);
+    }
+
+    @Test
+    public void testParentsAddedLater() {
+        for (int i = 49; i >= 0; i--) {
+            assertEquals(nodeLists.put(id(i), parents(i)), edgeKeys.put(id(i), parents(i)));
+        }
+        assertSameGraph(50);
+    }
+
+    @Test
+    public void testHubRecordDoesNotGrow() {
+        edgeKeys.put(id(0), ImmutableList.<ObjectId> of());
+        final int rootSize = recordSize(id(0));
+        for (int i = 1; i <= 500; i++) {
+            edgeKeys.put(ObjectId.forString("branch-" + i), ImmutableList.of(id(0)));
+        }
+        assertEquals(rootSize, recordSize(id(0)));
+        assertEquals(500, edgeKeys.getChildren(id(0)).size());
+    }
+
+    private int recordSize(ObjectId id) {
+        Environment env = edgeKeys.getEnvironment();
+        DatabaseConfig config = new DatabaseConfig();
+        config.setReadOnly(true);
+        config.setTransactional(env.getConfig().getTransactional());
+        Database db = env.openDatabase(null, "GraphDatabase", config);
+        try {
+            DatabaseEntry data = new DatabaseEntry();
+            db.get(null, new DatabaseEntry(id.getRawValue()), data, LockMode.READ_UNCOMMITTED);
+            return data.getSize();
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    public void testMapAndProperties() {
+        put(0, 10);
+        edgeKeys.map(id(100), id(5));
+        nodeLists.map(id(100), id(5));
+        assertEquals(id(5), edgeKeys.getMapping(id(100)));
+        edgeKeys.setProperty(id(3), "key", "value");
+        assertSameGraph(10);
+    }
+
+    @Test
+    public void testGraphNode() {
+        put(0, 30);
+        Iterator<GraphEdge> in = edgeKeys.getNode(id(15)).getEdges(Direction.IN);
+        List<ObjectId> children = new ArrayList<ObjectId>();
+        while (in.hasNext()) {
+            children.add(in.next().getFromNode().getIdentifier());
+        }
+        assertEquals(new HashSet<ObjectId>(ImmutableList.of(id(16), id(20))),
+                new HashSet<ObjectId>(children));
+    }
+
+    @Test
+    public void testGraphNodeEdges() {
+        put(0, 60);
+        for (int i = 0; i < 60; i++) {
+            for (JEGraphDatabase graph : ImmutableList.of(nodeLists, edgeKeys)) {
+                GraphNode node = graph.getNode(id(i));
+                List<ObjectId> in = from(node.getEdges(Direction.IN));
+                List<ObjectId> out = to(node.getEdges(Direction.OUT));
+                assertEquals(parents(i), out);
+                assertEquals(new HashSet<ObjectId>(graph.getChildren(id(i))),
+                        new HashSet<ObjectId>(in));
+                List<GraphEdge> both = ImmutableList.copyOf(node.getEdges(Direction.BOTH));
+                assertEquals(in.size() + out.size(), both.size());
+                assertEquals(in, from(both.subList(0, in.size()).iterator()));
+                assertEquals(out, to(both.subList(in.size(), both.size()).iterator()));
+                // the neighbours load their own edges
+                for (GraphEdge edge : both.subList(in.size(), both.size())) {
+                    ObjectId parent = edge.getToNode().getIdentifier();
+                    assertEquals(graph.getParents(parent),
+                            to(edge.getToNode().getEdges(Direction.OUT)));
+                }
+            }
+        }
+    }
+
+    private static List<ObjectId> from(Iterator<GraphEdge> edges) {
+        List<ObjectId> ids = new ArrayList<ObjectId>();
+        while (edges.hasNext()) {
+            ids.add(edges.next().getFromNode().getIdentifier());
+        }
+        return ids;
+    }
+
+    private static List<ObjectId> to(Iterator<GraphEdge> edges) {
+        List<ObjectId> ids = new ArrayList<ObjectId>();
+        while (edges.hasNext()) {
+            ids.add(edges.next().getToNode().getIdentifier());
+        }
+        return ids;
+    }
+
+    @Test
+    public void testReopen() {
+        put(0, 100);
+        edgeKeys.close();
+        edgeKeys = open(edgeKeysRoot, false, false);
+        // the layout stays with the graph
+        assertSameGraph(100);
+        put(100, 120);
+        assertSameGraph(120);
+    }
+
+    @Test
+    public void testNotForExistingGraphs() {
+        nodeLists.put(id(0), ImmutableList.<ObjectId> of());
+        nodeLists.close();
+        nodeLists = open(new File(tmp.getRoot(), "nodelists"), true, false);
+        nodeLists.put(id(1), parents(1));
+        edgeKeys.put(id(0), ImmutableList.<ObjectId> of());
+        edgeKeys.put(id(1), parents(1));
+        assertSameGraph(2);
+    }
+
+    @Test
+    public void testAdjacencyCache() {
+        put(0, 60);
+        edgeKeys.close();
+        edgeKeys = open(edgeKeysRoot, true, true);
+        assertSameGraph(60);
+        put(60, 80);
+        assertSameGraph(80);
+    }
+
+    @Test
+    public void testTruncate() {
+        put(0, 10);
+        edgeKeys.truncate();
+        assertFalse(edgeKeys.exists(id(0)));
+        assertTrue(edgeKeys.getChildren(id(0)).isEmpty());
+        edgeKeys.put(id(0), ImmutableList.<ObjectId> of());
+        edgeKeys.put(id(1), parents(1));
+        assertEquals(ImmutableList.of(id(1)), edgeKeys.getChildren(id(0)));
+    }
+}
@@ -0,0 +1,257 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import static org.geogig.storage.bdbje.GraphTestSupport.id;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.geogig.storage.bdbje.GraphTestSupport.History;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.geogig.model.ObjectId;
+import org.locationtech.geogig.repository.Hints;
+import org.locationtech.geogig.storage.fs.IniFileConfigDatabase;
+import org.locationtech.geogig.test.TestPlatform;
+
+import com.google.common.collect.ImmutableList;
+import com.sleepycat.bind.tuple.TupleBinding;
+import com.sleepycat.bind.tuple.TupleInput;
+import com.sleepycat.bind.tuple.TupleOutput;
+
+/**
+ * Stored depth and generation of {@link JEGraphDatabase} nodes
+ */
+public class JEGraphDatabaseGenerationsTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private JEGraphDatabase graph;
+
+    @Before
+    public void before() throws Exception {
+        graph = open(null);
+    }
+
+    @After
+    public void after() {
+        if (graph != null) {
+            graph.close();
+        }
+    }
+
+    /**
+     * @param binding the binding to open the graph with, or {@code null} for the v0.2 one
+     */
+    private JEGraphDatabase open(TupleBinding<NodeData> binding) {
+        if (binding == null) {
+            return GraphTestSupport.open(tmp.getRoot(), "0.2");
+        }
+        TestPlatform platform = new TestPlatform(tmp.getRoot());
+        JEGraphDatabase db = new JEGraphDatabase(new IniFileConfigDatabase(platform),
+                new EnvironmentBuilder(platform, null), binding, "0.2", new Hints()) {
+        };
+        db.open();
+        return db;
+    }
+
+    /**
+     * Commit {@code i}, merging {@code i - 7} every 5 commits
+     */
+    private static final History HISTORY = new History(5, 7);
+
+    private static ImmutableList<ObjectId> parents(int i) {
+        return HISTORY.parents(i);
+    }
+
+    private void putHistory(int size) {
+        HISTORY.put(graph, 0, size);
+    }
+
+    /**
+     * Depth and generation of commit {@code i} of {@link #parents(int) the history}, computed by
+     * visiting all its ancestors
+     */
+    private static int[] expected(int i) {
+        Map<ObjectId, Integer> generations = new HashMap<ObjectId, Integer>();
+        for (int c = 0; c <= i; c++) {
+            int generation = 0;
+            for (ObjectId p : parents(c)) {
+                generation = Math.max(generation, generations.get(p) + 1);
+            }
+            generations.put(id(c), generation);
+        }
+        int depth = 0;
+        Set<ObjectId> level = new HashSet<ObjectId>();
+        level.add(id(i));
+        while (true) {
+            Set<ObjectId> next = new HashSet<ObjectId>();
+            for (ObjectId c : level) {
+                int index = indexOf(c, i);
+                if (parents(index).isEmpty()) {
+                    return new int[] { depth, generations.get(id(i)) };
+                }
+                next.addAll(parents(index));
+            }
+            level = next;
+            depth++;
+        }
+    }
+
+    private static int indexOf(ObjectId id, int max) {
+        for (int i = 0; i <= max; i++) {
+            if (id(i).equals(id)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException();
+    }
+
+    private void assertGenerations(int size) {
+        for (int i = 0; i < size; i++) {
+            int[] expected = expected(i);
+            assertEquals("depth of " + i, expected[0], graph.getDepth(id(i)));
+            assertEquals("generation of " + i, expected[1], graph.getGeneration(id(i)));
+        }
+    }
+
+    @Test
+    public void testComputedOnPut() {
+        putHistory(100);
+        assertGenerations(100);
+    }
+
+    @Test
+    public void testComputedOnPutAll() {
+        List<Map.Entry<ObjectId, ImmutableList<ObjectId>>> commits = HISTORY.commits(0, 100);
+        Collections.reverse(commits);
+        graph.putAll(commits.iterator());
+        assertGenerations(100);
+    }
+
+    @Test
+    public void testParentsAddedLater() {
+        // children first, each parent is a root until it's added
+        for (int i = 49; i >= 0; i--) {
+            graph.put(id(i), parents(i));
+        }
+        assertGenerations(50);
+    }
+
+    @Test
+    public void testBackfill() {
+        graph.close();
+        graph = open(new LegacyBinding());
+        putHistory(100);
+        graph.close();
+
+        graph = open(null);
+        // whether or not the background backfill already ran
+        assertGenerations(100);
+        graph.backfillGenerations();
+        assertEquals(0, graph.backfillGenerations());
+        assertGenerations(100);
+
+        // computed on put from the backfilled parents
+        graph.put(id(100), parents(100));
+        assertGenerations(101);
+    }
+
+    @Test
+    public void testLegacyReadOfNewRecords() {
+        putHistory(20);
+        graph.close();
+        graph = open(new LegacyBinding());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(parents(i), graph.getParents(id(i)));
+        }
+        assertTrue(graph.exists(id(19)));
+    }
+
+    /**
+     * The v0.2 node format as written by versions that didn't store depth and generation
+     */
+    private static class LegacyBinding extends TupleBinding<NodeData> {
+
+        @Override
+        public NodeData entryToObject(TupleInput input) {
+            ObjectId id = readId(input);
+            ObjectId mappedTo = readId(input);
+            List<ObjectId> outgoing = readIds(input);
+            List<ObjectId> incoming = readIds(input);
+            Map<String, String> properties = new HashMap<String, String>();
+            int len = input.readInt();
+            for (int i = 0; i < len; i++) {
+                properties.put(input.readString(), input.readString());
+            }
+            return new NodeData(id, mappedTo, outgoing, incoming, properties);
+        }
+
+        private ObjectId readId(TupleInput input) {
+            int size = input.read();
+            if (size == 0) {
+                return ObjectId.NULL;
+            }
+            byte[] hash = new byte[size];
+            input.read(hash);
+            return ObjectId.createNoClone(hash);
+        }
+
+        private List<ObjectId> readIds(TupleInput input) {
+            int len = input.readInt();
+            List<ObjectId> ids = new ArrayList<ObjectId>();
+            for (int i = 0; i < len; i++) {
+                ids.add(readId(input));
+            }
+            return ids;
+        }
+
+        @Override
+        public void objectToEntry(NodeData node, TupleOutput output) {
+            writeId(node.id, output);
+            writeId(node.mappedTo, output);
+            writeIds(node.outgoing, output);
+            writeIds(node.incoming, output);
+            output.writeInt(node.properties.size());
+            for (Map.Entry<String, String> e : node.properties.entrySet()) {
+                output.writeString(e.getKey());
+                output.writeString(e.getValue());
+            }
+        }
+
+        private void writeId(ObjectId id, TupleOutput output) {
+            if (id == null || id.isNull()) {
+                output.write(0);
+            } else {
+                output.write(ObjectId.NUM_BYTES);
+                output.write(id.getRawValue());
+            }
+        }
+
+        private void writeIds(List<ObjectId> ids, TupleOutput output) {
+            output.writeInt(ids.size());
+            for (ObjectId id : ids) {
+                writeId(id, output);
+            }
+        }
+    }
+}
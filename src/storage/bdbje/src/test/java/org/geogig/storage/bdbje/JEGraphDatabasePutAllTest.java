@@ -0,0 +1,106 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import static org.geogig.storage.bdbje.GraphTestSupport.assertSameGraph;
+import static org.geogig.storage.bdbje.GraphTestSupport.id;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.geogig.storage.bdbje.GraphTestSupport.History;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.geogig.model.ObjectId;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+public class JEGraphDatabasePutAllTest {
+
+    /**
+     * A merge every 10 commits, spanning several batches
+     */
+    private static final History HISTORY = new History(10, 5);
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private JEGraphDatabase putAll;
+
+    private JEGraphDatabase put;
+
+    @Before
+    public void before() throws Exception {
+        putAll = GraphTestSupport.open(tmp.newFolder("putAll"), "0.2");
+        put = GraphTestSupport.open(tmp.newFolder("put"), "0.2");
+    }
+
+    @After
+    public void after() {
+        putAll.close();
+        put.close();
+    }
+
+    private static Map.Entry<ObjectId, ImmutableList<ObjectId>> commit(int i, int... parents) {
+        ImmutableList.Builder<ObjectId> builder = ImmutableList.builder();
+        for (int p : parents) {
+            builder.add(id(p));
+        }
+        return Maps.immutableEntry(id(i), builder.build());
+    }
+
+    @Test
+    public void testSameAsPut() {
+        final int size = 2 * JEGraphDatabase.PUTALL_BATCH_SIZE + 100;
+        List<Map.Entry<ObjectId, ImmutableList<ObjectId>>> commits = HISTORY.commits(0, size);
+        int expected = 0;
+        for (Map.Entry<ObjectId, ImmutableList<ObjectId>> c : commits) {
+            if (put.put(c.getKey(), c.getValue())) {
+                expected++;
+            }
+        }
+        assertEquals(expected, putAll.putAll(commits.iterator()));
+        assertSameGraph(put, putAll, size);
+
+        // all already there
+        assertEquals(0, putAll.putAll(commits.iterator()));
+    }
+
+    @Test
+    public void testAnyOrder() {
+        final int size = JEGraphDatabase.PUTALL_BATCH_SIZE + 500;
+        List<Map.Entry<ObjectId, ImmutableList<ObjectId>>> commits = HISTORY.commits(0, size);
+        HISTORY.put(put, 0, size);
+        Collections.shuffle(commits, new Random(1));
+        putAll.putAll(commits.iterator());
+        assertSameGraph(put, putAll, size);
+    }
+
+    @Test
+    public void testMergesWithExistingGraphAndDuplicates() {
+        put.put(id(0), ImmutableList.<ObjectId> of());
+        putAll.put(id(0), ImmutableList.<ObjectId> of());
+        List<Map.Entry<ObjectId, ImmutableList<ObjectId>>> commits = ImmutableList.of(
+                commit(1, 0), commit(2, 1), commit(2, 0), commit(3, 2, 1));
+        for (Map.Entry<ObjectId, ImmutableList<ObjectId>> c : commits) {
+            put.put(c.getKey(), c.getValue());
+        }
+        assertEquals(3, putAll.putAll(commits.iterator()));
+        assertSameGraph(put, putAll, 4);
+        assertEquals(ImmutableList.of(id(1), id(0)), putAll.getParents(id(2)));
+    }
+}
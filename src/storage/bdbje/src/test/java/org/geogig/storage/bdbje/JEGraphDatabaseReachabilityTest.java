@@ -0,0 +1,221 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import static org.geogig.storage.bdbje.GraphTestSupport.id;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.geogig.model.ObjectId;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * {@link JEGraphDatabase#isAncestor} and {@link JEGraphDatabase#findMergeBase}, with and without
+ * the {@link ReachabilityIndex}, checked against the ancestors of every commit of a random history
+ */
+public class JEGraphDatabaseReachabilityTest {
+
+    private static final int SIZE = 400;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private JEGraphDatabase indexed;
+
+    private JEGraphDatabase walked;
+
+    private List<ImmutableList<Integer>> parents;
+
+    /**
+     * Ancestors of each commit, including itself
+     */
+    private List<BitSet> ancestors;
+
+    private List<Integer> generations;
+
+    @Before
+    public void before() throws Exception {
+        indexed = open(tmp.newFolder("indexed"), true);
+        walked = open(tmp.newFolder("walked"), false);
+        parents = new ArrayList<ImmutableList<Integer>>();
+        ancestors = new ArrayList<BitSet>();
+        generations = new ArrayList<Integer>();
+        Random random = new Random(7);
+        for (int i = 0; i < SIZE; i++) {
+            ImmutableList<Integer> commitParents;
+            if (i == 0 || random.nextInt(50) == 0) {
+                commitParents = ImmutableList.of();
+            } else if (random.nextInt(5) == 0 && i > 1) {
+                // a merge of a recent commit and an older one
+                int first = i - 1 - random.nextInt(Math.min(i, 5));
+                int second = random.nextInt(i);
+                commitParents = first == second ? ImmutableList.of(first)
+                        : ImmutableList.of(first, second);
+            } else {
+                commitParents = ImmutableList.of(i - 1 - random.nextInt(Math.min(i, 3)));
+            }
+            add(commitParents);
+        }
+    }
+
+    private void add(ImmutableList<Integer> commitParents) {
+        int i = parents.size();
+        BitSet commitAncestors = new BitSet();
+        commitAncestors.set(i);
+        int generation = 0;
+        for (Integer p : commitParents) {
+            commitAncestors.or(ancestors.get(p));
+            generation = Math.max(generation, generations.get(p) + 1);
+        }
+        parents.add(commitParents);
+        ancestors.add(commitAncestors);
+        generations.add(generation);
+        List<ObjectId> ids = new ArrayList<ObjectId>();
+        for (Integer p : commitParents) {
+            ids.add(id(p));
+        }
+        indexed.put(id(i), ImmutableList.copyOf(ids));
+        walked.put(id(i), ImmutableList.copyOf(ids));
+    }
+
+    private JEGraphDatabase open(File root, boolean reachabilityIndex) {
+        return GraphTestSupport.open(root, "0.2",
+                ImmutableMap.of(ReachabilityIndex.CONFIG_KEY, reachabilityIndex));
+    }
+
+    @After
+    public void after() {
+        indexed.close();
+        walked.close();
+    }
+
+    private void assertAncestors(int samples) {
+        Random random = new Random(11);
+        final int size = parents.size();
+        for (int s = 0; s < samples; s++) {
+            int descendant = random.nextInt(size);
+            int ancestor = random.nextInt(size);
+            boolean expected = ancestors.get(descendant).get(ancestor);
+            String message = ancestor + " ancestor of " + descendant;
+            assertEquals(message, expected, walked.isAncestor(id(ancestor), id(descendant)));
+            assertEquals(message, expected, indexed.isAncestor(id(ancestor), id(descendant)));
+        }
+    }
+
+    private void assertMergeBases(int samples) {
+        Random random = new Random(13);
+        final int size = parents.size();
+        for (int s = 0; s < samples; s++) {
+            int left = random.nextInt(size);
+            int right = random.nextInt(size);
+            Optional<ObjectId> expected = expectedMergeBase(left, right);
+            String message = "merge base of " + left + " and " + right;
+            assertEquals(message, expected, walked.findMergeBase(id(left), id(right)));
+            assertEquals(message, expected, indexed.findMergeBase(id(left), id(right)));
+        }
+    }
+
+    /**
+     * The common ancestor of highest generation, of lowest id if several
+     */
+    private Optional<ObjectId> expectedMergeBase(int left, int right) {
+        BitSet common = (BitSet) ancestors.get(left).clone();
+        common.and(ancestors.get(right));
+        ObjectId best = null;
+        int bestGeneration = -1;
+        for (int c = common.nextSetBit(0); c >= 0; c = common.nextSetBit(c + 1)) {
+            int generation = generations.get(c);
+            if (generation > bestGeneration
+                    || (generation == bestGeneration && id(c).compareTo(best) < 0)) {
+                best = id(c);
+                bestGeneration = generation;
+            }
+        }
+        return Optional.fromNullable(best);
+    }
+
+    @Test
+    public void testWithoutIndex() {
+        // not built yet, queries walk the graph
+        assertAncestors(500);
+        assertMergeBases(200);
+    }
+
+    @Test
+    public void testIndex() {
+        indexed.reindex();
+        assertAncestors(2000);
+        assertMergeBases(500);
+    }
+
+    @Test
+    public void testCommitsAddedAfterIndex() {
+        indexed.reindex();
+        Random random = new Random(17);
+        for (int i = 0; i < 50; i++) {
+            int size = parents.size();
+            add(ImmutableList.of(size - 1, random.nextInt(size - 1)));
+        }
+        assertAncestors(2000);
+        assertMergeBases(500);
+    }
+
+    @Test
+    public void testParentsAddedToExistingCommit() {
+        indexed.reindex();
+        // a root commit gets a parent, changing the ancestors of its descendants
+        int root = -1;
+        for (int i = 1; i < SIZE && root < 0; i++) {
+            if (parents.get(i).isEmpty()) {
+                root = i;
+            }
+        }
+        assertTrue(root > 0);
+        ObjectId newParent = ObjectId.forString("new parent");
+        assertFalse(indexed.isAncestor(newParent, id(SIZE - 1)));
+        indexed.put(id(root), ImmutableList.of(newParent));
+        walked.put(id(root), ImmutableList.of(newParent));
+        assertEquals(walked.isAncestor(newParent, id(SIZE - 1)),
+                indexed.isAncestor(newParent, id(SIZE - 1)));
+        assertTrue(indexed.isAncestor(newParent, id(root)));
+        indexed.reindex();
+        assertTrue(indexed.isAncestor(newParent, id(root)));
+        assertEquals(walked.isAncestor(newParent, id(SIZE - 1)),
+                indexed.isAncestor(newParent, id(SIZE - 1)));
+    }
+
+    @Test
+    public void testUnknownCommits() {
+        indexed.reindex();
+        ObjectId unknown = ObjectId.forString("unknown");
+        for (JEGraphDatabase graph : ImmutableList.of(indexed, walked)) {
+            assertFalse(graph.isAncestor(unknown, id(10)));
+            assertFalse(graph.isAncestor(id(0), unknown));
+            assertTrue(graph.isAncestor(unknown, unknown));
+            assertEquals(Optional.absent(), graph.findMergeBase(unknown, id(10)));
+            assertEquals(Optional.of(id(10)), graph.findMergeBase(id(10), id(10)));
+        }
+    }
+}
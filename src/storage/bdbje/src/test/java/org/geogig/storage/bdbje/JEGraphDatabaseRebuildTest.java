@@ -0,0 +1,216 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import static org.geogig.storage.bdbje.GraphTestSupport.id;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.geogig.storage.bdbje.GraphTestSupport.History;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.geogig.model.ObjectId;
+import org.locationtech.geogig.repository.DefaultProgressListener;
+import org.locationtech.geogig.storage.GraphDatabase;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.Environment;
+
+/**
+ * {@link JEGraphDatabase#rebuild}, compared to a graph built with {@link JEGraphDatabase#put}
+ */
+public class JEGraphDatabaseRebuildTest {
+
+    private static final int SIZE = 1500;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private JEGraphDatabase expected;
+
+    private JEGraphDatabase rebuilt;
+
+    private File rebuiltRoot;
+
+    private Map<ObjectId, ImmutableList<ObjectId>> commits;
+
+    @Before
+    public void before() throws Exception {
+        expected = open(tmp.newFolder("expected"), false);
+        rebuiltRoot = tmp.newFolder("rebuilt");
+        rebuilt = open(rebuiltRoot, false);
+        commits = new HashMap<ObjectId, ImmutableList<ObjectId>>();
+        for (int i = 0; i < SIZE; i++) {
+            commits.put(id(i), parents(i));
+            expected.put(id(i), parents(i));
+        }
+    }
+
+    private JEGraphDatabase open(File root, boolean edgeKeys) {
+        return GraphTestSupport.open(root, "0.3", ImmutableMap.of(GraphEdges.CONFIG_KEY, edgeKeys));
+    }
+
+    @After
+    public void after() {
+        expected.close();
+        rebuilt.close();
+    }
+
+    /**
+     * Commit {@code i}, merging {@code i - 7} every 10 commits, with a new root every 500
+     */
+    private static final History HISTORY = new History(10, 7, 500);
+
+    private static ImmutableList<ObjectId> parents(int i) {
+        return HISTORY.parents(i);
+    }
+
+    private void assertSameGraph() {
+        GraphTestSupport.assertSameGraph(expected, rebuilt, SIZE);
+    }
+
+    private int rebuild() {
+        return rebuilt.rebuild(commits, new DefaultProgressListener());
+    }
+
+    @Test
+    public void testRebuild() {
+        assertEquals(SIZE, rebuild());
+        assertSameGraph();
+    }
+
+    @Test
+    public void testReplacesExistingGraph() {
+        // a broken graph, missing commits and with a wrong parent
+        for (int i = 0; i < SIZE; i += 3) {
+            rebuilt.put(id(i), ImmutableList.of(id(i + 1)));
+        }
+        assertEquals(SIZE, rebuild());
+        assertSameGraph();
+    }
+
+    @Test
+    public void testKeepsMappingsAndProperties() {
+        ObjectId original = ObjectId.forString("original");
+        ObjectId unknown = ObjectId.forString("not a commit");
+        rebuilt.put(id(3), parents(3));
+        rebuilt.map(id(3), original);
+        rebuilt.setProperty(id(3), GraphDatabase.SPARSE_FLAG, "true");
+        rebuilt.map(unknown, original);
+        expected.map(id(3), original);
+
+        assertEquals(SIZE + 1, rebuild());
+        assertSameGraph();
+        assertEquals(original, rebuilt.getMapping(id(3)));
+        assertTrue(rebuilt.getNode(id(3)).isSparse());
+        assertFalse(rebuilt.getNode(id(4)).isSparse());
+        assertEquals(original, rebuilt.getMapping(unknown));
+    }
+
+    @Test
+    public void testFailedRebuildKeepsGraph() {
+        for (int i = 0; i < 100; i++) {
+            rebuilt.put(id(i), parents(i));
+        }
+        try {
+            rebuilt.rebuild(commits, new DefaultProgressListener() {
+                @Override
+                public void setProgress(float progress) {
+                    throw new IllegalStateException("interrupted");
+                }
+            });
+            fail("Expected ISE");
+        } catch (IllegalStateException e) {
+            assertEquals("interrupted", e.getMessage());
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(parents(i), rebuilt.getParents(id(i)));
+        }
+        assertFalse(rebuilt.exists(id(100)));
+        for (String name : rebuilt.getEnvironment().getDatabaseNames()) {
+            assertFalse(name, name.endsWith(".rebuild"));
+        }
+        // and a rebuild after it does complete
+        assertEquals(SIZE, rebuild());
+        assertSameGraph();
+    }
+
+    private long edgeCount() {
+        long count = 0;
+        for (ImmutableList<ObjectId> parents : commits.values()) {
+            count += parents.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of keys in the edges database, {@code 0} if it doesn't exist
+     */
+    private long edgeKeys() {
+        Environment env = rebuilt.getEnvironment();
+        if (!env.getDatabaseNames().contains(GraphEdges.DATABASE_NAME)) {
+            return 0;
+        }
+        DatabaseConfig config = new DatabaseConfig();
+        config.setReadOnly(true);
+        config.setUseExistingConfig(true);
+        Database db = env.openDatabase(null, GraphEdges.DATABASE_NAME, config);
+        try {
+            return db.count();
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    public void testConvertsToEdgeKeys() {
+        for (int i = 0; i < 10; i++) {
+            rebuilt.put(id(i), parents(i));
+        }
+        rebuilt.close();
+        // the layout of a graph with commits doesn't change on open, but does on rebuild
+        rebuilt = open(rebuiltRoot, true);
+        assertEquals(0, edgeKeys());
+        assertEquals(SIZE, rebuild());
+        assertEquals(2 * edgeCount(), edgeKeys());
+        assertSameGraph();
+        rebuilt.close();
+        rebuilt = open(rebuiltRoot, false);
+        assertEquals(2 * edgeCount(), edgeKeys());
+        assertSameGraph();
+    }
+
+    @Test
+    public void testConvertsToNodeLists() {
+        rebuilt.close();
+        rebuilt = open(rebuiltRoot, true);
+        for (int i = 0; i < 10; i++) {
+            rebuilt.put(id(i), parents(i));
+        }
+        rebuilt.close();
+        rebuilt = open(rebuiltRoot, false);
+        assertEquals(2 * 9, edgeKeys());
+        assertEquals(SIZE, rebuild());
+        assertEquals(0, edgeKeys());
+        assertSameGraph();
+    }
+}
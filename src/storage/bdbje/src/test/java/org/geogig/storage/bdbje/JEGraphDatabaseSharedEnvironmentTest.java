@@ -0,0 +1,51 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Test;
+import org.locationtech.geogig.model.ObjectId;
+import org.locationtech.geogig.repository.Platform;
+import org.locationtech.geogig.storage.GraphDatabase;
+import org.locationtech.geogig.storage.GraphDatabaseTest;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Runs the graph database tests with the graph database hosted in the objects environment
+ */
+public class JEGraphDatabaseSharedEnvironmentTest extends GraphDatabaseTest {
+
+    private File geogigDir;
+
+    @Override
+    protected GraphDatabase createDatabase(Platform platform) throws Exception {
+        File root = platform.pwd();
+        geogigDir = new File(root, ".geogig");
+        Preconditions.checkState(geogigDir.exists());
+
+        return GraphTestSupport.open(root, "0.2",
+                ImmutableMap.of(JEGraphDatabase.SHARED_ENVIRONMENT_CONFIG_KEY, true));
+    }
+
+    @Test
+    public void testGraphInObjectsEnvironment() {
+        database.put(ObjectId.forString("commit"), ImmutableList.<ObjectId> of());
+        File objectsDir = new File(geogigDir, JEObjectDatabase.ENVIRONMENT_NAME);
+        assertTrue(new File(objectsDir, JEGraphDatabase.SHARED_ENVIRONMENT_MARKER).exists());
+        assertFalse(new File(geogigDir, JEGraphDatabase.ENVIRONMENT_NAME).exists());
+    }
+}
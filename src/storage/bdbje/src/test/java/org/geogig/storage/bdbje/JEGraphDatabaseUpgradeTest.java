@@ -0,0 +1,200 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import static org.geogig.storage.bdbje.GraphTestSupport.id;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.geogig.storage.bdbje.GraphTestSupport.History;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.geogig.model.ObjectId;
+import org.locationtech.geogig.repository.DefaultProgressListener;
+import org.locationtech.geogig.storage.GraphDatabase;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.sleepycat.bind.tuple.TupleBinding;
+import com.sleepycat.je.DatabaseEntry;
+
+/**
+ * The v0.3 graph node format, and converting v0.2 graphs to it with
+ * {@link JEGraphDatabase#rewrite}
+ */
+public class JEGraphDatabaseUpgradeTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final History HISTORY = new History(5, 7);
+
+    private JEGraphDatabase graph;
+
+    @After
+    public void after() {
+        if (graph != null) {
+            graph.close();
+        }
+    }
+
+    private JEGraphDatabase open(String version) {
+        return GraphTestSupport.open(tmp.getRoot(), version);
+    }
+
+    private void assertHistory(int size) {
+        for (int i = 0; i < size; i++) {
+            assertTrue(graph.exists(id(i)));
+            assertEquals(HISTORY.parents(i), graph.getParents(id(i)));
+            assertEquals(i, graph.getGeneration(id(i)));
+        }
+        assertEquals(ImmutableList.of(id(1)), graph.getChildren(id(0)));
+        assertEquals(ImmutableList.of(id(9), id(15)), graph.getChildren(id(8)));
+    }
+
+    @Test
+    public void testBindingRoundTrip() {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put(GraphDatabase.SPARSE_FLAG, "true");
+        properties.put("custom", "value");
+        NodeData node = new NodeData(id(1), id(2), ImmutableList.of(id(3), id(4)),
+                ImmutableList.of(id(5)), properties);
+        node.depth = 7;
+        node.generation = 9;
+
+        NodeData read = roundTrip(node);
+        assertNull("the id is the record key", read.id);
+        assertEquals(id(2), read.mappedTo);
+        assertEquals(ImmutableList.of(id(3), id(4)), read.outgoing);
+        assertEquals(ImmutableList.of(id(5)), read.incoming);
+        assertEquals(properties, read.properties);
+        assertEquals(7, read.depth);
+        assertEquals(9, read.generation);
+
+        NodeData root = roundTrip(new NodeData(id(1), ImmutableList.<ObjectId> of()));
+        assertEquals(ObjectId.NULL, root.mappedTo);
+        assertTrue(root.outgoing.isEmpty());
+        assertEquals(0, root.generation);
+
+        NodeData unknown = new NodeData(id(1), ObjectId.NULL, ImmutableList.of(id(3)),
+                ImmutableList.<ObjectId> of(), ImmutableMap.<String, String> of());
+        assertEquals(NodeData.UNKNOWN, roundTrip(unknown).depth);
+    }
+
+    @Test
+    public void testLazyIds() {
+        NodeData node = new NodeData(id(1), ObjectId.NULL,
+                ImmutableList.of(id(3), id(4), id(5)), ImmutableList.<ObjectId> of(),
+                ImmutableMap.<String, String> of());
+        List<ObjectId> ids = roundTrip(node).outgoing;
+        assertTrue(ids instanceof RawObjectIdList);
+        assertEquals(1, ids.indexOf(id(4)));
+        assertFalse(ids.contains(id(6)));
+
+        ids.add(id(6));
+        ids.remove(id(3));
+        assertEquals(ImmutableList.of(id(4), id(5), id(6)), ids);
+
+        NodeData changed = new NodeData(id(1), ObjectId.NULL, ids, ImmutableList.<ObjectId> of(),
+                ImmutableMap.<String, String> of());
+        assertEquals(ids, roundTrip(changed).outgoing);
+    }
+
+    @Test
+    public void testReadsLegacyRecords() {
+        NodeData node = new NodeData(id(1), ImmutableList.of(id(2)));
+        DatabaseEntry entry = new DatabaseEntry();
+        new JEGraphDatabase_v0_2.GraphNodeBinding().objectToEntry(node, entry);
+        NodeData read = JEGraphDatabase_v0_3.BINDING_V3.entryToObject(entry);
+        assertEquals(id(1), read.id);
+        assertEquals(ImmutableList.of(id(2)), read.outgoing);
+    }
+
+    @Test
+    public void testSmallerRecords() {
+        NodeData node = new NodeData(id(1), ImmutableList.of(id(2), id(3)));
+        node.incoming.add(id(4));
+        assertTrue(size(JEGraphDatabase_v0_3.BINDING_V3, node) < size(
+                new JEGraphDatabase_v0_2.GraphNodeBinding(), node));
+    }
+
+    @Test
+    public void testUpgradeV2() {
+        testUpgrade("0.2");
+    }
+
+    @Test
+    public void testUpgradeV1Refused() {
+        graph = open("0.1");
+        HISTORY.put(graph, 0, 20);
+        try {
+            UpgradeGraphOp.checkUpgradable(graph);
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("bdbje 0.1"));
+        }
+        assertHistory(20);
+    }
+
+    private void testUpgrade(String version) {
+        graph = open(version);
+        UpgradeGraphOp.checkUpgradable(graph);
+        HISTORY.put(graph, 0, 50);
+
+        DefaultProgressListener progress = new DefaultProgressListener();
+        assertEquals(50, graph.rewrite(JEGraphDatabase_v0_3.BINDING_V3, progress));
+        assertEquals(100f, progress.getProgress(), 0f);
+        assertEquals(0, graph.rewrite(JEGraphDatabase_v0_3.BINDING_V3, progress));
+        assertHistory(50);
+
+        // mixed formats
+        HISTORY.put(graph, 50, 60);
+        assertHistory(60);
+        graph.close();
+
+        graph = open("0.3");
+        assertHistory(60);
+        HISTORY.put(graph, 60, 70);
+        graph.close();
+
+        graph = open(version);
+        assertHistory(70);
+    }
+
+    @Test
+    public void testRewriteBatches() {
+        graph = open("0.2");
+        HISTORY.put(graph, 0, JEGraphDatabase.PUTALL_BATCH_SIZE * 2 + 10);
+        assertEquals(JEGraphDatabase.PUTALL_BATCH_SIZE * 2 + 10,
+                graph.rewrite(JEGraphDatabase_v0_3.BINDING_V3, new DefaultProgressListener()));
+        assertHistory(JEGraphDatabase.PUTALL_BATCH_SIZE * 2 + 10);
+    }
+
+    private static NodeData roundTrip(NodeData node) {
+        DatabaseEntry entry = new DatabaseEntry();
+        JEGraphDatabase_v0_3.BINDING_V3.objectToEntry(node, entry);
+        return JEGraphDatabase_v0_3.BINDING_V3.entryToObject(entry);
+    }
+
+    private static int size(TupleBinding<NodeData> binding, NodeData node) {
+        DatabaseEntry entry = new DatabaseEntry();
+        binding.objectToEntry(node, entry);
+        return entry.getSize();
+    }
+}
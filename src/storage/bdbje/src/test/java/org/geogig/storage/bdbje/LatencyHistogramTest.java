@@ -0,0 +1,101 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBuckets() {
+        int prev = -1;
+        for (long v = 0; v < 1L << 20; v++) {
+            int bucket = LatencyHistogram.bucket(v);
+            assertTrue(bucket == prev || bucket == prev + 1);
+            assertTrue(v <= LatencyHistogram.upperBound(bucket));
+            if (bucket > 0) {
+                assertTrue(v > LatencyHistogram.upperBound(bucket - 1));
+            }
+            prev = bucket;
+        }
+        int last = LatencyHistogram.bucket(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBound(last));
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.getPercentile(99));
+        for (int i = 1; i <= 1000; i++) {
+            h.record(i * 1000L);
+        }
+        assertEquals(1000, h.getCount());
+        assertEquals(1000 * 1000L, h.getMax());
+        assertEquals(500500, h.getMean());
+        assertWithin(500 * 1000L, h.getPercentile(50));
+        assertWithin(990 * 1000L, h.getPercentile(99));
+        assertEquals(1000 * 1000L, h.getPercentile(99.9));
+        assertEquals(1000 * 1000L, h.getPercentile(100));
+
+        h.reset();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getMax());
+    }
+
+    private void assertWithin(long expected, long actual) {
+        assertTrue(actual + " < " + expected, actual >= expected);
+        assertTrue(actual + " too far from " + expected, actual <= expected * 1.0625);
+    }
+
+    @Test
+    public void testConcurrentRecording() throws Exception {
+        final LatencyHistogram h = new LatencyHistogram();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100 * 1000; i++) {
+                        h.record(i);
+                    }
+                }
+            });
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(400 * 1000, h.getCount());
+        assertEquals(99999, h.getMax());
+    }
+
+    @Test
+    public void testOperationStats() {
+        OperationStats stats = new OperationStats();
+        OperationStats.Op op = stats.op("putAll");
+        op.record(System.nanoTime(), 100);
+        op.record(System.nanoTime(), 50);
+        assertEquals(2, op.getCalls());
+        assertEquals(150, op.getItems());
+        assertTrue(stats.getThroughput(op) > 0);
+        assertTrue(stats.toJSON().contains("\"putAll\""));
+
+        stats.reset();
+        assertEquals(0, stats.op("putAll").getCalls());
+    }
+}
@@ -0,0 +1,123 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import org.locationtech.geogig.model.RevObject.TYPE;
+
+import com.ning.compress.lzf.LZFEncoder;
+
+public class ObjectStoreStatsTest {
+
+    @Test
+    public void testUncompressedSize() throws Exception {
+        byte[] compressible = new byte[200 * 1024];
+        byte[] random = new byte[1000];
+        new Random(1).nextBytes(random);
+
+        byte[] lzf = LZFEncoder.encode(compressible);
+        assertEquals(compressible.length, JEObjectDatabase.uncompressedSize(lzf, 0, lzf.length));
+
+        lzf = LZFEncoder.encode(random);
+        assertEquals(random.length, JEObjectDatabase.uncompressedSize(lzf, 0, lzf.length));
+
+        // not lzf encoded
+        assertEquals(random.length, JEObjectDatabase.uncompressedSize(random, 0, random.length));
+    }
+
+    @Test
+    public void testDecodeType() throws Exception {
+        byte[] payload = new byte[100 * 1024];
+        for (TYPE type : TYPE.values()) {
+            byte[] lzf = LZFEncoder.encode(concat(new byte[] { (byte) type.value() }, payload));
+            assertEquals(type, JEObjectDatabase.decodeType(lzf, 0, lzf.length));
+        }
+        // 0.1 databases, named headers
+        byte[] lzf = LZFEncoder.encode(concat("featuretype\0".getBytes("US-ASCII"), payload));
+        assertEquals(TYPE.FEATURETYPE, JEObjectDatabase.decodeType(lzf, 0, lzf.length));
+        lzf = LZFEncoder.encode(concat("tag\0".getBytes("US-ASCII"), payload));
+        assertEquals(TYPE.TAG, JEObjectDatabase.decodeType(lzf, 0, lzf.length));
+
+        // within a larger buffer
+        byte[] buffer = concat(new byte[10], lzf);
+        assertEquals(TYPE.TAG, JEObjectDatabase.decodeType(buffer, 10, lzf.length));
+
+        // not lzf encoded
+        assertEquals(TYPE.TREE, JEObjectDatabase.decodeType(new byte[] { 1, 2, 3 }, 0, 3));
+
+        // unreadable
+        lzf = LZFEncoder.encode("unknown\0 header".getBytes("US-ASCII"));
+        assertNull(JEObjectDatabase.decodeType(lzf, 0, lzf.length));
+        lzf = LZFEncoder.encode(new byte[] { (byte) 200, 1, 2 });
+        assertNull(JEObjectDatabase.decodeType(lzf, 0, lzf.length));
+        assertNull(JEObjectDatabase.decodeType(new byte[0], 0, 0));
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    @Test
+    public void testProgressStep() {
+        int steps = 0;
+        for (long count = 1; count <= 250 * 1000; count++) {
+            if (JEObjectDatabase.isProgressStep(count)) {
+                steps++;
+            }
+        }
+        assertEquals(2, steps);
+        assertFalse(JEObjectDatabase.isProgressStep(100));
+        assertTrue(JEObjectDatabase.isProgressStep(JEObjectDatabase.SCAN_PROGRESS_STEP));
+    }
+
+    @Test
+    public void testHistogram() {
+        SizeHistogram h = new SizeHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            h.add(i);
+        }
+        assertEquals(1000, h.getCount());
+        assertEquals(1, h.getMin());
+        assertEquals(1000, h.getMax());
+        assertEquals(1, h.getBucket(0));
+        assertEquals(2, h.getBucket(1));
+        assertEquals(489, h.getBucket(9));
+        assertEquals(511, h.getPercentile(50));
+        assertEquals(1000, h.getPercentile(99));
+    }
+
+    @Test
+    public void testJSON() {
+        ObjectStoreStats stats = new ObjectStoreStats();
+        stats.add(TYPE.COMMIT, 20, 100, 300);
+        stats.add(TYPE.FEATURE, 20, 50, 50);
+        stats.addUnreadable(20, 40);
+        stats.totalLogSize = 1000;
+        assertEquals(2, stats.getCount());
+        assertEquals(1, stats.getUnreadable());
+        assertEquals(3d, stats.getTypeStats().get(TYPE.COMMIT).getCompressionRatio(), 0d);
+        assertEquals(25d, stats.getLogUtilization(), 0d);
+
+        String json = stats.toJSON();
+        assertTrue(json, json.contains("\"COMMIT\":{\"count\":1,\"storedBytes\":100,"));
+        assertTrue(json, json.contains("\"logUtilization\":25.0,"));
+        assertTrue(json, json.contains("\"unreadable\":1,\"unreadableBytes\":40,"));
+    }
+}
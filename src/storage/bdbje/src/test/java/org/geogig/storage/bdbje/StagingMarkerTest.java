@@ -0,0 +1,45 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Optional;
+
+public class StagingMarkerTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        File envHome = tmp.newFolder();
+        StagingMarker marker = new StagingMarker(envHome);
+        assertFalse(marker.getLastSyncedBatch().isPresent());
+
+        marker.write(10);
+        assertEquals(Optional.of(10L), marker.getLastSyncedBatch());
+        marker.write(11);
+        assertEquals(Optional.of(11L), new StagingMarker(envHome).getLastSyncedBatch());
+        assertFalse(new File(envHome, StagingMarker.FILE_NAME + ".tmp").exists());
+
+        marker.clear();
+        assertFalse(marker.getLastSyncedBatch().isPresent());
+        assertTrue(envHome.list().length == 0);
+    }
+}
@@ -0,0 +1,190 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.storage.bdbje;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geogig.storage.bdbje.WriteBuffer.WalMode;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.geogig.model.ObjectId;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
+public class WriteBufferTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static class RecordingFlusher implements WriteBuffer.Flusher {
+
+        final List<SortedMap<ObjectId, byte[]>> batches = new ArrayList<SortedMap<ObjectId, byte[]>>();
+
+        final TreeMap<ObjectId, byte[]> written = new TreeMap<ObjectId, byte[]>();
+
+        @Override
+        public synchronized void write(SortedMap<ObjectId, byte[]> sorted, boolean durable) {
+            batches.add(new TreeMap<ObjectId, byte[]>(sorted));
+            written.putAll(sorted);
+        }
+
+        @Override
+        public synchronized boolean exists(ObjectId id) {
+            return written.containsKey(id);
+        }
+    }
+
+    private static ObjectId id(int i) {
+        return ObjectId.createNoClone(Hashing.sha1()
+                .hashString("object-" + i, Charsets.UTF_8).asBytes());
+    }
+
+    private static byte[] data(int i) {
+        return ("data-" + i).getBytes(Charsets.UTF_8);
+    }
+
+    @Test
+    public void testReadsBeforeAndAfterFlush() throws Exception {
+        RecordingFlusher flusher = new RecordingFlusher();
+        File dir = tmp.newFolder();
+        WriteBuffer buffer = new WriteBuffer(dir, WalMode.NONE, 1024 * 1024, 60 * 1000, flusher);
+        buffer.open();
+        try {
+            for (int i = 0; i < 100; i++) {
+                assertTrue(buffer.put(id(i), data(i)));
+            }
+            assertFalse(buffer.put(id(0), data(0)));
+            assertTrue(flusher.batches.isEmpty());
+            assertTrue(buffer.contains(id(10)));
+            assertArrayEquals(data(10), buffer.get(id(10)));
+
+            List<ObjectId> matches = buffer.lookUp(new byte[] { (byte) id(5).byteN(0),
+                    (byte) id(5).byteN(1), (byte) id(5).byteN(2) });
+            assertTrue(matches.contains(id(5)));
+
+            buffer.flush();
+            assertEquals(1, flusher.batches.size());
+            assertEquals(100, flusher.batches.get(0).size());
+            assertNull(buffer.get(id(10)));
+            assertTrue(buffer.isEmpty());
+            // already stored
+            assertFalse(buffer.put(id(10), data(10)));
+            assertTrue(buffer.isEmpty());
+        } finally {
+            buffer.close();
+        }
+        assertFalse(new File(dir, "writebuffer.wal").exists());
+    }
+
+    @Test
+    public void testFlushOnSize() throws Exception {
+        RecordingFlusher flusher = new RecordingFlusher();
+        WriteBuffer buffer = new WriteBuffer(tmp.newFolder(), WalMode.NONE, 1024, 60 * 1000,
+                flusher);
+        buffer.open();
+        try {
+            for (int i = 0; i < 1000; i++) {
+                buffer.put(id(i), data(i));
+            }
+        } finally {
+            buffer.close();
+        }
+        assertTrue(flusher.batches.size() > 1);
+        assertEquals(1000, flusher.written.size());
+    }
+
+    @Test
+    public void testWriteAheadLogReplay() throws Exception {
+        final File dir = tmp.newFolder();
+        RecordingFlusher crashed = new RecordingFlusher();
+        WriteBuffer buffer = new WriteBuffer(dir, WalMode.SYNC, 1024 * 1024, 60 * 1000, crashed);
+        buffer.open();
+        for (int i = 0; i < 10; i++) {
+            buffer.put(id(i), data(i));
+        }
+        // not closed, simulate a crash
+        assertTrue(crashed.batches.isEmpty());
+        assertTrue(new File(dir, "writebuffer.wal").length() > 0);
+
+        RecordingFlusher recovered = new RecordingFlusher();
+        buffer = new WriteBuffer(dir, WalMode.SYNC, 1024 * 1024, 60 * 1000, recovered);
+        buffer.open();
+        buffer.close();
+        assertEquals(10, recovered.written.size());
+        for (int i = 0; i < 10; i++) {
+            assertArrayEquals(data(i), recovered.written.get(id(i)));
+        }
+    }
+
+    @Test
+    public void testConcurrentPutsAndFlushes() throws Exception {
+        final RecordingFlusher flusher = new RecordingFlusher();
+        final WriteBuffer buffer = new WriteBuffer(tmp.newFolder(), WalMode.NONE, 1024, 1,
+                flusher);
+        buffer.open();
+        final AtomicInteger added = new AtomicInteger();
+        ExecutorService writers = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> results = new ArrayList<Future<?>>();
+            for (int w = 0; w < 4; w++) {
+                results.add(writers.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        // every writer puts the same objects, each one is added only once
+                        for (int i = 0; i < 2000; i++) {
+                            if (buffer.put(id(i), data(i))) {
+                                added.incrementAndGet();
+                            }
+                        }
+                    }
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            writers.shutdownNow();
+            buffer.close();
+        }
+        assertEquals(2000, added.get());
+        assertEquals(2000, flusher.written.size());
+    }
+
+    @Test
+    public void testPutAfterClose() throws Exception {
+        WriteBuffer buffer = new WriteBuffer(tmp.newFolder(), WalMode.NONE, 1024, 60 * 1000,
+                new RecordingFlusher());
+        buffer.open();
+        buffer.close();
+        try {
+            buffer.put(id(0), data(0));
+            fail("Expected ISE");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("closed"));
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/* Copyright (c) 2016 Boundless and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Distribution License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/edl-v10.html
+ *
+ * Contributors:
+ * Gabriel Roldan (Boundless) - initial implementation
+ */
+package org.geogig.test.performance.je;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.geogig.storage.bdbje.EnvironmentBuilder;
+import org.geogig.storage.bdbje.JEGraphDatabase_v0_2;
+import org.geogig.storage.bdbje.JEObjectDatabase_v0_2;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.geogig.model.ObjectId;
+import org.locationtech.geogig.repository.Hints;
+import org.locationtech.geogig.storage.ConfigDatabase;
+import org.locationtech.geogig.storage.GraphDatabase;
+import org.locationtech.geogig.storage.ObjectDatabase;
+import org.locationtech.geogig.storage.fs.IniFileConfigDatabase;
+import org.locationtech.geogig.test.TestPlatform;
+import org.locationtech.geogig.test.performance.EnablePerformanceTestRule;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+
+/**
+ * Measures the time it takes for the object and graph databases of a repository to be ready for
+ * use, opening them one after the other versus starting both opens before using any of them, the
+ * way {@code Repository.open()} does.
+ */
+public class JEStartupPerformanceTest {
+
+    @ClassRule
+    public static EnablePerformanceTestRule performanceRule = new EnablePerformanceTestRule();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final int NUM_COMMITS = 200 * 1000;
+
+    private static final int ROUNDS = 10;
+
+    private TestPlatform platform;
+
+    private ConfigDatabase config;
+
+    @Before
+    public void setUp() throws Exception {
+        File root = tmp.newFolder("repo");
+        assertTrue(new File(root, ".geogig").mkdir());
+        platform = new TestPlatform(root);
+        config = new IniFileConfigDatabase(platform);
+
+        GraphDatabase graph = newGraph();
+        graph.open();
+        try {
+            ObjectId parent = null;
+            for (int i = 0; i < NUM_COMMITS; i++) {
+                ObjectId id = id(i);
+                graph.put(id, parent == null ? ImmutableList.<ObjectId> of()
+                        : ImmutableList.of(parent));
+                parent = id;
+            }
+        } finally {
+            graph.close();
+        }
+        ObjectDatabase objects = newObjects();
+        objects.open();
+        objects.close();
+    }
+
+    private static ObjectId id(int i) {
+        return ObjectId.createNoClone(Hashing.sha1().hashInt(i).asBytes());
+    }
+
+    private GraphDatabase newGraph() {
+        return new JEGraphDatabase_v0_2(config, new EnvironmentBuilder(platform, null),
+                new Hints());
+    }
+
+    private ObjectDatabase newObjects() {
+        return new JEObjectDatabase_v0_2(config, new EnvironmentBuilder(platform, null), false,
+                "objects");
+    }
+
+    @Test
+    public void testStartup() {
+        // warm up
+        openSerially();
+        openInParallel();
+
+        long serial = 0, parallel = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            serial += openSerially();
+            parallel += openInParallel();
+        }
+        System.err.printf("Startup of %,d commits repository: serial %,dms, parallel %,dms%n",
+                NUM_COMMITS, serial / ROUNDS, parallel / ROUNDS);
+    }
+
+    private long openSerially() {
+        ObjectDatabase objects = newObjects();
+        GraphDatabase graph = newGraph();
+        Stopwatch sw = Stopwatch.createStarted();
+        objects.open();
+        objects.exists(ObjectId.NULL);
+        graph.open();
+        graph.exists(id(0));
+        sw.stop();
+        objects.close();
+        graph.close();
+        return sw.elapsed(TimeUnit.MILLISECONDS);
+    }
+
+    private long openInParallel() {
+        ObjectDatabase objects = newObjects();
+        GraphDatabase graph = newGraph();
+        Stopwatch sw = Stopwatch.createStarted();
+        objects.open();
+        graph.open();
+        objects.exists(ObjectId.NULL);
+        graph.exists(id(0));
+        sw.stop();
+        objects.close();
+        graph.close();
+        return sw.elapsed(TimeUnit.MILLISECONDS);
+    }
+}